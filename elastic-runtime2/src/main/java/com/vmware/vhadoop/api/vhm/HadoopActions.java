@@ -131,6 +131,9 @@ public interface HadoopActions {
    public void recommissionTTs(Set<String> ttDnsNames, HadoopClusterInfo cluster);
 	
    public Set<String> checkTargetTTsSuccess(String opType, Set<String> ttDnsNames, int totalTargetEnabled, HadoopClusterInfo cluster);
+
+   /* Decommissions the TTs and waits for them to leave the active list in a single remote operation. Returns the TTs active at the end, or null if unknown */
+   public Set<String> decommissionAndCheckTTs(Set<String> ttDnsNames, int totalTargetEnabled, HadoopClusterInfo cluster);
 	
    public Set<String> getActiveTTs(HadoopClusterInfo cluster, int totalTargetEnabled);
 }
@@ -17,6 +17,9 @@ package com.vmware.vhadoop.api.vhm.events;
 
 /* Superclass of all events produced by EventProducers and consumed by EventConsumers */
 public interface NotificationEvent {
+   /* The order in which VHM handles queued events. Lower priority events are only held back for a bounded time */
+   public enum Priority {HIGH, NORMAL, LOW}
+
    public boolean getCanClearQueue();
       
    public boolean getCanBeClearedFromQueue();
@@ -24,4 +27,13 @@ public interface NotificationEvent {
    public boolean isSameEventTypeAs(NotificationEvent next);
    
    public long getTimestamp();
+
+   /* Identifies what the event is about, so that successive events with the same key can be merged. Null if the event has no key */
+   public String getEventKey();
+
+   /* Returns a single event with the same effect as this event followed by the later one, which has the same event key
+    * Returns null if the two events cannot be merged */
+   public NotificationEvent mergeWith(NotificationEvent later);
+
+   public Priority getPriority();
 }
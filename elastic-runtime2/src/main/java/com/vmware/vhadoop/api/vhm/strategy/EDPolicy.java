@@ -19,7 +19,9 @@ import java.util.*;
 
 import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 
-/* Takes a set of VMs and either enables or disables them, based on whatever strategy it needs */
+/* Takes a set of VMs and either enables or disables them, based on whatever strategy it needs
+ * If the calling ClusterScaleOperation is cancelled, an implementation may stop early. In that case, it returns the VMs whose power state
+ *   it changed, without having verified them */
 public interface EDPolicy extends ClusterMapReader {
    public static final String ACTIVE_TTS_STATUS_KEY = "getActiveStatus";
    /* Caller should expect this to block - returns the VM IDs that were successfully enabled */
@@ -31,24 +31,50 @@ public interface ScaleStrategy extends ClusterMapReader {
 
    Class<? extends ScaleStrategyContext> getStrategyContextType();
 
+   /* Cancellation is cooperative - an operation checks isCancellationRequested() at points where it is safe to stop
+    * Operations that never check it simply run to completion */
    abstract class ClusterScaleOperation extends AbstractClusterMapReader implements Callable<ClusterScaleCompletionEvent> {
       private static final Logger _log = Logger.getLogger(ClusterScaleOperation.class.getName());
 
+      /* Allows code running on behalf of an operation, such as an EDPolicy, to check for cancellation without a reference to it */
+      private static final ThreadLocal<ClusterScaleOperation> _currentOperation = new ThreadLocal<ClusterScaleOperation>();
+
+      private volatile boolean _cancellationRequested;
+
       @Override
       public ClusterScaleCompletionEvent call() {
          ClusterScaleCompletionEvent result = null;
          /* It is critical that this initialize call is matched by the remove() call below in order to avoid memory leaks */
          getThreadLocalCompoundStatus().initialize();
+         _currentOperation.set(this);
          try {
             result = localCall();
          } catch (Throwable t) {
             _log.log(Level.SEVERE, "VHM: unexpected exception while scaling", t);
+         } finally {
+            _currentOperation.remove();
+            /* Operations may be re-used, so a cancellation only applies to the invocation it was requested for */
+            _cancellationRequested = false;
+            getThreadLocalCompoundStatus().remove();
          }
-         getThreadLocalCompoundStatus().remove();
          return result;
       }
 
       public abstract ClusterScaleCompletionEvent localCall() throws Exception;
+
+      public void requestCancellation() {
+         _cancellationRequested = true;
+      }
+
+      public boolean isCancellationRequested() {
+         return _cancellationRequested;
+      }
+
+      /* Returns false if the calling thread is not running a ClusterScaleOperation */
+      public static boolean isCurrentOperationCancelled() {
+         ClusterScaleOperation operation = _currentOperation.get();
+         return (operation != null) && operation.isCancellationRequested();
+      }
    }
 
    Class<? extends ClusterScaleEvent>[] getScaleEventTypesHandled();
@@ -0,0 +1,46 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.util;
+
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/* Helpers for reading typed values from vhm.properties. Missing or malformed values fall back to the default */
+public class PropertiesUtil {
+   private static final Logger _log = Logger.getLogger(PropertiesUtil.class.getName());
+
+   public static long getLong(Properties properties, String key, long defaultValue) {
+      String value = (properties == null) ? null : properties.getProperty(key);
+      if ((value == null) || (value.trim().length() == 0)) {
+         return defaultValue;
+      }
+      try {
+         return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+         _log.warning("VHM: invalid value \""+value+"\" for property "+key+" - using default of "+defaultValue);
+         return defaultValue;
+      }
+   }
+
+   public static int getInt(Properties properties, String key, int defaultValue) {
+      long result = getLong(properties, key, defaultValue);
+      if ((result > Integer.MAX_VALUE) || (result < Integer.MIN_VALUE)) {
+         _log.warning("VHM: value "+result+" for property "+key+" is out of range - using default of "+defaultValue);
+         return defaultValue;
+      }
+      return (int)result;
+   }
+}
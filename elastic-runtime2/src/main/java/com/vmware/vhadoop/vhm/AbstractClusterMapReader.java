@@ -16,22 +16,33 @@
 package com.vmware.vhadoop.vhm;
 
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap;
 import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 import com.vmware.vhadoop.util.CompoundStatus;
 import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
+import com.vmware.vhadoop.vhm.VMStateSubscriptions.VMStatePredicate;
 
 public abstract class AbstractClusterMapReader implements ClusterMapReader {
 
    ClusterMapAccess _clusterMapAccess;
    private ThreadLocalCompoundStatus _threadLocalStatus;
+   private VMStateSubscriptions _vmStateSubscriptions;      /* If null, readers fall back to polling ClusterMap */
    private boolean _initialized;
 
    /* To be used purely to allow the parent to initialize these values */
    protected AbstractClusterMapReader(ClusterMapAccess clusterMapAccess, ThreadLocalCompoundStatus tlcs) {
+      this(clusterMapAccess, tlcs, null);
+   }
+
+   protected AbstractClusterMapReader(ClusterMapAccess clusterMapAccess, ThreadLocalCompoundStatus tlcs, VMStateSubscriptions vmStateSubscriptions) {
       _clusterMapAccess = clusterMapAccess;
       _threadLocalStatus = tlcs;
+      _vmStateSubscriptions = vmStateSubscriptions;
       _initialized = true;
    }
    
@@ -56,12 +67,17 @@ public abstract class AbstractClusterMapReader implements ClusterMapReader {
       if (parent instanceof AbstractClusterMapReader) {
          _clusterMapAccess = ((AbstractClusterMapReader)parent)._clusterMapAccess;
          _threadLocalStatus = ((AbstractClusterMapReader)parent)._threadLocalStatus;
+         _vmStateSubscriptions = ((AbstractClusterMapReader)parent)._vmStateSubscriptions;
          _initialized = true;
       } else {
          throw new RuntimeException("Unrecognized ClusterMapReader implementation");
       }
    }
 
+   protected boolean isInitialized() {
+      return _initialized;
+   }
+
    private void checkInitialized() {
       if (!_initialized) {
          throw new RuntimeException("ClusterMapReader not initialized!");
@@ -69,7 +85,8 @@ public abstract class AbstractClusterMapReader implements ClusterMapReader {
    }
    
    @Override
-   /* Gets a read lock on ClusterMap - call unlock when done */
+   /* Gets a read lock on ClusterMap - call unlock when done
+    * With SnapshotClusterMapAccess, this returns the latest published snapshot without locking */
    public ClusterMap getAndReadLockClusterMap() {
       checkInitialized();
       return _clusterMapAccess.lockClusterMap();
@@ -81,9 +98,46 @@ public abstract class AbstractClusterMapReader implements ClusterMapReader {
       _clusterMapAccess.unlockClusterMap(clusterMap);
    }
 
+   /* Blocks until the predicate holds for all of the vmIds or until the timeout expires. Returns true if the predicate holds
+    * Returns null if VM state subscriptions are not available, in which case the caller must poll ClusterMap itself */
+   protected Boolean blockOnVMStateChange(final Set<String> vmIds, final VMStatePredicate predicate, final long timeout)
+         throws InterruptedException {
+      checkInitialized();
+      if (_vmStateSubscriptions == null) {
+         return null;
+      }
+      Future<Boolean> subscription = _vmStateSubscriptions.subscribe(vmIds, predicate, _clusterMapAccess);
+      try {
+         return subscription.get(timeout, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+         return false;
+      } catch (ExecutionException e) {
+         return false;
+      } finally {
+         subscription.cancel(false);
+      }
+   }
+
    public void blockOnPowerStateChange(final Set<String> vmIds, final boolean expectedPowerState, final long timeout) {
       checkInitialized();
       CompoundStatus status = new CompoundStatus(POWER_STATE_CHANGE_STATUS_KEY);
+      if (_vmStateSubscriptions != null) {
+         try {
+            if (blockOnVMStateChange(vmIds, VMStateSubscriptions.getPowerStatePredicate(expectedPowerState), timeout)) {
+               status.registerTaskSucceeded();
+            } else {
+               status.registerTaskFailed(false, "Timeout waiting for powerStateChange");
+            }
+         } catch (InterruptedException e) {
+            status.registerTaskIncomplete(false, "blockOnPowerStateChange was interrupted unexpectedly");
+         }
+      } else {
+         pollOnPowerStateChange(vmIds, expectedPowerState, timeout, status);
+      }
+      getCompoundStatus().addStatus(status);
+   }
+
+   private void pollOnPowerStateChange(final Set<String> vmIds, final boolean expectedPowerState, final long timeout, CompoundStatus status) {
       long timeoutTime = System.currentTimeMillis() + timeout;
       long pollSleepTime = 500;
       boolean timedOut = false;
@@ -107,6 +161,5 @@ public abstract class AbstractClusterMapReader implements ClusterMapReader {
       if (timedOut) {
          status.registerTaskFailed(false, "Timeout waiting for powerStateChange");
       }
-      getCompoundStatus().addStatus(status);
    }
 }
@@ -38,9 +38,11 @@ import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterVariableData;
 import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
 import com.vmware.vhadoop.util.LogFormatter;
+import com.vmware.vhadoop.util.PropertiesUtil;
 import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
 import com.vmware.vhadoop.util.VhmLevel;
 import com.vmware.vhadoop.vhm.hadoop.HadoopAdaptor;
+import com.vmware.vhadoop.vhm.hadoop.HttpJobTrackerAdaptor;
 import com.vmware.vhadoop.vhm.hadoop.SimpleHadoopCredentials;
 import com.vmware.vhadoop.vhm.rabbit.RabbitAdaptor;
 import com.vmware.vhadoop.vhm.rabbit.SimpleRabbitCredentials;
@@ -273,8 +275,14 @@ public class BootstrapMain
          vcCreds.keyStorePwd = _properties.getProperty("keyStorePwd");
          vcCreds.vcExtKey = _properties.getProperty("extensionKey");
 
-         _vcActions = new VcAdapter(vcCreds, _properties.getProperty("uuid"));
-         ((VcAdapter) _vcActions).setThreadLocalCompoundStatus(tlcs);
+         VcAdapter vcAdapter = new VcAdapter(vcCreds, _properties.getProperty("uuid"),
+               PropertiesUtil.getInt(_properties, VcAdapter.CLIENT_POOL_SIZE_PROP_KEY, VcAdapter.DEFAULT_CLIENT_POOL_SIZE),
+               PropertiesUtil.getInt(_properties, VcAdapter.CLIENT_POOL_MAX_IN_FLIGHT_PROP_KEY, VcAdapter.DEFAULT_CLIENT_POOL_MAX_IN_FLIGHT),
+               PropertiesUtil.getLong(_properties, VcAdapter.CLIENT_POOL_IDLE_MILLIS_PROP_KEY, VcAdapter.DEFAULT_CLIENT_POOL_IDLE_MILLIS));
+         vcAdapter.setThreadLocalCompoundStatus(tlcs);
+         _vcActions = new PowerOperationAdmissionControl(vcAdapter,
+               PropertiesUtil.getInt(_properties, PowerOperationAdmissionControl.MAX_POWER_OPS_PER_HOST_PROP_KEY, PowerOperationAdmissionControl.DEFAULT_MAX_POWER_OPS_PER_HOST),
+               PropertiesUtil.getInt(_properties, PowerOperationAdmissionControl.MAX_POWER_OPS_PER_VC_PROP_KEY, PowerOperationAdmissionControl.DEFAULT_MAX_POWER_OPS_PER_VC));
       }
       return _vcActions;
    }
@@ -286,12 +294,17 @@ public class BootstrapMain
 
    HadoopActions getHadoopInterface(ThreadLocalCompoundStatus tlcs) {
       if (_hadoopActions == null) {
-         _hadoopActions = new HadoopAdaptor(new SimpleHadoopCredentials(_properties.getProperty("vHadoopUser"),
+         HadoopActions sshHadoopActions = new HadoopAdaptor(new SimpleHadoopCredentials(_properties.getProperty("vHadoopUser"),
                                                                         _properties.getProperty("vHadoopPwd"),
                                                                         _properties.getProperty("vHadoopPrvkeyFile")),
                                             new JTConfigInfo(_properties.getProperty("vHadoopHome"),
                                                              _properties.getProperty("vHadoopExcludeTTFile")),
-                                            tlcs);
+                                            tlcs,
+                                            _properties.getProperty(HadoopAdaptor.EXCLUDES_UPDATE_MODE_PROP_KEY, HadoopAdaptor.EXCLUDES_UPDATE_FULL));
+         /* The active task trackers are read from the JobTracker directly where possible, falling back to ssh */
+         _hadoopActions = new HttpJobTrackerAdaptor(sshHadoopActions, tlcs,
+               PropertiesUtil.getInt(_properties, HttpJobTrackerAdaptor.JOB_TRACKER_HTTP_PORT_PROP_KEY, HttpJobTrackerAdaptor.DEFAULT_JOB_TRACKER_HTTP_PORT),
+               PropertiesUtil.getLong(_properties, HttpJobTrackerAdaptor.ACTIVE_TTS_CACHE_MILLIS_PROP_KEY, HttpJobTrackerAdaptor.DEFAULT_ACTIVE_TTS_CACHE_MILLIS));
       }
       return _hadoopActions;
    }
@@ -329,7 +342,7 @@ public class BootstrapMain
 
       MQClient mqClient = getRabbitInterface();
 
-      vhm = new VHM(getVCInterface(tlcs), getScaleStrategies(tlcs), getStrategyMapper(), tlcs);
+      vhm = new VHM(getVCInterface(tlcs), getScaleStrategies(tlcs), getStrategyMapper(), tlcs, _properties);
       ClusterStateChangeListenerImpl cscl = new ClusterStateChangeListenerImpl(getVCInterface(tlcs), _properties.getProperty("uuid"));
 
       if (!vhm.registerEventProducer(cscl)) {
@@ -0,0 +1,487 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent.Priority;
+
+/* Bounded, array-based event queue for many producers and a single consumer (the VHM main thread)
+ * There is a ring for each event Priority. Producers claim a slot with a CAS on the tail of a ring and publish into it without taking
+ *   a lock. Each slot has a sequence number which tells the consumer when it has been published and tells producers when it is free
+ *   again, so nothing is allocated per event.
+ * The consumer polls the highest priority ring with an event in it, unless the oldest event in a lower priority ring has waited for
+ *   longer than the starvation time, in which case that event is polled first.
+ * Clear-queue protocol: a producer which offers an event that can clear the queue moves the clear marker of every ring to the
+ *   position of its tail. The consumer discards any event it polls from before the marker that can be cleared from the queue.
+ *   Events which cannot be cleared are kept in their original order, so the queue is never walked or rebuilt by a producer.
+ * If a ring is full, the OverflowPolicy decides whether the producer waits for space or the event is dropped. Only events which the
+ *   caller has offered as droppable are ever dropped */
+class BoundedEventQueue {
+   private static final Logger _log = Logger.getLogger(BoundedEventQueue.class.getName());
+
+   enum OverflowPolicy {
+      /* The producer waits until there is space on the queue */
+      BLOCK,
+      /* Events offered as droppable are dropped. Any other event waits for space, as it must not be lost
+       * The caller is responsible for telling the source of a dropped event */
+      DROP_NEWEST;
+
+      static OverflowPolicy fromPropertyValue(String value) {
+         if ("dropNewest".equals(value)) {
+            return DROP_NEWEST;
+         }
+         return BLOCK;
+      }
+   }
+
+   private static final long BLOCKED_PRODUCER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+   private static final int MAX_PRODUCERS_TRACKED = 64;
+   private static final String OTHER_PRODUCERS = "other";
+
+   private final Ring[] _rings;
+   private final OverflowPolicy _overflowPolicy;
+   private final long _starvationNanos;
+   private final AtomicLong _clearRequests = new AtomicLong();
+
+   private volatile Thread _waitingConsumer;
+
+   private final AtomicLong _dropped = new AtomicLong();
+   private final AtomicLong _cleared = new AtomicLong();
+   private final AtomicLong _producerBlocks = new AtomicLong();
+   private final AtomicLong _starvedPolls = new AtomicLong();
+   private final ConcurrentHashMap<String, AtomicLong> _enqueuedByProducer = new ConcurrentHashMap<String, AtomicLong>();
+   private Map<String, Long> _lastEnqueuedByProducer = new HashMap<String, Long>();   /* Only used by the consumer */
+   private long _lastRateTime = System.currentTimeMillis();
+
+   /* The time that events of one priority spend on the queue, from being published to being polled */
+   static class LatencyStatistics {
+      private final AtomicLong _events = new AtomicLong();
+      private final AtomicLong _totalNanos = new AtomicLong();
+      private final AtomicLong _maxNanos = new AtomicLong();
+
+      void record(long latencyNanos) {
+         _events.incrementAndGet();
+         _totalNanos.addAndGet(latencyNanos);
+         if (latencyNanos > _maxNanos.get()) {
+            _maxNanos.set(latencyNanos);
+         }
+      }
+
+      long getEvents() {
+         return _events.get();
+      }
+
+      long getAverageMicros() {
+         long events = _events.get();
+         return (events == 0) ? 0 : TimeUnit.NANOSECONDS.toMicros(_totalNanos.get() / events);
+      }
+
+      long getMaxMicros() {
+         return TimeUnit.NANOSECONDS.toMicros(_maxNanos.get());
+      }
+
+      @Override
+      public String toString() {
+         return "{events="+getEvents()+", avgLatency="+getAverageMicros()+"us, maxLatency="+getMaxMicros()+"us}";
+      }
+   }
+
+   /* A bounded ring of events with a single Priority */
+   private class Ring {
+      private final int _capacity;
+      private final int _mask;
+      private final AtomicReferenceArray<NotificationEvent> _slots;
+      private final AtomicLongArray _sequences;
+      private final AtomicLongArray _publishTimes;
+      private final AtomicLong _tail = new AtomicLong();
+      private volatile long _head;                               /* Only written by the consumer */
+      private final AtomicLong _clearMarker = new AtomicLong(-1);
+      private final AtomicLong _maxDepth = new AtomicLong();
+      private final LatencyStatistics _latency = new LatencyStatistics();
+
+      Ring(int capacity) {
+         _capacity = capacity;
+         _mask = capacity - 1;
+         _slots = new AtomicReferenceArray<NotificationEvent>(capacity);
+         _sequences = new AtomicLongArray(capacity);
+         _publishTimes = new AtomicLongArray(capacity);
+         for (int i=0; i<capacity; i++) {
+            _sequences.set(i, i);
+         }
+      }
+
+      /* Returns the claimed position or -1 if the event should be dropped */
+      long claimSlot(NotificationEvent event, boolean canBeDropped) {
+         boolean blocked = false;
+         while (true) {
+            long position = _tail.get();
+            long sequence = _sequences.get((int)(position & _mask));
+            if (sequence == position) {
+               if (_tail.compareAndSet(position, position+1)) {
+                  return position;
+               }
+            } else if (sequence < position) {
+               /* The slot has not yet been released by the consumer, so the ring is full */
+               if ((_overflowPolicy == OverflowPolicy.DROP_NEWEST) && canBeDropped) {
+                  return -1;
+               }
+               if (!blocked) {
+                  blocked = true;
+                  _producerBlocks.incrementAndGet();
+                  _log.fine("VHM: event queue is full - waiting for space to add "+event);
+               }
+               LockSupport.parkNanos(BLOCKED_PRODUCER_PARK_NANOS);
+            }
+         }
+      }
+
+      void publish(long position, NotificationEvent event) {
+         int index = (int)(position & _mask);
+         _slots.set(index, event);
+         _publishTimes.set(index, System.nanoTime());
+         _sequences.set(index, position+1);
+         long depth = (position+1) - _head;
+         long maxDepth = _maxDepth.get();
+         while ((depth > maxDepth) && !_maxDepth.compareAndSet(maxDepth, depth)) {
+            maxDepth = _maxDepth.get();
+         }
+      }
+
+      /* Events which can be cleared from before this position will be discarded */
+      void moveClearMarker(long position) {
+         long marker = _clearMarker.get();
+         while ((position > marker) && !_clearMarker.compareAndSet(marker, position)) {
+            marker = _clearMarker.get();
+         }
+      }
+
+      /* Only called by the consumer. Returns null if there is no published event, skipping events discarded by a clear request */
+      NotificationEvent poll() {
+         while (true) {
+            long position = _head;
+            int index = (int)(position & _mask);
+            if (_sequences.get(index) != (position+1)) {
+               return null;
+            }
+            NotificationEvent event = _slots.get(index);
+            long publishTime = _publishTimes.get(index);
+            _slots.set(index, null);
+            _sequences.set(index, position+_capacity);
+            _head = position+1;
+            if ((position < _clearMarker.get()) && event.getCanBeClearedFromQueue()) {
+               _cleared.incrementAndGet();
+               continue;
+            }
+            _latency.record(System.nanoTime() - publishTime);
+            return event;
+         }
+      }
+
+      NotificationEvent peek() {
+         long position = _head;
+         int index = (int)(position & _mask);
+         if (_sequences.get(index) != (position+1)) {
+            return null;
+         }
+         return _slots.get(index);
+      }
+
+      /* Returns how long the event at the head of the ring has been waiting, or -1 if there is no event */
+      long getHeadWaitNanos() {
+         long position = _head;
+         int index = (int)(position & _mask);
+         if (_sequences.get(index) != (position+1)) {
+            return -1;
+         }
+         return System.nanoTime() - _publishTimes.get(index);
+      }
+
+      int size() {
+         return (int)Math.max(0, _tail.get() - _head);
+      }
+   }
+
+   BoundedEventQueue(int requestedCapacity, OverflowPolicy overflowPolicy, long starvationMillis) {
+      int capacity = 2;
+      while (capacity < requestedCapacity) {
+         capacity <<= 1;
+      }
+      _rings = new Ring[Priority.values().length];
+      for (int i=0; i<_rings.length; i++) {
+         _rings[i] = new Ring(capacity);
+      }
+      _overflowPolicy = overflowPolicy;
+      _starvationNanos = TimeUnit.MILLISECONDS.toNanos(starvationMillis);
+   }
+
+   private Ring getRing(NotificationEvent event) {
+      Priority priority = event.getPriority();
+      return _rings[(priority == null) ? Priority.NORMAL.ordinal() : priority.ordinal()];
+   }
+
+   /* Can be called by any thread. The event is never dropped */
+   boolean offer(NotificationEvent event) {
+      return offer(event, false);
+   }
+
+   /* Can be called by any thread. Returns false if the event was dropped due to the overflow policy, which only happens if canBeDropped */
+   boolean offer(NotificationEvent event, boolean canBeDropped) {
+      Ring ring = getRing(event);
+      long position = ring.claimSlot(event, canBeDropped);
+      if (position < 0) {
+         _dropped.incrementAndGet();
+         _log.warning("VHM: event queue is full - dropping "+event);
+         return false;
+      }
+      if (event.getCanClearQueue()) {
+         /* The markers are moved before the event is published, so the consumer can never see the event without them */
+         for (Ring r : _rings) {
+            r.moveClearMarker((r == ring) ? position : r._tail.get());
+         }
+         _clearRequests.incrementAndGet();
+      }
+      ring.publish(position, event);
+      recordEnqueue();
+      Thread waitingConsumer = _waitingConsumer;
+      if (waitingConsumer != null) {
+         LockSupport.unpark(waitingConsumer);
+      }
+      return true;
+   }
+
+   private void recordEnqueue() {
+      String producer = Thread.currentThread().getName();
+      AtomicLong counter = _enqueuedByProducer.get(producer);
+      if (counter == null) {
+         if (_enqueuedByProducer.size() >= MAX_PRODUCERS_TRACKED) {
+            producer = OTHER_PRODUCERS;
+         }
+         AtomicLong newCounter = new AtomicLong();
+         counter = _enqueuedByProducer.putIfAbsent(producer, newCounter);
+         if (counter == null) {
+            counter = newCounter;
+         }
+      }
+      counter.incrementAndGet();
+   }
+
+   /* Only called by the consumer. Returns the next event in priority order, or null if there is no published event
+    * A lower priority event which has waited for longer than the starvation time is polled ahead of higher priority events */
+   NotificationEvent poll() {
+      Ring starvedRing = null;
+      long longestWaitNanos = _starvationNanos;
+      for (int i=1; i<_rings.length; i++) {
+         long waitNanos = _rings[i].getHeadWaitNanos();
+         if (waitNanos > longestWaitNanos) {
+            starvedRing = _rings[i];
+            longestWaitNanos = waitNanos;
+         }
+      }
+      if (starvedRing != null) {
+         NotificationEvent event = starvedRing.poll();
+         if (event != null) {
+            _starvedPolls.incrementAndGet();
+            return event;
+         }
+      }
+      for (Ring ring : _rings) {
+         NotificationEvent event = ring.poll();
+         if (event != null) {
+            return event;
+         }
+      }
+      return null;
+   }
+
+   /* Can be called by any thread, but the result may be out of date as soon as it is returned */
+   NotificationEvent peek() {
+      for (Ring ring : _rings) {
+         NotificationEvent event = ring.peek();
+         if (event != null) {
+            return event;
+         }
+      }
+      return null;
+   }
+
+   boolean isEmpty() {
+      return peek() == null;
+   }
+
+   /* The number of slots claimed by producers, including any which are not yet published */
+   int size() {
+      int result = 0;
+      for (Ring ring : _rings) {
+         result += ring.size();
+      }
+      return result;
+   }
+
+   private long getTotalClaimed() {
+      long result = 0;
+      for (Ring ring : _rings) {
+         result += ring._tail.get();
+      }
+      return result;
+   }
+
+   /* Only called by the consumer. Waits until an event is available, for at most timeoutMillis if it is greater than 0 */
+   void awaitEvent(long timeoutMillis) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      _waitingConsumer = Thread.currentThread();
+      try {
+         /* The waiting consumer is published before the check, so a producer which publishes after the check will unpark it */
+         while (isEmpty()) {
+            if (timeoutMillis > 0) {
+               long remainingMillis = deadline - System.currentTimeMillis();
+               if (remainingMillis <= 0) {
+                  return;
+               }
+               LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(remainingMillis));
+            } else {
+               LockSupport.park(this);
+            }
+            if (Thread.interrupted()) {
+               _log.warning("VHM: interrupted unexpectedly while waiting for event");
+            }
+         }
+      } finally {
+         _waitingConsumer = null;
+      }
+   }
+
+   /* Only called by the consumer. Waits for at most timeoutMillis for another event to be added to the queue */
+   void awaitNextEvent(long timeoutMillis) {
+      long claimed = getTotalClaimed();
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      _waitingConsumer = Thread.currentThread();
+      try {
+         while (getTotalClaimed() == claimed) {
+            long remainingMillis = deadline - System.currentTimeMillis();
+            if (remainingMillis <= 0) {
+               return;
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(remainingMillis));
+            if (Thread.interrupted()) {
+               _log.warning("VHM: interrupted unexpectedly while waiting for event batch");
+               return;
+            }
+         }
+      } finally {
+         _waitingConsumer = null;
+      }
+   }
+
+   /* High priority events are urgent, so VHM does not wait for a batch to build up when there is one
+    * May briefly be true before the event can be polled, as its slot is counted once it is claimed */
+   boolean hasUrgentEvent() {
+      return _rings[Priority.HIGH.ordinal()].size() > 0;
+   }
+
+   /* Incremented every time an event that can clear the queue is added */
+   long getClearRequests() {
+      return _clearRequests.get();
+   }
+
+   /* The capacity of the ring for each priority */
+   int getCapacity() {
+      return _rings[0]._capacity;
+   }
+
+   long getMaxDepth() {
+      long result = 0;
+      for (Ring ring : _rings) {
+         result = Math.max(result, ring._maxDepth.get());
+      }
+      return result;
+   }
+
+   long getDropped() {
+      return _dropped.get();
+   }
+
+   long getCleared() {
+      return _cleared.get();
+   }
+
+   long getProducerBlocks() {
+      return _producerBlocks.get();
+   }
+
+   /* The number of times a lower priority event was polled ahead of higher priority ones because it had waited too long */
+   long getStarvedPolls() {
+      return _starvedPolls.get();
+   }
+
+   LatencyStatistics getLatencyStatistics(Priority priority) {
+      return _rings[priority.ordinal()]._latency;
+   }
+
+   /* Total events enqueued by each producer thread */
+   Map<String, Long> getEnqueueCounts() {
+      Map<String, Long> result = new HashMap<String, Long>();
+      for (Map.Entry<String, AtomicLong> entry : _enqueuedByProducer.entrySet()) {
+         result.put(entry.getKey(), entry.getValue().get());
+      }
+      return result;
+   }
+
+   /* Only called by the consumer. Describes the enqueue rate of each producer since the last time this was called */
+   String describeEnqueueRates() {
+      long now = System.currentTimeMillis();
+      long elapsedMillis = Math.max(1, now - _lastRateTime);
+      Map<String, Long> counts = getEnqueueCounts();
+      StringBuilder result = new StringBuilder();
+      for (Map.Entry<String, Long> entry : counts.entrySet()) {
+         Long lastCount = _lastEnqueuedByProducer.get(entry.getKey());
+         long enqueued = entry.getValue() - ((lastCount == null) ? 0 : lastCount);
+         if (result.length() > 0) {
+            result.append(", ");
+         }
+         result.append(entry.getKey()).append("=").append((enqueued * 1000) / elapsedMillis).append("/s");
+      }
+      _lastEnqueuedByProducer = counts;
+      _lastRateTime = now;
+      return result.toString();
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder latencies = new StringBuilder();
+      for (Priority priority : Priority.values()) {
+         latencies.append(", ").append(priority).append("=").append(getLatencyStatistics(priority));
+      }
+      return "depth="+size()+
+            ", capacity="+getCapacity()+
+            ", maxDepth="+getMaxDepth()+
+            ", dropped="+_dropped.get()+
+            ", cleared="+_cleared.get()+
+            ", producerBlocks="+_producerBlocks.get()+
+            ", starvedPolls="+_starvedPolls.get()+
+            latencies;
+   }
+}
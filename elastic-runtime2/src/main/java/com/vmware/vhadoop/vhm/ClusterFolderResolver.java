@@ -0,0 +1,193 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.VCActions;
+import com.vmware.vhadoop.vhm.events.SerengetiLimitInstruction;
+
+/* Resolves the clusterId of a SerengetiLimitInstruction which only has a folder name, without blocking the thread handling events
+ * Resolved folders are cached. The cache is pre-warmed with the folder of each new cluster and entries for a cluster are invalidated
+ *   when a VM is removed from it, after which the folder is resolved again the next time it is needed.
+ * A folder which is not in the cache is resolved against VC on a resolver thread. Instructions for the same folder which arrive
+ *   while it is being resolved wait for the same resolution. Once the clusterId is known it is set on each instruction, which is
+ *   handed back to VHM to put on the event queue again */
+class ClusterFolderResolver {
+   private static final Logger _log = Logger.getLogger(ClusterFolderResolver.class.getName());
+
+   private static final long RESOLVER_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+   /* Implemented by VHM */
+   interface ResolutionHandler {
+      /* Finds the cluster that the VMs belong to in ClusterMap and associates the folder with it. Returns null if it is not found */
+      String associateFolderWithClusterFromVMs(String folderName, List<String> vmsInFolder);
+
+      /* Called on the resolver thread once the clusterId of the instruction has been set */
+      void instructionResolved(SerengetiLimitInstruction instruction);
+   }
+
+   private final VCActions _vcActions;
+   private final ResolutionHandler _handler;
+   private final ExecutorService _resolverThread;
+   private final ConcurrentHashMap<String, String> _clusterIdsByFolder = new ConcurrentHashMap<String, String>();
+   /* Instructions waiting for each folder that is being resolved. Also guards the check and update of the in-flight resolutions */
+   private final Map<String, List<SerengetiLimitInstruction>> _waitingInstructions = new HashMap<String, List<SerengetiLimitInstruction>>();
+   /* Incremented by every invalidation, so that a resolution which started before it does not put a stale entry in the cache */
+   private final AtomicLong _invalidations = new AtomicLong();
+
+   private final AtomicLong _cacheHits = new AtomicLong();
+   private final AtomicLong _cacheMisses = new AtomicLong();
+   private final AtomicLong _resolutions = new AtomicLong();
+   private final AtomicLong _failedResolutions = new AtomicLong();
+
+   ClusterFolderResolver(VCActions vcActions, ResolutionHandler handler) {
+      _vcActions = vcActions;
+      _handler = handler;
+      /* The thread exits when there is nothing to resolve */
+      _resolverThread = new ThreadPoolExecutor(0, 1, RESOLVER_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VHM_Cluster_Folder_Resolver");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   /* Returns null if the folder has not been resolved */
+   String getCachedClusterId(String folderName) {
+      String clusterId = _clusterIdsByFolder.get(folderName);
+      if (clusterId != null) {
+         _cacheHits.incrementAndGet();
+      } else {
+         _cacheMisses.incrementAndGet();
+      }
+      return clusterId;
+   }
+
+   void cacheClusterId(String folderName, String clusterId) {
+      if ((folderName != null) && (clusterId != null)) {
+         _clusterIdsByFolder.put(folderName, clusterId);
+      }
+   }
+
+   void invalidateCluster(String clusterId) {
+      _invalidations.incrementAndGet();
+      Iterator<String> clusterIds = _clusterIdsByFolder.values().iterator();
+      while (clusterIds.hasNext()) {
+         if (clusterIds.next().equals(clusterId)) {
+            clusterIds.remove();
+         }
+      }
+   }
+
+   /* Resolves the folder of the instruction asynchronously. The instruction is either handed back to VHM or reports an error */
+   void resolve(SerengetiLimitInstruction instruction) {
+      final String folderName = instruction.getClusterFolderName();
+      synchronized(_waitingInstructions) {
+         List<SerengetiLimitInstruction> waiting = _waitingInstructions.get(folderName);
+         if (waiting != null) {
+            waiting.add(instruction);
+            return;
+         }
+         waiting = new ArrayList<SerengetiLimitInstruction>();
+         waiting.add(instruction);
+         _waitingInstructions.put(folderName, waiting);
+      }
+      _log.fine("<%C"+folderName+"%C>: resolving cluster ID from vCenter folder");
+      _resolverThread.execute(new Runnable() {
+         @Override
+         public void run() {
+            resolveFolder(folderName);
+         }
+      });
+   }
+
+   private void resolveFolder(String folderName) {
+      long invalidations = _invalidations.get();
+      String clusterId = null;
+      try {
+         List<String> vms = _vcActions.listVMsInFolder(folderName);
+         /* Returning null may indicate a VC connection failure */
+         if (vms != null) {
+            clusterId = _handler.associateFolderWithClusterFromVMs(folderName, vms);
+         }
+      } catch (Throwable t) {
+         _log.log(Level.WARNING, "<%C"+folderName+"%C>: unexpected exception resolving cluster ID from vCenter folder", t);
+      }
+      if ((clusterId != null) && (_invalidations.get() == invalidations)) {
+         cacheClusterId(folderName, clusterId);
+      }
+      List<SerengetiLimitInstruction> waiting;
+      synchronized(_waitingInstructions) {
+         waiting = _waitingInstructions.remove(folderName);
+      }
+      if (clusterId != null) {
+         _resolutions.incrementAndGet();
+      } else {
+         _failedResolutions.incrementAndGet();
+      }
+      for (SerengetiLimitInstruction instruction : waiting) {
+         if (clusterId != null) {
+            instruction.setClusterId(clusterId);
+            _handler.instructionResolved(instruction);
+         } else {
+            instruction.reportError("Unable to resolve cluster ID from vCenter");
+         }
+      }
+   }
+
+   long getCacheHits() {
+      return _cacheHits.get();
+   }
+
+   long getCacheMisses() {
+      return _cacheMisses.get();
+   }
+
+   long getResolutions() {
+      return _resolutions.get();
+   }
+
+   long getFailedResolutions() {
+      return _failedResolutions.get();
+   }
+
+   @Override
+   public String toString() {
+      return "cachedFolders="+_clusterIdsByFolder.size()+
+            ", cacheHits="+_cacheHits.get()+
+            ", cacheMisses="+_cacheMisses.get()+
+            ", resolutions="+_resolutions.get()+
+            ", failedResolutions="+_failedResolutions.get();
+   }
+}
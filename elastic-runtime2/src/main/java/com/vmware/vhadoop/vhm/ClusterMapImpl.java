@@ -15,6 +15,8 @@
 
 package com.vmware.vhadoop.vhm;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -47,20 +49,53 @@ import com.vmware.vhadoop.vhm.events.VmUpdateEvent;
  * All of the methods in ClusterMap can be accessed by multiple threads, but should only ever read and are idempotent
  * The writer of ClusterMap will block until the readers have finished reading and will block new readers until it has finished updating
  * VHM controls the multi-threaded access to ClusterMap through ClusterMapAccess.
- * There should be no need for synchronization in this class provided this model is adhered to */
-public class ClusterMapImpl implements ClusterMap {
+ * There should be no need for synchronization in this class provided this model is adhered to
+ * Alternatively, createSnapshot() can be used to publish immutable copies to readers so that they never block the writer */
+public class ClusterMapImpl implements VersionedClusterMap {
    private static final Logger _log = Logger.getLogger(ClusterMap.class.getName());
 
    private final Map<String, ClusterInfo> _clusters = new HashMap<String, ClusterInfo>();
    private final Map<String, VMInfo> _vms = new HashMap<String, VMInfo>();
    private final Map<String, ScaleStrategy> _scaleStrategies = new HashMap<String, ScaleStrategy>();
 
+   /* Secondary indexes over _vms, maintained incrementally by indexVM/unindexVM so that queries don't have to scan
+    * every VM known to VHM. They must be updated everywhere that _vms or an indexed field of a VMInfo changes */
+   private final Map<ComputeVMKey, Set<String>> _computeVMIndex = new HashMap<ComputeVMKey, Set<String>>();
+   private final Map<String, Set<String>> _computeHostsByCluster = new HashMap<String, Set<String>>();
+   private final Map<String, VMInfo> _masterVmsByCluster = new HashMap<String, VMInfo>();
+   private final Map<String, String> _vmIdsByDnsName = new HashMap<String, String>();
+
    private final ExtraInfoToClusterMapper _extraInfoMapper;
+
+   /* Incremented on every change visible through ClusterMap so that a snapshot is only taken when something has changed */
+   private long _version;
+   private final boolean _isSnapshot;
+
+   /* VMs added or updated since VHM last collected them, so that VMStateSubscriptions can be notified */
+   private final Set<String> _updatedVmIds = new HashSet<String>();
 //   private final Random _random = new Random();     /* Uncomment to do random failure testing */
 //   private final int FAILURE_FACTOR = 20;
 
    ClusterMapImpl(ExtraInfoToClusterMapper mapper) {
       _extraInfoMapper = mapper;
+      _isSnapshot = false;
+   }
+
+   /* Creates a point-in-time copy of source. Everything that the writer can change is copied, so the source can continue
+    * to be updated without readers of the copy seeing the change. Constant data, scale strategies and events are shared */
+   private ClusterMapImpl(ClusterMapImpl source) {
+      _extraInfoMapper = source._extraInfoMapper;
+      _version = source._version;
+      _isSnapshot = true;
+      _scaleStrategies.putAll(source._scaleStrategies);
+      for (ClusterInfo ci : source._clusters.values()) {
+         _clusters.put(ci._masterUUID, new ClusterInfo(ci));
+      }
+      for (VMInfo vi : source._vms.values()) {
+         VMInfo copy = new VMInfo(vi);
+         _vms.put(copy._moRef, copy);
+         indexVM(copy);
+      }
    }
 
    private class VMInfo {
@@ -91,6 +126,60 @@ public class ClusterMapImpl implements ClusterMap {
          _log.log(Level.FINE, "Creating new VMInfo <%%V%s%%V>(%s) for cluster <%%C%s%%C>. %s. %s",
                new String[]{moRef, moRef, clusterId, _constantData.toString(), _variableData.toString()});
       }
+
+      /* Used only for snapshots */
+      VMInfo(VMInfo source) {
+         _moRef = source._moRef;
+         _constantData = source._constantData;
+         _variableData = new VMVariableData();
+         _variableData._myName = source._variableData._myName;
+         _variableData._vCPUs = source._variableData._vCPUs;
+         _variableData._ipAddr = source._variableData._ipAddr;
+         _variableData._dnsName = source._variableData._dnsName;
+         _variableData._powerState = source._variableData._powerState;
+         _variableData._hostMoRef = source._variableData._hostMoRef;
+         _clusterId = source._clusterId;
+         _powerOnTime = source._powerOnTime;
+      }
+   }
+
+   /* Key for the compute VM index. A null field acts as a wildcard, so each compute VM is registered
+    * under every combination of clusterId, hostId and powerState that a query can ask for */
+   private static class ComputeVMKey {
+      final String _clusterId;
+      final String _hostId;
+      final Boolean _powerState;
+
+      ComputeVMKey(String clusterId, String hostId, Boolean powerState) {
+         _clusterId = clusterId;
+         _hostId = hostId;
+         _powerState = powerState;
+      }
+
+      @Override
+      public int hashCode() {
+         final int prime = 31;
+         int result = 1;
+         result = prime * result + ((_clusterId == null) ? 0 : _clusterId.hashCode());
+         result = prime * result + ((_hostId == null) ? 0 : _hostId.hashCode());
+         result = prime * result + ((_powerState == null) ? 0 : _powerState.hashCode());
+         return result;
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (this == obj)
+            return true;
+         if (!(obj instanceof ComputeVMKey))
+            return false;
+         ComputeVMKey other = (ComputeVMKey) obj;
+         return equalOrBothNull(_clusterId, other._clusterId) && equalOrBothNull(_hostId, other._hostId)
+               && equalOrBothNull(_powerState, other._powerState);
+      }
+
+      private static boolean equalOrBothNull(Object a, Object b) {
+         return (a == null) ? (b == null) : a.equals(b);
+      }
    }
 
    class ClusterInfo {
@@ -105,6 +194,18 @@ public class ClusterMapImpl implements ClusterMap {
                new String[]{clusterId, clusterId, constantData.toString()});
       }
 
+      /* Used only for snapshots */
+      ClusterInfo(ClusterInfo source) {
+         _masterUUID = source._masterUUID;
+         _constantData = source._constantData;
+         _jobTrackerPort = source._jobTrackerPort;
+         _discoveredFolderName = source._discoveredFolderName;
+         _scaleStrategyKey = source._scaleStrategyKey;
+         _completionEvents = new LinkedList<ClusterScaleCompletionEvent>(source._completionEvents);
+         _incompleteSince = source._incompleteSince;
+         _extraInfo = (source._extraInfo == null) ? null : new HashMap<String, String>(source._extraInfo);
+      }
+
       Integer _jobTrackerPort;
       String _discoveredFolderName;        /* Note this field is only set by SerengetiLimitEvents */
       String _scaleStrategyKey;
@@ -125,6 +226,113 @@ public class ClusterMapImpl implements ClusterMap {
       return ((data != null) && !data.trim().isEmpty());
    }
 
+   private <K> void addToIndex(Map<K, Set<String>> index, K key, String value) {
+      Set<String> values = index.get(key);
+      if (values == null) {
+         values = new HashSet<String>();
+         index.put(key, values);
+      }
+      values.add(value);
+   }
+
+   private <K> void removeFromIndex(Map<K, Set<String>> index, K key, String value) {
+      Set<String> values = index.get(key);
+      if ((values != null) && values.remove(value) && values.isEmpty()) {
+         index.remove(key);
+      }
+   }
+
+   /* Returns the keys a compute VM should be found under given its current state */
+   private List<ComputeVMKey> getComputeVMKeys(VMInfo vi) {
+      List<ComputeVMKey> keys = new ArrayList<ComputeVMKey>(6);
+      String clusterId = vi._clusterId;
+      String hostId = vi._variableData._hostMoRef;
+      Boolean powerState = vi._variableData._powerState;
+      keys.add(new ComputeVMKey(null, null, null));
+      keys.add(new ComputeVMKey(clusterId, null, null));
+      if (hostId != null) {
+         keys.add(new ComputeVMKey(clusterId, hostId, null));
+      }
+      if (powerState != null) {
+         keys.add(new ComputeVMKey(null, null, powerState));
+         keys.add(new ComputeVMKey(clusterId, null, powerState));
+         if (hostId != null) {
+            keys.add(new ComputeVMKey(clusterId, hostId, powerState));
+         }
+      }
+      return keys;
+   }
+
+   /* Must be called whenever a VM is added to _vms or after any of its indexed fields have changed */
+   private void indexVM(VMInfo vi) {
+      VmType vmType = vi._constantData._vmType;
+      if (VmType.MASTER.equals(vmType)) {
+         _masterVmsByCluster.put(vi._clusterId, vi);
+      } else if (VmType.COMPUTE.equals(vmType)) {
+         for (ComputeVMKey key : getComputeVMKeys(vi)) {
+            addToIndex(_computeVMIndex, key, vi._moRef);
+         }
+         String hostId = vi._variableData._hostMoRef;
+         if (assertHasData(hostId)) {
+            addToIndex(_computeHostsByCluster, vi._clusterId, hostId);
+         }
+      }
+      String dnsName = vi._variableData._dnsName;
+      if (assertHasData(dnsName)) {
+         _vmIdsByDnsName.put(dnsName, vi._moRef);
+      }
+   }
+
+   /* Must be called whenever a VM is removed from _vms or before any of its indexed fields are changed */
+   private void unindexVM(VMInfo vi) {
+      VmType vmType = vi._constantData._vmType;
+      if (VmType.MASTER.equals(vmType)) {
+         if (_masterVmsByCluster.get(vi._clusterId) == vi) {
+            _masterVmsByCluster.remove(vi._clusterId);
+         }
+      } else if (VmType.COMPUTE.equals(vmType)) {
+         for (ComputeVMKey key : getComputeVMKeys(vi)) {
+            removeFromIndex(_computeVMIndex, key, vi._moRef);
+         }
+         String hostId = vi._variableData._hostMoRef;
+         /* Only forget the host for the cluster once no other compute VM in the cluster is on it */
+         if (assertHasData(hostId) && !_computeVMIndex.containsKey(new ComputeVMKey(vi._clusterId, hostId, null))) {
+            removeFromIndex(_computeHostsByCluster, vi._clusterId, hostId);
+         }
+      }
+      String dnsName = vi._variableData._dnsName;
+      if (assertHasData(dnsName) && vi._moRef.equals(_vmIdsByDnsName.get(dnsName))) {
+         _vmIdsByDnsName.remove(dnsName);
+      }
+   }
+
+   /* Snapshots are shared between reader threads, so must never be updated */
+   private void checkWritable() {
+      if (_isSnapshot) {
+         throw new UnsupportedOperationException("VHM: attempt to update a ClusterMap snapshot");
+      }
+   }
+
+   @Override
+   public long getVersion() {
+      return _version;
+   }
+
+   @Override
+   public ClusterMap createSnapshot() {
+      return new ClusterMapImpl(this);
+   }
+
+   /* Returns the VMs added or updated since the last call. Should only be called by the writer */
+   Set<String> getAndClearUpdatedVMs() {
+      if (_updatedVmIds.isEmpty()) {
+         return Collections.emptySet();
+      }
+      Set<String> result = new HashSet<String>(_updatedVmIds);
+      _updatedVmIds.clear();
+      return result;
+   }
+
    private ClusterInfo getCluster(String clusterId) {
       return _clusters.get(clusterId);
    }
@@ -151,6 +359,7 @@ public class ClusterMapImpl implements ClusterMap {
             _clusters.remove(clusterId);
          }
          _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: removing record of VM <%V"+vmMoRef+"%V>");
+         unindexVM(vmInfo);
          _vms.remove(vmMoRef);
       }
       dumpState(Level.FINEST);
@@ -160,6 +369,8 @@ public class ClusterMapImpl implements ClusterMap {
    /* Returns clusterId of the cluster affected or null if no update occurred (possibly an error) */
    /* May also return any implied scale events of the cluster state change */
    public String handleClusterEvent(ClusterStateChangeEvent event, Set<ClusterScaleEvent> impliedScaleEventsResultSet) {
+      checkWritable();
+      _version++;
       String clusterId = null;
       if (event instanceof NewVmEvent) {
          return addNewVM((NewVmEvent)event, impliedScaleEventsResultSet);
@@ -215,6 +426,8 @@ public class ClusterMapImpl implements ClusterMap {
       }
       VMInfo vi = new VMInfo(vmId, constantData, variableData, clusterId);
       _vms.put(vmId, vi);
+      indexVM(vi);
+      _updatedVmIds.add(vmId);
       return vi;
    }
 
@@ -255,6 +468,8 @@ public class ClusterMapImpl implements ClusterMap {
          Boolean powerState = variableData._powerState;
          Integer vCPUs = variableData._vCPUs;
          VMVariableData toSet = vi._variableData;
+         /* Host, power state and DNS name are all indexed, so take the VM out of the indexes while they change */
+         unindexVM(vi);
          if (testForVMUpdate(toSet._hostMoRef, hostMoRef, vmId, "hostMoRef")) {
             toSet._hostMoRef = hostMoRef;
          }
@@ -287,6 +502,8 @@ public class ClusterMapImpl implements ClusterMap {
          if (testForVMUpdate(toSet._vCPUs, vCPUs, vmId, "vCPUs")) {
             toSet._vCPUs = vCPUs;
          }
+         indexVM(vi);
+         _updatedVmIds.add(vmId);
          if (vi._clusterId != null) {
             clusterId = vi._clusterId;
          }
@@ -367,13 +584,7 @@ public class ClusterMapImpl implements ClusterMap {
    }
 
    private VMInfo getMasterVmForCluster(String clusterId) {
-      for (VMInfo vmInfo : _vms.values()) {
-         if (vmInfo._constantData._vmType.equals(VmType.MASTER)
-               && vmInfo._clusterId.equals(clusterId)) {
-            return vmInfo;
-         }
-      }
-      return null;
+      return _masterVmsByCluster.get(clusterId);
    }
 
    private String updateClusterState(ClusterUpdateEvent event, Set<ClusterScaleEvent> impliedScaleEventsResultSet, boolean isNewVm) {
@@ -388,8 +599,10 @@ public class ClusterMapImpl implements ClusterMap {
    }
 
    public void handleCompletionEvent(ClusterScaleCompletionEvent event) {
+      checkWritable();
       ClusterInfo cluster = getCluster(event.getClusterId());
       if (cluster != null) {
+         _version++;
          Set<String> enableVMs = event.getVMsForDecision(ClusterScaleCompletionEvent.ENABLE);
          Set<String> disableVMs = event.getVMsForDecision(ClusterScaleCompletionEvent.DISABLE);
          if (enableVMs != null) {
@@ -423,6 +636,7 @@ public class ClusterMapImpl implements ClusterMap {
    }
 
    protected void registerScaleStrategy(ScaleStrategy strategy) {
+      checkWritable();
       _scaleStrategies.put(strategy.getKey(), strategy);
    }
 
@@ -435,33 +649,12 @@ public class ClusterMapImpl implements ClusterMap {
       return null;
    }
 
+   /* A null clusterId, hostId or powerState matches any value. A VM with a null hostId or powerState
+    * will only be returned by a query which does not specify that field */
    private Set<String> generateComputeVMList(final String clusterId, String hostId, Boolean powerState) {
-      Set<String> result = new HashSet<String>();
-      for (VMInfo vminfo : _vms.values()) {
-         try {
-            boolean hostTest = (hostId == null) ? true : (hostId.equals(vminfo._variableData._hostMoRef));
-            boolean clusterTest = (clusterId == null) ? true : (vminfo._clusterId.equals(clusterId));
-            boolean powerStateTest = (powerState == null) ? true : (vminfo._variableData._powerState == powerState);
-            _log.finest("Testing "+vminfo._variableData._myName+" h="+hostTest+", c="+clusterTest+", p="+powerStateTest);
-            if ((vminfo._constantData._vmType.equals(VmType.COMPUTE)) && hostTest && clusterTest && powerStateTest) {
-               result.add(vminfo._moRef);
-            }
-         } catch (NullPointerException e) {
-            /* vmInfo._constantData should never be null or have null values.
-             * vmInfo._clusterId and vmInfo._moRef should never be null
-             * vmInfo._variableData should never be null, but may have null values */
-            VMVariableData variableInfo = vminfo._variableData;
-            VMConstantData constantInfo = vminfo._constantData;
-            _log.fine("Null pointer checking for matching vm (name: "+variableInfo._myName+
-                                                          ", uuid: "+constantInfo._myUUID+
-                                                          ", vmType: "+constantInfo._vmType+
-                                                          ", host: "+variableInfo._hostMoRef+
-                                                          ". powerState: "+variableInfo._powerState+
-                                                          ", cluster: <%C"+vminfo._clusterId+
-                                                       "%C>, moRef: "+vminfo._moRef+")");
-         }
-      }
-      return (result.size() == 0) ? null : result;
+      Set<String> vmIds = _computeVMIndex.get(new ComputeVMKey(clusterId, hostId, powerState));
+      _log.finest("Compute VMs for cluster <%C"+clusterId+"%C>, host="+hostId+", powerState="+powerState+": "+vmIds);
+      return (vmIds == null) ? null : new HashSet<String>(vmIds);
    }
 
    @Override
@@ -488,19 +681,8 @@ public class ClusterMapImpl implements ClusterMap {
    @Override
    public Set<String> listHostsWithComputeVMsForCluster(String clusterId) {
       //if ((_random != null) && ((_random.nextInt() % FAILURE_FACTOR) == 0)) {return null;}
-      if (assertHasData(_vms)) {
-         Set<String> result = new HashSet<String>();
-         for (VMInfo vminfo : _vms.values()) {
-            if ((vminfo._constantData._vmType.equals(VmType.COMPUTE)) && vminfo._clusterId.equals(clusterId)) {
-               String hostMoRef = vminfo._variableData._hostMoRef;
-               if (assertHasData(hostMoRef)) {
-                  result.add(hostMoRef);
-               }
-            }
-         }
-         return (result.size() == 0) ? null : result;
-      }
-      return null;
+      Set<String> hostIds = _computeHostsByCluster.get(clusterId);
+      return (hostIds == null) ? null : new HashSet<String>(hostIds);
    }
 
    public void dumpState(Level logLevel) {
@@ -525,8 +707,10 @@ public class ClusterMapImpl implements ClusterMap {
    }
 
    void associateFolderWithCluster(String clusterId, String folderName) {
+      checkWritable();
       ClusterInfo ci = getCluster(clusterId);
       if (ci != null) {
+         _version++;
          ci._discoveredFolderName = folderName;
       }
    }
@@ -756,10 +940,10 @@ public class ClusterMapImpl implements ClusterMap {
       //if ((_random != null) && ((_random.nextInt() % FAILURE_FACTOR) == 0)) {return null;}
       if (assertHasData(dnsNames) && assertHasData(_vms)) {
          Map<String, String> results = new HashMap<String, String>();
-         for (VMInfo vminfo : _vms.values()) {
-            String dnsNameToTest = vminfo._variableData._dnsName;
-            if (assertHasData(dnsNameToTest) && dnsNames.contains(dnsNameToTest)) {
-               results.put(dnsNameToTest, vminfo._moRef);
+         for (String dnsName : dnsNames) {
+            String vmId = getVmIdForDnsName(dnsName);
+            if (vmId != null) {
+               results.put(dnsName, vmId);
             }
          }
          if (results.size() > 0) {
@@ -772,13 +956,8 @@ public class ClusterMapImpl implements ClusterMap {
    @Override
    public String getVmIdForDnsName(String dnsName) {
       //if ((_random != null) && ((_random.nextInt() % FAILURE_FACTOR) == 0)) {return null;}
-      if (assertHasData(_vms)) {
-         for (VMInfo vminfo : _vms.values()) {
-            String dnsNameToTest = vminfo._variableData._dnsName;
-            if (assertHasData(dnsNameToTest) && (dnsName != null) && dnsNameToTest.equals(dnsName)) {
-               return vminfo._moRef;
-            }
-         }
+      if (assertHasData(dnsName)) {
+         return _vmIdsByDnsName.get(dnsName);
       }
       return null;
    }
@@ -0,0 +1,290 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+
+/* Processes cluster scale events on a number of event loops, partitioned by clusterId
+ * The VHM main thread still applies cluster state changes to ClusterMap, which is cheap, and then routes each scale event to a shard.
+ *   A shard derives the clusterId of the event if necessary, which may block on VC, and then consolidates the events for each cluster
+ *   and hands them to the execution strategy. A slow cluster therefore only holds up the clusters which share its shard.
+ * Each cluster is owned by exactly one shard. An event which could only be routed by folder name or VM is forwarded to the owning
+ *   shard once its clusterId is known, so the events for a cluster are never handled concurrently.
+ * Events which cannot be handled yet are deferred by the shard which owns the cluster */
+class ClusterScaleEventShards {
+   private static final Logger _log = Logger.getLogger(ClusterScaleEventShards.class.getName());
+
+   /* Implemented by VHM to do the work for each shard */
+   interface ScaleEventHandler {
+      /* Derives the clusterId of each scale event and groups the events by cluster */
+      void getQueuedScaleEventsForCluster(Set<NotificationEvent> events, Map<String, Set<ClusterScaleEvent>> clusterScaleEventMap);
+
+      /* Any events which cannot be handled yet are added to toRequeue */
+      void handleScaleEventsForCluster(String clusterId, Set<ClusterScaleEvent> unconsolidatedEvents, List<ClusterScaleEvent> toRequeue);
+   }
+
+   private final Shard[] _shards;
+   private final ScaleEventHandler _handler;
+   private final long _requeueDelayMillis;
+
+   ClusterScaleEventShards(int numShards, ScaleEventHandler handler, long requeueDelayMillis) {
+      _handler = handler;
+      _requeueDelayMillis = requeueDelayMillis;
+      _shards = new Shard[numShards];
+      for (int i=0; i<numShards; i++) {
+         _shards[i] = new Shard(i);
+      }
+   }
+
+   class Shard implements Runnable {
+      private final int _shardId;
+      /* Events are added in batches so that events which VHM polled together are also handled together */
+      private final LinkedBlockingQueue<List<NotificationEvent>> _pending = new LinkedBlockingQueue<List<NotificationEvent>>();
+      private final AtomicLong _clearRequests = new AtomicLong();
+      private final AtomicLong _eventsHandled = new AtomicLong();
+      private final AtomicLong _eventsForwarded = new AtomicLong();
+      private volatile boolean _running;
+      private Thread _thread;
+
+      /* Only used by the shard thread */
+      private final List<NotificationEvent> _deferredEvents = new ArrayList<NotificationEvent>();
+      private long _deferredEventsDueTime;
+      private long _lastClearRequests;
+
+      Shard(int shardId) {
+         _shardId = shardId;
+      }
+
+      void addEvents(Collection<? extends NotificationEvent> events) {
+         if (!events.isEmpty()) {
+            _pending.add(new ArrayList<NotificationEvent>(events));
+         }
+      }
+
+      @Override
+      public void run() {
+         while (_running) {
+            try {
+               List<NotificationEvent> events = takeEvents();
+               if (!events.isEmpty()) {
+                  handleEvents(events);
+               }
+            } catch (InterruptedException e) {
+               break;
+            } catch (Throwable t) {
+               _log.log(Level.WARNING, "VHM: unexpected exception handling scale events in shard "+_shardId, t);
+            }
+         }
+         _log.info("VHM: scale event shard "+_shardId+" stopping...");
+      }
+
+      /* Waits for pending events or for deferred events to become due */
+      private List<NotificationEvent> takeEvents() throws InterruptedException {
+         List<List<NotificationEvent>> batches = new ArrayList<List<NotificationEvent>>();
+         List<NotificationEvent> first;
+         if (_deferredEvents.isEmpty()) {
+            first = _pending.take();
+         } else {
+            first = _pending.poll(Math.max(0, _deferredEventsDueTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+         }
+         if (first != null) {
+            batches.add(first);
+         }
+         _pending.drainTo(batches);
+         List<NotificationEvent> pendingEvents = new ArrayList<NotificationEvent>();
+         for (List<NotificationEvent> batch : batches) {
+            pendingEvents.addAll(batch);
+         }
+         clearEventsIfRequested(pendingEvents);
+
+         List<NotificationEvent> result = new ArrayList<NotificationEvent>();
+         if (!_deferredEvents.isEmpty() && (System.currentTimeMillis() >= _deferredEventsDueTime)) {
+            /* Deferred events are older than anything pending, so they go first */
+            result.addAll(_deferredEvents);
+            _deferredEvents.clear();
+         }
+         result.addAll(pendingEvents);
+         return result;
+      }
+
+      private void handleEvents(List<NotificationEvent> events) {
+         Map<String, Set<ClusterScaleEvent>> clusterScaleEvents = new HashMap<String, Set<ClusterScaleEvent>>();
+         _handler.getQueuedScaleEventsForCluster(new LinkedHashSet<NotificationEvent>(events), clusterScaleEvents);
+         VHM.addDeferredEventsForClusters(_deferredEvents, clusterScaleEvents);
+         List<ClusterScaleEvent> toRequeue = new ArrayList<ClusterScaleEvent>();
+         for (String clusterId : clusterScaleEvents.keySet()) {
+            Set<ClusterScaleEvent> eventsForCluster = clusterScaleEvents.get(clusterId);
+            if ((clusterId == null) || (eventsForCluster == null)) {
+               continue;
+            }
+            Shard owner = getShardForKey(clusterId);
+            if (owner != this) {
+               _log.finer("Forwarding "+eventsForCluster.size()+" scale event(s) for cluster <%C"+clusterId+"%C> from shard "+_shardId+" to shard "+owner._shardId);
+               _eventsForwarded.addAndGet(eventsForCluster.size());
+               owner.addEvents(eventsForCluster);
+               continue;
+            }
+            _eventsHandled.addAndGet(eventsForCluster.size());
+            _handler.handleScaleEventsForCluster(clusterId, eventsForCluster, toRequeue);
+         }
+         if (!toRequeue.isEmpty()) {
+            if (_deferredEvents.isEmpty()) {
+               _deferredEventsDueTime = System.currentTimeMillis() + _requeueDelayMillis;
+            }
+            _deferredEvents.addAll(toRequeue);
+         }
+      }
+
+      /* Events which can be cleared from the queue are dropped if there has been a clear request since they were added */
+      private void clearEventsIfRequested(List<NotificationEvent> pendingEvents) {
+         long clearRequests = _clearRequests.get();
+         if (clearRequests != _lastClearRequests) {
+            _lastClearRequests = clearRequests;
+            removeClearableEvents(_deferredEvents);
+            removeClearableEvents(pendingEvents);
+         }
+      }
+
+      private void removeClearableEvents(List<NotificationEvent> events) {
+         for (Iterator<NotificationEvent> i = events.iterator(); i.hasNext(); ) {
+            if (i.next().getCanBeClearedFromQueue()) {
+               i.remove();
+            }
+         }
+      }
+
+      /* Can be called by any thread */
+      void clearEvents() {
+         _clearRequests.incrementAndGet();
+         /* Wakes the shard so that the pending events are cleared promptly */
+         _pending.add(Collections.<NotificationEvent>emptyList());
+      }
+
+      void start() {
+         _running = true;
+         _thread = new Thread(this, getThreadName());
+         _thread.start();
+      }
+
+      void stop() {
+         _running = false;
+         if (_thread != null) {
+            _thread.interrupt();
+         }
+      }
+
+      String getThreadName() {
+         return "VHM_Scale_Event_Shard_"+_shardId;
+      }
+
+      long getEventsHandled() {
+         return _eventsHandled.get();
+      }
+
+      long getEventsForwarded() {
+         return _eventsForwarded.get();
+      }
+
+      int getPendingBatches() {
+         return _pending.size();
+      }
+   }
+
+   /* Events routed with the same key always go to the same shard */
+   Shard getShardForKey(String routingKey) {
+      int hash = (routingKey == null) ? 0 : routingKey.hashCode();
+      return _shards[(hash & Integer.MAX_VALUE) % _shards.length];
+   }
+
+   void routeEvent(String routingKey, NotificationEvent event) {
+      getShardForKey(routingKey).addEvents(Collections.singletonList(event));
+   }
+
+   /* The events for each shard are added as a single batch */
+   void routeEvents(Map<String, List<NotificationEvent>> eventsByRoutingKey) {
+      Map<Shard, List<NotificationEvent>> eventsByShard = new LinkedHashMap<Shard, List<NotificationEvent>>();
+      for (String routingKey : eventsByRoutingKey.keySet()) {
+         Shard shard = getShardForKey(routingKey);
+         List<NotificationEvent> eventsForShard = eventsByShard.get(shard);
+         if (eventsForShard == null) {
+            eventsForShard = new ArrayList<NotificationEvent>();
+            eventsByShard.put(shard, eventsForShard);
+         }
+         eventsForShard.addAll(eventsByRoutingKey.get(routingKey));
+      }
+      for (Shard shard : eventsByShard.keySet()) {
+         shard.addEvents(eventsByShard.get(shard));
+      }
+   }
+
+   /* Called when an event which can clear the queue is received. Events which can be cleared are dropped from every shard */
+   void clearEvents() {
+      for (Shard shard : _shards) {
+         shard.clearEvents();
+      }
+   }
+
+   void start() {
+      for (Shard shard : _shards) {
+         shard.start();
+      }
+   }
+
+   void stop() {
+      for (Shard shard : _shards) {
+         shard.stop();
+      }
+   }
+
+   int getNumShards() {
+      return _shards.length;
+   }
+
+   Shard getShard(int shardId) {
+      return _shards[shardId];
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder result = new StringBuilder();
+      for (Shard shard : _shards) {
+         if (result.length() > 0) {
+            result.append(", ");
+         }
+         result.append("shard").append(shard._shardId).append("={handled=").append(shard.getEventsHandled())
+               .append(", forwarded=").append(shard.getEventsForwarded()).append(", pendingBatches=").append(shard.getPendingBatches()).append("}");
+      }
+      return result.toString();
+   }
+}
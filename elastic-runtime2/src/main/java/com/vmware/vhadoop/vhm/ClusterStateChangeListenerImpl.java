@@ -125,6 +125,7 @@ public class ClusterStateChangeListenerImpl extends AbstractClusterMapReader imp
                while (_started) {
                   try {
                      /* If version == null, this usually indicates a VC connection failure */
+                     /* A large set of changes arrives as a series of bounded pages, each of which is processed before the next is retrieved */
                      vmDataList = _vcActions.waitForPropertyChange(_serengetiFolderName);
                   } catch (InterruptedException e) {
                      /* Almost certainly means that stop has been called */
@@ -0,0 +1,123 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Counters describing how VHM batches events from its queue. Updated by the VHM main thread, except for requeues which are also
+ * recorded by the scale event shards. Can be read by any thread */
+class EventBatchStatistics {
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _events = new AtomicLong();
+   private final AtomicLong _maxBatchSize = new AtomicLong();
+   private final AtomicLong _fullBatches = new AtomicLong();
+   private final AtomicLong _hotDrains = new AtomicLong();
+   private final AtomicLong _urgentDrains = new AtomicLong();
+   private final AtomicLong _lingers = new AtomicLong();
+   private final AtomicLong _totalLingerMillis = new AtomicLong();
+   private final AtomicLong _maxLingerMillis = new AtomicLong();
+   private final AtomicLong _merges = new AtomicLong();
+   private final AtomicLong _requeues = new AtomicLong();
+
+   void recordBatch(int batchSize, boolean batchFull) {
+      _batches.incrementAndGet();
+      _events.addAndGet(batchSize);
+      if (batchSize > _maxBatchSize.get()) {
+         _maxBatchSize.set(batchSize);
+      }
+      if (batchFull) {
+         _fullBatches.incrementAndGet();
+      }
+   }
+
+   /* The queue already held enough events that there was no point in lingering */
+   void recordHotDrain() {
+      _hotDrains.incrementAndGet();
+   }
+
+   /* An urgent event was queued, so lingering was skipped or cut short */
+   void recordUrgentDrain() {
+      _urgentDrains.incrementAndGet();
+   }
+
+   void recordLinger(long lingerMillis) {
+      _lingers.incrementAndGet();
+      _totalLingerMillis.addAndGet(lingerMillis);
+      if (lingerMillis > _maxLingerMillis.get()) {
+         _maxLingerMillis.set(lingerMillis);
+      }
+   }
+
+   /* Number of events absorbed into an earlier event with the same event key */
+   void recordMerges(int merges) {
+      _merges.addAndGet(merges);
+   }
+
+   /* Number of scale events put back on the queue because they could not be handled yet */
+   void recordRequeues(int requeues) {
+      _requeues.addAndGet(requeues);
+   }
+
+   long getBatches() {
+      return _batches.get();
+   }
+
+   long getEvents() {
+      return _events.get();
+   }
+
+   long getMaxBatchSize() {
+      return _maxBatchSize.get();
+   }
+
+   long getHotDrains() {
+      return _hotDrains.get();
+   }
+
+   long getUrgentDrains() {
+      return _urgentDrains.get();
+   }
+
+   long getLingers() {
+      return _lingers.get();
+   }
+
+   long getMerges() {
+      return _merges.get();
+   }
+
+   long getRequeues() {
+      return _requeues.get();
+   }
+
+   @Override
+   public String toString() {
+      long batches = _batches.get();
+      long lingers = _lingers.get();
+      return "batches="+batches+
+            ", avgBatchSize="+((batches == 0) ? 0 : (_events.get() / batches))+
+            ", maxBatchSize="+_maxBatchSize.get()+
+            ", fullBatches="+_fullBatches.get()+
+            ", hotDrains="+_hotDrains.get()+
+            ", urgentDrains="+_urgentDrains.get()+
+            ", lingers="+lingers+
+            ", avgLinger="+((lingers == 0) ? 0 : (_totalLingerMillis.get() / lingers))+"ms"+
+            ", maxLinger="+_maxLingerMillis.get()+"ms"+
+            ", merges="+_merges.get()+
+            ", requeues="+_requeues.get();
+   }
+}
@@ -22,9 +22,8 @@ import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
 import com.vmware.vhadoop.api.vhm.ClusterMap;
-import com.vmware.vhadoop.api.vhm.ClusterMapReader.ClusterMapAccess;
 
-public class MultipleReaderSingleWriterClusterMapAccess implements ClusterMapAccess {
+public class MultipleReaderSingleWriterClusterMapAccess implements WritableClusterMapAccess {
    private final Set<Thread> _readerThreads = Collections.synchronizedSet(new HashSet<Thread>());
    private final Object _clusterMapWriteLock = new Object();
    private final ClusterMap _clusterMap;
@@ -80,7 +79,8 @@ public class MultipleReaderSingleWriterClusterMapAccess implements ClusterMapAcc
       }
    }
 
-   Object runCodeInWriteLock(Callable<Object> callable) {
+   @Override
+   public Object runCodeInWriteLock(Callable<Object> callable) {
       synchronized(_clusterMapWriteLock) {
          try {
             /* Wait for the readers to stop reading. New readers will block on the write lock */
@@ -0,0 +1,401 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.VCActions;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy.ClusterScaleOperation;
+import com.vmware.vim.binding.vim.PerformanceManager;
+
+/* Limits the number of VM power operations in progress against each ESX host and against vCenter as a whole
+ * Wraps the VCActions used by the scale strategies, so that however many clusters are being scaled at once, vCenter only sees
+ *   a bounded number of power operations. A power operation is admitted once permits for its host and for vCenter are available
+ *   and holds them until its own task has completed. The permits freed during each poll interval are used to admit the next VMs
+ *   together, so that vCenter is asked to change the power state of a batch of VMs rather than one VM at a time.
+ * No more VMs are admitted once the scale operation on whose behalf this is called has been cancelled.
+ * Unlike VcAdapter, changeVMPowerState blocks until all of its power operations have completed. If it is interrupted, or vCenter
+ *   fails to start some of them, the results of the operations which were started are returned.
+ * The host of each VM is found in ClusterMap once VHM has initialized this as a ClusterMapReader. A VM with no known host is only
+ *   limited by the vCenter limit */
+public class PowerOperationAdmissionControl extends AbstractClusterMapReader implements VCActions {
+   private static final Logger _log = Logger.getLogger(PowerOperationAdmissionControl.class.getName());
+
+   /* vhm.properties keys for the admission limits */
+   public static final String MAX_POWER_OPS_PER_HOST_PROP_KEY = "maxPowerOpsPerHost";
+   public static final String MAX_POWER_OPS_PER_VC_PROP_KEY = "maxPowerOpsPerVC";
+
+   public static final int DEFAULT_MAX_POWER_OPS_PER_HOST = 4;
+   public static final int DEFAULT_MAX_POWER_OPS_PER_VC = 32;
+
+   /* How long to collect completed power operations before admitting the next batch of VMs */
+   private static final long COMPLETION_POLL_MILLIS = 100;
+
+   private final VCActions _vcActions;
+   private final int _maxPowerOpsPerHost;
+   private final Semaphore _vcPermits;
+   private final ConcurrentHashMap<String, Semaphore> _hostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+   private final AtomicLong _powerOpsAdmitted = new AtomicLong();
+   private final AtomicLong _admissionWaits = new AtomicLong();
+   private final AtomicLong _inProgress = new AtomicLong();
+   private final AtomicLong _maxInProgress = new AtomicLong();
+
+   /* A power operation which has been started and holds its permits until its task has completed */
+   private static class InFlightPowerOperation {
+      final String _vmMoRef;
+      final Semaphore _hostPermits;
+      final Future<Boolean> _task;
+
+      InFlightPowerOperation(String vmMoRef, Semaphore hostPermits, Future<Boolean> task) {
+         _vmMoRef = vmMoRef;
+         _hostPermits = hostPermits;
+         _task = task;
+      }
+   }
+
+   /* The result of a power operation which has already completed */
+   private static class CompletedPowerOperation implements Future<Boolean> {
+      private final Boolean _result;
+      private final ExecutionException _exception;
+
+      CompletedPowerOperation(Boolean result, ExecutionException exception) {
+         _result = result;
+         _exception = exception;
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+         return false;
+      }
+
+      @Override
+      public boolean isCancelled() {
+         return false;
+      }
+
+      @Override
+      public boolean isDone() {
+         return true;
+      }
+
+      @Override
+      public Boolean get() throws ExecutionException {
+         if (_exception != null) {
+            throw _exception;
+         }
+         return _result;
+      }
+
+      @Override
+      public Boolean get(long timeout, TimeUnit unit) throws ExecutionException {
+         return get();
+      }
+   }
+
+   public PowerOperationAdmissionControl(VCActions vcActions, int maxPowerOpsPerHost, int maxPowerOpsPerVC) {
+      _vcActions = vcActions;
+      _maxPowerOpsPerHost = Math.max(1, maxPowerOpsPerHost);
+      _vcPermits = new Semaphore(Math.max(1, maxPowerOpsPerVC), true);
+   }
+
+   private Semaphore getHostPermits(String hostId) {
+      if (hostId == null) {
+         return null;
+      }
+      Semaphore permits = _hostPermits.get(hostId);
+      if (permits == null) {
+         Semaphore newPermits = new Semaphore(_maxPowerOpsPerHost, true);
+         permits = _hostPermits.putIfAbsent(hostId, newPermits);
+         if (permits == null) {
+            permits = newPermits;
+         }
+      }
+      return permits;
+   }
+
+   /* Returns the VMs grouped by host, so that the operations on one host are admitted together where possible */
+   private Map<String, String> getHostsForVMs(Set<String> vmMoRefs) {
+      Map<String, String> result = new HashMap<String, String>();
+      if (!isInitialized()) {
+         return result;
+      }
+      ClusterMap clusterMap = null;
+      try {
+         clusterMap = getAndReadLockClusterMap();
+         if (clusterMap != null) {
+            for (String vmMoRef : vmMoRefs) {
+               result.put(vmMoRef, clusterMap.getHostIdForVm(vmMoRef));
+            }
+         }
+      } finally {
+         unlockClusterMap(clusterMap);
+      }
+      return result;
+   }
+
+   private boolean tryAdmit(Semaphore hostPermits) {
+      if ((hostPermits != null) && !hostPermits.tryAcquire()) {
+         return false;
+      }
+      if (!_vcPermits.tryAcquire()) {
+         if (hostPermits != null) {
+            hostPermits.release();
+         }
+         return false;
+      }
+      return true;
+   }
+
+   /* Permits are always taken in the order host then vCenter, so waiting operations cannot deadlock */
+   private void admit(Semaphore hostPermits) throws InterruptedException {
+      _admissionWaits.incrementAndGet();
+      if (hostPermits != null) {
+         hostPermits.acquire();
+      }
+      try {
+         _vcPermits.acquire();
+      } catch (InterruptedException e) {
+         if (hostPermits != null) {
+            hostPermits.release();
+         }
+         throw e;
+      }
+   }
+
+   private void release(Semaphore hostPermits) {
+      _vcPermits.release();
+      if (hostPermits != null) {
+         hostPermits.release();
+      }
+   }
+
+   @Override
+   public Map<String, Future<Boolean>> changeVMPowerState(Set<String> vmMoRefs, boolean powerOn) {
+      Map<String, String> hostsForVMs = getHostsForVMs(vmMoRefs);
+      /* Keep the VMs on each host together */
+      Map<String, List<String>> vmsByHost = new LinkedHashMap<String, List<String>>();
+      for (String vmMoRef : vmMoRefs) {
+         String hostId = hostsForVMs.get(vmMoRef);
+         List<String> vms = vmsByHost.get(hostId);
+         if (vms == null) {
+            vms = new ArrayList<String>();
+            vmsByHost.put(hostId, vms);
+         }
+         vms.add(vmMoRef);
+      }
+      List<String> remaining = new ArrayList<String>();
+      for (List<String> vms : vmsByHost.values()) {
+         remaining.addAll(vms);
+      }
+
+      Map<String, Future<Boolean>> result = new HashMap<String, Future<Boolean>>();
+      List<InFlightPowerOperation> inFlight = new ArrayList<InFlightPowerOperation>();
+      boolean vcFailed = false;
+      boolean cancelled = false;
+      try {
+         while (!inFlight.isEmpty() || (!remaining.isEmpty() && !vcFailed && !cancelled)) {
+            if (!remaining.isEmpty() && !vcFailed && !cancelled && ClusterScaleOperation.isCurrentOperationCancelled()) {
+               _log.info("VHM: scale operation has been cancelled - not starting the other "+remaining.size()+" VM(s)");
+               cancelled = true;
+            }
+            if (!remaining.isEmpty() && !vcFailed && !cancelled) {
+               /* Admit as many operations as the limits allow */
+               Map<String, Semaphore> admitted = new LinkedHashMap<String, Semaphore>();
+               for (Iterator<String> i = remaining.iterator(); i.hasNext(); ) {
+                  String vmMoRef = i.next();
+                  Semaphore hostPermits = getHostPermits(hostsForVMs.get(vmMoRef));
+                  if (tryAdmit(hostPermits)) {
+                     admitted.put(vmMoRef, hostPermits);
+                     i.remove();
+                  }
+               }
+               /* Only wait for permits if none are held by this call, otherwise it could be waiting for itself */
+               if (admitted.isEmpty() && inFlight.isEmpty()) {
+                  String vmMoRef = remaining.remove(0);
+                  Semaphore hostPermits = getHostPermits(hostsForVMs.get(vmMoRef));
+                  admit(hostPermits);
+                  admitted.put(vmMoRef, hostPermits);
+               }
+               if (!admitted.isEmpty() && !startPowerOperations(admitted, powerOn, inFlight, result)) {
+                  _log.warning("VHM: vCenter could not change the power state of "+admitted.size()+" VM(s) - not starting the other "+remaining.size());
+                  vcFailed = true;
+               }
+            }
+            if (!inFlight.isEmpty()) {
+               collectPowerOperationsCompletedBy(System.currentTimeMillis() + COMPLETION_POLL_MILLIS, inFlight, result);
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         _log.warning("VHM: interrupted while changing the power state of VMs - not starting the other "+remaining.size()+" VM(s)");
+         /* The tasks which have been started are returned as they are */
+         for (InFlightPowerOperation operation : inFlight) {
+            result.put(operation._vmMoRef, operation._task);
+            release(operation._hostPermits);
+         }
+         _inProgress.addAndGet(-inFlight.size());
+      }
+      /* The caller only sees a failure if no power operation could be started */
+      return (result.isEmpty() && !vmMoRefs.isEmpty()) ? null : result;
+   }
+
+   /* Starts the admitted power operations, which hold their permits until their own task has completed
+    * Returns false, having released the permits, if vCenter could not be asked to change the power state */
+   private boolean startPowerOperations(Map<String, Semaphore> admitted, boolean powerOn, List<InFlightPowerOperation> inFlight,
+         Map<String, Future<Boolean>> result) {
+      recordInProgress(admitted.size());
+      Map<String, Future<Boolean>> tasks = null;
+      try {
+         tasks = _vcActions.changeVMPowerState(new HashSet<String>(admitted.keySet()), powerOn);
+      } finally {
+         if (tasks == null) {
+            _inProgress.addAndGet(-admitted.size());
+            for (Semaphore hostPermits : admitted.values()) {
+               release(hostPermits);
+            }
+         }
+      }
+      if (tasks == null) {
+         return false;
+      }
+      for (Map.Entry<String, Semaphore> operation : admitted.entrySet()) {
+         Future<Boolean> task = tasks.get(operation.getKey());
+         if (task == null) {
+            /* There is no task to wait for, so the permits are not needed */
+            _inProgress.decrementAndGet();
+            release(operation.getValue());
+            if (tasks.containsKey(operation.getKey())) {
+               result.put(operation.getKey(), new CompletedPowerOperation(null, null));
+            }
+         } else {
+            inFlight.add(new InFlightPowerOperation(operation.getKey(), operation.getValue(), task));
+         }
+      }
+      return true;
+   }
+
+   /* Collects the power operations which complete before the deadline, releasing their permits
+    * Returns early if all of them have completed, as there is then nothing more to wait for */
+   private void collectPowerOperationsCompletedBy(long deadline, List<InFlightPowerOperation> inFlight, Map<String, Future<Boolean>> result)
+         throws InterruptedException {
+      while (!inFlight.isEmpty()) {
+         long remainingMillis = deadline - System.currentTimeMillis();
+         collectCompletedPowerOperations(inFlight, result, Math.max(0, remainingMillis));
+         if (remainingMillis <= 0) {
+            return;
+         }
+      }
+   }
+
+   /* Waits for at most waitMillis for the oldest power operation and collects it and any others which have completed */
+   private void collectCompletedPowerOperations(List<InFlightPowerOperation> inFlight, Map<String, Future<Boolean>> result,
+         long waitMillis) throws InterruptedException {
+      boolean oldest = true;
+      for (Iterator<InFlightPowerOperation> i = inFlight.iterator(); i.hasNext(); ) {
+         InFlightPowerOperation operation = i.next();
+         Boolean taskResult = null;
+         ExecutionException taskException = null;
+         try {
+            if (oldest) {
+               oldest = false;
+               taskResult = operation._task.get(waitMillis, TimeUnit.MILLISECONDS);
+            } else if (operation._task.isDone()) {
+               taskResult = operation._task.get();
+            } else {
+               continue;
+            }
+         } catch (TimeoutException e) {
+            continue;
+         } catch (ExecutionException e) {
+            _log.log(Level.FINE, "<%V"+operation._vmMoRef+"%V>: power operation failed", e);
+            taskException = e;
+         }
+         i.remove();
+         _inProgress.decrementAndGet();
+         release(operation._hostPermits);
+         result.put(operation._vmMoRef, new CompletedPowerOperation(taskResult, taskException));
+      }
+   }
+
+   private void recordInProgress(int admitted) {
+      _powerOpsAdmitted.addAndGet(admitted);
+      long inProgress = _inProgress.addAndGet(admitted);
+      long maxInProgress = _maxInProgress.get();
+      while ((inProgress > maxInProgress) && !_maxInProgress.compareAndSet(maxInProgress, inProgress)) {
+         maxInProgress = _maxInProgress.get();
+      }
+   }
+
+   @Override
+   public List<VMEventData> waitForPropertyChange(String folderName) throws InterruptedException {
+      return _vcActions.waitForPropertyChange(folderName);
+   }
+
+   @Override
+   public void interruptWait() {
+      _vcActions.interruptWait();
+   }
+
+   @Override
+   public PerformanceManager getPerformanceManager() {
+      return _vcActions.getPerformanceManager();
+   }
+
+   @Override
+   public List<String> listVMsInFolder(String folderName) {
+      return _vcActions.listVMsInFolder(folderName);
+   }
+
+   long getPowerOpsAdmitted() {
+      return _powerOpsAdmitted.get();
+   }
+
+   /* The number of times a power operation had to wait for a permit */
+   long getAdmissionWaits() {
+      return _admissionWaits.get();
+   }
+
+   long getMaxInProgress() {
+      return _maxInProgress.get();
+   }
+
+   @Override
+   public String toString() {
+      return "powerOpsInProgress="+_inProgress.get()+
+            ", maxPowerOpsInProgress="+_maxInProgress.get()+
+            ", powerOpsAdmitted="+_powerOpsAdmitted.get()+
+            ", admissionWaits="+_admissionWaits.get();
+   }
+}
@@ -0,0 +1,206 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+
+/* ClusterMapAccess built on a fair ReentrantReadWriteLock
+ * Unlike MultipleReaderSingleWriterClusterMapAccess, the writer is woken as soon as the last reader unlocks
+ *   rather than polling, and a reader that never unlocks cannot cause its lock to be silently discarded.
+ * Fairness ensures that the VHM main thread cannot be starved of the write lock by a stream of readers */
+public class ReadWriteLockClusterMapAccess implements WritableClusterMapAccess {
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock(true);
+   private final ClusterMap _clusterMap;
+   private final LockStatistics _readStats = new LockStatistics("read");
+   private final LockStatistics _writeStats = new LockStatistics("write");
+   private long _lastStatsLogTime = System.currentTimeMillis();
+
+   /* Records when the current thread acquired its read lock, so that hold time can be measured on unlock */
+   private final ThreadLocal<Long> _readLockAcquiredTime = new ThreadLocal<Long>();
+
+   private static final long WRITE_LOCK_WARNING_MILLIS = 1000;
+   private static final long STATS_LOG_INTERVAL_MILLIS = 60000;
+
+   private static final Logger _log = Logger.getLogger(ReadWriteLockClusterMapAccess.class.getName());
+
+   /* Accumulates wait and hold times for one type of lock. All times are in nanoseconds */
+   static class LockStatistics {
+      private final String _name;
+      private final AtomicLong _acquisitions = new AtomicLong();
+      private final AtomicLong _totalWaitTime = new AtomicLong();
+      private final AtomicLong _maxWaitTime = new AtomicLong();
+      private final AtomicLong _totalHoldTime = new AtomicLong();
+      private final AtomicLong _maxHoldTime = new AtomicLong();
+
+      LockStatistics(String name) {
+         _name = name;
+      }
+
+      private void updateMax(AtomicLong max, long value) {
+         long current;
+         while ((current = max.get()) < value) {
+            if (max.compareAndSet(current, value)) {
+               break;
+            }
+         }
+      }
+
+      void recordWait(long waitTime) {
+         _acquisitions.incrementAndGet();
+         _totalWaitTime.addAndGet(waitTime);
+         updateMax(_maxWaitTime, waitTime);
+      }
+
+      void recordHold(long holdTime) {
+         _totalHoldTime.addAndGet(holdTime);
+         updateMax(_maxHoldTime, holdTime);
+      }
+
+      long getAcquisitions() {
+         return _acquisitions.get();
+      }
+
+      long getMaxWaitTimeNanos() {
+         return _maxWaitTime.get();
+      }
+
+      long getMaxHoldTimeNanos() {
+         return _maxHoldTime.get();
+      }
+
+      @Override
+      public String toString() {
+         long acquisitions = _acquisitions.get();
+         long divisor = (acquisitions == 0) ? 1 : acquisitions;
+         return _name+" locks="+acquisitions+
+               ", avgWait="+TimeUnit.NANOSECONDS.toMicros(_totalWaitTime.get() / divisor)+"us"+
+               ", maxWait="+TimeUnit.NANOSECONDS.toMicros(_maxWaitTime.get())+"us"+
+               ", avgHold="+TimeUnit.NANOSECONDS.toMicros(_totalHoldTime.get() / divisor)+"us"+
+               ", maxHold="+TimeUnit.NANOSECONDS.toMicros(_maxHoldTime.get())+"us";
+      }
+   }
+
+   ReadWriteLockClusterMapAccess(ClusterMap clusterMap) {
+      _clusterMap = clusterMap;
+   }
+
+   @Override
+   public ClusterMap lockClusterMap() {
+      if (_lock.getReadHoldCount() > 0) {
+         _log.severe("VHM: attempt to double-lock the cluster map");
+         return null;
+      }
+      long startTime = System.nanoTime();
+      _lock.readLock().lock();
+      long acquiredTime = System.nanoTime();
+      _readStats.recordWait(acquiredTime - startTime);
+      _readLockAcquiredTime.set(acquiredTime);
+      return _clusterMap;
+   }
+
+   @Override
+   public boolean unlockClusterMap(ClusterMap clusterMap) {
+      if (clusterMap == null) {
+         _log.severe("VHM: unlock cluster map called with null cluster map argument - prior lock probably failed");
+         return false;
+      }
+      if (_lock.getReadHoldCount() == 0) {
+         _log.severe("VHM: attempt to double-unlock cluster map");
+         return false;
+      }
+      Long acquiredTime = _readLockAcquiredTime.get();
+      _readLockAcquiredTime.remove();
+      _lock.readLock().unlock();
+      if (acquiredTime != null) {
+         _readStats.recordHold(System.nanoTime() - acquiredTime);
+      }
+      return true;
+   }
+
+   @Override
+   public Object runCodeInWriteLock(Callable<Object> callable) {
+      if (_lock.getReadHoldCount() > 0) {
+         /* Upgrading a read lock to a write lock would deadlock */
+         throw new IllegalStateException("VHM: attempt to write to the cluster map while holding a read lock");
+      }
+      long startTime = System.nanoTime();
+      acquireWriteLock();
+      long acquiredTime = System.nanoTime();
+      _writeStats.recordWait(acquiredTime - startTime);
+      try {
+         return callable.call();
+      } catch (Exception e) {
+         throw new RuntimeException(e);
+      } finally {
+         _lock.writeLock().unlock();
+         _writeStats.recordHold(System.nanoTime() - acquiredTime);
+         logStatisticsIfDue();
+      }
+   }
+
+   /* A reader that fails to unlock will block the writer indefinitely, so make sure that this is visible in the log */
+   private void acquireWriteLock() {
+      boolean interrupted = false;
+      try {
+         while (true) {
+            try {
+               if (_lock.writeLock().tryLock(WRITE_LOCK_WARNING_MILLIS, TimeUnit.MILLISECONDS)) {
+                  return;
+               }
+               _log.severe("VHM: waited more than "+WRITE_LOCK_WARNING_MILLIS+"ms for "+_lock.getReadLockCount()+
+                     " reader(s) to unlock the cluster map");
+            } catch (InterruptedException e) {
+               _log.warning("VHM: unexpected interruption while waiting for cluster map write lock");
+               interrupted = true;
+            }
+         }
+      } finally {
+         if (interrupted) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   /* Only called by the writer thread so no need for synchronization */
+   private void logStatisticsIfDue() {
+      long now = System.currentTimeMillis();
+      if (now > (_lastStatsLogTime + STATS_LOG_INTERVAL_MILLIS)) {
+         _lastStatsLogTime = now;
+         if (_log.isLoggable(Level.FINE)) {
+            _log.fine("ClusterMap lock statistics: "+getStatistics());
+         }
+      }
+   }
+
+   LockStatistics getReadLockStatistics() {
+      return _readStats;
+   }
+
+   LockStatistics getWriteLockStatistics() {
+      return _writeStats;
+   }
+
+   public String getStatistics() {
+      return _readStats+"; "+_writeStats;
+   }
+}
@@ -0,0 +1,100 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+
+/* Copy-on-write ClusterMapAccess
+ * The writer updates the live ClusterMap and then publishes an immutable snapshot of it, which readers are given without locking.
+ * Readers never block the writer, so a long-running scale thread cannot hold up the processing of VC events.
+ * The trade-off is that a reader holding a snapshot will not see updates made after it was published */
+public class SnapshotClusterMapAccess implements WritableClusterMapAccess {
+   private final VersionedClusterMap _clusterMap;
+   private final Object _writeLock = new Object();
+   private final AtomicLong _snapshotsPublished = new AtomicLong();
+   private volatile ClusterMap _snapshot;
+   private long _snapshotVersion;
+
+   /* Records the snapshot a thread is reading so that the double-lock and double-unlock diagnostics still work */
+   private final ThreadLocal<ClusterMap> _heldSnapshot = new ThreadLocal<ClusterMap>();
+
+   private static final Logger _log = Logger.getLogger(SnapshotClusterMapAccess.class.getName());
+
+   SnapshotClusterMapAccess(VersionedClusterMap clusterMap) {
+      _clusterMap = clusterMap;
+      synchronized(_writeLock) {
+         publishSnapshot();
+      }
+   }
+
+   @Override
+   public ClusterMap lockClusterMap() {
+      if (_heldSnapshot.get() != null) {
+         _log.severe("VHM: attempt to double-lock the cluster map");
+         return null;
+      }
+      ClusterMap snapshot = _snapshot;
+      _heldSnapshot.set(snapshot);
+      return snapshot;
+   }
+
+   @Override
+   public boolean unlockClusterMap(ClusterMap clusterMap) {
+      if (clusterMap == null) {
+         _log.severe("VHM: unlock cluster map called with null cluster map argument - prior lock probably failed");
+         return false;
+      }
+      if (_heldSnapshot.get() == null) {
+         _log.severe("VHM: attempt to double-unlock cluster map");
+         return false;
+      }
+      _heldSnapshot.remove();
+      return true;
+   }
+
+   /* Readers are not blocked while the callable runs - they continue to see the previous snapshot until it completes */
+   @Override
+   public Object runCodeInWriteLock(Callable<Object> callable) {
+      synchronized(_writeLock) {
+         try {
+            return callable.call();
+         } catch (Exception e) {
+            throw new RuntimeException(e);
+         } finally {
+            publishSnapshot();
+         }
+      }
+   }
+
+   /* Must be called holding _writeLock. Nothing is copied if the ClusterMap has not changed since the last snapshot */
+   private void publishSnapshot() {
+      long version = _clusterMap.getVersion();
+      if ((_snapshot == null) || (version != _snapshotVersion)) {
+         _snapshot = _clusterMap.createSnapshot();
+         _snapshotVersion = version;
+         _snapshotsPublished.incrementAndGet();
+         _log.finest("Published ClusterMap snapshot version "+version);
+      }
+   }
+
+   long getSnapshotsPublished() {
+      return _snapshotsPublished.get();
+   }
+}
@@ -17,14 +17,21 @@ package com.vmware.vhadoop.vhm;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,7 +40,9 @@ import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
 import com.vmware.vhadoop.api.vhm.events.EventConsumer;
 import com.vmware.vhadoop.api.vhm.events.EventProducer;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
 import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy.ClusterScaleOperation;
 import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategyContext;
 
 public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProducer {
@@ -41,12 +50,28 @@ public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProd
    private class ClusterTaskContext {
       ScaleStrategy _scaleStrategy;
       Future<ClusterScaleCompletionEvent> _completionEventPending;
+      ClusterScaleOperation _runningOperation;
+      Set<ClusterScaleEvent> _runningEvents;
       ScaleStrategyContext _scaleStrategyContext;
+      /* Events received while a task is running, which are handed back to VHM when it completes */
+      Set<ClusterScaleEvent> _pendingNextEvents;
    }
 
+   public static final int DEFAULT_THREAD_POOL_SIZE = 16;
+   public static final int DEFAULT_TASK_QUEUE_CAPACITY = 256;
+   private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+
    private final ExecutorService _threadPool;
+   /* Completed tasks are queued here by the thread pool, so the completion listener never has to poll the running tasks */
+   private final CompletionService<ClusterScaleCompletionEvent> _completionService;
    private final Map<String, ClusterTaskContext> _clusterTaskContexts;
+   private final Map<Future<ClusterScaleCompletionEvent>, String> _clusterIdsByTask;
    private static int _threadCounter = 0;
+   private final AtomicLong _rejectedTasks = new AtomicLong();
+   private final AtomicLong _submittedTasks = new AtomicLong();
+   private final AtomicLong _heldEventCollections = new AtomicLong();
+   private final AtomicLong _followUpEventCollections = new AtomicLong();
+   private final AtomicLong _preemptedTasks = new AtomicLong();
    private EventConsumer _consumer;
    private Thread _mainThread;
    private volatile boolean _started;
@@ -65,13 +90,35 @@ public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProd
    private static final Logger _log = Logger.getLogger(ThreadPoolExecutionStrategy.class.getName());
 
    public ThreadPoolExecutionStrategy() {
-      _threadPool = Executors.newCachedThreadPool(new ThreadFactory() {
+      this(DEFAULT_THREAD_POOL_SIZE, DEFAULT_TASK_QUEUE_CAPACITY);
+   }
+
+   /* At most threadPoolSize clusters are scaled at once. Further tasks wait in a queue of taskQueueCapacity and once that is full,
+    * handleClusterScaleEvents returns false so that VHM puts the events back on its queue to try again later */
+   public ThreadPoolExecutionStrategy(int threadPoolSize, int taskQueueCapacity) {
+      this(createThreadPool(threadPoolSize, taskQueueCapacity));
+      _log.info("Scaling at most "+threadPoolSize+" cluster(s) concurrently with "+taskQueueCapacity+" queued");
+   }
+
+   /* Allows a subclass to run the cluster scale operations on a different kind of executor */
+   protected ThreadPoolExecutionStrategy(ExecutorService threadPool) {
+      _threadPool = threadPool;
+      _completionService = new ExecutorCompletionService<ClusterScaleCompletionEvent>(_threadPool);
+      _clusterTaskContexts = new HashMap<String, ClusterTaskContext>();
+      _clusterIdsByTask = new HashMap<Future<ClusterScaleCompletionEvent>, String>();
+   }
+
+   private static ThreadPoolExecutor createThreadPool(int threadPoolSize, int taskQueueCapacity) {
+      ThreadPoolExecutor threadPool = new ThreadPoolExecutor(threadPoolSize, threadPoolSize, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(taskQueueCapacity), new ThreadFactory() {
          @Override
          public Thread newThread(Runnable r) {
             return new Thread(r, "Cluster_Thread_"+(_threadCounter++));
          }
       });
-      _clusterTaskContexts = new HashMap<String, ClusterTaskContext>();
+      /* Threads are only kept while there is work to do */
+      threadPool.allowCoreThreadTimeOut(true);
+      return threadPool;
    }
 
    private void setScaleStrategyAndContext(ScaleStrategy scaleStrategy, ClusterTaskContext toSet) throws Exception {
@@ -108,12 +155,29 @@ public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProd
          try {
             ctc = getClusterTaskContext(clusterId, scaleStrategy);
             if (ctc._completionEventPending != null) {
-               _log.finest("Cluster scale events already being handled for cluster <%C"+clusterId);
+               /* Rather than VHM putting the events back on its queue every time around its loop, they are held until the task completes
+                * Events held from earlier calls are kept too, as VHM consolidates them again once they are handed back */
+               if (ctc._pendingNextEvents == null) {
+                  ctc._pendingNextEvents = new LinkedHashSet<ClusterScaleEvent>();
+               }
+               ctc._pendingNextEvents.addAll(events);
+               _heldEventCollections.incrementAndGet();
+               preemptIfSuperseded(clusterId, ctc, events);
+               _log.finest("Cluster scale events already being handled for cluster <%C"+clusterId+"%C>. Holding "+
+                     ctc._pendingNextEvents.size()+" event(s) until it completes");
+               result = true;
             } else {
-               ctc._completionEventPending =
-                     _threadPool.submit(scaleStrategy.getClusterScaleOperation(clusterId, events, ctc._scaleStrategyContext));
+               ClusterScaleOperation operation = scaleStrategy.getClusterScaleOperation(clusterId, events, ctc._scaleStrategyContext);
+               ctc._completionEventPending = _completionService.submit(operation);
+               ctc._runningOperation = operation;
+               ctc._runningEvents = events;
+               _clusterIdsByTask.put(ctc._completionEventPending, clusterId);
+               _submittedTasks.incrementAndGet();
                result = true;
             }
+         } catch (RejectedExecutionException e) {
+            _rejectedTasks.incrementAndGet();
+            _log.fine("<%C"+clusterId+"%C>: cluster scale task queue is full - "+getQueuedTasks()+" task(s) waiting");
          } catch (Exception e) {
             _log.log(Level.SEVERE, "VHM: unexpected exception initializing ClusterTaskContext", e);
          }
@@ -121,6 +185,28 @@ public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProd
       }
    }
 
+   /* A newer exclusive event of the same type as one being handled makes the running operation redundant, so it is asked to stop at
+    * its next safe point. The newer event is already held, so it is handled as soon as the operation stops */
+   private void preemptIfSuperseded(String clusterId, ClusterTaskContext ctc, Set<ClusterScaleEvent> newEvents) {
+      if ((ctc._runningOperation == null) || (ctc._runningEvents == null) || ctc._completionEventPending.isDone()
+            || ctc._runningOperation.isCancellationRequested()) {
+         return;
+      }
+      for (ClusterScaleEvent newEvent : newEvents) {
+         if (newEvent.isExclusive()) {
+            for (ClusterScaleEvent runningEvent : ctc._runningEvents) {
+               if (runningEvent.isExclusive() && (runningEvent.getClass() == newEvent.getClass())
+                     && (newEvent.getTimestamp() > runningEvent.getTimestamp())) {
+                  _log.info("<%C"+clusterId+"%C>: cancelling cluster scale operation, which has been superseded by a newer event");
+                  ctc._runningOperation.requestCancellation();
+                  _preemptedTasks.incrementAndGet();
+                  return;
+               }
+            }
+         }
+      }
+   }
+
    @Override
    public void registerEventConsumer(EventConsumer consumer) {
       _consumer = consumer;
@@ -132,61 +218,90 @@ public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProd
       _mainThread = new Thread(new Runnable() {
          @Override
          public void run() {
-            List<ClusterScaleCompletionEvent> completedTasks = new ArrayList<ClusterScaleCompletionEvent>();
-            synchronized(_clusterTaskContexts) {
-               try {
-                  _log.info("ThreadPoolExecutionStrategy starting...");
-                  startStopCallback.notifyStarted(ThreadPoolExecutionStrategy.this);
-                  while (_started) {
-                     for (String clusterId : _clusterTaskContexts.keySet()) {
-                        ClusterTaskContext ctc = _clusterTaskContexts.get(clusterId);
-                        if (ctc._completionEventPending != null) {
-                           Future<ClusterScaleCompletionEvent> task = ctc._completionEventPending;
-                           if (task.isDone()) {
-                              try {
-                                 ClusterScaleCompletionEvent completionEvent = task.get();
-                                 if (completionEvent != null) {
-                                    _log.info("Found completed task for cluster <%C"+completionEvent.getClusterId());
-                                    completedTasks.add(completionEvent);
-                                 }
-                              } catch (InterruptedException e) {
-                                 _log.warning("<%C"+clusterId+"%C>: cluster thread interrupted");
-                              } catch (ExecutionException e) {
-                                 _log.log(Level.WARNING, "<%C"+clusterId+"%C>: exception while running scale strategy for cluster", e);
-                              }
-                              ctc._completionEventPending = null;
-                           }
-                        }
-                     }
-                     /* Add the completed tasks in one block, ensuring a single ClusterMap update */
-                     if (completedTasks.size() > 0) {
-                        _consumer.placeEventCollectionOnQueue(completedTasks);
-                        completedTasks.clear();
-                     }
-                     try {
-                        _clusterTaskContexts.wait(500);
-                     } catch (InterruptedException e) {
-                        if (_started) {
-                           /* if we're not stopping then this is unexpected */
-                           _log.warning("VHM: cluster thread wait interrupted");
-                        }
+            List<NotificationEvent> completedTasks = new ArrayList<NotificationEvent>();
+            try {
+               _log.info("ThreadPoolExecutionStrategy starting...");
+               startStopCallback.notifyStarted(ThreadPoolExecutionStrategy.this);
+               while (_started) {
+                  Future<ClusterScaleCompletionEvent> task;
+                  try {
+                     /* Blocks until a cluster task completes, so a completion reaches the VHM queue as soon as it is available */
+                     task = _completionService.take();
+                  } catch (InterruptedException e) {
+                     if (_started) {
+                        /* if we're not stopping then this is unexpected */
+                        _log.warning("VHM: cluster thread wait interrupted");
                      }
+                     continue;
+                  }
+                  /* Any other tasks which have completed in the meantime are added in the same block */
+                  while (task != null) {
+                     addCompletedTaskEvents(task, completedTasks);
+                     task = _completionService.poll();
+                  }
+                  /* Add the completed tasks in one block, ensuring a single ClusterMap update
+                   * Any events held for the clusters are in the same block, so they are only handled once VHM has seen the completions */
+                  if (completedTasks.size() > 0) {
+                     _consumer.placeEventCollectionOnQueue(completedTasks);
+                     completedTasks.clear();
                   }
-               } catch (Throwable t) {
-                  _log.log(Level.SEVERE, "VHM: unexpected exception in ThreadPoolExecutionStrategy", t);
-                  startStopCallback.notifyFailed(ThreadPoolExecutionStrategy.this);
                }
-               _log.info("ThreadPoolExecutionStrategy stopping...");
-               startStopCallback.notifyStopped(ThreadPoolExecutionStrategy.this);
+            } catch (Throwable t) {
+               _log.log(Level.SEVERE, "VHM: unexpected exception in ThreadPoolExecutionStrategy", t);
+               startStopCallback.notifyFailed(ThreadPoolExecutionStrategy.this);
             }
+            _log.info("ThreadPoolExecutionStrategy stopping...");
+            startStopCallback.notifyStopped(ThreadPoolExecutionStrategy.this);
          }
       }, "ScaleStrategyCompletionListener");
       _mainThread.start();
    }
 
+   /* Marks the cluster of a completed task as no longer scaling and adds its completion event, if there is one, to completedTaskEvents
+    * followed by any events that were held for the cluster while the task was running */
+   private void addCompletedTaskEvents(Future<ClusterScaleCompletionEvent> task, List<NotificationEvent> completedTaskEvents) {
+      String clusterId;
+      Set<ClusterScaleEvent> pendingNextEvents = null;
+      synchronized(_clusterTaskContexts) {
+         clusterId = _clusterIdsByTask.remove(task);
+         ClusterTaskContext ctc = (clusterId == null) ? null : _clusterTaskContexts.get(clusterId);
+         if ((ctc != null) && (ctc._completionEventPending == task)) {
+            ctc._completionEventPending = null;
+            ctc._runningOperation = null;
+            ctc._runningEvents = null;
+            pendingNextEvents = ctc._pendingNextEvents;
+            ctc._pendingNextEvents = null;
+         }
+      }
+      try {
+         ClusterScaleCompletionEvent completionEvent = task.get();
+         if (completionEvent != null) {
+            _log.info("Found completed task for cluster <%C"+completionEvent.getClusterId());
+            completedTaskEvents.add(completionEvent);
+         }
+      } catch (InterruptedException e) {
+         _log.warning("<%C"+clusterId+"%C>: cluster thread interrupted");
+      } catch (ExecutionException e) {
+         _log.log(Level.WARNING, "<%C"+clusterId+"%C>: exception while running scale strategy for cluster", e);
+      }
+      /* The held events are handed back even if the task failed, as the failure may not recur */
+      if (pendingNextEvents != null) {
+         _log.fine("<%C"+clusterId+"%C>: handing back "+pendingNextEvents.size()+" event(s) held while the cluster was scaling");
+         _followUpEventCollections.incrementAndGet();
+         completedTaskEvents.addAll(pendingNextEvents);
+      }
+   }
+
    @Override
    public void stop() {
-      /* TODO: Although this stops the TPES, the scaling threads its managing are possibly still running - should we block? */
+      /* The scaling threads may still be running, so they are asked to stop at their next safe point rather than being blocked on */
+      synchronized(_clusterTaskContexts) {
+         for (ClusterTaskContext ctc : _clusterTaskContexts.values()) {
+            if (ctc._runningOperation != null) {
+               ctc._runningOperation.requestCancellation();
+            }
+         }
+      }
       _started = false;
       _mainThread.interrupt();
    }
@@ -204,6 +319,62 @@ public class ThreadPoolExecutionStrategy implements ExecutionStrategy, EventProd
       return false;
    }
 
+   /* Tasks waiting for a thread */
+   public int getQueuedTasks() {
+      if (_threadPool instanceof ThreadPoolExecutor) {
+         return ((ThreadPoolExecutor)_threadPool).getQueue().size();
+      }
+      return 0;
+   }
+
+   /* Tasks which have been submitted and not yet picked up by the completion listener */
+   public int getActiveTasks() {
+      synchronized(_clusterTaskContexts) {
+         return _clusterIdsByTask.size() - getQueuedTasks();
+      }
+   }
+
+   public long getSubmittedTasks() {
+      return _submittedTasks.get();
+   }
+
+   /* Tasks which could not be queued, so that the events for the cluster were put back on the VHM queue */
+   public long getRejectedTasks() {
+      return _rejectedTasks.get();
+   }
+
+   /* Event collections which arrived while their cluster was scaling and were held rather than put back on the VHM queue */
+   public long getHeldEventCollections() {
+      return _heldEventCollections.get();
+   }
+
+   /* Times that held events were handed back to VHM when a task completed. Several held collections are handed back at once */
+   public long getFollowUpEventCollections() {
+      return _followUpEventCollections.get();
+   }
+
+   /* Running tasks that were asked to stop because a newer exclusive event arrived for the cluster */
+   public long getPreemptedTasks() {
+      return _preemptedTasks.get();
+   }
+
+   @Override
+   public String toString() {
+      String poolSize = "";
+      if (_threadPool instanceof ThreadPoolExecutor) {
+         poolSize = "threadPoolSize="+((ThreadPoolExecutor)_threadPool).getMaximumPoolSize()+
+               ", largestPoolSize="+((ThreadPoolExecutor)_threadPool).getLargestPoolSize()+", ";
+      }
+      return poolSize+
+            "activeTasks="+getActiveTasks()+
+            ", queuedTasks="+getQueuedTasks()+
+            ", submittedTasks="+_submittedTasks.get()+
+            ", rejectedTasks="+_rejectedTasks.get()+
+            ", heldEventCollections="+_heldEventCollections.get()+
+            ", followUpEventCollections="+_followUpEventCollections.get()+
+            ", preemptedTasks="+_preemptedTasks.get();
+   }
+
    @Override
    public boolean isStopped() {
       if ((_mainThread == null) || (!_mainThread.isAlive())) {
@@ -17,19 +17,22 @@ package com.vmware.vhadoop.vhm;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.vmware.vhadoop.api.vhm.ClusterMap;
 import com.vmware.vhadoop.api.vhm.ClusterMap.ExtraInfoToClusterMapper;
 import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 import com.vmware.vhadoop.api.vhm.ExecutionStrategy;
@@ -37,16 +40,19 @@ import com.vmware.vhadoop.api.vhm.VCActions;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.SerengetiClusterConstantData;
 import com.vmware.vhadoop.api.vhm.events.EventConsumer;
 import com.vmware.vhadoop.api.vhm.events.EventProducer;
 import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
 import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
+import com.vmware.vhadoop.util.PropertiesUtil;
 import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
 import com.vmware.vhadoop.util.VhmLevel;
 import com.vmware.vhadoop.vhm.events.AbstractClusterScaleEvent;
 import com.vmware.vhadoop.vhm.events.AbstractNotificationEvent;
 import com.vmware.vhadoop.vhm.events.ClusterScaleDecision;
 import com.vmware.vhadoop.vhm.events.ClusterUpdateEvent;
+import com.vmware.vhadoop.vhm.events.NewMasterVMEvent;
 import com.vmware.vhadoop.vhm.events.NewVmEvent;
 import com.vmware.vhadoop.vhm.events.SerengetiLimitInstruction;
 import com.vmware.vhadoop.vhm.events.VmRemovedFromClusterEvent;
@@ -55,38 +61,180 @@ import com.vmware.vhadoop.vhm.strategy.ManualScaleStrategy;
 
 public class VHM implements EventConsumer {
    private final EventProducerActions _eventProducers;
-   private final Queue<NotificationEvent> _eventQueue;
+   private final BoundedEventQueue _eventQueue;
+   private final ClusterScaleEventShards _scaleEventShards;     /* Null unless scale events are sharded */
    private boolean _initialized;
    private final ClusterMapImpl _clusterMap;
    private final ExecutionStrategy _executionStrategy;
    private final VCActions _vcActions;
-   private final MultipleReaderSingleWriterClusterMapAccess _clusterMapAccess;
+   private final WritableClusterMapAccess _clusterMapAccess;
    private final ClusterMapReader _parentClusterMapReader;
+   private final VMStateSubscriptions _vmStateSubscriptions;
+   private final ClusterFolderResolver _clusterFolderResolver;
+   private final EventBatchStatistics _eventBatchStats = new EventBatchStatistics();
+   private final long _eventBatchLingerMillis;
+   private final int _eventBatchHotQueueSize;
+   private final int _eventBatchMaxSize;
+   private final long _eventRequeueDelayMillis;
+   private long _lastEventBatchStatsLogTime = System.currentTimeMillis();
+
+   /* Events that VHM could not handle yet are held here until _deferredEventsDueTime - only used by the VHM main thread */
+   private final List<NotificationEvent> _deferredEvents = new ArrayList<NotificationEvent>();
+   private long _deferredEventsDueTime;
+   private long _lastClearRequests;
+
+   /* Scale events for clusters which are not yet complete are held here until the next state change for the cluster
+    * Used by the VHM main thread and the scale event shards, so access is synchronized on the map */
+   private final Map<String, Set<ClusterScaleEvent>> _eventsForIncompleteClusters = new HashMap<String, Set<ClusterScaleEvent>>();
+   private long _nextHeldEventsCheckTime;      /* Only used by the VHM main thread */
    private volatile boolean _running = false;
    private volatile boolean _stopped = true;
 
    private static final Logger _log = Logger.getLogger(VHM.class.getName());
    private static final long CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS = 10000;
+   /* How often clusters with held events are checked, in case no further event for them arrives */
+   private static final long HELD_EVENTS_CHECK_MILLIS = 1000;
 
    private static long EVENT_PRODUCER_START_GRACE_TIME_MILLIS = 5000;
    private static long EVENT_PRODUCER_STOP_GRACE_TIME_MILLIS = 5000;
 
+   /* vhm.properties key that selects the ClusterMapAccess implementation */
+   public static final String CLUSTER_MAP_ACCESS_PROP_KEY = "clusterMapAccess";
+   public static final String CLUSTER_MAP_ACCESS_READ_WRITE_LOCK = "readWriteLock";
+   public static final String CLUSTER_MAP_ACCESS_POLLING = "polling";
+   public static final String CLUSTER_MAP_ACCESS_SNAPSHOT = "snapshot";
+
+   /* vhm.properties keys that control how events are batched up by the VHM main thread */
+   public static final String EVENT_BATCH_LINGER_MILLIS_PROP_KEY = "eventBatchLingerMillis";
+   public static final String EVENT_BATCH_HOT_QUEUE_SIZE_PROP_KEY = "eventBatchHotQueueSize";
+   public static final String EVENT_BATCH_MAX_SIZE_PROP_KEY = "eventBatchMaxSize";
+   public static final String EVENT_REQUEUE_DELAY_MILLIS_PROP_KEY = "eventRequeueDelayMillis";
+
+   /* vhm.properties keys for the event queue. The overflow policy is either "block" or "dropNewest"
+    * Lower priority events which have waited for longer than the starvation time are handled ahead of higher priority ones */
+   public static final String EVENT_QUEUE_CAPACITY_PROP_KEY = "eventQueueCapacity";
+   public static final String EVENT_QUEUE_OVERFLOW_POLICY_PROP_KEY = "eventQueueOverflowPolicy";
+   public static final String EVENT_STARVATION_MILLIS_PROP_KEY = "eventStarvationMillis";
+
+   /* vhm.properties key that selects how cluster scale operations are run. Either "threadPool" or "virtualThreads", which needs Java 21 */
+   public static final String EXECUTION_STRATEGY_PROP_KEY = "executionStrategy";
+   public static final String EXECUTION_STRATEGY_THREAD_POOL = "threadPool";
+   public static final String EXECUTION_STRATEGY_VIRTUAL_THREADS = "virtualThreads";
+
+   /* vhm.properties keys for the number of clusters that can be scaled concurrently and the number of scale tasks that can wait */
+   public static final String SCALE_THREAD_POOL_SIZE_PROP_KEY = "scaleThreadPoolSize";
+   public static final String SCALE_TASK_QUEUE_CAPACITY_PROP_KEY = "scaleTaskQueueCapacity";
+
+   /* vhm.properties key for the number of event loops that cluster scale events are partitioned across. 0 handles them on the main thread */
+   public static final String SCALE_EVENT_SHARDS_PROP_KEY = "scaleEventShards";
+
+   private static final long DEFAULT_EVENT_BATCH_LINGER_MILLIS = 50;
+   private static final int DEFAULT_EVENT_BATCH_HOT_QUEUE_SIZE = 100;
+   private static final int DEFAULT_EVENT_BATCH_MAX_SIZE = 1000;
+   private static final long DEFAULT_EVENT_REQUEUE_DELAY_MILLIS = 500;
+   private static final int DEFAULT_EVENT_QUEUE_CAPACITY = 4096;
+   private static final long DEFAULT_EVENT_STARVATION_MILLIS = 1000;
+   private static final long EVENT_BATCH_STATS_LOG_INTERVAL_MILLIS = 60000;
+
    VHM(VCActions vcActions, ScaleStrategy[] scaleStrategies,
          ExtraInfoToClusterMapper strategyMapper, ThreadLocalCompoundStatus threadLocalStatus) {
+      this(vcActions, scaleStrategies, strategyMapper, threadLocalStatus, new Properties());
+   }
+
+   VHM(VCActions vcActions, ScaleStrategy[] scaleStrategies,
+         ExtraInfoToClusterMapper strategyMapper, ThreadLocalCompoundStatus threadLocalStatus, Properties properties) {
       _eventProducers = new EventProducerActions();
-      _eventQueue = new LinkedList<NotificationEvent>();
+      _eventQueue = new BoundedEventQueue(PropertiesUtil.getInt(properties, EVENT_QUEUE_CAPACITY_PROP_KEY, DEFAULT_EVENT_QUEUE_CAPACITY),
+            BoundedEventQueue.OverflowPolicy.fromPropertyValue(properties.getProperty(EVENT_QUEUE_OVERFLOW_POLICY_PROP_KEY)),
+            PropertiesUtil.getLong(properties, EVENT_STARVATION_MILLIS_PROP_KEY, DEFAULT_EVENT_STARVATION_MILLIS));
+      _eventBatchLingerMillis = PropertiesUtil.getLong(properties, EVENT_BATCH_LINGER_MILLIS_PROP_KEY, DEFAULT_EVENT_BATCH_LINGER_MILLIS);
+      _eventBatchHotQueueSize = PropertiesUtil.getInt(properties, EVENT_BATCH_HOT_QUEUE_SIZE_PROP_KEY, DEFAULT_EVENT_BATCH_HOT_QUEUE_SIZE);
+      _eventBatchMaxSize = Math.max(1, PropertiesUtil.getInt(properties, EVENT_BATCH_MAX_SIZE_PROP_KEY, DEFAULT_EVENT_BATCH_MAX_SIZE));
+      _eventRequeueDelayMillis = PropertiesUtil.getLong(properties, EVENT_REQUEUE_DELAY_MILLIS_PROP_KEY, DEFAULT_EVENT_REQUEUE_DELAY_MILLIS);
+      _scaleEventShards = createScaleEventShards(PropertiesUtil.getInt(properties, SCALE_EVENT_SHARDS_PROP_KEY, 0));
       _initialized = true;
       _clusterMap = new ClusterMapImpl(strategyMapper);
       _vcActions = vcActions;
-      _clusterMapAccess = MultipleReaderSingleWriterClusterMapAccess.getClusterMapAccess(_clusterMap);
-      _parentClusterMapReader = new AbstractClusterMapReader(_clusterMapAccess, threadLocalStatus) {};
+      _clusterMapAccess = createClusterMapAccess(properties.getProperty(CLUSTER_MAP_ACCESS_PROP_KEY, CLUSTER_MAP_ACCESS_READ_WRITE_LOCK));
+      _vmStateSubscriptions = new VMStateSubscriptions();
+      _clusterFolderResolver = createClusterFolderResolver();
+      _parentClusterMapReader = new AbstractClusterMapReader(_clusterMapAccess, threadLocalStatus, _vmStateSubscriptions) {};
       initScaleStrategies(scaleStrategies);
-      _executionStrategy = new ThreadPoolExecutionStrategy();
+      if (vcActions instanceof PowerOperationAdmissionControl) {
+         /* Admission control finds the host of each VM in ClusterMap */
+         ((PowerOperationAdmissionControl)vcActions).initialize(_parentClusterMapReader);
+      }
+      _executionStrategy = createExecutionStrategy(properties);
       if (!registerEventProducer((ThreadPoolExecutionStrategy)_executionStrategy)) {
          throw new RuntimeException("Fatal error registering ThreadPoolExecutionStrategy as an event producer");
       }
    }
 
+   private ThreadPoolExecutionStrategy createExecutionStrategy(Properties properties) {
+      if (EXECUTION_STRATEGY_VIRTUAL_THREADS.equals(properties.getProperty(EXECUTION_STRATEGY_PROP_KEY))) {
+         if (VirtualThreadExecutionStrategy.isSupported()) {
+            if (_clusterMapAccess instanceof MultipleReaderSingleWriterClusterMapAccess) {
+               _log.warning("VHM: polling ClusterMap access blocks readers in a synchronized block, which pins virtual threads");
+            }
+            return new VirtualThreadExecutionStrategy();
+         }
+         _log.warning("VHM: virtual threads are not supported by this runtime - using a thread pool to scale clusters");
+      }
+      return new ThreadPoolExecutionStrategy(
+            Math.max(1, PropertiesUtil.getInt(properties, SCALE_THREAD_POOL_SIZE_PROP_KEY, ThreadPoolExecutionStrategy.DEFAULT_THREAD_POOL_SIZE)),
+            Math.max(1, PropertiesUtil.getInt(properties, SCALE_TASK_QUEUE_CAPACITY_PROP_KEY, ThreadPoolExecutionStrategy.DEFAULT_TASK_QUEUE_CAPACITY)));
+   }
+
+   private ClusterScaleEventShards createScaleEventShards(int numShards) {
+      if (numShards <= 0) {
+         return null;
+      }
+      _log.info("Handling cluster scale events on "+numShards+" shard(s)");
+      return new ClusterScaleEventShards(numShards, new ClusterScaleEventShards.ScaleEventHandler() {
+         @Override
+         public void getQueuedScaleEventsForCluster(Set<NotificationEvent> events, Map<String, Set<ClusterScaleEvent>> clusterScaleEventMap) {
+            VHM.this.getQueuedScaleEventsForCluster(events, clusterScaleEventMap);
+         }
+
+         @Override
+         public void handleScaleEventsForCluster(String clusterId, Set<ClusterScaleEvent> unconsolidatedEvents, List<ClusterScaleEvent> toRequeue) {
+            VHM.this.handleScaleEventsForCluster(clusterId, unconsolidatedEvents, toRequeue);
+         }
+      }, _eventRequeueDelayMillis);
+   }
+
+   private ClusterFolderResolver createClusterFolderResolver() {
+      return new ClusterFolderResolver(_vcActions, new ClusterFolderResolver.ResolutionHandler() {
+         @Override
+         public String associateFolderWithClusterFromVMs(String folderName, List<String> vmsInFolder) {
+            return VHM.this.associateFolderWithClusterFromVMs(folderName, vmsInFolder);
+         }
+
+         @Override
+         public void instructionResolved(SerengetiLimitInstruction instruction) {
+            /* The instruction has already been accepted, so it is handed back without the risk of being dropped */
+            if (_initialized) {
+               _eventQueue.offer(instruction);
+            }
+         }
+      });
+   }
+
+   private WritableClusterMapAccess createClusterMapAccess(String accessType) {
+      if (CLUSTER_MAP_ACCESS_POLLING.equals(accessType)) {
+         _log.info("Using polling reader/writer access to ClusterMap");
+         return MultipleReaderSingleWriterClusterMapAccess.getClusterMapAccess(_clusterMap);
+      }
+      if (CLUSTER_MAP_ACCESS_SNAPSHOT.equals(accessType)) {
+         _log.info("Using copy-on-write snapshot access to ClusterMap");
+         return new SnapshotClusterMapAccess(_clusterMap);
+      }
+      if (!CLUSTER_MAP_ACCESS_READ_WRITE_LOCK.equals(accessType)) {
+         _log.warning("VHM: unknown "+CLUSTER_MAP_ACCESS_PROP_KEY+" value \""+accessType+"\" - defaulting to "+CLUSTER_MAP_ACCESS_READ_WRITE_LOCK);
+      }
+      return new ReadWriteLockClusterMapAccess(_clusterMap);
+   }
+
    private void initScaleStrategies(ScaleStrategy[] scaleStrategies) {
       for (ScaleStrategy strategy : scaleStrategies) {
          _clusterMap.registerScaleStrategy(strategy);
@@ -234,22 +382,98 @@ public class VHM implements EventConsumer {
       return _eventProducers.registerNew(eventProducer);
    }
 
-   private void addEventToQueue(NotificationEvent event) {
-      Queue<NotificationEvent> toKeepQueue = null;
-      if (event.getCanClearQueue()) {
-         for (NotificationEvent e : _eventQueue) {
-            if (!e.getCanBeClearedFromQueue()) {
-               if (toKeepQueue == null) {
-                  toKeepQueue = new LinkedList<NotificationEvent>();
+   /* Events that can't be handled yet are put back on the queue after a delay, so that VHM doesn't spin trying to handle them
+    * Only called by the VHM main thread, so the deferred events are held outside of the queue and producers are never blocked by them */
+   private void requeueEvents(List<? extends NotificationEvent> events) {
+      if (_deferredEvents.isEmpty()) {
+         _deferredEventsDueTime = System.currentTimeMillis() + _eventRequeueDelayMillis;
+      }
+      _deferredEvents.addAll(events);
+   }
+
+   /* Deferred events that can be cleared from the queue are discarded once an event that can clear the queue has been added */
+   private void clearDeferredEventsIfRequested() {
+      long clearRequests = _eventQueue.getClearRequests();
+      if (clearRequests != _lastClearRequests) {
+         _lastClearRequests = clearRequests;
+         for (Iterator<NotificationEvent> i = _deferredEvents.iterator(); i.hasNext(); ) {
+            if (i.next().getCanBeClearedFromQueue()) {
+               i.remove();
+            }
+         }
+         synchronized(_eventsForIncompleteClusters) {
+            for (Set<ClusterScaleEvent> heldEvents : _eventsForIncompleteClusters.values()) {
+               for (Iterator<ClusterScaleEvent> i = heldEvents.iterator(); i.hasNext(); ) {
+                  if (i.next().getCanBeClearedFromQueue()) {
+                     i.remove();
+                  }
+               }
+            }
+         }
+         if (_scaleEventShards != null) {
+            _scaleEventShards.clearEvents();
+         }
+      }
+   }
+
+   /* Deferred scale events for a cluster are handled along with any new scale events for it, rather than waiting to become due
+    * This is needed because the deferred events can affect how the new ones are handled. For example, the other events for a cluster
+    * are dropped while a switch to manual is pending */
+   static void addDeferredEventsForClusters(List<NotificationEvent> deferredEvents, Map<String, Set<ClusterScaleEvent>> clusterScaleEvents) {
+      Map<String, Set<ClusterScaleEvent>> deferredEventsForClusters = null;
+      for (Iterator<NotificationEvent> i = deferredEvents.iterator(); i.hasNext(); ) {
+         NotificationEvent event = i.next();
+         if (event instanceof ClusterScaleEvent) {
+            String clusterId = ((ClusterScaleEvent)event).getClusterId();
+            if ((clusterId != null) && clusterScaleEvents.containsKey(clusterId)) {
+               if (deferredEventsForClusters == null) {
+                  deferredEventsForClusters = new HashMap<String, Set<ClusterScaleEvent>>();
                }
-               toKeepQueue.add(e);
+               Set<ClusterScaleEvent> deferredEventsForCluster = deferredEventsForClusters.get(clusterId);
+               if (deferredEventsForCluster == null) {
+                  deferredEventsForCluster = new LinkedHashSet<ClusterScaleEvent>();      /* Preserve order */
+                  deferredEventsForClusters.put(clusterId, deferredEventsForCluster);
+               }
+               deferredEventsForCluster.add((ClusterScaleEvent)event);
+               i.remove();
             }
          }
-         _eventQueue.clear();
       }
-      _eventQueue.add(event);
-      if (toKeepQueue != null) {
-         _eventQueue.addAll(toKeepQueue);
+      if (deferredEventsForClusters != null) {
+         /* The deferred events are older, so they go first */
+         for (String clusterId : deferredEventsForClusters.keySet()) {
+            Set<ClusterScaleEvent> eventsForCluster = deferredEventsForClusters.get(clusterId);
+            eventsForCluster.addAll(clusterScaleEvents.get(clusterId));
+            clusterScaleEvents.put(clusterId, eventsForCluster);
+         }
+      }
+   }
+
+   /* Returns 0 if there is nothing to wake up for other than a new event */
+   private long getPollWaitMillis() {
+      long now = System.currentTimeMillis();
+      long result = _deferredEvents.isEmpty() ? 0 : Math.max(1, _deferredEventsDueTime - now);
+      if (hasHeldEvents()) {
+         long heldEventsWait = Math.max(1, _nextHeldEventsCheckTime - now);
+         result = (result == 0) ? heldEventsWait : Math.min(result, heldEventsWait);
+      }
+      return result;
+   }
+
+   private boolean areDeferredEventsDue() {
+      return !_deferredEvents.isEmpty() && (System.currentTimeMillis() >= _deferredEventsDueTime);
+   }
+
+   /* Only scale requests from outside VHM can be dropped when the queue is full. Completions must never be lost, as the cluster
+    * cannot be scaled again until its completion has been handled, and an event which clears the queue is never dropped */
+   private boolean canBeDropped(NotificationEvent event) {
+      return (event instanceof ClusterScaleEvent) && !(event instanceof ClusterScaleCompletionEvent) && !event.getCanClearQueue();
+   }
+
+   private void offerEvent(NotificationEvent event) {
+      if (!_eventQueue.offer(event, canBeDropped(event)) && (event instanceof SerengetiLimitInstruction)) {
+         /* Otherwise the user waits for a reply that never comes */
+         ((SerengetiLimitInstruction)event).reportError("VHM is too busy to accept the instruction - please retry");
       }
    }
 
@@ -260,10 +484,7 @@ public class VHM implements EventConsumer {
          return;
       }
       if (event != null) {
-         synchronized(_eventQueue) {
-            addEventToQueue(event);
-            _eventQueue.notify();
-         }
+         offerEvent(event);
       }
    }
 
@@ -272,92 +493,235 @@ public class VHM implements EventConsumer {
       if (!_initialized) {
          return;
       }
-      synchronized(_eventQueue) {
-         for (NotificationEvent event : events) {
-            addEventToQueue(event);
-         }
-         _eventQueue.notify();
+      for (NotificationEvent event : events) {
+         offerEvent(event);
       }
    }
 
+   /* Only called by the VHM main thread */
    public Set<NotificationEvent> pollForEvents() {
       Set<NotificationEvent> results = null;
-      synchronized(_eventQueue) {
-         while (_eventQueue.peek() == null) {
-            try {
-               _eventQueue.wait();
-            } catch (InterruptedException e) {
-               _log.warning("VHM: interrupted unexpectedly while waiting for event");
+      clearDeferredEventsIfRequested();
+      checkHeldEventsIfDue();
+      while (_eventQueue.isEmpty() && !areDeferredEventsDue()) {
+         /* A wait time of 0 waits until an event is added */
+         _eventQueue.awaitEvent(getPollWaitMillis());
+         clearDeferredEventsIfRequested();
+         checkHeldEventsIfDue();
+      }
+      waitForBatchToFill();
+      clearDeferredEventsIfRequested();
+      List<NotificationEvent> batch = new ArrayList<NotificationEvent>();
+      /* Index into batch of the most recent event for each event key */
+      Map<String, Integer> latestEventForKey = new HashMap<String, Integer>();
+      int batchSize = 0;
+      int merges = 0;
+      if (areDeferredEventsDue()) {
+         /* Deferred events are older than anything on the queue, so they go first */
+         for (NotificationEvent event : _deferredEvents) {
+            if (addEventToBatch(event, batch, latestEventForKey)) {
+               merges++;
             }
          }
-         results = new LinkedHashSet<NotificationEvent>();
-         while (_eventQueue.peek() != null) {
-            /* Use of a Set ensured duplicates are eliminated */
-            /* TODO: add an event key to do event consolidation. At the moment events use the default equality so this has little effect */
-            results.add(_eventQueue.poll());
+         batchSize += _deferredEvents.size();
+         _deferredEvents.clear();
+      }
+      NotificationEvent event;
+      while ((batchSize < _eventBatchMaxSize) && ((event = _eventQueue.poll()) != null)) {
+         batchSize++;
+         if (addEventToBatch(event, batch, latestEventForKey)) {
+            merges++;
          }
       }
+      /* Use of a Set ensures duplicates are eliminated */
+      results = new LinkedHashSet<NotificationEvent>(batch);
+      _eventBatchStats.recordBatch(batchSize, !_eventQueue.isEmpty());
+      _eventBatchStats.recordMerges(merges);
+      logEventBatchStatisticsIfDue();
       return results;
    }
 
-   public NotificationEvent getEventPending() {
-      synchronized(_eventQueue) {
-         return _eventQueue.peek();
+   /* Merges the event into the most recent event in the batch with the same event key if possible. Returns true if it was merged
+    * Only events of the same priority are merged, as the queue only keeps events of the same priority in the order they were added */
+   private boolean addEventToBatch(NotificationEvent event, List<NotificationEvent> batch, Map<String, Integer> latestEventForKey) {
+      String key = event.getEventKey();
+      if (key != null) {
+         Integer latestIndex = latestEventForKey.get(key);
+         if ((latestIndex != null) && (batch.get(latestIndex).getPriority() == event.getPriority())) {
+            NotificationEvent merged = batch.get(latestIndex).mergeWith(event);
+            if (merged != null) {
+               batch.set(latestIndex, merged);
+               return true;
+            }
+         }
+         latestEventForKey.put(key, batch.size());
       }
+      batch.add(event);
+      return false;
    }
 
-   private String getClusterIdForVCFolder(String folderName) {
-      String clusterId = null;
-      List<String> vms = _vcActions.listVMsInFolder(folderName);
-      /* Returning null may indicate a VC connection failure */
-      if (vms != null) {
-         clusterId = _clusterMap.getClusterIdFromVMs(vms);
-         if (clusterId != null) {
-            _clusterMap.associateFolderWithCluster(clusterId, folderName);
+   /* Only called by the VHM main thread once there is at least one event to handle
+    * Gives a burst of events a bounded amount of time to arrive so that they can be handled as a single batch.
+    * There is no wait if the queue already has plenty of events in it or if there is an urgent event to handle */
+   private void waitForBatchToFill() {
+      if (_eventQueue.hasUrgentEvent()) {
+         _eventBatchStats.recordUrgentDrain();
+         return;
+      }
+      if (_eventQueue.size() >= _eventBatchHotQueueSize) {
+         _eventBatchStats.recordHotDrain();
+         return;
+      }
+      if (_eventBatchLingerMillis <= 0) {
+         return;
+      }
+      long startTime = System.currentTimeMillis();
+      long endTime = startTime + _eventBatchLingerMillis;
+      long remainingMillis = _eventBatchLingerMillis;
+      while (remainingMillis > 0) {
+         _eventQueue.awaitNextEvent(remainingMillis);
+         if (_eventQueue.hasUrgentEvent()) {
+            _eventBatchStats.recordUrgentDrain();
+            break;
          }
+         if (_eventQueue.size() >= _eventBatchHotQueueSize) {
+            _eventBatchStats.recordHotDrain();
+            break;
+         }
+         remainingMillis = endTime - System.currentTimeMillis();
       }
-      return clusterId;
+      _eventBatchStats.recordLinger(System.currentTimeMillis() - startTime);
    }
 
-   /* TODO: Note that currently, this method cannot deal with a clusterScaleEvent with just a hostId
-    * We should be able to deal with this at some point - ie: general host contention impacts multiple clusters */
-   private String completeClusterScaleEventDetails(AbstractClusterScaleEvent event) {
-      String clusterId = event.getClusterId();
+   /* Only called by the VHM main thread */
+   private void logEventBatchStatisticsIfDue() {
+      long now = System.currentTimeMillis();
+      if (now > (_lastEventBatchStatsLogTime + EVENT_BATCH_STATS_LOG_INTERVAL_MILLIS)) {
+         _lastEventBatchStatsLogTime = now;
+         _log.fine("VHM event batch statistics: "+_eventBatchStats);
+         _log.fine("VHM event queue statistics: "+_eventQueue+", enqueue rates: "+_eventQueue.describeEnqueueRates());
+         if (_scaleEventShards != null) {
+            _log.fine("VHM scale event shard statistics: "+_scaleEventShards);
+         }
+         _log.fine("VHM cluster folder resolver statistics: "+_clusterFolderResolver);
+         _log.fine("VHM execution strategy statistics: "+_executionStrategy);
+         if (_vcActions instanceof PowerOperationAdmissionControl) {
+            _log.fine("VHM power operation admission statistics: "+_vcActions);
+         }
+      }
+   }
+
+   EventBatchStatistics getEventBatchStatistics() {
+      return _eventBatchStats;
+   }
+
+   BoundedEventQueue getEventQueue() {
+      return _eventQueue;
+   }
 
-      if ((clusterId == null) && (event instanceof SerengetiLimitInstruction)) {
-         String clusterFolderName = ((SerengetiLimitInstruction)event).getClusterFolderName();
-         if (clusterFolderName != null) {
-            clusterId = getClusterIdForVCFolder(clusterFolderName);
+   ClusterScaleEventShards getScaleEventShards() {
+      return _scaleEventShards;
+   }
+
+   public NotificationEvent getEventPending() {
+      return _eventQueue.peek();
+   }
+
+   /* Called by the cluster folder resolver once it has listed the VMs in the folder */
+   private String associateFolderWithClusterFromVMs(final String folderName, final List<String> vmsInFolder) {
+      /* This updates ClusterMap, so must be done in the write lock for readers to see it */
+      return (String)_clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+         @Override
+         public Object call() throws Exception {
+            String result = _clusterMap.getClusterIdFromVMs(vmsInFolder);
+            if (result != null) {
+               _clusterMap.associateFolderWithCluster(result, folderName);
+            }
+            return result;
          }
+      });
+   }
+
+   /* Sets the clusterId of an instruction which only has a folder name if it is cached or known to ClusterMap
+    * Otherwise the folder is resolved from VC asynchronously, so that the calling thread never blocks on VC, and true is returned.
+    * The instruction is put back on the event queue once its clusterId is known */
+   private boolean resolveClusterFolderAsynchronously(SerengetiLimitInstruction instruction) {
+      final String clusterFolderName = instruction.getClusterFolderName();
+      if ((instruction.getClusterId() != null) || (clusterFolderName == null)) {
+         return false;
       }
+      String clusterId = _clusterFolderResolver.getCachedClusterId(clusterFolderName);
+      if (clusterId == null) {
+         /* ClusterMap may be being updated by the main thread if this is called by a scale event shard */
+         ClusterMap clusterMap = _clusterMapAccess.lockClusterMap();
+         try {
+            clusterId = clusterMap.getClusterIdForFolder(clusterFolderName);
+         } finally {
+            _clusterMapAccess.unlockClusterMap(clusterMap);
+         }
+         _clusterFolderResolver.cacheClusterId(clusterFolderName, clusterId);
+      }
+      if (clusterId == null) {
+         _clusterFolderResolver.resolve(instruction);
+         return true;
+      }
+      instruction.setClusterId(clusterId);
+      return false;
+   }
+
+   /* TODO: Note that currently, this method cannot deal with a clusterScaleEvent with just a hostId
+    * We should be able to deal with this at some point - ie: general host contention impacts multiple clusters */
+   private String completeClusterScaleEventDetails(final AbstractClusterScaleEvent event) {
+      String clusterId = event.getClusterId();
 
       if (clusterId == null) {
-         /* Find the clusterId from the VM */
-         String hostId = event.getHostId();
-         String vmId = event.getVmId();
-         /* Find the host if it has not been provided */
-         if (hostId == null) {
-            if (vmId != null) {
-               hostId = _clusterMap.getHostIdForVm(vmId);
-               event.setHostId(hostId);
-            }
+         /* ClusterMap may be being updated by the main thread if this is called by a scale event shard */
+         ClusterMap clusterMap = _clusterMapAccess.lockClusterMap();
+         try {
+            clusterId = getClusterIdFromScaleEventVM(clusterMap, event);
+         } finally {
+            _clusterMapAccess.unlockClusterMap(clusterMap);
          }
-         if (vmId != null) {
-            clusterId = _clusterMap.getClusterIdForVm(vmId);
-         } else {
-            _log.warning("<%C"+event.getClusterId()+"%C>: no usable data from ClusterScaleEvent (" +
-                  event.getVmId() + "," + event.getHostId() + "," + event.getClusterId() + ")");
-            if (event instanceof SerengetiLimitInstruction) {
-               SerengetiLimitInstruction sEvent = (SerengetiLimitInstruction)event;
-               _log.warning("<%C"+sEvent.getClusterFolderName()+"%C>: unusable scale event is a serengeti limit instruction");
-            }
-            _clusterMap.dumpState(Level.WARNING);
+         if ((clusterId == null) && (event.getVmId() == null)) {
+            /* The live ClusterMap is dumped in the write lock, so that it cannot change while it is being logged */
+            _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+               @Override
+               public Object call() throws Exception {
+                  _clusterMap.dumpState(Level.WARNING);
+                  return null;
+               }
+            });
          }
       }
 
       event.setClusterId(clusterId);
       return clusterId;
    }
+
+   /* Find the clusterId from the VM. Must be called holding the ClusterMap read lock */
+   private String getClusterIdFromScaleEventVM(ClusterMap clusterMap, AbstractClusterScaleEvent event) {
+      String clusterId = null;
+      String hostId = event.getHostId();
+      String vmId = event.getVmId();
+      /* Find the host if it has not been provided */
+      if (hostId == null) {
+         if (vmId != null) {
+            hostId = clusterMap.getHostIdForVm(vmId);
+            event.setHostId(hostId);
+         }
+      }
+      if (vmId != null) {
+         clusterId = clusterMap.getClusterIdForVm(vmId);
+      } else {
+         _log.warning("<%C"+event.getClusterId()+"%C>: no usable data from ClusterScaleEvent (" +
+               event.getVmId() + "," + event.getHostId() + "," + event.getClusterId() + ")");
+         if (event instanceof SerengetiLimitInstruction) {
+            SerengetiLimitInstruction sEvent = (SerengetiLimitInstruction)event;
+            _log.warning("<%C"+sEvent.getClusterFolderName()+"%C>: unusable scale event is a serengeti limit instruction");
+         }
+      }
+      return clusterId;
+   }
 
    private void updateOrCreateClusterScaleEventSet(String clusterId, ClusterScaleEvent newEvent,
          Map<String, Set<ClusterScaleEvent>> clusterScaleEventMap) {
@@ -374,6 +738,9 @@ public class VHM implements EventConsumer {
       if (clusterScaleEventMap != null) {
          for (NotificationEvent event : events) {
             if (event instanceof AbstractClusterScaleEvent) {
+               if ((event instanceof SerengetiLimitInstruction) && resolveClusterFolderAsynchronously((SerengetiLimitInstruction)event)) {
+                  continue;
+               }
                /* Derive the cluster ID and other details if the event does not already have it */
                String clusterId = completeClusterScaleEventDetails((AbstractClusterScaleEvent)event);
                if (clusterId != null) {
@@ -507,6 +874,17 @@ public class VHM implements EventConsumer {
          /* ClusterMap will process the event and may add an implied scale event (see ExtraInfoToClusterMapper) */
          String clusterId = _clusterMap.handleClusterEvent(event, impliedScaleEventsForCluster);
          if (clusterId != null) {
+            updateClusterFolderCache(event, clusterId);
+
+            /* The cluster may now be complete, so any events held for it are handled along with the implied scale events */
+            Set<ClusterScaleEvent> heldEvents = takeEventsForIncompleteCluster(clusterId);
+            if (heldEvents != null) {
+               if ((event instanceof VmRemovedFromClusterEvent) && !isClusterKnown(clusterId)) {
+                  dropEventsForCluster(clusterId, heldEvents, "cluster has been removed");
+               } else {
+                  impliedScaleEventsForCluster.addAll(heldEvents);
+               }
+            }
 
             /* If there are new scale events, create or update the Set in the impliedScaleEventsMap */
             if (impliedScaleEventsForCluster.size() > 0) {
@@ -521,6 +899,113 @@ public class VHM implements EventConsumer {
          }
       }
    }
+
+   /* New clusters are added to the folder cache and any cached folders for a cluster are invalidated when a VM is removed from it */
+   private void updateClusterFolderCache(ClusterStateChangeEvent event, String clusterId) {
+      if (event instanceof NewMasterVMEvent) {
+         SerengetiClusterConstantData clusterConstantData = ((NewMasterVMEvent)event).getClusterConstantData();
+         if (clusterConstantData != null) {
+            _clusterFolderResolver.cacheClusterId(clusterConstantData._serengetiFolder, clusterId);
+         }
+      } else if (event instanceof VmRemovedFromClusterEvent) {
+         _clusterFolderResolver.invalidateCluster(clusterId);
+      }
+   }
+
+   private void holdEventsForIncompleteCluster(String clusterId, Set<ClusterScaleEvent> events) {
+      synchronized(_eventsForIncompleteClusters) {
+         Set<ClusterScaleEvent> heldEvents = _eventsForIncompleteClusters.get(clusterId);
+         if (heldEvents == null) {
+            heldEvents = new LinkedHashSet<ClusterScaleEvent>();
+            _eventsForIncompleteClusters.put(clusterId, heldEvents);
+         }
+         heldEvents.addAll(events);
+      }
+   }
+
+   /* Returns null if there are no events held for the cluster */
+   private Set<ClusterScaleEvent> takeEventsForIncompleteCluster(String clusterId) {
+      synchronized(_eventsForIncompleteClusters) {
+         return _eventsForIncompleteClusters.remove(clusterId);
+      }
+   }
+
+   /* Must be called in the ClusterMap write lock */
+   private boolean isClusterKnown(String clusterId) {
+      String[] clusterIds = _clusterMap.getAllKnownClusterIds();
+      return (clusterIds != null) && Arrays.asList(clusterIds).contains(clusterId);
+   }
+
+   private boolean hasHeldEvents() {
+      synchronized(_eventsForIncompleteClusters) {
+         return !_eventsForIncompleteClusters.isEmpty();
+      }
+   }
+
+   /* Events for a cluster which will never be handled are dropped. Serengeti is told, so that it does not wait for a reply forever */
+   private void dropEventsForCluster(String clusterId, Collection<ClusterScaleEvent> events, String reason) {
+      _log.warning("<%C"+clusterId+"%C>: "+reason+". Dumping "+events.size()+" queued events for it");
+      for (ClusterScaleEvent event : events) {
+         if (event instanceof SerengetiLimitInstruction) {
+            ((SerengetiLimitInstruction)event).reportError("Cluster "+clusterId+" is not complete - "+reason);
+         }
+      }
+   }
+
+   /* Held events are normally released by the next state change for their cluster. If that never arrives, they are checked
+    * here, so that they are dropped once the grace period is over or the cluster has been removed. Only called by the VHM main thread */
+   private void checkHeldEventsIfDue() {
+      long now = System.currentTimeMillis();
+      if (now < _nextHeldEventsCheckTime) {
+         return;
+      }
+      _nextHeldEventsCheckTime = now + HELD_EVENTS_CHECK_MILLIS;
+      final Set<String> clusterIds;
+      synchronized(_eventsForIncompleteClusters) {
+         if (_eventsForIncompleteClusters.isEmpty()) {
+            return;
+         }
+         clusterIds = new HashSet<String>(_eventsForIncompleteClusters.keySet());
+      }
+      /* Validating completeness updates ClusterMap, so it is done in the write lock */
+      @SuppressWarnings("unchecked")
+      Map<String, Boolean> completeness = (Map<String, Boolean>)_clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+         @Override
+         public Object call() throws Exception {
+            Map<String, Boolean> result = new HashMap<String, Boolean>();
+            for (String clusterId : clusterIds) {
+               result.put(clusterId, _clusterMap.validateClusterCompleteness(clusterId, CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS));
+            }
+            return result;
+         }
+      });
+      List<ClusterScaleEvent> completedClusterEvents = new ArrayList<ClusterScaleEvent>();
+      for (String clusterId : clusterIds) {
+         Boolean clusterComplete = completeness.get(clusterId);
+         if ((clusterComplete != null) && !clusterComplete) {
+            continue;
+         }
+         Set<ClusterScaleEvent> heldEvents = takeEventsForIncompleteCluster(clusterId);
+         if (heldEvents == null) {
+            continue;
+         }
+         if (clusterComplete == null) {
+            dropEventsForCluster(clusterId, heldEvents, "cluster was removed or has been incomplete for longer than the grace period of "
+                  +CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS+"ms");
+         } else {
+            /* The cluster is complete, so its events go around again */
+            completedClusterEvents.addAll(heldEvents);
+         }
+      }
+      if (!completedClusterEvents.isEmpty()) {
+         requeueEvents(completedClusterEvents);
+      }
+   }
+
+   private void requeueScaleEvents(Collection<? extends ClusterScaleEvent> events, List<ClusterScaleEvent> toRequeue) {
+      _eventBatchStats.recordRequeues(events.size());
+      toRequeue.addAll(events);
+   }
 
    /* When events are polled, this is the first method that gets the opportunity to triage them */
    private void handleEvents(Set<NotificationEvent> events) {
@@ -567,13 +1052,23 @@ public class VHM implements EventConsumer {
                return null;
             }
          });
+
+         /* The updates are now visible to readers, so wake up anything waiting on a change of VM state */
+         _vmStateSubscriptions.notifyVMsUpdated(_clusterMap.getAndClearUpdatedVMs(), _clusterMap);
       }
 
+      if (_scaleEventShards != null) {
+         routeScaleEventsToShards(newAndRequeuedEvents, clusterScaleEvents);
+         return;
+      }
+
       getQueuedScaleEventsForCluster(newAndRequeuedEvents, clusterScaleEvents);
+      addDeferredEventsForClusters(_deferredEvents, clusterScaleEvents);
 
       /* If there are scale events to handle, we need to invoke the scale strategies for each cluster
        * The ordering in which we process the clusters doesn't matter as they will be done concurrently */
       if (clusterScaleEvents.size() > 0) {
+         List<ClusterScaleEvent> toRequeue = new ArrayList<ClusterScaleEvent>();
          for (String clusterId : clusterScaleEvents.keySet()) {
             if (clusterId == null) {
                /* This should not happen - defensive coding */
@@ -583,54 +1078,145 @@ public class VHM implements EventConsumer {
             if (unconsolidatedEvents == null) {
                continue;
             }
-            /* If ClusterMap has not yet been fully updated with information about a cluster, defer this operation */
-            Boolean clusterCompleteness = _clusterMap.validateClusterCompleteness(clusterId, CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS);
-            if (clusterCompleteness != null) {
-               if (!clusterCompleteness) {
-                  if (unconsolidatedEvents.size() > 0) {
-                     _log.info("ClusterInfo not yet complete. Putting event collection back on queue for cluster <%C"+clusterId);
-                     placeEventCollectionOnQueue(new ArrayList<ClusterScaleEvent>(unconsolidatedEvents));
+            handleScaleEventsForCluster(clusterId, unconsolidatedEvents, toRequeue);
+         }
+         if (!toRequeue.isEmpty()) {
+            requeueEvents(toRequeue);
+         }
+      }
+   }
+
+   /* Scale events are routed by clusterId where it is known. Otherwise the folder name or VM is used, in which case the shard which
+    * derives the clusterId will forward the event on to the shard which owns the cluster.
+    * Only cheap lookups are done here, so that the main thread never blocks on VC */
+   private void routeScaleEventsToShards(Set<NotificationEvent> events, Map<String, Set<ClusterScaleEvent>> impliedScaleEvents) {
+      Map<String, List<NotificationEvent>> eventsByRoutingKey = new LinkedHashMap<String, List<NotificationEvent>>();
+      for (String clusterId : impliedScaleEvents.keySet()) {
+         for (ClusterScaleEvent event : impliedScaleEvents.get(clusterId)) {
+            addEventForRoutingKey(clusterId, event, eventsByRoutingKey);
+         }
+      }
+      /* The shards may be updating ClusterMap while the events are routed */
+      ClusterMap clusterMap = _clusterMapAccess.lockClusterMap();
+      try {
+         routeUnresolvedScaleEvents(clusterMap, events, eventsByRoutingKey);
+      } finally {
+         _clusterMapAccess.unlockClusterMap(clusterMap);
+      }
+      /* Events that were polled together are handed to each shard together, so that they can be consolidated */
+      _scaleEventShards.routeEvents(eventsByRoutingKey);
+   }
+
+   /* Must be called holding the ClusterMap read lock */
+   private void routeUnresolvedScaleEvents(ClusterMap clusterMap, Set<NotificationEvent> events, Map<String, List<NotificationEvent>> eventsByRoutingKey) {
+      for (NotificationEvent event : events) {
+         if (event instanceof AbstractClusterScaleEvent) {
+            AbstractClusterScaleEvent scaleEvent = (AbstractClusterScaleEvent)event;
+            String routingKey = scaleEvent.getClusterId();
+            if ((routingKey == null) && (event instanceof SerengetiLimitInstruction)) {
+               String clusterFolderName = ((SerengetiLimitInstruction)event).getClusterFolderName();
+               if (clusterFolderName != null) {
+                  routingKey = clusterMap.getClusterIdForFolder(clusterFolderName);
+                  if (routingKey == null) {
+                     routingKey = clusterFolderName;
                   }
-                  continue;
                }
-            } else {
-               _log.warning("<%C"+clusterId+"%C>: cluster has been incomplete for longer than the grace period of "
-                                                      +CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS+"ms. Dumping queued events for it");
-               continue;
-            }
-
-            /* Note that any update to the scale strategy will already have been processed above in handleClusterStateChangeEvents */
-            ScaleStrategy scaleStrategy = _clusterMap.getScaleStrategyForCluster(clusterId);
-            if (scaleStrategy == null) {
-               _log.severe("<%C"+clusterId+"%C>: there is no scaleStrategy set for cluster");
-               continue;
-            }
-
-            _log.finer("Using "+scaleStrategy.getKey()+" scale strategy to filter events for cluster "+clusterId);
-
-            /* UnconsolidatedEvents guaranteed to be non-null and consolidatedEvents should be a trimmed down version of the same collection */
-            Set<ClusterScaleEvent> consolidatedEvents = consolidateClusterEvents(scaleStrategy, unconsolidatedEvents);
-            if (consolidatedEvents.size() > 0) {
-               /* If there is an instruction from Serengeti to switch to manual, strip out that one event and dump the others */
-               SerengetiLimitInstruction switchToManualEvent = pendingBlockingSwitchToManual(consolidatedEvents);
-               if (switchToManualEvent != null) {
-                  /* If Serengeti has made the necessary change to extraInfo AND any other scaling has completed, inform completion */
-                  boolean extraInfoChanged = _clusterMap.getScaleStrategyKey(clusterId).equals(ManualScaleStrategy.MANUAL_SCALE_STRATEGY_KEY);
-                  boolean scalingCompleted = !_executionStrategy.isClusterScaleInProgress(clusterId);
-                  if (extraInfoChanged && scalingCompleted) {
-                     _log.info("Switch to manual scale strategy for cluster <%C"+clusterId+"%C> is now complete. Reporting back to Serengeti");
-                     switchToManualEvent.reportCompletion();
-                  } else {
-                     /* Continue to block Serengeti CLI by putting the event back on the queue */
-                     placeEventCollectionOnQueue(Arrays.asList(new ClusterScaleEvent[]{switchToManualEvent}));
-                  }
-               /* Call out to the execution strategy to handle the scale events for the cluster - non blocking */
-               } else if (!_executionStrategy.handleClusterScaleEvents(clusterId, scaleStrategy, consolidatedEvents)) {
-                  /* If we couldn't schedule handling of the events, put them back on the queue in their un-consolidated form */
-                  _log.finest("Putting event collection back onto VHM queue - size="+unconsolidatedEvents.size());
-                  placeEventCollectionOnQueue(new ArrayList<ClusterScaleEvent>(unconsolidatedEvents));
+            }
+            if ((routingKey == null) && (scaleEvent.getVmId() != null)) {
+               routingKey = clusterMap.getClusterIdForVm(scaleEvent.getVmId());
+               if (routingKey == null) {
+                  routingKey = scaleEvent.getVmId();
                }
             }
+            addEventForRoutingKey(routingKey, event, eventsByRoutingKey);
+         }
+      }
+   }
+
+   private void addEventForRoutingKey(String routingKey, NotificationEvent event, Map<String, List<NotificationEvent>> eventsByRoutingKey) {
+      List<NotificationEvent> eventsForRoutingKey = eventsByRoutingKey.get(routingKey);
+      if (eventsForRoutingKey == null) {
+         eventsForRoutingKey = new ArrayList<NotificationEvent>();
+         eventsByRoutingKey.put(routingKey, eventsForRoutingKey);
+      }
+      eventsForRoutingKey.add(event);
+   }
+
+   /* Consolidates the scale events for a cluster and passes them to the execution strategy
+    * This is called by the main thread or by the scale event shard which owns the cluster. Events that cannot be handled yet are added to toRequeue */
+   private void handleScaleEventsForCluster(final String clusterId, Set<ClusterScaleEvent> unconsolidatedEvents, List<ClusterScaleEvent> toRequeue) {
+      /* Events held while the cluster was incomplete are consolidated with the new ones */
+      Set<ClusterScaleEvent> heldEvents = takeEventsForIncompleteCluster(clusterId);
+      if (heldEvents != null) {
+         unconsolidatedEvents.addAll(heldEvents);
+      }
+
+      /* If ClusterMap has not yet been fully updated with information about a cluster, defer this operation
+       * Validating completeness updates ClusterMap, so it is done in the write lock. The scale strategy is looked up at the same time */
+      final ScaleStrategy[] scaleStrategyHolder = new ScaleStrategy[1];
+      Boolean clusterCompleteness = (Boolean)_clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+         @Override
+         public Object call() throws Exception {
+            Boolean result = _clusterMap.validateClusterCompleteness(clusterId, CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS);
+            if ((result != null) && result) {
+               /* Note that any update to the scale strategy will already have been processed in handleClusterStateChangeEvents */
+               scaleStrategyHolder[0] = _clusterMap.getScaleStrategyForCluster(clusterId);
+            }
+            return result;
+         }
+      });
+      if (clusterCompleteness != null) {
+         if (!clusterCompleteness) {
+            if (unconsolidatedEvents.size() > 0) {
+               /* Rather than going around the VHM queue until the cluster is complete, the events wait for its next state change */
+               _log.info("ClusterInfo not yet complete. Holding event collection until the next update for cluster <%C"+clusterId);
+               holdEventsForIncompleteCluster(clusterId, unconsolidatedEvents);
+            }
+            return;
+         }
+      } else {
+         dropEventsForCluster(clusterId, unconsolidatedEvents, "cluster was removed or has been incomplete for longer than the grace period of "
+                                                +CLUSTER_COMPLETENESS_GRACE_TIME_MILLIS+"ms");
+         return;
+      }
+
+      ScaleStrategy scaleStrategy = scaleStrategyHolder[0];
+      if (scaleStrategy == null) {
+         _log.severe("<%C"+clusterId+"%C>: there is no scaleStrategy set for cluster");
+         return;
+      }
+
+      _log.finer("Using "+scaleStrategy.getKey()+" scale strategy to filter events for cluster "+clusterId);
+
+      /* UnconsolidatedEvents guaranteed to be non-null and consolidatedEvents should be a trimmed down version of the same collection */
+      Set<ClusterScaleEvent> consolidatedEvents = consolidateClusterEvents(scaleStrategy, unconsolidatedEvents);
+      if (consolidatedEvents.size() > 0) {
+         /* If there is an instruction from Serengeti to switch to manual, strip out that one event and dump the others */
+         SerengetiLimitInstruction switchToManualEvent = pendingBlockingSwitchToManual(consolidatedEvents);
+         if (switchToManualEvent != null) {
+            /* If Serengeti has made the necessary change to extraInfo AND any other scaling has completed, inform completion */
+            String scaleStrategyKey;
+            ClusterMap clusterMap = _clusterMapAccess.lockClusterMap();
+            try {
+               scaleStrategyKey = clusterMap.getScaleStrategyKey(clusterId);
+            } finally {
+               _clusterMapAccess.unlockClusterMap(clusterMap);
+            }
+            boolean extraInfoChanged = ManualScaleStrategy.MANUAL_SCALE_STRATEGY_KEY.equals(scaleStrategyKey);
+            boolean scalingCompleted = !_executionStrategy.isClusterScaleInProgress(clusterId);
+            if (extraInfoChanged && scalingCompleted) {
+               _log.info("Switch to manual scale strategy for cluster <%C"+clusterId+"%C> is now complete. Reporting back to Serengeti");
+               switchToManualEvent.reportCompletion();
+            } else {
+               /* Continue to block Serengeti CLI by putting the event back on the queue */
+               requeueScaleEvents(Collections.singleton(switchToManualEvent), toRequeue);
+            }
+         /* Call out to the execution strategy to handle the scale events for the cluster - non blocking */
+         /* If the cluster is already scaling, the execution strategy holds on to the events until it has finished */
+         } else if (!_executionStrategy.handleClusterScaleEvents(clusterId, scaleStrategy, consolidatedEvents)) {
+            /* If we couldn't schedule handling of the events, put them back on the queue in their un-consolidated form */
+            _log.finest("Putting event collection back onto VHM queue - size="+unconsolidatedEvents.size());
+            requeueScaleEvents(unconsolidatedEvents, toRequeue);
          }
       }
    }
@@ -642,6 +1228,9 @@ public class VHM implements EventConsumer {
          public void run() {
             try {
                _running = true;
+               if (_scaleEventShards != null) {
+                  _scaleEventShards.start();
+               }
                while (_running) {
                   Set<NotificationEvent> events = pollForEvents();
                   if (checkForProducerReset(events)) {
@@ -651,12 +1240,14 @@ public class VHM implements EventConsumer {
                      }
                   }
                   handleEvents(events);
-                  Thread.sleep(500);
                }
             } catch (Throwable e) {
                _log.log(Level.WARNING, "VHM stopping due to exception ", e);
             }
             _log.info("VHM stopping...");
+            if (_scaleEventShards != null) {
+               _scaleEventShards.stop();
+            }
             _stopped = true;
          }}, "VHM_Main_Thread");
       t.start();
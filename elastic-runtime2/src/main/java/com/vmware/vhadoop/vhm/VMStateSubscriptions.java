@@ -0,0 +1,217 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+import com.vmware.vhadoop.api.vhm.ClusterMapReader.ClusterMapAccess;
+
+/* Allows ClusterMapReaders to wait for a change in the state of a set of VMs without polling ClusterMap
+ * A reader subscribes with a predicate and a set of VM ids and gets back a Future which completes once the predicate holds for all of them.
+ * The VHM main thread calls notifyVMsUpdated once updates to ClusterMap are visible to readers, at which point subscriptions
+ *   for the updated VMs are re-evaluated. Subscriptions are evaluated once when they are created, so a change that has already
+ *   been applied is never missed */
+public class VMStateSubscriptions {
+   private static final Logger _log = Logger.getLogger(VMStateSubscriptions.class.getName());
+
+   /* Subscriptions indexed by each of the VM ids they are interested in */
+   private final Map<String, Set<Subscription>> _subscriptionsByVmId = new HashMap<String, Set<Subscription>>();
+
+   public interface VMStatePredicate {
+      boolean isSatisfied(ClusterMap clusterMap, String vmId);
+   }
+
+   public static final VMStatePredicate POWERED_ON = new VMStatePredicate() {
+      @Override
+      public boolean isSatisfied(ClusterMap clusterMap, String vmId) {
+         return Boolean.TRUE.equals(clusterMap.checkPowerStateOfVm(vmId, true));
+      }
+   };
+
+   public static final VMStatePredicate POWERED_OFF = new VMStatePredicate() {
+      @Override
+      public boolean isSatisfied(ClusterMap clusterMap, String vmId) {
+         return Boolean.TRUE.equals(clusterMap.checkPowerStateOfVm(vmId, false));
+      }
+   };
+
+   public static final VMStatePredicate HAS_DNS_NAME = new VMStatePredicate() {
+      @Override
+      public boolean isSatisfied(ClusterMap clusterMap, String vmId) {
+         return clusterMap.getDnsNameForVM(vmId) != null;
+      }
+   };
+
+   public static VMStatePredicate getPowerStatePredicate(boolean powerState) {
+      return powerState ? POWERED_ON : POWERED_OFF;
+   }
+
+   /* Completes with true when the predicate holds for all of the VMs. get() never returns false - cancellation or timeout is an exception */
+   class Subscription implements Future<Boolean> {
+      private final Set<String> _vmIds;
+      private final VMStatePredicate _predicate;
+      private final CountDownLatch _latch = new CountDownLatch(1);
+      private volatile boolean _satisfied;
+      private volatile boolean _cancelled;
+
+      Subscription(Set<String> vmIds, VMStatePredicate predicate) {
+         _vmIds = Collections.unmodifiableSet(new HashSet<String>(vmIds));
+         _predicate = predicate;
+      }
+
+      boolean evaluate(ClusterMap clusterMap) {
+         for (String vmId : _vmIds) {
+            if (!_predicate.isSatisfied(clusterMap, vmId)) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      void complete() {
+         _satisfied = true;
+         _latch.countDown();
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+         if (isDone()) {
+            return false;
+         }
+         _cancelled = true;
+         removeSubscription(this);
+         _latch.countDown();
+         return true;
+      }
+
+      @Override
+      public boolean isCancelled() {
+         return _cancelled;
+      }
+
+      @Override
+      public boolean isDone() {
+         return _satisfied || _cancelled;
+      }
+
+      @Override
+      public Boolean get() throws InterruptedException {
+         _latch.await();
+         return _satisfied;
+      }
+
+      @Override
+      public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+         if (!_latch.await(timeout, unit)) {
+            throw new TimeoutException("Timed out waiting for state change of "+_vmIds.size()+" VM(s)");
+         }
+         return _satisfied;
+      }
+   }
+
+   /* The subscription is added before ClusterMap is checked, so any update which the check misses will be notified */
+   public Future<Boolean> subscribe(Set<String> vmIds, VMStatePredicate predicate, ClusterMapAccess clusterMapAccess) {
+      Subscription subscription = new Subscription(vmIds, predicate);
+      addSubscription(subscription);
+      boolean satisfied = false;
+      ClusterMap clusterMap = null;
+      try {
+         clusterMap = clusterMapAccess.lockClusterMap();
+         if (clusterMap != null) {
+            satisfied = subscription.evaluate(clusterMap);
+         }
+      } finally {
+         clusterMapAccess.unlockClusterMap(clusterMap);
+      }
+      if (satisfied) {
+         removeSubscription(subscription);
+         subscription.complete();
+      }
+      return subscription;
+   }
+
+   private void addSubscription(Subscription subscription) {
+      synchronized(_subscriptionsByVmId) {
+         for (String vmId : subscription._vmIds) {
+            Set<Subscription> subscriptions = _subscriptionsByVmId.get(vmId);
+            if (subscriptions == null) {
+               subscriptions = new HashSet<Subscription>();
+               _subscriptionsByVmId.put(vmId, subscriptions);
+            }
+            subscriptions.add(subscription);
+         }
+      }
+   }
+
+   private void removeSubscription(Subscription subscription) {
+      synchronized(_subscriptionsByVmId) {
+         for (String vmId : subscription._vmIds) {
+            Set<Subscription> subscriptions = _subscriptionsByVmId.get(vmId);
+            if ((subscriptions != null) && subscriptions.remove(subscription) && subscriptions.isEmpty()) {
+               _subscriptionsByVmId.remove(vmId);
+            }
+         }
+      }
+   }
+
+   /* Only called by the VHM main thread, which is the only writer of clusterMap, so it is safe to read it here without a lock */
+   void notifyVMsUpdated(Set<String> updatedVmIds, ClusterMap clusterMap) {
+      Set<Subscription> toEvaluate = new LinkedHashSet<Subscription>();
+      synchronized(_subscriptionsByVmId) {
+         if (_subscriptionsByVmId.isEmpty()) {
+            return;
+         }
+         for (String vmId : updatedVmIds) {
+            Set<Subscription> subscriptions = _subscriptionsByVmId.get(vmId);
+            if (subscriptions != null) {
+               toEvaluate.addAll(subscriptions);
+            }
+         }
+      }
+      List<Subscription> satisfied = new ArrayList<Subscription>();
+      for (Subscription subscription : toEvaluate) {
+         if (!subscription.isDone() && subscription.evaluate(clusterMap)) {
+            satisfied.add(subscription);
+         }
+      }
+      for (Subscription subscription : satisfied) {
+         removeSubscription(subscription);
+         subscription.complete();
+      }
+      if (!satisfied.isEmpty()) {
+         _log.finer("Completed "+satisfied.size()+" VM state subscription(s)");
+      }
+   }
+
+   int getNumSubscribedVMs() {
+      synchronized(_subscriptionsByVmId) {
+         return _subscriptionsByVmId.size();
+      }
+   }
+}
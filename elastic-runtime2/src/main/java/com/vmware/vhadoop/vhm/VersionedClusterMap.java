@@ -0,0 +1,28 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+
+/* A ClusterMap that can produce immutable copies of itself for SnapshotClusterMapAccess */
+interface VersionedClusterMap extends ClusterMap {
+
+   /* Changes whenever the content of the ClusterMap changes */
+   long getVersion();
+
+   /* Must only be called by the writer. The copy returned must never change */
+   ClusterMap createSnapshot();
+}
@@ -0,0 +1,75 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/* Runs each ClusterScaleOperation on its own virtual thread
+ * Scale operations spend nearly all of their time blocked on SSH, VC tasks and waits for VM state changes, so giving each one a
+ *   virtual thread means that any number of clusters can be scaled at once without a platform thread for each. Load on vCenter
+ *   is still limited by PowerOperationAdmissionControl.
+ * Virtual threads need a Java 21 runtime, so the executor is looked up reflectively and isSupported() must be checked first.
+ * Each operation gets a new thread, so the ThreadLocalCompoundStatus initialized by ClusterScaleOperation.call() can never be
+ *   seen by another operation and is discarded with the thread.
+ * A virtual thread which blocks inside a synchronized block pins its carrier thread. Where scale operations wait on each other,
+ *   for a pooled VC client or for an update to an excludes file, they use j.u.c locks, which do not pin. Otherwise monitors are
+ *   only held briefly, apart from the first power operation on a new VC connection, which creates the task monitor holding one.
+ *   MultipleReaderSingleWriterClusterMapAccess readers wait on a monitor while a write is in progress, so VHM warns if the two
+ *   are used together */
+public class VirtualThreadExecutionStrategy extends ThreadPoolExecutionStrategy {
+   private static final Logger _log = Logger.getLogger(VirtualThreadExecutionStrategy.class.getName());
+
+   private static final String THREAD_NAME_PREFIX = "Cluster_VThread_";
+
+   public VirtualThreadExecutionStrategy() {
+      super(createVirtualThreadExecutor());
+      _log.info("Scaling clusters on virtual threads");
+   }
+
+   public static boolean isSupported() {
+      try {
+         createVirtualThreadFactory();
+         return true;
+      } catch (Exception e) {
+         _log.log(Level.FINE, "VHM: virtual threads are not supported by this runtime", e);
+         return false;
+      }
+   }
+
+   /* Equivalent to Thread.ofVirtual().name(THREAD_NAME_PREFIX, 0).factory() */
+   private static ThreadFactory createVirtualThreadFactory() throws Exception {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      builder = builderType.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX, 0L);
+      return (ThreadFactory)builderType.getMethod("factory").invoke(builder);
+   }
+
+   /* Equivalent to Executors.newThreadPerTaskExecutor(createVirtualThreadFactory()) */
+   private static ExecutorService createVirtualThreadExecutor() {
+      try {
+         Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+         return (ExecutorService)newThreadPerTaskExecutor.invoke(null, createVirtualThreadFactory());
+      } catch (Exception e) {
+         throw new UnsupportedOperationException("Virtual threads are not supported by this runtime", e);
+      }
+   }
+}
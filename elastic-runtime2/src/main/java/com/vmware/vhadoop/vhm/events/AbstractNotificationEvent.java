@@ -24,9 +24,14 @@ public abstract class AbstractNotificationEvent implements NotificationEvent {
    private final long _timestampCreated;
    
    public AbstractNotificationEvent(boolean canClearQueue, boolean canBeClearedFromQueue) {
+      this(canClearQueue, canBeClearedFromQueue, System.currentTimeMillis());
+   }
+
+   /* Allows a merged event to keep the timestamp of the earliest event it represents */
+   protected AbstractNotificationEvent(boolean canClearQueue, boolean canBeClearedFromQueue, long timestampCreated) {
       _canClearQueue = canClearQueue;
       _canBeClearedFromQueue = canBeClearedFromQueue;
-      _timestampCreated = System.currentTimeMillis();
+      _timestampCreated = timestampCreated;
    }
    
    @Override
@@ -61,4 +66,25 @@ public abstract class AbstractNotificationEvent implements NotificationEvent {
    public long getTimestamp() {
       return _timestampCreated;
    }
+
+   @Override
+   public String getEventKey() {
+      return null;
+   }
+
+   @Override
+   public NotificationEvent mergeWith(NotificationEvent later) {
+      return null;
+   }
+
+   /* An event which clears the queue makes earlier events redundant, so there is no point in handling them first */
+   @Override
+   public Priority getPriority() {
+      return _canClearQueue ? Priority.HIGH : Priority.NORMAL;
+   }
+
+   /* Events about a particular VM share this key, so that any one of them stops earlier and later updates from being merged */
+   protected static String getVmEventKey(String vmId) {
+      return (vmId == null) ? null : "VM:"+vmId;
+   }
 }
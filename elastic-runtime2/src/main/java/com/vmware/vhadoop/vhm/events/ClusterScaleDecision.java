@@ -82,4 +82,10 @@ public class ClusterScaleDecision extends AbstractNotificationEvent implements C
    public List<NotificationEvent> getEventsToRequeue() {
       return _eventsToRequeue;
    }
+
+   /* The cluster can't be scaled again until its completion has been handled */
+   @Override
+   public Priority getPriority() {
+      return Priority.HIGH;
+   }
 }
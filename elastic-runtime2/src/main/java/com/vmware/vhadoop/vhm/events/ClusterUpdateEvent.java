@@ -16,6 +16,7 @@
 package com.vmware.vhadoop.vhm.events;
 
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
 
 public class ClusterUpdateEvent extends AbstractNotificationEvent implements ClusterStateChangeEvent {
    private String _vmId;
@@ -26,6 +27,12 @@ public class ClusterUpdateEvent extends AbstractNotificationEvent implements Clu
       _vmId = vmId;
       _clusterVariableData = clusterVariableData;
    }
+
+   private ClusterUpdateEvent(String vmId, SerengetiClusterVariableData clusterVariableData, long timestamp) {
+      super(false, false, timestamp);
+      _vmId = vmId;
+      _clusterVariableData = clusterVariableData;
+   }
    
    public String getVmId() {
       return _vmId;
@@ -34,4 +41,31 @@ public class ClusterUpdateEvent extends AbstractNotificationEvent implements Clu
    public SerengetiClusterVariableData getClusterVariableData() {
       return _clusterVariableData;
    }
+
+   @Override
+   public String getEventKey() {
+      return getVmEventKey(_vmId);
+   }
+
+   @Override
+   public NotificationEvent mergeWith(NotificationEvent later) {
+      if (isSameEventTypeAs(later)) {
+         return new ClusterUpdateEvent(_vmId, mergeClusterVariableData(_clusterVariableData,
+               ((ClusterUpdateEvent)later).getClusterVariableData()), getTimestamp());
+      }
+      return null;
+   }
+
+   /* Fields are deltas, where null means unchanged, so later non-null values override earlier ones */
+   static SerengetiClusterVariableData mergeClusterVariableData(SerengetiClusterVariableData earlier, SerengetiClusterVariableData later) {
+      SerengetiClusterVariableData result = new SerengetiClusterVariableData();
+      for (SerengetiClusterVariableData source : new SerengetiClusterVariableData[]{earlier, later}) {
+         if (source != null) {
+            result._enableAutomation = (source._enableAutomation != null) ? source._enableAutomation : result._enableAutomation;
+            result._minInstances = (source._minInstances != null) ? source._minInstances : result._minInstances;
+            result._jobTrackerPort = (source._jobTrackerPort != null) ? source._jobTrackerPort : result._jobTrackerPort;
+         }
+      }
+      return result;
+   }
 }
@@ -15,6 +15,8 @@
 
 package com.vmware.vhadoop.vhm.events;
 
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+
 public class MasterVmUpdateEvent extends VmUpdateEvent {
    private final SerengetiClusterVariableData _clusterVariableData;
    
@@ -22,8 +24,37 @@ public class MasterVmUpdateEvent extends VmUpdateEvent {
       super(vmId, variableData);
       _clusterVariableData = clusterVariableData;
    }
+
+   private MasterVmUpdateEvent(String vmId, VMVariableData variableData, SerengetiClusterVariableData clusterVariableData, long timestamp) {
+      super(vmId, variableData, timestamp);
+      _clusterVariableData = clusterVariableData;
+   }
    
    public SerengetiClusterVariableData getClusterVariableData() {
       return _clusterVariableData;
    }
+
+   /* The cluster data may change how the cluster is scaled, whatever the VM data contains */
+   @Override
+   public Priority getPriority() {
+      return Priority.NORMAL;
+   }
+
+   /* The cluster update is always applied before the VM update, so a later MasterVmUpdateEvent or VmUpdateEvent can be absorbed
+    * A VmUpdateEvent cannot absorb a later MasterVmUpdateEvent, as that would re-order the later cluster update */
+   @Override
+   public NotificationEvent mergeWith(NotificationEvent later) {
+      if (later instanceof VmUpdateEvent) {
+         VMVariableData mergedVmData = mergeVariableData(getVariableData(), ((VmUpdateEvent)later).getVariableData());
+         if (mergedVmData != null) {
+            SerengetiClusterVariableData mergedClusterData = _clusterVariableData;
+            if (later instanceof MasterVmUpdateEvent) {
+               mergedClusterData = ClusterUpdateEvent.mergeClusterVariableData(_clusterVariableData,
+                     ((MasterVmUpdateEvent)later).getClusterVariableData());
+            }
+            return new MasterVmUpdateEvent(getVmId(), mergedVmData, mergedClusterData, getTimestamp());
+         }
+      }
+      return null;
+   }
 }
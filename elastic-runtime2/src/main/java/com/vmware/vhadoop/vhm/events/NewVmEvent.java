@@ -35,6 +35,12 @@ public class NewVmEvent extends AbstractNotificationEvent implements ClusterStat
       return _vmId;
    }
 
+   /* Not mergeable, but prevents updates to the VM either side of this event being merged */
+   @Override
+   public String getEventKey() {
+      return getVmEventKey(_vmId);
+   }
+
    public String getClusterId() {
       return _clusterId;
    }
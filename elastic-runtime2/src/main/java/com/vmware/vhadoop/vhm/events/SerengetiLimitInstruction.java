@@ -87,6 +87,12 @@ public class SerengetiLimitInstruction extends AbstractClusterScaleEvent {
       return true;         /* We only want to know about the latest queued event */
    }
 
+   /* A user is waiting for the instruction to complete */
+   @Override
+   public Priority getPriority() {
+      return Priority.HIGH;
+   }
+
    /**
     * Describes the instruction
     */
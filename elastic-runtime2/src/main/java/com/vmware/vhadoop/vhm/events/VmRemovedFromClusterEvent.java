@@ -28,4 +28,10 @@ public class VmRemovedFromClusterEvent extends AbstractNotificationEvent impleme
    public String getVmId() {
       return _vmId;
    }
+
+   /* Not mergeable, but prevents updates to the VM either side of this event being merged */
+   @Override
+   public String getEventKey() {
+      return getVmEventKey(_vmId);
+   }
 }
@@ -16,6 +16,7 @@
 package com.vmware.vhadoop.vhm.events;
 
 import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
 
 public class VmUpdateEvent extends AbstractNotificationEvent implements ClusterStateChangeEvent {
    private final String _vmId;
@@ -27,6 +28,12 @@ public class VmUpdateEvent extends AbstractNotificationEvent implements ClusterS
       _variableData = variableData;
    }
 
+   protected VmUpdateEvent(String vmId, VMVariableData variableData, long timestamp) {
+      super(false, false, timestamp);
+      _vmId = vmId;
+      _variableData = variableData;
+   }
+
    public VMVariableData getVariableData() {
       return _variableData;
    }
@@ -34,4 +41,53 @@ public class VmUpdateEvent extends AbstractNotificationEvent implements ClusterS
    public String getVmId() {
       return _vmId;
    }
+
+   @Override
+   public String getEventKey() {
+      return getVmEventKey(_vmId);
+   }
+
+   /* An update which only changes the name or vCPUs of a VM doesn't affect scaling, so it can wait behind other events */
+   @Override
+   public Priority getPriority() {
+      if ((_variableData != null) && (_variableData._powerState == null) && (_variableData._hostMoRef == null)
+            && (_variableData._ipAddr == null) && (_variableData._dnsName == null)) {
+         return Priority.LOW;
+      }
+      return Priority.NORMAL;
+   }
+
+   /* A MasterVmUpdateEvent can absorb a later VmUpdateEvent, as it applies its VM update after its cluster update */
+   @Override
+   public NotificationEvent mergeWith(NotificationEvent later) {
+      if (isSameEventTypeAs(later)) {
+         VMVariableData merged = mergeVariableData(_variableData, ((VmUpdateEvent)later).getVariableData());
+         if (merged != null) {
+            return new VmUpdateEvent(_vmId, merged, getTimestamp());
+         }
+      }
+      return null;
+   }
+
+   /* Fields are deltas, where null means unchanged, so later non-null values override earlier ones
+    * A change of power state is never merged away, as that would hide the transition from ClusterMap
+    * Returns null if the data cannot be merged */
+   static VMVariableData mergeVariableData(VMVariableData earlier, VMVariableData later) {
+      if ((earlier != null) && (later != null) && (earlier._powerState != null) && (later._powerState != null)
+            && !earlier._powerState.equals(later._powerState)) {
+         return null;
+      }
+      VMVariableData result = new VMVariableData();
+      for (VMVariableData source : new VMVariableData[]{earlier, later}) {
+         if (source != null) {
+            result._myName = (source._myName != null) ? source._myName : result._myName;
+            result._vCPUs = (source._vCPUs != null) ? source._vCPUs : result._vCPUs;
+            result._ipAddr = (source._ipAddr != null) ? source._ipAddr : result._ipAddr;
+            result._dnsName = (source._dnsName != null) ? source._dnsName : result._dnsName;
+            result._powerState = (source._powerState != null) ? source._powerState : result._powerState;
+            result._hostMoRef = (source._hostMoRef != null) ? source._hostMoRef : result._hostMoRef;
+         }
+      }
+      return result;
+   }
 }
@@ -0,0 +1,111 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm.hadoop;
+
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives the output of decommissionAndCheckTTs.sh as it is streamed back from the JobTracker.
+ * Each line is parsed as soon as it is complete, so that progress can be reported while the remote
+ * script is still waiting for the task trackers to leave the active list.
+ * 
+ * Not thread-safe: it is written by the thread executing the remote command and read once the command completes.
+ */
+class DecommissionProgressStream extends OutputStream {
+   private static final Logger _log = Logger.getLogger(DecommissionProgressStream.class.getName());
+
+   static final String DECOMMISSION_STATUS_PREFIX = "DECOMMISSION_STATUS:";
+   static final String DECOMMISSIONED_PREFIX = "DECOMMISSIONED:";
+   static final String ACTIVE_TT_PREFIX = "TT:";
+
+   private final String _clusterId;
+   private final Set<String> _targetTTs;
+   private final StringBuilder _currentLine = new StringBuilder();
+   private final Set<String> _decommissionedTTs = new HashSet<String>();
+   private Integer _decommissionStatus;     /* null until the script reports that the excludes have been refreshed */
+   private Set<String> _activeTTs;          /* null until the script reports the active task trackers */
+
+   DecommissionProgressStream(String clusterId, Set<String> targetTTs) {
+      _clusterId = clusterId;
+      _targetTTs = targetTTs;
+   }
+
+   @Override
+   public void write(int b) {
+      if (b == '\n') {
+         parseLine(_currentLine.toString().trim());
+         _currentLine.setLength(0);
+      } else if (b != '\r') {
+         _currentLine.append((char)b);
+      }
+   }
+
+   @Override
+   public void close() {
+      /* The remote output may not end with a newline */
+      if (_currentLine.length() > 0) {
+         parseLine(_currentLine.toString().trim());
+         _currentLine.setLength(0);
+      }
+   }
+
+   private void parseLine(String line) {
+      if (line.startsWith(DECOMMISSION_STATUS_PREFIX)) {
+         try {
+            _decommissionStatus = Integer.parseInt(line.substring(DECOMMISSION_STATUS_PREFIX.length()).trim());
+            _log.log(Level.INFO, "<%C"+_clusterId+"%C>: excludes refreshed on job tracker; waiting for "+_targetTTs.size()+" task trackers to decommission");
+         } catch (NumberFormatException e) {
+            _log.log(Level.WARNING, "<%C"+_clusterId+"%C>: unexpected decommission status from job tracker: "+line);
+         }
+      } else if (line.startsWith(DECOMMISSIONED_PREFIX)) {
+         String ttName = line.substring(DECOMMISSIONED_PREFIX.length()).trim();
+         if (!_targetTTs.contains(ttName)) {
+            /* Progress is only counted against the task trackers that were asked to decommission */
+            _log.log(Level.WARNING, "<%C"+_clusterId+"%C>: job tracker reported unexpected task tracker as decommissioned: "+ttName);
+         } else if (_decommissionedTTs.add(ttName)) {
+            _log.log(Level.INFO, "<%C"+_clusterId+"%C>: "+_decommissionedTTs.size()+" of "+_targetTTs.size()+" task trackers decommissioned");
+         }
+      } else if (line.startsWith(ACTIVE_TT_PREFIX)) {
+         if (_activeTTs == null) {
+            _activeTTs = new HashSet<String>();
+         }
+         String ttName = line.substring(ACTIVE_TT_PREFIX.length()).trim();
+         _log.fine("Adding TT: " + ttName);
+         _activeTTs.add(ttName);
+      } else if (line.length() > 0) {
+         _log.log(Level.FINEST, "<%C"+_clusterId+"%C>: decommission output: "+line);
+      }
+   }
+
+   /* The exit code of the decommission phase, or null if the script did not get as far as refreshing the excludes */
+   Integer getDecommissionStatus() {
+      return _decommissionStatus;
+   }
+
+   Set<String> getDecommissionedTTs() {
+      return _decommissionedTTs;
+   }
+
+   /* The task trackers still active once the script stopped waiting, or null if they were never reported */
+   Set<String> getActiveTTs() {
+      return _activeTTs;
+   }
+}
@@ -16,6 +16,7 @@
 package com.vmware.vhadoop.vhm.hadoop;
 
 import static com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.ERROR_CATCHALL;
+import static com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.ERROR_COMMAND_NOT_EXECUTABLE;
 import static com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.ERROR_COMMAND_NOT_FOUND;
 import static com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.ERROR_EXCESS_TTS;
 import static com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.ERROR_FEWER_TTS;
@@ -26,11 +27,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,6 +50,7 @@ import com.vmware.vhadoop.util.CompoundStatus.TaskStatus;
 import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
 import com.vmware.vhadoop.vhm.hadoop.HadoopConnection.HadoopConnectionProperties;
 import com.vmware.vhadoop.vhm.hadoop.HadoopConnection.HadoopCredentials;
+import com.vmware.vhadoop.vhm.hadoop.HadoopConnection.SshUtils;
 import com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.ParamTypes;
 
 /**
@@ -55,6 +63,13 @@ public class HadoopAdaptor implements HadoopActions {
 
    private static final Logger _log = Logger.getLogger(HadoopAdaptor.class.getName());
 
+   /* vhm.properties key that selects how the excludes file is updated. Either "full", where each de/recommission copies a list file
+    * and runs its own script and refresh, or "incremental", where only the hosts that change are sent and concurrent changes to
+    * the same JobTracker share one refresh */
+   public static final String EXCLUDES_UPDATE_MODE_PROP_KEY = "excludesUpdateMode";
+   public static final String EXCLUDES_UPDATE_FULL = "full";
+   public static final String EXCLUDES_UPDATE_INCREMENTAL = "incremental";
+
    private final Map<String, HadoopConnection> _connections;
    private final HadoopErrorCodes _errorCodes;
    private final HadoopCredentials _credentials;
@@ -62,6 +77,13 @@ public class HadoopAdaptor implements HadoopActions {
    private final HadoopConnectionProperties _connectionProperties;        /* TODO: Provide setter? If not, make local */
    private final Map<String, Map<ParamTypes, String>> _errorParamValues;  /* TODO: Will need one per connection/cluster */
    private final ThreadLocalCompoundStatus _threadLocalStatus;
+   private final SshUtils _sshUtils;       /* Shared by all of the connections, so that sessions to each JobTracker are reused */
+   /* Script contents are read once and kept, along with a hash of the contents */
+   private final Map<String, byte[]> _scriptData = new ConcurrentHashMap<String, byte[]>();
+   private final Map<String, String> _scriptHashes = new ConcurrentHashMap<String, String>();
+   /* The hash of each script deployed to each JobTracker, keyed by JobTracker address and then script name */
+   private final ConcurrentMap<String, Map<String, String>> _deployedScriptHashes = new ConcurrentHashMap<String, Map<String, String>>();
+   private final IncrementalExcludes _incrementalExcludes;    /* null unless the excludes file is updated incrementally */
 
    /* TODO: I think it's ok that these are all constants for now. Easy to externalize in future though */
 
@@ -74,6 +96,8 @@ public class HadoopAdaptor implements HadoopActions {
    private static final String RECOM_LIST_FILE_NAME = "rlist.txt";
    private static final String RECOM_SCRIPT_FILE_NAME = "recommissionTTs.sh";
    private static final String CHECK_SCRIPT_FILE_NAME = "checkTargetTTsSuccess.sh";
+   private static final String DECOM_CHECK_SCRIPT_FILE_NAME = "decommissionAndCheckTTs.sh";
+   private static final String UPDATE_EXCLUDES_SCRIPT_FILE_NAME = "updateExcludesTTs.sh";
 
    /* TODO: Option to change the default values? */
    private static final String DEFAULT_SCRIPT_SRC_PATH = "src/main/resources/";
@@ -82,8 +106,17 @@ public class HadoopAdaptor implements HadoopActions {
    static final String STATUS_INTERPRET_ERROR_CODE = "interpretErrorCode";
 
    private static final int MAX_CHECK_RETRY_ITERATIONS = 4;
+   /* How long decommissionAndCheckTTs.sh waits for the TTs to leave the active list after refreshing the excludes */
+   private static final int DECOM_CHECK_TIMEOUT_SECONDS = 60;
+
+   private static final long SSH_SESSION_IDLE_TIMEOUT_MILLIS = 300000;
+   private static final long SSH_SESSION_HEALTH_CHECK_INTERVAL_MILLIS = 30000;
 
    public HadoopAdaptor(HadoopCredentials credentials, JTConfigInfo jtConfig, ThreadLocalCompoundStatus tlcs) {
+      this(credentials, jtConfig, tlcs, EXCLUDES_UPDATE_FULL);
+   }
+
+   public HadoopAdaptor(HadoopCredentials credentials, JTConfigInfo jtConfig, ThreadLocalCompoundStatus tlcs, String excludesUpdateMode) {
       _connectionProperties = getDefaultConnectionProperties();
       _credentials = credentials;
       _jtConfig = jtConfig;
@@ -91,6 +124,19 @@ public class HadoopAdaptor implements HadoopActions {
       _errorParamValues = new HashMap<String, Map<ParamTypes, String>>();
       _connections = new HashMap<String, HadoopConnection>();
       _threadLocalStatus = tlcs;
+      _sshUtils = new PooledSshUtils(SSH_SESSION_IDLE_TIMEOUT_MILLIS, SSH_SESSION_HEALTH_CHECK_INTERVAL_MILLIS);
+      for (String scriptFileName : new String[]{DECOM_SCRIPT_FILE_NAME, RECOM_SCRIPT_FILE_NAME, CHECK_SCRIPT_FILE_NAME, DECOM_CHECK_SCRIPT_FILE_NAME, UPDATE_EXCLUDES_SCRIPT_FILE_NAME}) {
+         getScriptData(scriptFileName);
+      }
+      if (EXCLUDES_UPDATE_INCREMENTAL.equals(excludesUpdateMode)) {
+         _log.info("Updating excludes files incrementally");
+         _incrementalExcludes = new IncrementalExcludes();
+      } else {
+         if (!EXCLUDES_UPDATE_FULL.equals(excludesUpdateMode)) {
+            _log.warning("VHM: unknown "+EXCLUDES_UPDATE_MODE_PROP_KEY+" value \""+excludesUpdateMode+"\" - defaulting to "+EXCLUDES_UPDATE_FULL);
+         }
+         _incrementalExcludes = null;
+      }
    }
 
    private CompoundStatus getCompoundStatus() {
@@ -136,7 +182,6 @@ public class HadoopAdaptor implements HadoopActions {
       }
       HadoopConnection result = _connections.get(cluster.getClusterId());
       if (result == null || result.isStale(cluster)) {
-         /* TODO: SshUtils could be a single shared thread-safe object or non threadsafe object per connection */
          result = getHadoopConnection(cluster, _connectionProperties);
          result.setHadoopCredentials(_credentials);
          result.setHadoopExcludeTTPath(_jtConfig.getExcludeTTPath());
@@ -229,18 +274,76 @@ public class HadoopAdaptor implements HadoopActions {
    }
 */
 
+   /* Returns the cached contents of the script, loading it if it has not already been loaded */
+   private byte[] getScriptData(String scriptFileName) {
+      byte[] scriptData = _scriptData.get(scriptFileName);
+      if (scriptData == null) {
+         // Changed this to accommodate using jar file...
+         // String fullLocalPath = HadoopAdaptor.class.getClassLoader().getResource(scriptFileName).getPath();
+         // byte[] scriptData = loadLocalScript(DEFAULT_SCRIPT_SRC_PATH + scriptFileName);
+         // byte[] scriptData = loadLocalScript(fullLocalPath);
+         scriptData = loadLocalScript(scriptFileName);
+         if (scriptData != null) {
+            _scriptHashes.put(scriptFileName, getContentHash(scriptData));
+            _scriptData.put(scriptFileName, scriptData);
+         }
+      }
+      return scriptData;
+   }
+
+   private String getContentHash(byte[] data) {
+      try {
+         StringBuilder sb = new StringBuilder();
+         for (byte b : MessageDigest.getInstance("SHA-1").digest(data)) {
+            sb.append(String.format("%02x", b));
+         }
+         return sb.toString();
+      } catch (NoSuchAlgorithmException e) {
+         /* Every JVM provides SHA-1. Without it, the length at least distinguishes most changes */
+         return "length:"+data.length;
+      }
+   }
+
+   private Map<String, String> getDeployedScriptHashes(HadoopConnection connection) {
+      Map<String, String> result = _deployedScriptHashes.get(connection.getJobTrackerAddr());
+      if (result == null) {
+         result = new ConcurrentHashMap<String, String>();
+         Map<String, String> existing = _deployedScriptHashes.putIfAbsent(connection.getJobTrackerAddr(), result);
+         if (existing != null) {
+            result = existing;
+         }
+      }
+      return result;
+   }
+
+   /* Copies the script to the JobTracker unless the same content has already been deployed there */
+   private boolean deployScript(HadoopConnection connection, String scriptFileName) {
+      byte[] scriptData = getScriptData(scriptFileName);
+      if (scriptData == null) {
+         return false;
+      }
+      String hash = _scriptHashes.get(scriptFileName);
+      Map<String, String> deployed = getDeployedScriptHashes(connection);
+      if (hash.equals(deployed.get(scriptFileName))) {
+         return true;
+      }
+      if (connection.copyDataToJobTracker(scriptData, DEFAULT_SCRIPT_DEST_PATH, scriptFileName, true) != 0) {
+         return false;
+      }
+      deployed.put(scriptFileName, hash);
+      return true;
+   }
+
+   /* The script is deployed on first use. If it has since gone missing from the JobTracker, for example after a reboot, it is deployed again */
    private int executeScriptWithCopyRetryOnFailure(HadoopConnection connection, String scriptFileName, String[] scriptArgs, OutputStream out) {
       int rc = -1;
+      deployScript(connection, scriptFileName);
       for (int i = 0; i < 2; i++) {
          rc = connection.executeScript(scriptFileName, DEFAULT_SCRIPT_DEST_PATH, scriptArgs, out);
          if (i == 0 && (rc == ERROR_COMMAND_NOT_FOUND || rc == ERROR_CATCHALL)) {
             _log.log(Level.INFO, scriptFileName + " not found...");
-            // Changed this to accommodate using jar file...
-            // String fullLocalPath = HadoopAdaptor.class.getClassLoader().getResource(scriptFileName).getPath();
-            // byte[] scriptData = loadLocalScript(DEFAULT_SCRIPT_SRC_PATH + scriptFileName);
-            // byte[] scriptData = loadLocalScript(fullLocalPath);
-            byte[] scriptData = loadLocalScript(scriptFileName);
-            if ((scriptData != null) && (connection.copyDataToJobTracker(scriptData, DEFAULT_SCRIPT_DEST_PATH, scriptFileName, true) == 0)) {
+            getDeployedScriptHashes(connection).remove(scriptFileName);
+            if (deployScript(connection, scriptFileName)) {
                continue;
             }
          }
@@ -279,16 +382,155 @@ public class HadoopAdaptor implements HadoopActions {
       return status;
    }
 
+   /* Sends only the hosts which need to change in the excludes file, sharing the update with any other changes queued for the JobTracker */
+   private CompoundStatus updateExcludesIncrementally(String opDesc, Set<String> ttDnsNames, HadoopClusterInfo cluster, boolean exclude) {
+      CompoundStatus status = new CompoundStatus("decomRecomTTs");
+
+      if (!isValidTTList(ttDnsNames)) {
+         String errorMsg = opDesc+" failed due to bad task tracker list";
+         _log.log(Level.SEVERE, "<%C"+cluster.getClusterId()+"%C>: "+errorMsg);
+         status.registerTaskFailed(false, errorMsg);
+         return status;
+      }
+
+      final HadoopConnection connection = getConnectionForCluster(cluster);
+      if (connection == null) {
+         status.registerTaskFailed(false, "could not create connection to job tracker for cluster");
+         return status;
+      }
+      setErrorParamsForCommand(cluster, opDesc.toLowerCase(), DEFAULT_SCRIPT_DEST_PATH + UPDATE_EXCLUDES_SCRIPT_FILE_NAME, null);
+
+      IncrementalExcludes.ExcludesWriter writer = new IncrementalExcludes.ExcludesWriter() {
+         @Override
+         public int update(boolean clearFirst, Set<String> add, Set<String> remove, Set<String> excludedResult) {
+            List<String> scriptArgs = new ArrayList<String>();
+            scriptArgs.add(connection.getExcludeFilePath());
+            scriptArgs.add(connection.getHadoopHome());
+            scriptArgs.add(""+clearFirst);
+            for (String tt : add) {
+               scriptArgs.add("+"+tt);
+            }
+            for (String tt : remove) {
+               scriptArgs.add("-"+tt);
+            }
+
+            OutputStream out = new ByteArrayOutputStream();
+            int rc = executeScriptWithCopyRetryOnFailure(connection, UPDATE_EXCLUDES_SCRIPT_FILE_NAME, scriptArgs.toArray(new String[scriptArgs.size()]), out);
+            //Expecting the excludes file to be listed as "EXCLUDED: ttName"
+            for (String line : out.toString().split("\n")) {
+               if (line.startsWith("EXCLUDED:")) {
+                  excludedResult.add(line.split("\\s+")[1]);
+               }
+            }
+            return rc;
+         }
+      };
+
+      int rc = exclude ? _incrementalExcludes.exclude(connection.getJobTrackerAddr(), ttDnsNames, writer)
+                       : _incrementalExcludes.includeAll(connection.getJobTrackerAddr(), writer);
+      status.addStatus(_errorCodes.interpretErrorCode(_log, rc, getErrorParamValues(cluster)));
+      return status;
+   }
+
    @Override
    public void decommissionTTs(Set<String> ttDnsNames, HadoopClusterInfo cluster) {
+      if (_incrementalExcludes != null) {
+         getCompoundStatus().addStatus(updateExcludesIncrementally("Decommission", ttDnsNames, cluster, true));
+         return;
+      }
       getCompoundStatus().addStatus(decomRecomTTs("Decommission", ttDnsNames, cluster, DECOM_SCRIPT_FILE_NAME, DECOM_LIST_FILE_NAME));
    }
 
    @Override
    public void recommissionTTs(Set<String> ttDnsNames, HadoopClusterInfo cluster) {
+      if (_incrementalExcludes != null) {
+         getCompoundStatus().addStatus(updateExcludesIncrementally("Recommission", ttDnsNames, cluster, false));
+         return;
+      }
       getCompoundStatus().addStatus(decomRecomTTs("Recommission", ttDnsNames, cluster, RECOM_SCRIPT_FILE_NAME, RECOM_LIST_FILE_NAME));
    }
 
+   @Override
+   /* Returns the set of active dnsNames once the decommission has completed or timed out */
+   public Set<String> decommissionAndCheckTTs(Set<String> ttDnsNames, int totalTargetEnabled, HadoopClusterInfo cluster) {
+      if (_incrementalExcludes != null) {
+         return decommissionIncrementallyAndCheckTTs(ttDnsNames, totalTargetEnabled, cluster);
+      }
+      CompoundStatus decomStatus = new CompoundStatus("decomRecomTTs");
+
+      if (!isValidTTList(ttDnsNames)) {
+         String errorMsg = "Decommission failed due to bad task tracker list";
+         _log.log(Level.SEVERE, "<%C"+cluster.getClusterId()+"%C>: "+errorMsg);
+         decomStatus.registerTaskFailed(false, errorMsg);
+         getCompoundStatus().addStatus(decomStatus);
+         return null;
+      }
+
+      HadoopConnection connection = getConnectionForCluster(cluster);
+      if (connection == null) {
+         decomStatus.registerTaskFailed(false, "could not create connection to job tracker for cluster");
+         getCompoundStatus().addStatus(decomStatus);
+         return null;
+      }
+
+      String scriptRemoteFilePath = DEFAULT_SCRIPT_DEST_PATH + DECOM_CHECK_SCRIPT_FILE_NAME;
+      setErrorParamsForCommand(cluster, "decommission", scriptRemoteFilePath, null);
+
+      /* The TT names are passed as arguments, so there is no list file to copy before the script runs */
+      List<String> scriptArgs = new ArrayList<String>();
+      scriptArgs.add(connection.getExcludeFilePath());
+      scriptArgs.add(connection.getHadoopHome());
+      scriptArgs.add(""+DECOM_CHECK_TIMEOUT_SECONDS);
+      scriptArgs.addAll(ttDnsNames);
+
+      /* Unlike the other scripts, this one is only run again if it could not be run at all. Any other failure may follow the excludes
+       * file having been updated, so the result is reported rather than decommissioning a second time. Each attempt has its own
+       * stream so that the output of a failed attempt is not mixed with that of the next */
+      DecommissionProgressStream progress = null;
+      int rc = UNKNOWN_ERROR;
+      deployScript(connection, DECOM_CHECK_SCRIPT_FILE_NAME);
+      for (int i = 0; i < 2; i++) {
+         progress = new DecommissionProgressStream(cluster.getClusterId(), ttDnsNames);
+         rc = connection.executeScript(DECOM_CHECK_SCRIPT_FILE_NAME, DEFAULT_SCRIPT_DEST_PATH, scriptArgs.toArray(new String[scriptArgs.size()]), progress);
+         progress.close();
+         if (i == 0 && (rc == ERROR_COMMAND_NOT_FOUND || rc == ERROR_COMMAND_NOT_EXECUTABLE)) {
+            _log.log(Level.INFO, DECOM_CHECK_SCRIPT_FILE_NAME + " not found...");
+            getDeployedScriptHashes(connection).remove(DECOM_CHECK_SCRIPT_FILE_NAME);
+            if (deployScript(connection, DECOM_CHECK_SCRIPT_FILE_NAME)) {
+               continue;
+            }
+         }
+         break;
+      }
+
+      /* If the script never reported the decommission status, the exit code belongs to the decommission phase */
+      Integer decomRc = progress.getDecommissionStatus();
+      decomStatus.addStatus(_errorCodes.interpretErrorCode(_log, (decomRc == null) ? rc : decomRc, getErrorParamValues(cluster)));
+      getCompoundStatus().addStatus(decomStatus);
+      if (decomRc == null) {
+         return null;
+      }
+
+      Set<String> allActiveTTs = progress.getActiveTTs();
+      if (allActiveTTs == null) {
+         allActiveTTs = new HashSet<String>();
+      }
+      _log.info("Active TTs after decommission: " + Arrays.toString(allActiveTTs.toArray()));
+      _log.info("#Active TTs: " + allActiveTTs.size() + "\t #Target TTs: " + totalTargetEnabled);
+
+      setErrorParamsForCommand(cluster, "checkTargetTTsSuccess", scriptRemoteFilePath, null);
+      getCompoundStatus().addStatus(_errorCodes.interpretErrorCode(_log, rc, getErrorParamValues(cluster)));
+      if (rc != SUCCESS) {
+         CompoundStatus getActiveStatus = new CompoundStatus(EDPolicy.ACTIVE_TTS_STATUS_KEY);
+         getActiveStatus.registerTaskFailed(false, "Check Test Failed");
+         getCompoundStatus().addStatus(getActiveStatus);
+      } else {
+         _log.log(Level.INFO, "All selected TTs correctly decommissioned");
+      }
+
+      return allActiveTTs;
+   }
+
    @Override
    public Set<String> getActiveTTs(HadoopClusterInfo cluster, int totalTargetEnabled) {
       return getActiveTTs(cluster, totalTargetEnabled, getCompoundStatus());
@@ -323,6 +565,19 @@ public class HadoopAdaptor implements HadoopActions {
       return formattedList;
    }
 
+   /* decommissionAndCheckTTs.sh writes to the excludes file itself, so it is not used when the file is updated incrementally.
+    * The decommission goes through IncrementalExcludes like every other change, so that it is coalesced with them and the
+    * recorded contents of the file stay accurate. The TTs are then followed with the check script */
+   private Set<String> decommissionIncrementallyAndCheckTTs(Set<String> ttDnsNames, int totalTargetEnabled, HadoopClusterInfo cluster) {
+      CompoundStatus decomStatus = updateExcludesIncrementally("Decommission", ttDnsNames, cluster, true);
+      getCompoundStatus().addStatus(decomStatus);
+      if (decomStatus.getFailedTaskCount() > 0) {
+         return null;
+      }
+      /* checkTargetTTsSuccess removes the decommissioned TTs from the set it is given */
+      return checkTargetTTsSuccess("Decommission", new HashSet<String>(ttDnsNames), totalTargetEnabled, cluster);
+   }
+
    @Override
    /* Returns the set of active dnsNames based on input Set */
    public Set<String> checkTargetTTsSuccess(String opType, Set<String> ttDnsNames, int totalTargetEnabled, HadoopClusterInfo cluster) {
@@ -423,6 +678,6 @@ public class HadoopAdaptor implements HadoopActions {
     * @return
     */
    protected HadoopConnection getHadoopConnection(HadoopClusterInfo cluster, HadoopConnectionProperties properties) {
-      return new HadoopConnection(cluster, properties, new NonThreadSafeSshUtils());
+      return new HadoopConnection(cluster, properties, _sshUtils);
    }
 }
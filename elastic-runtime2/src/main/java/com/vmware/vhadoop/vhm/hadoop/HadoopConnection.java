@@ -159,8 +159,6 @@ public class HadoopConnection {
 
       _log.log(Level.FINEST, "Output from SSH script execution:\n{0}\n", out.toString());
 
-      _sshUtils.cleanup(_log, null, channel);
-
       return exitStatus;
    }
 
@@ -0,0 +1,259 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm.hadoop;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.vmware.vhadoop.api.vhm.HadoopActions;
+import com.vmware.vhadoop.api.vhm.strategy.EDPolicy;
+import com.vmware.vhadoop.util.CompoundStatus;
+import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
+
+/* Finds the active task trackers by asking the JobTracker directly, rather than by running a script on the JobTracker over SSH
+ * Wraps the HadoopActions which de/recommission the task trackers, which is also used to find the active task trackers if the
+ *   JobTracker cannot be queried. The JobTrackerInfo MBean is read through the JMX JSON servlet of the JobTracker web UI, as this
+ *   needs no Hadoop client libraries. The active set for each cluster is cached for a short time, and the cache is dropped whenever
+ *   task trackers are de/recommissioned through this class */
+public class HttpJobTrackerAdaptor implements HadoopActions {
+   private static final Logger _log = Logger.getLogger(HttpJobTrackerAdaptor.class.getName());
+
+   /* vhm.properties keys - a port of 0 disables the HTTP query so that the wrapped HadoopActions is always used */
+   public static final String JOB_TRACKER_HTTP_PORT_PROP_KEY = "jobTrackerHttpPort";
+   public static final String ACTIVE_TTS_CACHE_MILLIS_PROP_KEY = "activeTTsCacheMillis";
+
+   public static final int DEFAULT_JOB_TRACKER_HTTP_PORT = 50030;
+   public static final long DEFAULT_ACTIVE_TTS_CACHE_MILLIS = 5000;
+
+   private static final String JOB_TRACKER_INFO_BEAN = "hadoop:service=JobTracker,name=JobTrackerInfo";
+   private static final String ALIVE_NODES_ATTRIBUTE = "AliveNodesInfoJson";
+   private static final String HOSTNAME_FIELD = "hostname";
+
+   private static final int HTTP_TIMEOUT_MILLIS = 2000;
+   /* After a failed query, the wrapped HadoopActions is used for this long before the JobTracker is queried again */
+   private static final long QUERY_RETRY_INTERVAL_MILLIS = 300000;
+
+   /* Equivalent to the check script, which waits up to 10s and is run up to 5 times */
+   private static final int MAX_CHECK_ITERATIONS = 50;
+   private static final long CHECK_RETRY_DELAY_MILLIS = 1000;
+
+   private final HadoopActions _fallback;
+   private final ThreadLocalCompoundStatus _threadLocalStatus;
+   private final int _httpPort;
+   private final long _cacheMillis;
+
+   private final Map<String, ActiveTTs> _activeTTsCache = new ConcurrentHashMap<String, ActiveTTs>();
+   private final Map<String, Long> _lastQueryFailure = new ConcurrentHashMap<String, Long>();
+
+   private static class ActiveTTs {
+      final Set<String> _ttDnsNames;
+      final long _timestamp;
+
+      ActiveTTs(Set<String> ttDnsNames) {
+         _ttDnsNames = Collections.unmodifiableSet(new HashSet<String>(ttDnsNames));
+         _timestamp = System.currentTimeMillis();
+      }
+   }
+
+   public HttpJobTrackerAdaptor(HadoopActions fallback, ThreadLocalCompoundStatus tlcs, int httpPort, long cacheMillis) {
+      _fallback = fallback;
+      _threadLocalStatus = tlcs;
+      _httpPort = httpPort;
+      _cacheMillis = cacheMillis;
+   }
+
+   private CompoundStatus getCompoundStatus() {
+      if (_threadLocalStatus == null) {
+         return new CompoundStatus("DUMMY_STATUS");
+      }
+      return _threadLocalStatus.get();
+   }
+
+   private void invalidate(HadoopClusterInfo cluster) {
+      _activeTTsCache.remove(cluster.getClusterId());
+   }
+
+   /* Returns the active TTs reported by the JobTracker, or null if it could not be queried */
+   protected Set<String> queryActiveTTs(HadoopClusterInfo cluster) {
+      String host = cluster.getJobTrackerIpAddr();
+      if ((_httpPort <= 0) || (host == null)) {
+         return null;
+      }
+
+      String clusterId = cluster.getClusterId();
+      Long lastFailure = _lastQueryFailure.get(clusterId);
+      if ((lastFailure != null) && (System.currentTimeMillis() - lastFailure < QUERY_RETRY_INTERVAL_MILLIS)) {
+         return null;
+      }
+
+      HttpURLConnection connection = null;
+      InputStream in = null;
+      try {
+         URL url = new URL("http", host, _httpPort, "/jmx?qry="+URLEncoder.encode(JOB_TRACKER_INFO_BEAN, "UTF-8"));
+         connection = (HttpURLConnection)url.openConnection();
+         connection.setConnectTimeout(HTTP_TIMEOUT_MILLIS);
+         connection.setReadTimeout(HTTP_TIMEOUT_MILLIS);
+         if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("HTTP response "+connection.getResponseCode()+" from "+url);
+         }
+         in = connection.getInputStream();
+         Set<String> activeTTs = parseAliveNodes(IOUtils.toString(in, "UTF-8"));
+
+         _lastQueryFailure.remove(clusterId);
+         _activeTTsCache.put(clusterId, new ActiveTTs(activeTTs));
+         _log.log(Level.FINE, "<%C"+clusterId+"%C>: job tracker reports active TTs: "+activeTTs);
+         return activeTTs;
+      } catch (IOException e) {
+         _log.log(Level.INFO, "<%C"+clusterId+"%C>: unable to query job tracker status at "+host+":"+_httpPort+" - falling back to ssh ("+e.getMessage()+")");
+      } catch (RuntimeException e) {
+         /* Gson reports unexpected structure as JsonParseException, IllegalStateException, ClassCastException, etc */
+         _log.log(Level.INFO, "<%C"+clusterId+"%C>: unexpected job tracker status from "+host+":"+_httpPort+" - falling back to ssh ("+e+")");
+      } finally {
+         IOUtils.closeQuietly(in);
+         if (connection != null) {
+            connection.disconnect();
+         }
+      }
+      _lastQueryFailure.put(clusterId, System.currentTimeMillis());
+      return null;
+   }
+
+   /* The alive nodes attribute is itself a JSON encoded array of task tracker descriptions */
+   static Set<String> parseAliveNodes(String jmxResponse) {
+      JsonParser parser = new JsonParser();
+      JsonArray beans = parser.parse(jmxResponse).getAsJsonObject().getAsJsonArray("beans");
+      if ((beans == null) || (beans.size() == 0)) {
+         throw new JsonParseException("no "+JOB_TRACKER_INFO_BEAN+" bean");
+      }
+      JsonElement aliveNodes = beans.get(0).getAsJsonObject().get(ALIVE_NODES_ATTRIBUTE);
+      if (aliveNodes == null) {
+         throw new JsonParseException("no "+ALIVE_NODES_ATTRIBUTE+" attribute");
+      }
+
+      Set<String> result = new HashSet<String>();
+      for (JsonElement node : parser.parse(aliveNodes.getAsString()).getAsJsonArray()) {
+         JsonObject nodeInfo = node.getAsJsonObject();
+         if (nodeInfo.has(HOSTNAME_FIELD)) {
+            result.add(nodeInfo.get(HOSTNAME_FIELD).getAsString());
+         }
+      }
+      return result;
+   }
+
+   @Override
+   public void decommissionTTs(Set<String> ttDnsNames, HadoopClusterInfo cluster) {
+      invalidate(cluster);
+      _fallback.decommissionTTs(ttDnsNames, cluster);
+   }
+
+   @Override
+   public void recommissionTTs(Set<String> ttDnsNames, HadoopClusterInfo cluster) {
+      invalidate(cluster);
+      _fallback.recommissionTTs(ttDnsNames, cluster);
+   }
+
+   @Override
+   public Set<String> decommissionAndCheckTTs(Set<String> ttDnsNames, int totalTargetEnabled, HadoopClusterInfo cluster) {
+      invalidate(cluster);
+      return _fallback.decommissionAndCheckTTs(ttDnsNames, totalTargetEnabled, cluster);
+   }
+
+   @Override
+   /* Returns the set of active dnsNames based on input Set */
+   public Set<String> checkTargetTTsSuccess(String opType, Set<String> ttDnsNames, int totalTargetEnabled, HadoopClusterInfo cluster) {
+      if (ttDnsNames == null) {
+         _log.warning("No valid TT names provided");
+         return null;
+      }
+
+      /* We don't expect null or empty values, but weed out anyway */
+      Set<String> affectedTTs = new HashSet<String>(ttDnsNames);
+      affectedTTs.remove(null);
+      affectedTTs.remove("");
+      if (affectedTTs.isEmpty()) {
+         _log.warning("No valid TT names provided");
+         return null;
+      }
+
+      Set<String> allActiveTTs = null;
+      for (int iterations = 0; iterations < MAX_CHECK_ITERATIONS; iterations++) {
+         if (iterations > 0) {
+            try {
+               Thread.sleep(CHECK_RETRY_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               break;
+            }
+         }
+
+         /* The cache is bypassed, as this is waiting for the active set to change */
+         allActiveTTs = queryActiveTTs(cluster);
+         if (allActiveTTs == null) {
+            return _fallback.checkTargetTTsSuccess(opType, ttDnsNames, totalTargetEnabled, cluster);
+         }
+
+         //Declare success as long as the we manage to de/recommission only the TTs we set out to handle
+         Set<String> pendingTTs = new HashSet<String>(affectedTTs);
+         if (opType.equals("Recommission")) {
+            pendingTTs.removeAll(allActiveTTs);
+         } else {
+            pendingTTs.retainAll(allActiveTTs);
+         }
+         if (pendingTTs.isEmpty()) {
+            _log.log(Level.INFO, "All selected TTs correctly %sed", opType.toLowerCase());
+            return allActiveTTs;
+         }
+         _log.log(Level.FINE, "Target TTs not yet achieved...checking again - "+iterations+"; pending TTs: "+pendingTTs);
+      }
+
+      CompoundStatus getActiveStatus = new CompoundStatus(EDPolicy.ACTIVE_TTS_STATUS_KEY);
+      getActiveStatus.registerTaskFailed(false, "Check Test Failed");
+      getCompoundStatus().addStatus(getActiveStatus);
+      return allActiveTTs;
+   }
+
+   @Override
+   public Set<String> getActiveTTs(HadoopClusterInfo cluster, int totalTargetEnabled) {
+      ActiveTTs cached = _activeTTsCache.get(cluster.getClusterId());
+      if ((cached != null) && (System.currentTimeMillis() - cached._timestamp < _cacheMillis)) {
+         return new HashSet<String>(cached._ttDnsNames);
+      }
+
+      Set<String> activeTTs = queryActiveTTs(cluster);
+      if (activeTTs == null) {
+         return _fallback.getActiveTTs(cluster, totalTargetEnabled);
+      }
+      return activeTTs;
+   }
+}
@@ -0,0 +1,223 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm.hadoop;
+
+import static com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.SUCCESS;
+import static com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.WARN_TT_ACTIVE;
+import static com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.WARN_TT_EXCLUDESFILE;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the excludes file of each JobTracker, so that an update only needs to send the hosts which are added or removed.
+ * 
+ * Changes to the same JobTracker are queued up. If no update is running, the caller runs one for every change queued so far.
+ * Otherwise it waits, and the queued changes go out together in the next update. So however many operations change the
+ * excludes file of a JobTracker at the same time, there is at most one update running and one waiting.
+ * 
+ * The contents of the excludes file are learned from each update. Until they are known, or after an update fails, the changes
+ * are sent as they are and a recommission clears the file. This relies on every change to the excludes file going through
+ * this class, decommissions included.
+ */
+class IncrementalExcludes {
+   private static final Logger _log = Logger.getLogger(IncrementalExcludes.class.getName());
+
+   /* Applies an update to the excludes file of a JobTracker and refreshes its nodes */
+   interface ExcludesWriter {
+      /* Returns the exit code. If the update succeeds, the contents of the excludes file afterwards are added to excludedResult */
+      int update(boolean clearFirst, Set<String> add, Set<String> remove, Set<String> excludedResult);
+   }
+
+   /* One caller's change, completed by whichever caller runs the update it is part of */
+   private static class QueuedChange {
+      boolean _done;
+      int _rc;
+   }
+
+   private static class JobTrackerExcludes {
+      Set<String> _excluded;            /* contents of the excludes file after the last update, or null if not known */
+      final Map<String, Boolean> _pending = new LinkedHashMap<String, Boolean>();   /* true to exclude the host, false to include it */
+      boolean _clearPending;
+      boolean _updateInProgress;
+      List<QueuedChange> _queued = new ArrayList<QueuedChange>();
+      /* A lock rather than a monitor, so that a virtual thread waiting for an update does not pin its carrier thread */
+      final ReentrantLock _lock = new ReentrantLock();
+      final Condition _updateCompleted = _lock.newCondition();
+   }
+
+   private final ConcurrentMap<String, JobTrackerExcludes> _jobTrackers = new ConcurrentHashMap<String, JobTrackerExcludes>();
+
+   private JobTrackerExcludes getJobTrackerExcludes(String jobTrackerAddr) {
+      JobTrackerExcludes result = _jobTrackers.get(jobTrackerAddr);
+      if (result == null) {
+         result = new JobTrackerExcludes();
+         JobTrackerExcludes existing = _jobTrackers.putIfAbsent(jobTrackerAddr, result);
+         if (existing != null) {
+            result = existing;
+         }
+      }
+      return result;
+   }
+
+   /* Adds the hosts to the excludes file, blocking until the update that includes them has completed */
+   int exclude(String jobTrackerAddr, Set<String> hosts, ExcludesWriter writer) {
+      JobTrackerExcludes jt = getJobTrackerExcludes(jobTrackerAddr);
+      QueuedChange change = new QueuedChange();
+      jt._lock.lock();
+      try {
+         for (String host : hosts) {
+            jt._pending.put(host, true);
+         }
+         jt._queued.add(change);
+      } finally {
+         jt._lock.unlock();
+      }
+      return awaitUpdate(jobTrackerAddr, jt, change, writer);
+   }
+
+   /* Recommission clears the excludes file, so every excluded host is removed rather than just the given ones, which may not yet have names */
+   int includeAll(String jobTrackerAddr, ExcludesWriter writer) {
+      JobTrackerExcludes jt = getJobTrackerExcludes(jobTrackerAddr);
+      QueuedChange change = new QueuedChange();
+      jt._lock.lock();
+      try {
+         if (jt._excluded == null) {
+            jt._pending.clear();
+            jt._clearPending = true;
+         } else {
+            for (String host : jt._excluded) {
+               jt._pending.put(host, false);
+            }
+            for (Map.Entry<String, Boolean> entry : jt._pending.entrySet()) {
+               entry.setValue(false);
+            }
+         }
+         jt._queued.add(change);
+      } finally {
+         jt._lock.unlock();
+      }
+      return awaitUpdate(jobTrackerAddr, jt, change, writer);
+   }
+
+   /* Known contents of the excludes file, or null if not known */
+   Set<String> getExcluded(String jobTrackerAddr) {
+      JobTrackerExcludes jt = getJobTrackerExcludes(jobTrackerAddr);
+      jt._lock.lock();
+      try {
+         return (jt._excluded == null) ? null : new HashSet<String>(jt._excluded);
+      } finally {
+         jt._lock.unlock();
+      }
+   }
+
+   private int awaitUpdate(String jobTrackerAddr, JobTrackerExcludes jt, QueuedChange change, ExcludesWriter writer) {
+      boolean interrupted = false;
+      try {
+         while (true) {
+            boolean clearFirst;
+            Set<String> add = new HashSet<String>();
+            Set<String> remove = new HashSet<String>();
+            List<QueuedChange> batch;
+
+            jt._lock.lock();
+            try {
+               while (!change._done && jt._updateInProgress) {
+                  try {
+                     jt._updateCompleted.await();
+                  } catch (InterruptedException e) {
+                     /* The change is already queued, so see it through */
+                     interrupted = true;
+                  }
+               }
+               if (change._done) {
+                  return change._rc;
+               }
+
+               /* Take every queued change and work out what actually needs to change in the excludes file */
+               clearFirst = jt._clearPending;
+               for (Map.Entry<String, Boolean> entry : jt._pending.entrySet()) {
+                  boolean known = (jt._excluded != null) && !clearFirst;
+                  if (entry.getValue()) {
+                     if (!known || !jt._excluded.contains(entry.getKey())) {
+                        add.add(entry.getKey());
+                     }
+                  } else if (!clearFirst && ((jt._excluded == null) || jt._excluded.contains(entry.getKey()))) {
+                     remove.add(entry.getKey());
+                  }
+               }
+               jt._pending.clear();
+               jt._clearPending = false;
+               batch = jt._queued;
+               jt._queued = new ArrayList<QueuedChange>();
+
+               if (!clearFirst && add.isEmpty() && remove.isEmpty()) {
+                  _log.log(Level.FINE, "VHM: excludes file on "+jobTrackerAddr+" already up to date for "+batch.size()+" changes");
+                  complete(batch, SUCCESS);
+                  continue;
+               }
+               jt._updateInProgress = true;
+            } finally {
+               jt._lock.unlock();
+            }
+
+            int rc = HadoopErrorCodes.UNKNOWN_ERROR;
+            Set<String> excludedResult = new HashSet<String>();
+            try {
+               _log.log(Level.INFO, "VHM: updating excludes file on "+jobTrackerAddr+" for "+batch.size()+" changes - clear: "+clearFirst+", add: "+add+", remove: "+remove);
+               rc = writer.update(clearFirst, add, remove, excludedResult);
+            } finally {
+               jt._lock.lock();
+               try {
+                  if ((rc == SUCCESS) || (rc == WARN_TT_EXCLUDESFILE) || (rc == WARN_TT_ACTIVE)) {
+                     jt._excluded = excludedResult;
+                  } else {
+                     /* The state of the excludes file is no longer known, so the next update sends everything */
+                     jt._excluded = null;
+                  }
+                  jt._updateInProgress = false;
+                  complete(batch, rc);
+                  jt._updateCompleted.signalAll();
+               } finally {
+                  jt._lock.unlock();
+               }
+            }
+         }
+      } finally {
+         if (interrupted) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   private void complete(List<QueuedChange> batch, int rc) {
+      for (QueuedChange queued : batch) {
+         queued._rc = rc;
+         queued._done = true;
+      }
+   }
+}
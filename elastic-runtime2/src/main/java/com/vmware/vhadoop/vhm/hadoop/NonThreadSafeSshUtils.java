@@ -61,7 +61,8 @@ public class NonThreadSafeSshUtils implements SshUtils
 
    private static final String SCP_COMMAND = "scp  -t  ";
    private static final int INPUTSTREAM_TIMEOUT = 100;
-   private static final int NUM_SSH_RETRIES = 2;
+   static final int NUM_SSH_RETRIES = 2;
+   static final long SSH_RETRY_DELAY_MILLIS = 5000;
 
    @Override
    public ChannelExec createChannel(Logger logger, final HadoopCredentials credentials, String host, int port) {
@@ -98,7 +99,7 @@ public class NonThreadSafeSshUtils implements SshUtils
             if (i < NUM_SSH_RETRIES - 1) {
                try {
                   logger.log(Level.WARNING, "VHM: "+host+" - retrying ssh connection to host after delay");
-                  Thread.sleep(5000);
+                  Thread.sleep(SSH_RETRY_DELAY_MILLIS);
                } catch (InterruptedException e1) {
                   logger.log(Level.WARNING, "VHM: unexpected interruption while waiting to retry ssh connection");
                }
@@ -132,14 +133,16 @@ public class NonThreadSafeSshUtils implements SshUtils
          logger.log(Level.FINE, "Finished channel connection in exec");
 
          byte[] tmp = new byte[1024];
-         long startTime = System.currentTimeMillis();
+         /* The timeout is measured from the last input, so that long-running commands which report progress are not cut off */
+         long lastInputTime = System.currentTimeMillis();
          while (true) {
             while (in.available() > 0) {
                int i = in.read(tmp, 0, 1024);
                if (i < 0) {
                   break;
                }
-               out.write(tmp);
+               out.write(tmp, 0, i);
+               lastInputTime = System.currentTimeMillis();
             }
 
             if (!channel.isConnected()) {
@@ -158,7 +161,7 @@ public class NonThreadSafeSshUtils implements SshUtils
                logger.log(Level.WARNING, "VHM: unexpected interruption while waiting for remote command to complete");
             }
 
-            if (System.currentTimeMillis() - startTime >= TimeUnit.MILLISECONDS.convert(INPUTSTREAM_TIMEOUT, TimeUnit.SECONDS)) {
+            if (System.currentTimeMillis() - lastInputTime >= TimeUnit.MILLISECONDS.convert(INPUTSTREAM_TIMEOUT, TimeUnit.SECONDS)) {
                logger.log(Level.SEVERE, "VHM: no input was received for " + INPUTSTREAM_TIMEOUT + "s while executing command on remote host");
                break;
             }
@@ -310,7 +313,7 @@ public class NonThreadSafeSshUtils implements SshUtils
       }
    }
 
-   private class SSHUserInfo implements UserInfo
+   static class SSHUserInfo implements UserInfo
    {
       String _password;
       Logger _log;
@@ -0,0 +1,99 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm.hadoop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.vmware.vhadoop.vhm.hadoop.HadoopConnection.HadoopCredentials;
+
+/**
+ * A thread-safe implementation of SshUtils which opens channels on sessions from an SshSessionPool, rather than connecting a new
+ * session for every channel. A single instance can therefore be shared by all of the HadoopConnections.
+ * Cleaning up a channel returns its session to the pool instead of disconnecting it
+ */
+public class PooledSshUtils extends NonThreadSafeSshUtils {
+   private final SshSessionPool _sessionPool;
+   /* Channels which have been created and not yet cleaned up. Guards against a session being released twice for the same channel */
+   private final Set<ChannelExec> _openChannels = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<ChannelExec, Boolean>()));
+
+   public PooledSshUtils(long idleTimeoutMillis, long healthCheckIntervalMillis) {
+      _sessionPool = new SshSessionPool(idleTimeoutMillis, healthCheckIntervalMillis);
+   }
+
+   @Override
+   public ChannelExec createChannel(Logger logger, HadoopCredentials credentials, String host, int port) {
+      for (int i = 0; i < NUM_SSH_RETRIES; i++) {
+         Session session = null;
+         try {
+            session = _sessionPool.acquire(logger, credentials, host, port);
+            ChannelExec channel = (ChannelExec) session.openChannel("exec");
+            _openChannels.add(channel);
+            return channel;
+         } catch (JSchException e) {
+            if (session != null) {
+               _sessionPool.release(session, false);
+            }
+            logger.log(Level.WARNING, "VHM: "+host+" - could not create ssh channel to host - " + e.getMessage());
+            if (i < NUM_SSH_RETRIES - 1) {
+               try {
+                  logger.log(Level.WARNING, "VHM: "+host+" - retrying ssh connection to host after delay");
+                  Thread.sleep(SSH_RETRY_DELAY_MILLIS);
+               } catch (InterruptedException e1) {
+                  logger.log(Level.WARNING, "VHM: unexpected interruption while waiting to retry ssh connection");
+               }
+            }
+         }
+      }
+
+      logger.log(Level.SEVERE, "VHM: "+host+" - could not create ssh channel to host (e.g., wrong ip addr/username/password/prvkey)");
+      return null;
+   }
+
+   @Override
+   public void cleanup(Logger log, OutputStream out, ChannelExec channel) {
+      if (out != null) {
+         try {
+            out.flush();
+            out.close();
+         } catch (IOException e) {
+            log.log(Level.WARNING, "VHM: unexpected exception in ssh stream cleanup", e);
+         }
+      }
+      if ((channel != null) && _openChannels.remove(channel)) {
+         Session session = null;
+         try {
+            session = channel.getSession();
+         } catch (JSchException e) {
+            log.log(Level.WARNING, "VHM: unexpected exception in ssh channel cleanup", e);
+         }
+         channel.disconnect();
+         if (session != null) {
+            _sessionPool.release(session, true);
+         }
+      }
+      log.log(Level.FINEST, "SSH session pool: {0}", _sessionPool);
+   }
+}
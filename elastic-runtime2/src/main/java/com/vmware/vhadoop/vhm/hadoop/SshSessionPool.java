@@ -0,0 +1,315 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm.hadoop;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.vmware.vhadoop.vhm.hadoop.HadoopConnection.HadoopCredentials;
+
+/**
+ * Keeps SSH sessions to each JobTracker open between operations, so that every script copy and exec does not pay for a new handshake.
+ * A session carries several channels at once, up to MAX_CHANNELS_PER_SESSION, after which another session is opened to the same host.
+ * A session which has been idle for longer than the health check interval is sent a keep-alive before it is reused, and one which has
+ * been idle for longer than the idle timeout is disconnected.
+ * A session which may be broken is retired rather than disconnected, since other channels may still be using it. It is no longer
+ * handed out, and is disconnected once its last channel has been released.
+ * This class is thread-safe
+ */
+public class SshSessionPool {
+   private static final Logger _log = Logger.getLogger(SshSessionPool.class.getName());
+
+   /* sshd allows 10 sessions per connection by default */
+   static final int MAX_CHANNELS_PER_SESSION = 8;
+   private static final int SESSION_CONNECT_TIMEOUT_MILLIS = 15000;
+   private static final int SERVER_ALIVE_INTERVAL_MILLIS = 30000;
+
+   private static class PooledSession {
+      final String _key;
+      final Session _session;
+      int _inFlight;
+      long _lastUsedTime;
+      boolean _beingChecked;     /* Not handed to anyone else until its health check has passed */
+      boolean _retired;          /* No longer handed out. Disconnected when the last channel on it is released */
+
+      PooledSession(String key, Session session, long now) {
+         _key = key;
+         _session = session;
+         _lastUsedTime = now;
+      }
+   }
+
+   private final JSch _jsch = new JSch();
+   private final long _idleTimeoutMillis;
+   private final long _healthCheckIntervalMillis;
+
+   /* Sessions keyed by user, host and port */
+   private final Map<String, List<PooledSession>> _sessions = new HashMap<String, List<PooledSession>>();
+   private final Map<Session, PooledSession> _pooledSessions = new IdentityHashMap<Session, PooledSession>();
+   /* Identities are added to the shared JSch once and never removed, as other sessions may be using them */
+   private final Set<String> _identities = new HashSet<String>();
+
+   private long _sessionsCreated;
+   private long _sessionsReused;
+   private long _sessionsEvicted;
+   private long _unhealthySessions;
+
+   public SshSessionPool(long idleTimeoutMillis, long healthCheckIntervalMillis) {
+      _idleTimeoutMillis = idleTimeoutMillis;
+      _healthCheckIntervalMillis = healthCheckIntervalMillis;
+   }
+
+   private String getKey(HadoopCredentials credentials, String host, int port) {
+      return credentials.getSshUsername()+"@"+host+":"+port;
+   }
+
+   /* Called with the monitor held. Returns the sessions which should be disconnected once the monitor is released */
+   private List<Session> evictIdleSessions(long now) {
+      List<Session> toClose = new ArrayList<Session>();
+      for (Iterator<List<PooledSession>> keys = _sessions.values().iterator(); keys.hasNext(); ) {
+         List<PooledSession> pooledSessions = keys.next();
+         for (Iterator<PooledSession> i = pooledSessions.iterator(); i.hasNext(); ) {
+            PooledSession pooledSession = i.next();
+            if (pooledSession._inFlight > 0) {
+               continue;
+            }
+            if (!isConnected(pooledSession._session)) {
+               _unhealthySessions++;
+            } else if ((now - pooledSession._lastUsedTime) > _idleTimeoutMillis) {
+               _sessionsEvicted++;
+            } else {
+               continue;
+            }
+            i.remove();
+            _pooledSessions.remove(pooledSession._session);
+            toClose.add(pooledSession._session);
+         }
+         if (pooledSessions.isEmpty()) {
+            keys.remove();
+         }
+      }
+      return toClose;
+   }
+
+   /* Called with the monitor held */
+   private void removeSession(PooledSession pooledSession) {
+      List<PooledSession> pooledSessions = _sessions.get(pooledSession._key);
+      if (pooledSessions != null) {
+         pooledSessions.remove(pooledSession);
+         if (pooledSessions.isEmpty()) {
+            _sessions.remove(pooledSession._key);
+         }
+      }
+      _pooledSessions.remove(pooledSession._session);
+   }
+
+   /* Called with the monitor held. The session stays known to the pool until its channels in flight have been released */
+   private void retireSession(PooledSession pooledSession) {
+      pooledSession._retired = true;
+      List<PooledSession> pooledSessions = _sessions.get(pooledSession._key);
+      if (pooledSessions != null) {
+         pooledSessions.remove(pooledSession);
+         if (pooledSessions.isEmpty()) {
+            _sessions.remove(pooledSession._key);
+         }
+      }
+      if (pooledSession._inFlight == 0) {
+         _pooledSessions.remove(pooledSession._session);
+      }
+   }
+
+   private void disconnect(List<Session> sessions) {
+      for (Session session : sessions) {
+         disconnect(session);
+      }
+   }
+
+   /* Package-private so that tests can run the pool without ssh */
+   void disconnect(Session session) {
+      session.disconnect();
+   }
+
+   boolean isConnected(Session session) {
+      return session.isConnected();
+   }
+
+   boolean isHealthy(Session session) {
+      try {
+         session.sendKeepAliveMsg();
+         return session.isConnected();
+      } catch (Exception e) {
+         return false;
+      }
+   }
+
+   /**
+    * Returns a connected session to the host, which must be passed to release() once the channel opened on it is finished with
+    */
+   public Session acquire(Logger logger, HadoopCredentials credentials, String host, int port) throws JSchException {
+      String key = getKey(credentials, host, port);
+      while (true) {
+         PooledSession candidate = null;
+         boolean needsHealthCheck = false;
+         List<Session> toClose;
+         synchronized(this) {
+            long now = System.currentTimeMillis();
+            toClose = evictIdleSessions(now);
+            List<PooledSession> pooledSessions = _sessions.get(key);
+            if (pooledSessions != null) {
+               for (PooledSession pooledSession : pooledSessions) {
+                  if (!pooledSession._beingChecked && (pooledSession._inFlight < MAX_CHANNELS_PER_SESSION) &&
+                        ((candidate == null) || (pooledSession._inFlight < candidate._inFlight))) {
+                     candidate = pooledSession;
+                  }
+               }
+            }
+            if (candidate != null) {
+               needsHealthCheck = (candidate._inFlight == 0) && ((now - candidate._lastUsedTime) > _healthCheckIntervalMillis);
+               candidate._beingChecked = needsHealthCheck;
+               candidate._inFlight++;
+            }
+         }
+         disconnect(toClose);
+         if (candidate == null) {
+            break;
+         }
+         if (!needsHealthCheck || isHealthy(candidate._session)) {
+            synchronized(this) {
+               candidate._beingChecked = false;
+               _sessionsReused++;
+            }
+            return candidate._session;
+         }
+         logger.log(Level.INFO, "VHM: "+host+" - pooled ssh session failed its health check, reconnecting");
+         synchronized(this) {
+            removeSession(candidate);
+            _unhealthySessions++;
+         }
+         disconnect(candidate._session);
+      }
+
+      Session session = createSession(logger, credentials, host, port);
+      synchronized(this) {
+         PooledSession pooledSession = new PooledSession(key, session, System.currentTimeMillis());
+         pooledSession._inFlight = 1;
+         List<PooledSession> pooledSessions = _sessions.get(key);
+         if (pooledSessions == null) {
+            pooledSessions = new ArrayList<PooledSession>();
+            _sessions.put(key, pooledSessions);
+         }
+         pooledSessions.add(pooledSession);
+         _pooledSessions.put(session, pooledSession);
+         _sessionsCreated++;
+      }
+      return session;
+   }
+
+   Session createSession(Logger logger, HadoopCredentials credentials, String host, int port) throws JSchException {
+      // If private key file is specified, use that as identity; else use password.
+      String prvkeyFile = credentials.getSshPrvkeyFile();
+      if (prvkeyFile != null) {
+         synchronized(_identities) {
+            if (!_identities.contains(prvkeyFile)) {
+               _jsch.addIdentity(prvkeyFile); // Setup SSH identity using private key file
+               _identities.add(prvkeyFile);
+            }
+         }
+      }
+
+      Session session = _jsch.getSession(credentials.getSshUsername(), host, port);
+      if (prvkeyFile == null) {
+         session.setPassword(credentials.getSshPassword());
+         session.setUserInfo(new NonThreadSafeSshUtils.SSHUserInfo(credentials.getSshPassword(), Logger.getLogger(logger.getName())));
+      }
+
+      java.util.Properties config = new java.util.Properties();
+      config.put("StrictHostKeyChecking", "no");
+      session.setConfig(config);
+      session.setTimeout(SESSION_CONNECT_TIMEOUT_MILLIS);
+      /* Keep the pooled session open across idle periods, and don't let its reader thread hold up VHM shutdown */
+      session.setServerAliveInterval(SERVER_ALIVE_INTERVAL_MILLIS);
+      session.setDaemonThread(true);
+
+      session.connect();
+      logger.log(Level.FINE, "Opened pooled ssh session to "+host);
+      return session;
+   }
+
+   /* If the session is not healthy, for example because a channel could not be opened on it, it is retired rather than reused.
+    * Other channels on it are left alone, unless the session has actually been disconnected */
+   public void release(Session session, boolean healthy) {
+      boolean connected = isConnected(session);
+      boolean disconnect = !connected;
+      synchronized(this) {
+         PooledSession pooledSession = _pooledSessions.get(session);
+         if (pooledSession == null) {
+            /* Not a session from this pool */
+            disconnect = true;
+         } else {
+            pooledSession._inFlight--;
+            pooledSession._lastUsedTime = System.currentTimeMillis();
+            if ((!healthy || !connected) && !pooledSession._retired) {
+               _unhealthySessions++;
+               retireSession(pooledSession);
+            }
+            if (pooledSession._retired && (pooledSession._inFlight == 0)) {
+               _pooledSessions.remove(session);
+               disconnect = true;
+            }
+         }
+      }
+      if (disconnect) {
+         disconnect(session);
+      }
+   }
+
+   /* Disconnects the idle sessions. Sessions in use are retired, so that they are disconnected when their last channel is released */
+   public void clear() {
+      List<Session> toClose = new ArrayList<Session>();
+      synchronized(this) {
+         for (PooledSession pooledSession : new ArrayList<PooledSession>(_pooledSessions.values())) {
+            if (pooledSession._inFlight == 0) {
+               toClose.add(pooledSession._session);
+            }
+            retireSession(pooledSession);
+         }
+      }
+      disconnect(toClose);
+   }
+
+   synchronized int getInFlight(Session session) {
+      PooledSession pooledSession = _pooledSessions.get(session);
+      return (pooledSession == null) ? 0 : pooledSession._inFlight;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return "SshSessionPool{sessions="+_pooledSessions.size()+", created="+_sessionsCreated+", reused="+_sessionsReused+
+            ", evicted="+_sessionsEvicted+", unhealthy="+_unhealthySessions+"}";
+   }
+}
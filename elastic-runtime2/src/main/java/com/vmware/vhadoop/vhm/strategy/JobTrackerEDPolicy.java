@@ -25,10 +25,12 @@ import com.vmware.vhadoop.api.vhm.HadoopActions;
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
 import com.vmware.vhadoop.api.vhm.VCActions;
 import com.vmware.vhadoop.api.vhm.strategy.EDPolicy;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy.ClusterScaleOperation;
 import com.vmware.vhadoop.util.CompoundStatus;
 import com.vmware.vhadoop.util.LogFormatter;
 import com.vmware.vhadoop.util.VhmLevel;
 import com.vmware.vhadoop.vhm.AbstractClusterMapReader;
+import com.vmware.vhadoop.vhm.VMStateSubscriptions;
 
 public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPolicy {
    private static final Logger _log = Logger.getLogger(JobTrackerEDPolicy.class.getName());
@@ -73,10 +75,16 @@ public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPo
          /* pass ttVMids in here for now - this is currently bogus but harmless - all this does currently is delete any exclude list */
          _hadoopActions.recommissionTTs(ttVmIds, hadoopCluster);
 
+         if (isCancelled(clusterId, "powering on task trackers")) {
+            return new HashSet<String>();
+         }
          if (_vcActions.changeVMPowerState(ttVmIds, true) == null) {
             status.registerTaskFailed(false, "failed to change VM power state in vCenter");
             _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: failed to power on task trackers");
          } else {
+            if (isCancelled(clusterId, "verifying powered on task trackers")) {
+               return new HashSet<String>(ttVmIds);
+            }
             if (status.screenStatusesForSpecificFailures(new String[]{VCActions.VC_POWER_ON_STATUS_KEY})) {
                Set<String> newDnsNames = blockAndGetDnsNamesForVmIdsWithoutCachedDns(ttVmIds, MAX_DNS_WAIT_TIME_MILLIS);
                if (newDnsNames != null) {
@@ -129,16 +137,27 @@ public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPo
          /* Since we can only check for de-commission of VMs with valid dns names, we should adjust the target accordingly */
          int newTargetEnabled = (vmIdsWithInvalidDns == null) ? totalTargetEnabled : totalTargetEnabled + vmIdsWithInvalidDns.size();
 
+         if (isCancelled(clusterId, "decommissioning task trackers")) {
+            return new HashSet<String>();
+         }
          _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: "+constructUserLogMessage(vmIdsWithInvalidDns, validDnsNames, true));
 
          /* Only send TTs with valid dnsNames to be properly decommissioned - the rest will just be powered off */
+         Set<String> activeDnsNames = null;
          if (validDnsNames != null) {
-            _hadoopActions.decommissionTTs(validDnsNames, hadoopCluster);
+            /* Decommissions the TTs and waits for them to leave the active list in a single remote operation - returns enabled TTs in this cluster */
+            activeDnsNames = _hadoopActions.decommissionAndCheckTTs(validDnsNames, newTargetEnabled, hadoopCluster);
+         }
+
+         /* The TTs have not been powered off yet, so they are recommissioned rather than power cycled */
+         if (isCancelled(clusterId, "powering off task trackers")) {
+            if (validDnsNames != null) {
+               _hadoopActions.recommissionTTs(validDnsNames, hadoopCluster);
+            }
+            return new HashSet<String>();
          }
 
          if (status.screenStatusesForSpecificFailures(new String[]{"decomRecomTTs"})) {
-            /* Returns enabled TTs in this cluster */
-            Set<String> activeDnsNames = _hadoopActions.checkTargetTTsSuccess("Decommission", validDnsNames, newTargetEnabled, hadoopCluster);
             /* This is the list of what we successfully de-commissioned */
             successfulIds = getVmIdSubset(ttVmIds, getActiveVmIds(activeDnsNames));
             Set<String> unsuccessfulIds = getVmIdSubset(ttVmIds, successfulIds);
@@ -146,13 +165,22 @@ public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPo
                _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: the following task trackers failed to decommission cleanly: "+LogFormatter.constructListOfLoggableVms(unsuccessfulIds));
             }
          }
-         /* Power off all the VMs, decommissioned or not - note this does not block */
+         /* Power off all the VMs, decommissioned or not - note this blocks until the power operations have completed */
          if (_vcActions.changeVMPowerState(ttVmIds, false) == null) {
             status.registerTaskFailed(false, "Failed to change VM power state in vCenter");
             _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: unexpected vCenter error powering off task trackers");
          }
       }
       return successfulIds;
+   }
+
+   /* Safe points between the decommission, power change and verification steps */
+   private boolean isCancelled(String clusterId, String nextStep) {
+      if (ClusterScaleOperation.isCurrentOperationCancelled()) {
+         _log.log(VhmLevel.USER, "<%C"+clusterId+"%C>: superseded by a newer request - not "+nextStep);
+         return true;
+      }
+      return false;
    }
 
    private Set<String> getVmIdsWithInvalidDnsNames(Map<String, String> dnsNameMap) {
@@ -193,8 +221,12 @@ public class JobTrackerEDPolicy extends AbstractClusterMapReader implements EDPo
             }
             _log.info("Looking for valid DNS names for "+LogFormatter.constructListOfLoggableVms(getVmIdsWithInvalidDnsNames(newDnsNameMap)));
             try {
-               /* Try faster initially */
-               Thread.sleep(Math.min((1000 * ++retryTimes), MAX_DNS_WAIT_SLEEP_TIME_MILLIS));
+               /* Wait to be woken by the VHM main thread when the DNS names arrive, falling back to polling if that's not possible */
+               long remainingMillis = Math.max(endTime - System.currentTimeMillis(), 0);
+               if (blockOnVMStateChange(vmIdsWithInvalidDns, VMStateSubscriptions.HAS_DNS_NAME, remainingMillis) == null) {
+                  /* Try faster initially */
+                  Thread.sleep(Math.min((1000 * ++retryTimes), MAX_DNS_WAIT_SLEEP_TIME_MILLIS));
+               }
             } catch (InterruptedException e) {}
          } while (System.currentTimeMillis() <= endTime);
          /* If we fell out of the loop, it's likely we didn't find everything we were looking for */
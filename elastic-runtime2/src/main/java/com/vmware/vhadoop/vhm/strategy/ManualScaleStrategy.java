@@ -23,6 +23,7 @@ import com.vmware.vhadoop.api.vhm.ClusterMap;
 import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 import com.vmware.vhadoop.api.vhm.VCActions;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent.Decision;
 import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
 import com.vmware.vhadoop.api.vhm.strategy.EDPolicy;
 import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
@@ -111,10 +112,13 @@ public class ManualScaleStrategy extends AbstractClusterMapReader implements Sca
             if (delta > 0) {
                vmsToED = _vmChooser.chooseVMsToEnable(clusterId, delta);
                limitEvent.reportProgress(10, null);
-               if ((vmsToED != null) && !vmsToED.isEmpty()) {
+               if ((vmsToED != null) && !vmsToED.isEmpty() && !isCancellationRequested()) {
                   /* Note that this returns successfully enabled VM IDs from the input set of VMs*/
                   Set<String> enabledTTs = _enableDisablePolicy.enableTTs(vmsToED, targetSize, clusterId);
-                  if (enabledTTs != null) {
+                  if (isCancellationRequested()) {
+                     /* Only the VMs that were powered on are recorded and there's no point in waiting for them */
+                     addDecisionIfNotEmpty(returnEvent, enabledTTs, ClusterScaleCompletionEvent.ENABLE);
+                  } else if (enabledTTs != null) {
                      _log.fine("Enabled TTs: "+enabledTTs);
                      unresponsiveVmIds = diffIds(vmsToED, enabledTTs);
                      limitEvent.reportProgress(30, null);
@@ -131,10 +135,12 @@ public class ManualScaleStrategy extends AbstractClusterMapReader implements Sca
             } else if (delta < 0) {
                vmsToED = _vmChooser.chooseVMsToDisable(clusterId, delta);
                limitEvent.reportProgress(10, null);
-               if ((vmsToED != null) && !vmsToED.isEmpty()) {
+               if ((vmsToED != null) && !vmsToED.isEmpty() && !isCancellationRequested()) {
                   /* Note that this returns disabled VM IDs for the cluster */
                   Set<String> disabledTTs = _enableDisablePolicy.disableTTs(vmsToED, targetSize, clusterId);
-                  if (disabledTTs != null) {
+                  if (isCancellationRequested()) {
+                     addDecisionIfNotEmpty(returnEvent, disabledTTs, ClusterScaleCompletionEvent.DISABLE);
+                  } else if (disabledTTs != null) {
                      _log.fine("Disabled TTs: "+disabledTTs);
                      unresponsiveVmIds = diffIds(vmsToED, disabledTTs);
                      limitEvent.reportProgress(30, null);
@@ -149,7 +155,10 @@ public class ManualScaleStrategy extends AbstractClusterMapReader implements Sca
                   }
                }
             }
-            if (tlStatus.getFailedTaskCount() == 0) {
+            if (isCancellationRequested()) {
+               /* The newer instruction which superseded this one is handled as soon as this operation completes */
+               limitEvent.reportError("superseded by a newer instruction before it could complete");
+            } else if (tlStatus.getFailedTaskCount() == 0) {
                limitEvent.reportCompletion();
             } else {
                if (unresponsiveVmIds != null) {
@@ -174,6 +183,12 @@ public class ManualScaleStrategy extends AbstractClusterMapReader implements Sca
          return returnEvent;
       }
 
+      private void addDecisionIfNotEmpty(ClusterScaleDecision returnEvent, Set<String> vmIds, Decision decision) {
+         if ((vmIds != null) && !vmIds.isEmpty()) {
+            returnEvent.addDecision(vmIds, decision);
+         }
+      }
+
       private Set<String> diffIds(Set<String> vmIdsInstructed, Set<String> vmIdsInitialized) {
          Set<String> result = new HashSet<String>(vmIdsInstructed);
          result.removeAll(vmIdsInitialized);
@@ -20,10 +20,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,10 +38,22 @@ public class VcAdapter implements VCActions {
    private static long WAIT_FOR_UPDATES_CONNECTION_TIMEOUT_MILLIS = 120000;   /* WaitForUpdates will block for at most this period */
    private static long STATS_POLL_CONNECTION_TIMEOUT_MILLIS = 5000;   /* Stats collection timeout should be short */     
    private static long SLEEP_RETRY_LOOKING_FOR_VALID_CLUSTERS = 5000;   /* If no clusters are installed, we should be pretty much dormant */
+   private static long CLIENT_POOL_HEALTH_CHECK_INTERVAL_MILLIS = 60000;   /* Pooled clients idle for longer than this are tested before use */
+
+   public static final String CLIENT_POOL_SIZE_PROP_KEY = "vcClientPoolSize";
+   public static final String CLIENT_POOL_MAX_IN_FLIGHT_PROP_KEY = "vcClientMaxInFlight";
+   public static final String CLIENT_POOL_IDLE_MILLIS_PROP_KEY = "vcClientIdleMillis";
+
+   /* A pool size of 0 disables the pool, so that all control operations use the control client */
+   public static final int DEFAULT_CLIENT_POOL_SIZE = 4;
+   public static final int DEFAULT_CLIENT_POOL_MAX_IN_FLIGHT = 2;
+   public static final long DEFAULT_CLIENT_POOL_IDLE_MILLIS = 300000;
 
    private Client _controlClient; // used for VC control operations and is the parent client for the others
    private Client _waitForUpdateClient;   // used for the main waitForPropertyChange loop
    private Client _statsPollClient;   // used for VC stats collection
+   private final VcClientPool<Client> _clientPool;   // clients cloned from the control client, used for power operations and folder listing
+   private boolean _useCert;
    private VcVlsi _vcVlsi;
    private final VcCredentials _vcCreds;
    private final String _rootFolderName; // root folder for this VHM instance
@@ -71,6 +80,7 @@ public class VcAdapter implements VCActions {
 
    // returns true if it successfully connected to VC
    private boolean initClients(boolean useCert) {
+      _useCert = useCert;
       try {
          _controlClient = _vcVlsi.connect(_vcCreds, useCert, null, CONTROL_CONNECTION_TIMEOUT_MILLIS);
          _waitForUpdateClient = _vcVlsi.connect(_vcCreds, useCert, _controlClient, WAIT_FOR_UPDATES_CONNECTION_TIMEOUT_MILLIS);
@@ -111,15 +121,38 @@ public class VcAdapter implements VCActions {
       boolean success = _vcVlsi.testConnection(client);
       if (!success) {
          _log.warning("VHM: connection to vCenter dropped, attempting reconnection");
+         if (_clientPool != null) {
+            _clientPool.clear();
+         }
          return connect();
       }
       return success;
    }
 
    public VcAdapter(VcCredentials vcCreds, String rootFolderName) {
+      this(vcCreds, rootFolderName, DEFAULT_CLIENT_POOL_SIZE, DEFAULT_CLIENT_POOL_MAX_IN_FLIGHT, DEFAULT_CLIENT_POOL_IDLE_MILLIS);
+   }
+
+   public VcAdapter(VcCredentials vcCreds, String rootFolderName, int clientPoolSize, int clientPoolMaxInFlight, long clientPoolIdleMillis) {
       _rootFolderName = rootFolderName;
       _vcCreds = vcCreds;
       _vcVlsi = new VcVlsi();
+      _clientPool = (clientPoolSize > 0) ? new VcClientPool<Client>(new VcClientPool.ClientFactory<Client>() {
+         @Override
+         public Client createClient() throws Exception {
+            return _vcVlsi.connect(_vcCreds, _useCert, _controlClient, CONTROL_CONNECTION_TIMEOUT_MILLIS);
+         }
+
+         @Override
+         public boolean isHealthy(Client client) {
+            return _vcVlsi.testConnection(client);
+         }
+
+         @Override
+         public void closeClient(Client client) {
+            _vcVlsi.closeConnection(client);
+         }
+      }, clientPoolSize, clientPoolMaxInFlight, clientPoolIdleMillis, CLIENT_POOL_HEALTH_CHECK_INTERVAL_MILLIS) : null;
       if (!connect()) {
          _log.warning("VHM: could not initialize connection to vCenter");
       }
@@ -127,6 +160,9 @@ public class VcAdapter implements VCActions {
    
    private boolean resetConnection() {
       _controlClient = _waitForUpdateClient = _statsPollClient = null;
+      if (_clientPool != null) {
+         _clientPool.clear();
+      }
       _vcVlsi.resetConnection();
       _vcVlsi.setThreadLocalCompoundStatus(_threadLocalStatus);
       _waitForUpdatesVersion = "";
@@ -139,45 +175,42 @@ public class VcAdapter implements VCActions {
          return null;
       }
       Map<String, Task> taskList = null;
-      if (powerOn) {
-         taskList = _vcVlsi.powerOnVMs(_controlClient, vmMoRefs);
-      } else {
-         taskList = _vcVlsi.powerOffVMs(_controlClient, vmMoRefs);
+      Client client = acquireClient();
+      try {
+         if (powerOn) {
+            taskList = _vcVlsi.powerOnVMs(client, _controlClient, vmMoRefs);
+         } else {
+            taskList = _vcVlsi.powerOffVMs(client, vmMoRefs);
+         }
+      } finally {
+         releaseClient(client);
       }
       return convertTaskListToFutures(taskList);
    }
 
-   private Map<String, Future<Boolean>> convertTaskListToFutures(Map<String, Task> taskList) {
-      Map<String, Future<Boolean>> result = new HashMap<String, Future<Boolean>>();
-      for (String moRef : taskList.keySet()) {
-         final Task task = taskList.get(moRef);
-         result.put(moRef, new Future<Boolean>() {
-            @Override
-            public boolean cancel(boolean arg0) {
-               return false;
-            }
-
-            @Override
-            public Boolean get() throws InterruptedException, ExecutionException {
-               return _vcVlsi.waitForTask(_controlClient, task);
-            }
-
-            @Override
-            public Boolean get(long arg0, TimeUnit arg1) throws InterruptedException, ExecutionException, TimeoutException {
-               return null;
-            }
-
-            @Override
-            public boolean isCancelled() {
-               return false;
-            }
-
-            @Override
-            public boolean isDone() {
-               return false;
-            }});
+   /* Falls back to the control client if the pool is disabled or cannot provide a client */
+   private Client acquireClient() {
+      Client client = null;
+      if (_clientPool != null) {
+         try {
+            client = _clientPool.acquire();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
       }
-      return result;
+      return (client == null) ? _controlClient : client;
+   }
+
+   private void releaseClient(Client client) {
+      if ((_clientPool != null) && (client != _controlClient)) {
+         _clientPool.release(client);
+      }
+   }
+
+   /* All of the tasks are waited on together by the VcVlsi task monitor, rather than each Future waiting on a collector of its own.
+    * The monitor always uses the control client, whichever pooled client issued the tasks */
+   private Map<String, Future<Boolean>> convertTaskListToFutures(Map<String, Task> taskList) {
+      return _vcVlsi.monitorTasks(_controlClient, taskList);
    }
 
    @Override
@@ -226,7 +259,12 @@ public class VcAdapter implements VCActions {
       if (!validateConnection(_controlClient)) {
          return null;
       }
-      return _vcVlsi.getVMsInFolder(_controlClient, _rootFolderName, folderName);
+      Client client = acquireClient();
+      try {
+         return _vcVlsi.getVMsInFolder(client, _rootFolderName, folderName);
+      } finally {
+         releaseClient(client);
+      }
    }
 
    @Override
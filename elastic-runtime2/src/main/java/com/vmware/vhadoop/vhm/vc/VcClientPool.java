@@ -0,0 +1,331 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm.vc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of VC clients which are shared between concurrent operations, so that they do not all serialize on a single connection.
+ * Each client has at most maxInFlightPerClient operations in progress. A new client is created when every existing client is busy,
+ * up to maxClients, after which callers wait for a client to become available.
+ * A client which has been idle for longer than the health check interval is tested before it is handed out, and one which has been
+ * idle for longer than the idle timeout is closed.
+ * Callers wait on a j.u.c Condition rather than a monitor, so that a virtual thread waiting for a client does not pin its carrier thread.
+ * The pool is generic in the client type so that its behavior can be tested without a VC
+ */
+public class VcClientPool<C> {
+   private static final Logger _log = Logger.getLogger(VcClientPool.class.getName());
+
+   public interface ClientFactory<C> {
+      /* Returns null if the client could not be created */
+      C createClient() throws Exception;
+
+      boolean isHealthy(C client);
+
+      void closeClient(C client);
+   }
+
+   private static class PooledClient<C> {
+      final C _client;
+      int _inFlight;
+      long _lastUsedTime;
+      boolean _retired;      /* Removed from the pool while in use, so it is closed once released */
+      boolean _beingChecked; /* Not handed to anyone else until its health check has passed */
+
+      PooledClient(C client, long now) {
+         _client = client;
+         _lastUsedTime = now;
+      }
+   }
+
+   private final ClientFactory<C> _factory;
+   private final int _maxClients;
+   private final int _maxInFlightPerClient;
+   private final long _idleTimeoutMillis;
+   private final long _healthCheckIntervalMillis;
+
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _clientAvailable = _lock.newCondition();
+
+   private final List<PooledClient<C>> _clients = new ArrayList<PooledClient<C>>();
+   private final List<PooledClient<C>> _retiredClients = new ArrayList<PooledClient<C>>();
+   private int _clientsBeingCreated;
+
+   private long _clientsCreated;
+   private long _clientsEvicted;
+   private long _unhealthyClients;
+   private long _waitsForClient;
+
+   public VcClientPool(ClientFactory<C> factory, int maxClients, int maxInFlightPerClient, long idleTimeoutMillis, long healthCheckIntervalMillis) {
+      _factory = factory;
+      _maxClients = Math.max(1, maxClients);
+      _maxInFlightPerClient = Math.max(1, maxInFlightPerClient);
+      _idleTimeoutMillis = idleTimeoutMillis;
+      _healthCheckIntervalMillis = healthCheckIntervalMillis;
+   }
+
+   /* Called with the lock held. A client whose health check is in progress is not considered */
+   private PooledClient<C> getLeastLoadedClient() {
+      PooledClient<C> result = null;
+      for (PooledClient<C> pooledClient : _clients) {
+         if (!pooledClient._beingChecked && ((result == null) || (pooledClient._inFlight < result._inFlight))) {
+            result = pooledClient;
+         }
+      }
+      return result;
+   }
+
+   /* Called with the lock held. Returns the clients which should be closed once the lock is released */
+   private List<C> evictIdleClients(long now) {
+      List<C> toClose = new ArrayList<C>();
+      for (int i = _clients.size() - 1; i >= 0; i--) {
+         PooledClient<C> pooledClient = _clients.get(i);
+         if ((pooledClient._inFlight == 0) && ((now - pooledClient._lastUsedTime) > _idleTimeoutMillis)) {
+            _clients.remove(i);
+            toClose.add(pooledClient._client);
+            _clientsEvicted++;
+         }
+      }
+      return toClose;
+   }
+
+   private void closeClients(List<C> clients) {
+      for (C client : clients) {
+         try {
+            _factory.closeClient(client);
+         } catch (Exception e) {
+            _log.log(Level.FINE, "Unable to close VC client", e);
+         }
+      }
+   }
+
+   /**
+    * Returns a client for a single operation, which must be passed to release() once the operation is complete
+    * Returns null if no client could be created, in which case the caller should fall back to a client of its own
+    */
+   public C acquire() throws InterruptedException {
+      while (true) {
+         PooledClient<C> candidate = null;
+         boolean create = false;
+         boolean needsHealthCheck = false;
+         List<C> toClose;
+         _lock.lock();
+         try {
+            while (true) {
+               long now = System.currentTimeMillis();
+               toClose = evictIdleClients(now);
+               candidate = getLeastLoadedClient();
+               if (((candidate == null) || (candidate._inFlight > 0)) && ((_clients.size() + _clientsBeingCreated) < _maxClients)) {
+                  /* Only add a client when none is idle */
+                  candidate = null;
+                  create = true;
+                  _clientsBeingCreated++;
+                  break;
+               }
+               if ((candidate != null) && (candidate._inFlight < _maxInFlightPerClient)) {
+                  needsHealthCheck = (candidate._inFlight == 0) && ((now - candidate._lastUsedTime) > _healthCheckIntervalMillis);
+                  candidate._beingChecked = needsHealthCheck;
+                  candidate._inFlight++;
+                  break;
+               }
+               if (!toClose.isEmpty()) {
+                  /* Close the evicted clients before waiting */
+                  break;
+               }
+               _waitsForClient++;
+               _clientAvailable.await();
+            }
+         } finally {
+            _lock.unlock();
+         }
+         closeClients(toClose);
+         if (create) {
+            return createClient();
+         }
+         if (candidate == null) {
+            continue;
+         }
+         if (!needsHealthCheck) {
+            return candidate._client;
+         }
+         if (_factory.isHealthy(candidate._client)) {
+            _lock.lock();
+            try {
+               candidate._beingChecked = false;
+               candidate._lastUsedTime = System.currentTimeMillis();
+               /* Others may have been waiting while it was being checked */
+               _clientAvailable.signalAll();
+            } finally {
+               _lock.unlock();
+            }
+            return candidate._client;
+         }
+         _log.info("Removing VC client which failed its health check from the pool");
+         _lock.lock();
+         try {
+            _clients.remove(candidate);
+            _retiredClients.remove(candidate);
+            _unhealthyClients++;
+            _clientAvailable.signalAll();
+         } finally {
+            _lock.unlock();
+         }
+         closeClients(Collections.singletonList(candidate._client));
+      }
+   }
+
+   private C createClient() {
+      C client = null;
+      try {
+         client = _factory.createClient();
+      } catch (Exception e) {
+         _log.log(Level.INFO, "Unable to create pooled VC client", e);
+      }
+      _lock.lock();
+      try {
+         _clientsBeingCreated--;
+         if (client != null) {
+            PooledClient<C> pooledClient = new PooledClient<C>(client, System.currentTimeMillis());
+            pooledClient._inFlight = 1;
+            _clients.add(pooledClient);
+            _clientsCreated++;
+         }
+         _clientAvailable.signalAll();
+      } finally {
+         _lock.unlock();
+      }
+      return client;
+   }
+
+   public void release(C client) {
+      boolean close = false;
+      _lock.lock();
+      try {
+         PooledClient<C> pooledClient = findClient(_clients, client);
+         if (pooledClient == null) {
+            pooledClient = findClient(_retiredClients, client);
+         }
+         if (pooledClient == null) {
+            return;
+         }
+         pooledClient._inFlight--;
+         pooledClient._lastUsedTime = System.currentTimeMillis();
+         if (pooledClient._retired && (pooledClient._inFlight == 0)) {
+            _retiredClients.remove(pooledClient);
+            close = true;
+         }
+         _clientAvailable.signalAll();
+      } finally {
+         _lock.unlock();
+      }
+      if (close) {
+         closeClients(Collections.singletonList(client));
+      }
+   }
+
+   private PooledClient<C> findClient(List<PooledClient<C>> pooledClients, C client) {
+      for (PooledClient<C> pooledClient : pooledClients) {
+         if (pooledClient._client == client) {
+            return pooledClient;
+         }
+      }
+      return null;
+   }
+
+   /* Closes every client in the pool, for example when the connection to VC has been reset. Clients in use are closed once released */
+   public void clear() {
+      List<C> toClose = new ArrayList<C>();
+      _lock.lock();
+      try {
+         for (PooledClient<C> pooledClient : _clients) {
+            if (pooledClient._inFlight == 0) {
+               toClose.add(pooledClient._client);
+            } else {
+               pooledClient._retired = true;
+               _retiredClients.add(pooledClient);
+            }
+         }
+         _clients.clear();
+         _clientAvailable.signalAll();
+      } finally {
+         _lock.unlock();
+      }
+      closeClients(toClose);
+   }
+
+   public int getNumClients() {
+      _lock.lock();
+      try {
+         return _clients.size();
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   public long getClientsCreated() {
+      _lock.lock();
+      try {
+         return _clientsCreated;
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   public long getClientsEvicted() {
+      _lock.lock();
+      try {
+         return _clientsEvicted;
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   public long getUnhealthyClients() {
+      _lock.lock();
+      try {
+         return _unhealthyClients;
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   public long getWaitsForClient() {
+      _lock.lock();
+      try {
+         return _waitsForClient;
+      } finally {
+         _lock.unlock();
+      }
+   }
+
+   @Override
+   public String toString() {
+      _lock.lock();
+      try {
+         return "VcClientPool{clients="+_clients.size()+", created="+_clientsCreated+", evicted="+_clientsEvicted+
+               ", unhealthy="+_unhealthyClients+", waits="+_waitsForClient+"}";
+      } finally {
+         _lock.unlock();
+      }
+   }
+}
@@ -30,9 +30,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,6 +51,7 @@ import com.vmware.vhadoop.util.CompoundStatus;
 import com.vmware.vhadoop.util.LogFormatter;
 import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
 import com.vmware.vim.binding.impl.vmodl.TypeNameImpl;
+import com.vmware.vim.binding.vim.Datacenter;
 import com.vmware.vim.binding.vim.Folder;
 import com.vmware.vim.binding.vim.PerformanceManager;
 import com.vmware.vim.binding.vim.ServiceInstance;
@@ -53,6 +61,9 @@ import com.vmware.vim.binding.vim.Task;
 import com.vmware.vim.binding.vim.TaskInfo;
 import com.vmware.vim.binding.vim.VirtualMachine;
 import com.vmware.vim.binding.vim.VirtualMachine.PowerState;
+import com.vmware.vim.binding.vim.cluster.AttemptedVmInfo;
+import com.vmware.vim.binding.vim.cluster.NotAttemptedVmInfo;
+import com.vmware.vim.binding.vim.cluster.PowerOnVmResult;
 import com.vmware.vim.binding.vim.fault.HostConnectFault;
 import com.vmware.vim.binding.vim.fault.VimFault;
 import com.vmware.vim.binding.vim.option.OptionValue;
@@ -62,6 +73,8 @@ import com.vmware.vim.binding.vim.view.ViewManager;
 import com.vmware.vim.binding.vmodl.DynamicProperty;
 import com.vmware.vim.binding.vmodl.ManagedObjectReference;
 import com.vmware.vim.binding.vmodl.TypeName;
+import com.vmware.vim.binding.vmodl.fault.ManagedObjectNotFound;
+import com.vmware.vim.binding.vmodl.fault.NotSupported;
 import com.vmware.vim.binding.vmodl.fault.RequestCanceled;
 import com.vmware.vim.binding.vmodl.query.InvalidCollectorVersion;
 import com.vmware.vim.binding.vmodl.query.InvalidProperty;
@@ -107,12 +120,25 @@ public class VcVlsi {
    static final String VC_MOREF_TYPE_VM = "VirtualMachine";
    static final String VC_MOREF_TYPE_FOLDER = "Folder";
    static final String VC_MOREF_TYPE_CONTAINER_VIEW = "ContainerView";
+   static final String VC_MOREF_TYPE_DATACENTER = "Datacenter";
    private static final TypeNameImpl typeTask = new TypeNameImpl(VC_MOREF_TYPE_TASK);
    private static final TypeNameImpl typeVM = new TypeNameImpl(VC_MOREF_TYPE_VM);
    private static final TypeNameImpl typeFolder = new TypeNameImpl(VC_MOREF_TYPE_FOLDER);
    private static final TypeNameImpl typeContainerView = new TypeNameImpl(VC_MOREF_TYPE_CONTAINER_VIEW);
 
    private static final int propertyCollectorTimeout = 300;
+   /* The task monitor uses the control client, whose HTTP requests time out after 120s, so each wait must return well before that */
+   private static final int taskMonitorMaxWaitSeconds = 60;
+   private static final long TASK_MONITOR_MIN_BACKOFF_MILLIS = 1000;
+   private static final long TASK_MONITOR_MAX_BACKOFF_MILLIS = 30000;
+   /* Bounds the size of each UpdateSet. A larger set of changes, such as the initial sync of a large inventory, arrives as a series of pages */
+   private static final int waitForUpdatesMaxObjectUpdates = 100;
+
+   /* Each VLSI call consumes a client executor thread for the duration of the blocking call, so this bounds the calls in flight on a client */
+   private static final int VLSI_CLIENT_EXECUTOR_THREADS = 4;
+   private static final int POWER_REQUESTS_IN_FLIGHT = VLSI_CLIENT_EXECUTOR_THREADS;
+   private static final int MULTI_VM_POWER_ON_BATCH_SIZE = 32;
+   private static final String MULTI_VM_OVERRIDE_AUTOMATION_LEVEL = "OverrideAutomationLevel";
 
    static final String VHM_EXTRA_CONFIG_PREFIX = "vhmInfo.";
    static final String VHM_EXTRA_CONFIG_UUID = "vhmInfo.serengeti.uuid";
@@ -132,7 +158,17 @@ public class VcVlsi {
 
    private ThreadLocalCompoundStatus _threadLocalStatus;
    private PropertyCollector _waitingOnPc;
-   
+   private TaskMonitor _taskMonitor;      /* Created lazily for the client which is used to change power state */
+
+   /* Folder MoRefs keyed by the MoRef of the parent folder and the folder name. MoRefs are the same in every session, so are shared by all clients */
+   private final Map<String, ManagedObjectReference> _folderCache = new HashMap<String, ManagedObjectReference>();
+   /* A ContainerView belongs to the session which created it, so views are cached per client, keyed by container MoRef and type */
+   private final Map<Client, Map<String, ContainerView>> _containerViewCache = new WeakHashMap<Client, Map<String, ContainerView>>();
+   private final Map<Client, ServiceInstanceContent> _serviceInstanceContentCache = new WeakHashMap<Client, ServiceInstanceContent>();
+   /* The datacenter used for multi-VM power on, per client. A null value means there is not exactly one datacenter */
+   private final Map<Client, Datacenter> _singleDatacenterCache = new WeakHashMap<Client, Datacenter>();
+   private volatile boolean _multiVMPowerOnSupported = true;
+
    static {
       VmodlContext.initContext(new String[] { "com.vmware.vim.binding.vim" });
    }
@@ -177,9 +213,60 @@ public class VcVlsi {
       return vcClient.createStub(ServiceInstance.class, svcRef);
    }
 
+   /* The content does not change for the life of the client, so is only retrieved once */
    private ServiceInstanceContent getServiceInstanceContent(Client vcClient) throws ConnectionException {
-      ServiceInstance svc = getServiceInstance(vcClient);
-      return svc.retrieveContent();
+      ServiceInstanceContent sic;
+      synchronized(_serviceInstanceContentCache) {
+         sic = _serviceInstanceContentCache.get(vcClient);
+      }
+      if (sic == null) {
+         ServiceInstance svc = getServiceInstance(vcClient);
+         sic = svc.retrieveContent();
+         synchronized(_serviceInstanceContentCache) {
+            _serviceInstanceContentCache.put(vcClient, sic);
+         }
+      }
+      return sic;
+   }
+
+   /* Called if a cached folder or container view turns out to be stale. The next lookup traverses the inventory again */
+   private void invalidateInventoryCaches() {
+      _log.fine("Invalidating cached folders and container views");
+      synchronized(_folderCache) {
+         _folderCache.clear();
+      }
+      synchronized(_singleDatacenterCache) {
+         _singleDatacenterCache.clear();
+      }
+      List<ContainerView> evictedViews = new ArrayList<ContainerView>();
+      synchronized(_containerViewCache) {
+         for (Map<String, ContainerView> views : _containerViewCache.values()) {
+            evictedViews.addAll(views.values());
+         }
+         _containerViewCache.clear();
+      }
+      for (ContainerView cView : evictedViews) {
+         destroyContainerView(cView);
+      }
+   }
+
+   /* A view stays on the server until its session ends unless it is destroyed. It may already have gone, so failure is not an error */
+   private void destroyContainerView(ContainerView cView) {
+      try {
+         cView.destroy();
+      } catch (Exception e) {
+         _log.fine("Could not destroy container view: "+e);
+      }
+   }
+
+   /* Drops everything cached for a client which will no longer be used. Its container views go with its session */
+   private void removeCachedClient(Client vcClient) {
+      synchronized(_serviceInstanceContentCache) {
+         _serviceInstanceContentCache.remove(vcClient);
+      }
+      synchronized(_containerViewCache) {
+         _containerViewCache.remove(vcClient);
+      }
    }
 
    /*
@@ -238,11 +325,13 @@ public class VcVlsi {
       URI uri = new URI("https://"+credentials.vcIP+":443/sdk");
 
       // each VLSI call consumes an executor thread for the duration of the blocking call
+      // the core size is the max size as the pool only grows beyond its core size when the work queue is full
       ThreadPoolExecutor executor =
-            new ThreadPoolExecutor(1,  // core pool size
-                  4,  // max pool size
+            new ThreadPoolExecutor(VLSI_CLIENT_EXECUTOR_THREADS,  // core pool size
+                  VLSI_CLIENT_EXECUTOR_THREADS,  // max pool size
                   10, TimeUnit.SECONDS, // max thread idle time
                   new LinkedBlockingQueue<Runnable>()); // work queue
+      executor.allowCoreThreadTimeOut(true);
 
       HttpConfigurationImpl httpConfig = new HttpConfigurationImpl();
       httpConfig.setTimeoutMs((int)timeoutMillis);
@@ -274,6 +363,30 @@ public class VcVlsi {
    
    public void resetConnection() {
       _waitingOnPc = null;
+      invalidateInventoryCaches();
+      synchronized(_serviceInstanceContentCache) {
+         _serviceInstanceContentCache.clear();
+      }
+      synchronized(this) {
+         if (_taskMonitor != null) {
+            _taskMonitor.stop();
+            _taskMonitor = null;
+         }
+      }
+   }
+
+   /* Logs out of the session and releases the resources of a client which is no longer needed */
+   public void closeConnection(Client vcClient) {
+      try {
+         ServiceInstanceContent sic = getServiceInstanceContent(vcClient);
+         vcClient.createStub(SessionManager.class, sic.getSessionManager()).logout();
+      } catch (Exception e) {
+         /* The session has most likely already expired */
+         _log.fine("Unable to log out of VC session: "+e.getMessage());
+      } finally {
+         removeCachedClient(vcClient);
+         vcClient.shutdown();
+      }
    }
 
    public boolean testConnection(Client vcClient) {
@@ -390,6 +503,17 @@ public class VcVlsi {
          return _propertyCollector.retrievePropertiesEx(new FilterSpec[] {_propertyFilterSpec}, retrieveOptions);
       }
 
+      /* Retrieves the properties without creating a filter, so there is nothing on the property collector to clean up */
+      public RetrieveResult retrieveProperties(String[] properties) throws InvalidProperty, ConnectionException {
+         _propertySpec.setPathSet(properties);
+         _propertyFilterSpec.setPropSet(new PropertySpec [] {_propertySpec});
+         if (_propertyCollector == null) {
+            ServiceInstanceContent sic = getServiceInstanceContent(_vcClient);
+            _propertyCollector = _vcClient.createStub(PropertyCollector.class, sic.getPropertyCollector());
+         }
+         return _propertyCollector.retrievePropertiesEx(new FilterSpec[] {_propertyFilterSpec}, new RetrieveOptions());
+      }
+
       public RetrieveResult continueRetrieve(String token) throws InvalidProperty {
          return _propertyCollector.continueRetrievePropertiesEx(token);
       }
@@ -405,23 +529,61 @@ public class VcVlsi {
 
    }
 
+   /* Views are created on first use and then kept up to date by VC, so later lookups in the same folder need no new traversal */
+   private ContainerView getContainerView(Client client, Folder baseFolder, TypeName type) throws ConnectionException {
+      String key = baseFolder._getRef().getValue()+"/"+type.getName();
+      synchronized(_containerViewCache) {
+         Map<String, ContainerView> views = _containerViewCache.get(client);
+         ContainerView cView = (views == null) ? null : views.get(key);
+         if (cView != null) {
+            return cView;
+         }
+      }
+      ServiceInstanceContent sic = getServiceInstanceContent(client);
+      ViewManager viewMgr = client.createStub(ViewManager.class, sic.getViewManager());
+      ContainerView cView = client.createStub(ContainerView.class,
+            viewMgr.createContainerView(baseFolder._getRef(), new TypeName[] {type}, true));
+      ContainerView existing;
+      synchronized(_containerViewCache) {
+         Map<String, ContainerView> views = _containerViewCache.get(client);
+         if (views == null) {
+            views = new HashMap<String, ContainerView>();
+            _containerViewCache.put(client, views);
+         }
+         existing = views.get(key);
+         if (existing == null) {
+            views.put(key, cView);
+         }
+      }
+      /* Another thread created a view for the same key at the same time, so only one of them is kept */
+      if (existing != null) {
+         destroyContainerView(cView);
+         return existing;
+      }
+      return cView;
+   }
+
    private List<ManagedObjectReference> findObjectsInFolder(Client client, Folder baseFolder, TypeName type, String restrictToName) 
          throws InvalidProperty, ConnectionException {
       if (baseFolder == null) {
          return null;
       }
+      try {
+         return findObjectsInView(client, getContainerView(client, baseFolder, type), type, restrictToName);
+      } catch (ManagedObjectNotFound e) {
+         /* The cached view or the folder it contains has been removed. Try once more with a new view */
+         invalidateInventoryCaches();
+         return findObjectsInView(client, getContainerView(client, baseFolder, type), type, restrictToName);
+      }
+   }
 
+   private List<ManagedObjectReference> findObjectsInView(Client client, ContainerView cView, TypeName type, String restrictToName) 
+         throws InvalidProperty, ConnectionException {
       List<ManagedObjectReference> resultRefs = new ArrayList<ManagedObjectReference>();
-      ServiceInstanceContent sic = getServiceInstanceContent(client);
-
-      ViewManager viewMgr = client.createStub(ViewManager.class, sic.getViewManager());
-      ContainerView cView = client.createStub(ContainerView.class,
-            viewMgr.createContainerView(baseFolder._getRef(), new TypeName[] {type}, true));
 
+      /* The view is cached, so it is not cleaned up with the filter */
       PropertyFilter propFilter = new PropertyFilter(client, cView, type);
-      propFilter.setPropToFilter("name");
-
-      RetrieveResult rr = propFilter.retrieveProperties();
+      RetrieveResult rr = propFilter.retrieveProperties(new String[] {"name"});
       boolean done = false;
 
       while ((rr != null) && !done) {
@@ -449,20 +611,30 @@ public class VcVlsi {
             rr = propFilter.continueRetrieve(rr.getToken());
          }
       }
-
-      propFilter.cleanup();
       return resultRefs;
    }
 
+   /* A folder which is found is cached by name. A folder which is not found is looked up again next time, as it may yet be created */
    private Folder getFolderForName(Client client, Folder baseFolder, String restrictToName) throws InvalidProperty {
       if (baseFolder == null) {
          baseFolder = getRootFolder(client);
       }
-      List<ManagedObjectReference> refs = findObjectsInFolder(client, baseFolder, typeFolder, restrictToName);
-      if (refs.size() > 0) {
-         return client.createStub(Folder.class, refs.get(0));
+      String key = baseFolder._getRef().getValue()+"/"+restrictToName;
+      ManagedObjectReference folderRef;
+      synchronized(_folderCache) {
+         folderRef = _folderCache.get(key);
       }
-      return null;
+      if (folderRef == null) {
+         List<ManagedObjectReference> refs = findObjectsInFolder(client, baseFolder, typeFolder, restrictToName);
+         if (refs.size() == 0) {
+            return null;
+         }
+         folderRef = refs.get(0);
+         synchronized(_folderCache) {
+            _folderCache.put(key, folderRef);
+         }
+      }
+      return client.createStub(Folder.class, folderRef);
    }
 
    private PropertyFilter setupWaitForUpdates(Client vcClient, Folder baseFolder, TypeName type, String[] statePropsToGet) 
@@ -488,6 +660,7 @@ public class VcVlsi {
 
       WaitOptions waitOptions = new WaitOptions();
       waitOptions.setMaxWaitSeconds(propertyCollectorTimeout);
+      waitOptions.setMaxObjectUpdates(waitForUpdatesMaxObjectUpdates);
 
       _waitingOnPc = propCollector;
       updateSet = propCollector.waitForUpdatesEx(version, waitOptions);
@@ -601,7 +774,12 @@ public class VcVlsi {
       }
 
       if (updateSet != null) {
+         /* If the set is truncated, the new version continues from where it left off, so the next call returns the next page without waiting.
+          * Each page is returned on its own, so that it can be processed before the next one is retrieved */
          version = updateSet.getVersion();
+         if (Boolean.TRUE.equals(updateSet.getTruncated())) {
+            _log.fine("Received truncated update set; remaining updates will follow in the next page");
+         }
          FilterUpdate[] updates = updateSet.getFilterSet();
 
          //_log.log(Level.INFO, "WFU new version= " + version + " fs= " + updates);
@@ -621,62 +799,360 @@ public class VcVlsi {
       return version;
    }
 
-   boolean waitForTask(Client client, Task task) {
-      CompoundStatus status = new CompoundStatus("waitForTask");
-      boolean result = false;
-      PropertyFilter propFilter = new PropertyFilter(client, task);
-      try {
-         propFilter.setPropsToFilter(new String [] {TASK_INFO_STATE });
-         UpdateSet updateSet = null;
-         String version = "";
+   /**
+    * Waits for the completion of power on/off tasks. Rather than each task having its own filter and waitForUpdatesEx loop, a single
+    * thread waits on one PropertyCollector for all of the outstanding tasks and completes the futures of any that have finished.
+    * Each call to monitorTasks creates one filter for its tasks, which is destroyed once they have all completed.
+    * A dedicated PropertyCollector is used, so that updates for other filters in the session are not returned to the monitor.
+    * Transient errors are retried with a backoff. Outstanding tasks are only failed when the monitor is stopped on a connection reset
+    */
+   class TaskMonitor implements Runnable {
+      private final Client _client;
+      private final PropertyCollector _propertyCollector;
+      /* Outstanding tasks, keyed by task MoRef */
+      private final Map<String, TaskFuture> _outstandingTasks = new HashMap<String, TaskFuture>();
+      private Thread _monitorThread;
+      private volatile boolean _stopped;
+
+      TaskMonitor(Client client) throws ConnectionException {
+         _client = client;
+         ServiceInstanceContent sic = getServiceInstanceContent(client);
+         PropertyCollector sessionPc = client.createStub(PropertyCollector.class, sic.getPropertyCollector());
+         _propertyCollector = client.createStub(PropertyCollector.class, sessionPc.createPropertyCollector());
+      }
+
+      Map<String, Future<Boolean>> monitorTasks(Map<String, Task> tasks) throws InvalidProperty {
+         Map<String, Future<Boolean>> result = new HashMap<String, Future<Boolean>>();
+         if (tasks.isEmpty()) {
+            return result;
+         }
+         List<ObjectSpec> objectSpecs = new ArrayList<ObjectSpec>();
+         TaskBatch batch = new TaskBatch();
+         synchronized(this) {
+            for (String vmMoRef : tasks.keySet()) {
+               Task task = tasks.get(vmMoRef);
+               TaskFuture future = new TaskFuture(batch);
+               _outstandingTasks.put(task._getRef().getValue(), future);
+               batch._outstanding++;
+               result.put(vmMoRef, future);
+               ObjectSpec objectSpec = new ObjectSpec();
+               objectSpec.setObj(task._getRef());
+               objectSpec.setSkip(Boolean.FALSE);
+               objectSpecs.add(objectSpec);
+            }
+         }
+         PropertySpec propertySpec = new PropertySpec();
+         propertySpec.setType(typeTask);
+         propertySpec.setPathSet(new String[] {TASK_INFO_STATE});
+         FilterSpec filterSpec = new FilterSpec();
+         filterSpec.setObjectSet(objectSpecs.toArray(new ObjectSpec[objectSpecs.size()]));
+         filterSpec.setPropSet(new PropertySpec[] {propertySpec});
+         /* A waitForUpdatesEx which is already in progress returns as soon as the new filter reports the initial task states */
+         Filter filter = null;
+         try {
+            filter = _client.createStub(Filter.class, _propertyCollector.createFilter(filterSpec, true));
+         } finally {
+            if (filter == null) {
+               abandonTasks(tasks);
+            }
+         }
+         Filter completedFilter = null;
+         synchronized(this) {
+            batch._filter = filter;
+            if (batch._outstanding == 0) {
+               completedFilter = takeFilter(batch);
+            }
+            if (_monitorThread == null) {
+               _monitorThread = new Thread(this, "VcTaskMonitor");
+               _monitorThread.setDaemon(true);
+               _monitorThread.start();
+            }
+            notify();
+         }
+         destroyFilter(completedFilter);
+         return result;
+      }
 
+      @Override
+      public void run() {
+         String version = "";
+         long backoffMillis = TASK_MONITOR_MIN_BACKOFF_MILLIS;
          WaitOptions waitOptions = new WaitOptions();
-         waitOptions.setMaxWaitSeconds(propertyCollectorTimeout);
-
-         _mainLoop: while (true) {
-
-            _log.log(Level.INFO, "WFT waiting vesrion=" + version);
-            updateSet = propFilter.getPropertyCollector().waitForUpdatesEx(version, waitOptions);
-            if (updateSet != null) {
-               version = updateSet.getVersion();
-               FilterUpdate[] updates = updateSet.getFilterSet();
-
-               if (updates != null) {
-                  for (FilterUpdate pfu : updates) {
-                     ObjectUpdate[] objectSet = pfu.getObjectSet();
-
-                     for (ObjectUpdate obj : objectSet) {
-                        Kind kind = obj.getKind();
-                        if (kind == Kind.modify || kind == Kind.enter || kind == Kind.leave) {
-                           for (Change pc : obj.getChangeSet()) {
-                              String pcName = pc.getName();
-                              Object pcValue = pc.getVal();
-                              if (pcName.lastIndexOf(TASK_INFO_STATE) >= 0) {
-                                 TaskInfo.State state = (TaskInfo.State)pcValue;
-                                 if (state == TaskInfo.State.error) {
-                                    result = false;
-                                    break _mainLoop;
-                                 } else if (state == TaskInfo.State.success) {
-                                    result = true;
-                                    break _mainLoop;
-                                 }
-                              }
-                           }
+         waitOptions.setMaxWaitSeconds(taskMonitorMaxWaitSeconds);
+         try {
+            while (!_stopped) {
+               synchronized(this) {
+                  while (_outstandingTasks.isEmpty() && !_stopped) {
+                     wait();
+                  }
+               }
+               if (_stopped) {
+                  break;
+               }
+               UpdateSet updateSet;
+               try {
+                  updateSet = _propertyCollector.waitForUpdatesEx(version, waitOptions);
+                  backoffMillis = TASK_MONITOR_MIN_BACKOFF_MILLIS;
+               } catch (RequestCanceled e) {
+                  throw e;
+               } catch (Exception e) {
+                  if ((e instanceof ConnectionException) && (e.getCause() instanceof SocketTimeoutException)) {
+                     /* As in pcVMsInFolder, a timeout just means there were no changes */
+                     continue;
+                  }
+                  backoffMillis = backOffAfterError(e, backoffMillis);
+                  /* Starting again from an empty version returns the current state of every outstanding task */
+                  version = "";
+                  continue;
+               }
+               if (updateSet != null) {
+                  version = updateSet.getVersion();
+                  FilterUpdate[] updates = updateSet.getFilterSet();
+                  if (updates != null) {
+                     for (FilterUpdate pfu : updates) {
+                        for (ObjectUpdate obj : pfu.getObjectSet()) {
+                           handleTaskUpdate(obj);
                         }
                      }
                   }
                }
             }
+         } catch (RequestCanceled e) {
+            _log.fine("Task monitor wait has been canceled");
+         } catch (InterruptedException e) {
+            _log.fine("Task monitor has been interrupted");
+         } catch (RuntimeException e) {
+            _log.log(Level.INFO, "Unexpected exception waiting for task completion", e);
+            failOutstandingTasks("Unexpected exception waiting for task completion: "+e.getMessage());
+         }
+         synchronized(this) {
+            if (_monitorThread == Thread.currentThread()) {
+               _monitorThread = null;
+            }
+         }
+      }
+
+      /* Returns the backoff to use after the next failure. The futures are left outstanding, since the tasks carry on in vCenter regardless */
+      private long backOffAfterError(Exception e, long backoffMillis) throws InterruptedException {
+         if (!_stopped) {
+            _log.log(Level.INFO, "Error waiting for task completion. Retrying in "+backoffMillis+"ms", e);
+            Thread.sleep(backoffMillis);
+         }
+         return Math.min(backoffMillis * 2, TASK_MONITOR_MAX_BACKOFF_MILLIS);
+      }
+
+      /* The futures for tasks which could not be added to a filter are failed, so that callers do not block on them */
+      private void abandonTasks(Map<String, Task> tasks) {
+         List<TaskFuture> toFail = new ArrayList<TaskFuture>();
+         synchronized(this) {
+            for (Task task : tasks.values()) {
+               TaskFuture future = _outstandingTasks.remove(task._getRef().getValue());
+               if (future != null) {
+                  toFail.add(future);
+               }
+            }
+         }
+         for (TaskFuture future : toFail) {
+            future.complete(false, "Unable to monitor task");
+         }
+      }
+
+      private void handleTaskUpdate(ObjectUpdate obj) {
+         String taskMoRef = obj.getObj().getValue();
+         Kind kind = obj.getKind();
+         Boolean result = null;
+         if (kind == Kind.leave) {
+            /* The task has been removed before we saw it complete */
+            result = false;
+         } else if ((kind == Kind.modify) || (kind == Kind.enter)) {
+            for (Change pc : obj.getChangeSet()) {
+               if (pc.getName().lastIndexOf(TASK_INFO_STATE) >= 0) {
+                  TaskInfo.State state = (TaskInfo.State)pc.getVal();
+                  if (state == TaskInfo.State.error) {
+                     result = false;
+                  } else if (state == TaskInfo.State.success) {
+                     result = true;
+                  }
+               }
+            }
+         }
+         if (result != null) {
+            TaskFuture future;
+            Filter completedFilter = null;
+            synchronized(this) {
+               future = _outstandingTasks.remove(taskMoRef);
+               if (future != null) {
+                  completedFilter = taskCompleted(future._batch);
+               }
+            }
+            destroyFilter(completedFilter);
+            if (future != null) {
+               future.complete(result, null);
+            }
+         }
+      }
+
+      /* Called with the monitor held. Returns the filter for the batch once all of its tasks have completed, so that
+       * the caller can destroy it after releasing the monitor */
+      private Filter taskCompleted(TaskBatch batch) {
+         if (--batch._outstanding == 0) {
+            return takeFilter(batch);
          }
+         return null;
+      }
+
+      /* Called with the monitor held */
+      private Filter takeFilter(TaskBatch batch) {
+         Filter filter = batch._filter;
+         batch._filter = null;
+         return filter;
+      }
+
+      /* Destroying a filter is a call to vCenter, so must not be made with the monitor held */
+      private void destroyFilter(Filter filter) {
+         if (filter != null) {
+            try {
+               filter.destroy();
+            } catch (Exception e) {
+               _log.fine("Unable to destroy task filter: "+e.getMessage());
+            }
+         }
+      }
+
+      private void failOutstandingTasks(String message) {
+         List<TaskFuture> toFail;
+         List<Filter> completedFilters = new ArrayList<Filter>();
+         synchronized(this) {
+            toFail = new ArrayList<TaskFuture>(_outstandingTasks.values());
+            _outstandingTasks.clear();
+            for (TaskFuture future : toFail) {
+               Filter completedFilter = taskCompleted(future._batch);
+               if (completedFilter != null) {
+                  completedFilters.add(completedFilter);
+               }
+            }
+         }
+         for (Filter filter : completedFilters) {
+            destroyFilter(filter);
+         }
+         for (TaskFuture future : toFail) {
+            future.complete(false, message);
+         }
+      }
+
+      void stop() {
+         _stopped = true;
+         synchronized(this) {
+            notify();
+         }
+         try {
+            _propertyCollector.cancelWaitForUpdates();
+            _propertyCollector.destroyPropertyCollector();
+         } catch (Exception e) {
+            /* The connection has most likely been dropped, in which case the collector goes with the session */
+         }
+         failOutstandingTasks("Connection to vCenter has been reset");
+      }
+   }
+
+   /* The tasks from a single call to monitorTasks, which share a filter */
+   private static class TaskBatch {
+      Filter _filter;
+      int _outstanding;
+   }
+
+   /* Completed by the TaskMonitor thread. The result is reported to the CompoundStatus of the thread calling get() */
+   private class TaskFuture implements Future<Boolean> {
+      private final CountDownLatch _completed = new CountDownLatch(1);
+      private final TaskBatch _batch;
+      private volatile boolean _result;
+      private volatile String _failure;
+
+      TaskFuture(TaskBatch batch) {
+         _batch = batch;
+      }
+
+      void complete(boolean result, String failure) {
+         _result = result;
+         _failure = failure;
+         _completed.countDown();
+      }
+
+      private Boolean reportResult() {
+         CompoundStatus status = new CompoundStatus("waitForTask");
+         if (_failure != null) {
+            reportException(_failure, status);
+         } else {
+            status.registerTaskSucceeded();
+         }
+         getCompoundStatus().addStatus(status);
+         return _result;
+      }
+
+      @Override
+      public Boolean get() throws InterruptedException {
+         _completed.await();
+         return reportResult();
+      }
+
+      @Override
+      public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+         if (!_completed.await(timeout, unit)) {
+            throw new TimeoutException();
+         }
+         return reportResult();
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+         return false;
+      }
+
+      @Override
+      public boolean isCancelled() {
+         return false;
+      }
+
+      @Override
+      public boolean isDone() {
+         return _completed.getCount() == 0;
+      }
+   }
+
+   /* Returns a Future for each task, keyed in the same way as the tasks. The Futures block until the task completes
+    * and return true if it succeeded. If the tasks cannot be monitored, the Futures are returned already failed */
+   public Map<String, Future<Boolean>> monitorTasks(Client client, Map<String, Task> tasks) {
+      CompoundStatus status = new CompoundStatus("monitorTasks");
+      Map<String, Future<Boolean>> result = null;
+      try {
+         TaskMonitor taskMonitor;
+         synchronized(this) {
+            if ((_taskMonitor != null) && (_taskMonitor._client != client)) {
+               /* The client has changed since the connection was reset */
+               _taskMonitor.stop();
+               _taskMonitor = null;
+            }
+            if (_taskMonitor == null) {
+               _taskMonitor = new TaskMonitor(client);
+            }
+            taskMonitor = _taskMonitor;
+         }
+         result = taskMonitor.monitorTasks(tasks);
          status.registerTaskSucceeded();
       } catch (ConnectionException e) {
          reportException("Error connecting to vCenter: "+e.getMessage(), status);
       } catch (Exception e) {
-         reportException("Unexpected exception waiting for task completion", e, status);
-      } finally {
-         propFilter.cleanup();
+         reportException("Unexpected exception monitoring tasks", e, status);
       }
       getCompoundStatus().addStatus(status);
+      if (result == null) {
+         result = new HashMap<String, Future<Boolean>>();
+         for (String key : tasks.keySet()) {
+            TaskFuture failed = new TaskFuture(new TaskBatch());
+            failed.complete(false, "Unable to monitor task");
+            result.put(key, failed);
+         }
+      }
       return result;
    }
 
@@ -705,6 +1181,11 @@ public class VcVlsi {
          newVersion = WAIT_FOR_UPDATES_INVALID_COLLECTOR_VERSION_STATUS;
       } catch (InvalidProperty e) {
          _log.info("propertyCollector property is invalid: "+e);
+         invalidateInventoryCaches();
+         newVersion = WAIT_FOR_UPDATES_INVALID_PROPERTY_STATUS;
+      } catch (ManagedObjectNotFound e) {
+         _log.info("Folder for hadoop UUID "+baseFolderName+" is no longer valid: "+e);
+         invalidateInventoryCaches();
          newVersion = WAIT_FOR_UPDATES_INVALID_PROPERTY_STATUS;
       } catch (ConnectionException e) {
          reportException("Error connecting to vCenter: "+e.getMessage(), status);
@@ -715,15 +1196,29 @@ public class VcVlsi {
       return newVersion;
    }
 
+   private List<ManagedObjectReference> findVMsInFolder(Client client, String baseFolderName, String folderName) throws InvalidProperty {
+      Folder baseFolder = getFolderForName(client, null, baseFolderName);
+
+      Folder folder = getFolderForName(client, baseFolder, folderName);
+
+      return findObjectsInFolder(client, folder, typeVM, null);
+   }
+
    public List<String> getVMsInFolder(Client client, String baseFolderName, String folderName) {
       CompoundStatus status = new CompoundStatus("getVMsInFolder");
       List<String> result = null;
       try {
-         Folder baseFolder = getFolderForName(client, null, baseFolderName);
-
-         Folder folder = getFolderForName(client, baseFolder, folderName);
-
-         List<ManagedObjectReference> refs = findObjectsInFolder(client, folder, typeVM, null);
+         List<ManagedObjectReference> refs = null;
+         try {
+            refs = findVMsInFolder(client, baseFolderName, folderName);
+         } catch (InvalidProperty e) {
+            /* A cached view is no longer valid, so look again below */
+         }
+         /* An empty folder is a valid result, whereas a folder that was not found may be a stale cached folder which was replaced */
+         if (refs == null) {
+            invalidateInventoryCaches();
+            refs = findVMsInFolder(client, baseFolderName, folderName);
+         }
          if ((refs != null) && (refs.size() > 0)) {
             result = new ArrayList<String>();
             for (ManagedObjectReference ref : refs) {
@@ -756,42 +1251,229 @@ public class VcVlsi {
       status.registerTaskFailed(false, msg);
    }
 
-   public Map<String, Task> powerOnVMs(Client client, Set<String> vmMoRefs) {
-      CompoundStatus status = new CompoundStatus(VCActions.VC_POWER_ON_STATUS_KEY);
-      Map<String, Task> result = new HashMap<String, Task>();
+   /* The outcome of one batch of power requests. Failures are reported to the caller's CompoundStatus once the batch has been collected */
+   private static class PowerBatchResult {
+      final Map<String, Task> _tasks = new HashMap<String, Task>();
+      final List<String> _failures = new ArrayList<String>();
+   }
+
+   private ManagedObjectReference getVMMoRef(String moRef) {
+      ManagedObjectReference ref = new ManagedObjectReference();
+      ref.setType(VC_MOREF_TYPE_VM);
+      ref.setValue(moRef);
+      return ref;
+   }
+
+   /* Returns null if there is not exactly one datacenter, since a multi-VM power-on is scoped to a single datacenter
+    * The result is cached for each client, as datacenters are rarely added or removed */
+   private Datacenter getSingleDatacenter(Client client) throws ConnectionException {
+      synchronized(_singleDatacenterCache) {
+         if (_singleDatacenterCache.containsKey(client)) {
+            return _singleDatacenterCache.get(client);
+         }
+      }
+      ManagedObjectReference datacenterRef = null;
+      boolean multipleDatacenters = false;
+      ManagedObjectReference[] children = getRootFolder(client).getChildEntity();
+      if (children != null) {
+         for (ManagedObjectReference child : children) {
+            if (VC_MOREF_TYPE_DATACENTER.equals(child.getType())) {
+               multipleDatacenters = (datacenterRef != null);
+               if (multipleDatacenters) {
+                  break;
+               }
+               datacenterRef = child;
+            }
+         }
+      }
+      Datacenter result = ((datacenterRef == null) || multipleDatacenters) ? null : client.createStub(Datacenter.class, datacenterRef);
+      synchronized(_singleDatacenterCache) {
+         _singleDatacenterCache.put(client, result);
+      }
+      return result;
+   }
+
+   /* Issues one power request per VM, in sequence. The batches are run concurrently by the caller */
+   private PowerBatchResult changePowerStateIndividually(Client client, List<String> vmMoRefs, boolean powerOn) {
+      PowerBatchResult result = new PowerBatchResult();
       for (String moRef : vmMoRefs) {
-         ManagedObjectReference ref = new ManagedObjectReference();
-         ref.setValue(moRef);
-         VirtualMachine vm = client.createStub(VirtualMachine.class, ref);
+         VirtualMachine vm = client.createStub(VirtualMachine.class, getVMMoRef(moRef));
          try {
-            ManagedObjectReference taskRef = vm.powerOn(null);
-            Task task = client.createStub(Task.class, taskRef);
-            result.put(moRef, task);
-            status.registerTaskSucceeded();
+            ManagedObjectReference taskRef = powerOn ? vm.powerOn(null) : vm.powerOff();
+            result._tasks.put(moRef, client.createStub(Task.class, taskRef));
          } catch (Exception e) {
-            reportException("Error powering on VM: "+e.getMessage(), status);
+            result._failures.add("Error powering "+(powerOn ? "on" : "off")+" VM: "+e.getMessage());
          }
       }
-      getCompoundStatus().addStatus(status);
       return result;
    }
 
-   public Map<String, Task> powerOffVMs(Client client, Set<String> vmMoRefs) {
-      CompoundStatus status = new CompoundStatus(VCActions.VC_POWER_OFF_STATUS_KEY);
+   /* Powers on a batch of VMs with a single request. The request returns a Task for each VM that the datacenter attempted to power on.
+    * Any VM that was not attempted is powered on individually, as is the whole batch if the multi-VM request is rejected or its task fails.
+    * If the outcome of the request is not known, for example because it has not completed in time, the VMs are not powered on
+    * individually, since the request may still power them on */
+   private PowerBatchResult powerOnMultiVM(Client client, Client taskMonitorClient, Datacenter datacenter, List<String> vmMoRefs) {
+      List<String> remaining = new ArrayList<String>(vmMoRefs);
+      PowerBatchResult result = new PowerBatchResult();
+      boolean outcomeUnknown = false;
+      try {
+         ManagedObjectReference[] vmRefs = new ManagedObjectReference[vmMoRefs.size()];
+         for (int i = 0; i < vmRefs.length; i++) {
+            vmRefs[i] = getVMMoRef(vmMoRefs.get(i));
+         }
+         /* Power on as requested even when DRS is not fully automated, which is what an individual power-on does */
+         OptionValue overrideAutomation = new OptionValue();
+         overrideAutomation.setKey(MULTI_VM_OVERRIDE_AUTOMATION_LEVEL);
+         overrideAutomation.setValue(Boolean.TRUE);
+
+         Task batchTask = client.createStub(Task.class, datacenter.powerOnMultiVM(vmRefs, new OptionValue[]{overrideAutomation}));
+         outcomeUnknown = true;
+         Map<String, Task> batchTasks = new HashMap<String, Task>();
+         batchTasks.put(batchTask._getRef().getValue(), batchTask);
+         Future<Boolean> batchCompletion = monitorTasks(taskMonitorClient, batchTasks).get(batchTask._getRef().getValue());
+         boolean batchSucceeded = batchCompletion.get(propertyCollectorTimeout, TimeUnit.SECONDS);
+         outcomeUnknown = batchSucceeded;
+         if (batchSucceeded) {
+            PowerOnVmResult powerOnResult = (PowerOnVmResult)batchTask.getInfo().getResult();
+            if ((powerOnResult != null) && (powerOnResult.getAttempted() != null)) {
+               for (AttemptedVmInfo attempted : powerOnResult.getAttempted()) {
+                  if (attempted.getTask() != null) {
+                     String moRef = attempted.getVm().getValue();
+                     result._tasks.put(moRef, client.createStub(Task.class, attempted.getTask()));
+                     remaining.remove(moRef);
+                  }
+               }
+            }
+            if ((powerOnResult != null) && (powerOnResult.getNotAttempted() != null)) {
+               for (NotAttemptedVmInfo notAttempted : powerOnResult.getNotAttempted()) {
+                  _log.fine("Multi-VM power on did not attempt VM "+notAttempted.getVm().getValue()+"; powering it on individually");
+               }
+            }
+            outcomeUnknown = false;
+         }
+      } catch (NotSupported e) {
+         _log.info("Multi-VM power on is not supported by vCenter; VMs will be powered on individually");
+         _multiVMPowerOnSupported = false;
+      } catch (TimeoutException e) {
+         _log.warning("Multi-VM power on of "+remaining.size()+" VMs did not complete within "+propertyCollectorTimeout+"s");
+      } catch (Exception e) {
+         if (!outcomeUnknown) {
+            /* The request was rejected, possibly because the cached datacenter is stale */
+            synchronized(_singleDatacenterCache) {
+               _singleDatacenterCache.remove(client);
+            }
+         }
+         _log.log(Level.INFO, "Multi-VM power on failed", e);
+      }
+      if (outcomeUnknown && !remaining.isEmpty()) {
+         result._failures.add("Unable to confirm multi-VM power on of "+remaining.size()+" VMs - not powering them on individually");
+      } else if (!remaining.isEmpty()) {
+         _log.info("Powering on "+remaining.size()+" VMs individually");
+         PowerBatchResult fallback = changePowerStateIndividually(client, remaining, true);
+         result._tasks.putAll(fallback._tasks);
+         result._failures.addAll(fallback._failures);
+      }
+      return result;
+   }
+
+   /* Splits the VMs into batches which are issued concurrently, so that the time taken scales with the number of batches in flight
+    * rather than the number of VMs. Powering on uses one multi-VM request per batch where the datacenter supports it. Otherwise the
+    * VMs are divided between at most POWER_REQUESTS_IN_FLIGHT batches of individual requests.
+    * Each call has its own executor, bounded at POWER_REQUESTS_IN_FLIGHT threads, so that a batch which is slow to complete in one call
+    * does not hold up the batches of others. The number of concurrent calls is bounded by PowerOperationAdmissionControl */
+   private Map<String, Task> changePowerState(final Client client, final Client taskMonitorClient, Set<String> vmMoRefs, final boolean powerOn,
+         CompoundStatus status) {
       Map<String, Task> result = new HashMap<String, Task>();
+      if (vmMoRefs.isEmpty()) {
+         return result;
+      }
+      Datacenter datacenter = null;
+      if (powerOn && _multiVMPowerOnSupported) {
+         try {
+            datacenter = getSingleDatacenter(client);
+         } catch (Exception e) {
+            _log.log(Level.INFO, "Unable to find the datacenter for a multi-VM power on", e);
+         }
+      }
+      final Datacenter multiVMDatacenter = datacenter;
+      int numBatches = (multiVMDatacenter != null) ? (vmMoRefs.size() + MULTI_VM_POWER_ON_BATCH_SIZE - 1) / MULTI_VM_POWER_ON_BATCH_SIZE :
+         Math.min(vmMoRefs.size(), POWER_REQUESTS_IN_FLIGHT);
+      List<List<String>> batches = new ArrayList<List<String>>();
+      for (int i = 0; i < numBatches; i++) {
+         batches.add(new ArrayList<String>());
+      }
+      int index = 0;
       for (String moRef : vmMoRefs) {
-         ManagedObjectReference ref = new ManagedObjectReference();
-         ref.setValue(moRef);
-         VirtualMachine vm = client.createStub(VirtualMachine.class, ref);
+         batches.get(index++ % numBatches).add(moRef);
+      }
+
+      final String operation = powerOn ? "on" : "off";
+      long startTime = System.currentTimeMillis();
+      int numThreads = Math.min(numBatches, POWER_REQUESTS_IN_FLIGHT);
+      ThreadPoolExecutor powerRequestExecutor = new ThreadPoolExecutor(numThreads, numThreads,
+            0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VcPowerRequest");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      List<Future<PowerBatchResult>> pending = new ArrayList<Future<PowerBatchResult>>();
+      for (final List<String> batch : batches) {
+         pending.add(powerRequestExecutor.submit(new Callable<PowerBatchResult>() {
+            @Override
+            public PowerBatchResult call() {
+               long batchStartTime = System.currentTimeMillis();
+               PowerBatchResult batchResult = (multiVMDatacenter != null) ? powerOnMultiVM(client, taskMonitorClient, multiVMDatacenter, batch) :
+                  changePowerStateIndividually(client, batch, powerOn);
+               _log.info("Power "+operation+" batch of "+batch.size()+" VMs issued in "+(System.currentTimeMillis() - batchStartTime)+"ms"+
+                     ((multiVMDatacenter != null) ? " using multi-VM power on" : ""));
+               return batchResult;
+            }
+         }));
+      }
+      for (int i = 0; i < pending.size(); i++) {
          try {
-            ManagedObjectReference taskRef = vm.powerOff();
-            Task task = client.createStub(Task.class, taskRef);
-            result.put(moRef, task);
-            status.registerTaskSucceeded();
-         } catch (Exception e) {
-            reportException("Error powering off VM: "+e.getMessage(), status);
+            PowerBatchResult batchResult = pending.get(i).get();
+            result.putAll(batchResult._tasks);
+            for (int j = 0; j < batchResult._tasks.size(); j++) {
+               status.registerTaskSucceeded();
+            }
+            for (String failure : batchResult._failures) {
+               reportException(failure, status);
+            }
+         } catch (InterruptedException e) {
+            reportException("Interrupted while powering "+operation+" VMs", status);
+            Thread.currentThread().interrupt();
+            break;
+         } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+               /* Errors are not something a power request can recover from, so they are not reported as a failed request */
+               throw (Error)cause;
+            }
+            reportException("Unexpected exception powering "+operation+" "+batches.get(i).size()+" VMs",
+                  (cause instanceof Exception) ? (Exception)cause : e, status);
          }
       }
+      /* Any batches still running after an interrupt carry on, but the threads exit once they are done */
+      powerRequestExecutor.shutdown();
+      _log.info("Power "+operation+" of "+vmMoRefs.size()+" VMs issued in "+batches.size()+" batches in "+(System.currentTimeMillis() - startTime)+"ms");
+      return result;
+   }
+
+   /* The power requests are issued using client. A multi-VM power on waits for its batch task using the task monitor for taskMonitorClient */
+   public Map<String, Task> powerOnVMs(Client client, Client taskMonitorClient, Set<String> vmMoRefs) {
+      CompoundStatus status = new CompoundStatus(VCActions.VC_POWER_ON_STATUS_KEY);
+      Map<String, Task> result = changePowerState(client, taskMonitorClient, vmMoRefs, true, status);
+      getCompoundStatus().addStatus(status);
+      return result;
+   }
+
+   public Map<String, Task> powerOffVMs(Client client, Set<String> vmMoRefs) {
+      CompoundStatus status = new CompoundStatus(VCActions.VC_POWER_OFF_STATUS_KEY);
+      Map<String, Task> result = changePowerState(client, client, vmMoRefs, false, status);
       getCompoundStatus().addStatus(status);
       return result;
    }
@@ -828,7 +1510,7 @@ public class VcVlsi {
        taskRef = vm.powerOn(null);
    }
    Task t = defaultClient.createStub(Task.class, taskRef);
-   boolean success = waitForTask(t);
+   boolean success = monitorTasks(defaultClient, Collections.singletonMap("vm", t)).get("vm").get();
    _log.log(Level.INFO, "TPC task success=" + success);
 
    ps = vm.getRuntime().getPowerState();
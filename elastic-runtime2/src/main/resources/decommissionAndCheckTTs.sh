@@ -0,0 +1,297 @@
+###########################################################################
+# Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+###########################################################################
+
+
+#!/bin/bash
+
+# This script decommissions a list of tasktrackers from the jobtracker and then follows the
+# decommission until the tasktrackers have left the active list or a timeout expires, so
+# that the caller needs only one remote call for both.
+# Prerequisites:
+# * This script is deployed on the jobtracker VM
+# * The jobtracker is running
+# * The excludes file (e.g., excludesTT) is specified in the conf/mapred-site.xml
+#   before starting the jobtracker
+#
+# Progress is written to stdout as it happens, one line at a time:
+#   DECOMMISSION_STATUS: <code>  once the excludes file is updated and the nodes are refreshed
+#   DECOMMISSIONED: <tt>         as each tasktracker leaves the active list
+#   TT: <tt>                     for each active tasktracker, once the follow has finished
+#
+# USAGE: $ME <ExcludesFile> <HadoopHome> <TimeoutSeconds> <TaskTracker>...
+
+# Constants
+EXPECTED_MIN_ARGS=4
+ME=`basename $0`
+LOGFILE="$HOME/.$ME.log"
+JTERRFILE="$HOME/.$ME.jt.stderr"
+LOCKFILE="/var/lock/.derecommission.exclusiveLock" # Note: same LOCKFILE for de/recommission
+JTENV="/etc/default/hadoop-0.20-mapreduce"
+
+# Errors/Warnings
+ERROR_BAD_ARGS=100
+ERROR_EXCLUDES_FILE_NOT_FOUND=101
+ERROR_BAD_HADOOP_HOME=103
+ERROR_JT_CONNECTION=104
+ERROR_JT_UNKNOWN=105
+ERROR_EXCESS_TTS=108
+ERROR_EXCLUDES_FILE_UPDATE=110
+ERROR_LOCK_FILE_WRITE=111
+WARN_TT_EXCLUDESFILE=200
+WARN_TT_ACTIVE=201
+WARN_IGNORE=202
+
+# Parse the error file generated for JobTracker
+# Handling known issues/non-issues in different distributions
+# TODO: A little hacky for now; needs a long term fix
+
+parseJTErrFile()
+{
+    file="$1"
+
+    firstWord=`head -1 $file | awk '{print $1}'`
+    numLines=`wc -l $file | awk '{print $1}'`
+
+# If first line says DEPRECATED use of "old" bin/hadoop and that is
+# the only warning, ignore it for now...(seen in Cloudera's distro)
+    if [[ "$firstWord" = "DEPRECATED:" && $numLines -eq 3 ]]; then
+        echo "WARNING: Using a DEPRECATED command (e.g., bin/hadoop instead of bin/mapred)"
+        return $WARN_IGNORE
+    fi
+
+    thirdWord=`head -1 $file | awk '{print $3}'`
+
+# If first line says INFO and this is the only line, its just some harmless logging
+# (seen in MapR 2.1.3)
+
+    if [[ "$thirdWord" = "INFO" && $numLines -eq 1 ]]; then
+        echo "Just some harmless logging in JTERR file"
+        return $WARN_IGNORE
+    fi
+
+# If connection error is detected report it differently from an unknown error
+
+    connLine=`sed -n '11p' < $file`
+    echo "$connLine"
+    arr=( $connLine )
+    lidx=${#arr[@]}
+    if [[ $lidx -gt 0 && "${arr[$((lidx-1))]}" = "refused" && "${arr[$((lidx-1))]}" = "Connection" ]]; then
+        echo "ERROR: Unable to connect to jobtracker"
+        return $ERROR_JT_CONNECTION
+    else
+        echo "Unknown error related to jobtracker"
+        return $ERROR_JT_UNKNOWN
+    fi
+}
+
+# Check script arguments
+
+checkArguments()
+{
+    if [ $# -lt $EXPECTED_MIN_ARGS ]; then
+	    echo "USAGE: $ME <ExcludesFile> <HadoopHome> <TimeoutSeconds> <TaskTracker>..."
+	    exit $ERROR_BAD_ARGS
+    fi
+
+    local loc_excludesFile=$1
+    local loc_hadoopHome=$2
+
+    if [ ! -f $loc_excludesFile ]; then
+	echo "ERROR: Excludes file \"$loc_excludesFile\" not found"
+	exit $ERROR_EXCLUDES_FILE_NOT_FOUND
+    fi
+
+    if [ ! -f $loc_hadoopHome/bin/hadoop ]; then
+	echo "ERROR: \"$loc_hadoopHome\" is not HADOOP_HOME"
+	exit $ERROR_BAD_HADOOP_HOME
+    fi
+}
+
+# Set arrActiveTTs to the names of the active tasktrackers (after removing the initial tracker_ and the port)
+
+listActiveTTs()
+{
+    local loc_hadoopHome=$1
+
+    activeTTs=`$loc_hadoopHome/bin/hadoop job -list-active-trackers 2> $JTERRFILE`
+
+    if [ -s $JTERRFILE ]; then
+	parseJTErrFile $JTERRFILE
+        returnVal=$?
+        if [ $returnVal -ne $WARN_IGNORE ]; then
+	    exit $returnVal
+        fi
+    fi
+
+    arrActiveTTs=()
+    for tt in $activeTTs; do
+	arrActiveTTs+=( `echo "$tt" | cut -d: -f1 | cut -d_ -f1 --complement` )
+    done
+}
+
+# Returns 0 if the first argument is one of the remaining arguments
+
+contains()
+{
+    local loc_tt=$1
+    shift
+
+    for item in "$@"; do
+	if [ "$item" = "$loc_tt" ]; then
+	    return 0
+	fi
+    done
+
+    return 1
+}
+
+main()
+{
+# Remove logfile if present
+    rm -f $LOGFILE
+
+# Progress is sent to the remote caller on fd 6; everything else goes to the log file
+    exec 6>&1
+    exec > $LOGFILE
+
+# Arguments check/set
+    checkArguments $*
+
+    excludesFile=$1
+    hadoopHome=$2
+    timeoutSecs=$3
+    shift 3
+    ttsToDecommission=( $* )
+
+    echo "INFO: Arguments:: ExcludesFile: $excludesFile; hadoopHome: $hadoopHome; timeout: $timeoutSecs; TTs to decommission: ${ttsToDecommission[@]}"
+
+    dupl=0
+    inactiveTT=0
+    remaining=()
+
+# Set different environment, if specified
+    if [ -f $JTENV ]; then
+        . $JTENV # source this environment
+    fi
+
+# Ensure only one VHM changes the excludes file at any given time. The lock is not held while
+# waiting for the tasktrackers to leave, so that other operations are not held up
+
+    {
+# Wait for lock on $LOCKFILE (fd 200) for 10 seconds
+	flock -x -w 10 200
+
+	listActiveTTs $hadoopHome
+
+# Read and Update excludes file
+# Assumption: excludesFile does not have duplicates
+	excludesList=( `cat $excludesFile` )
+
+	for tt in ${ttsToDecommission[@]}; do
+	    if contains $tt ${excludesList[@]}; then
+		echo "WARNING: $tt already exists!"
+		dupl=$((dupl+1))
+	    else
+		echo "INFO: Adding $tt to excludes file"
+		echo $tt >> $excludesFile
+		returnVal=$?
+		if [ $returnVal -ne 0 ]; then
+		    echo "ERROR: Error while trying to update excludes file"
+		    exit $ERROR_EXCLUDES_FILE_UPDATE
+		fi
+	    fi
+
+	    if contains $tt ${arrActiveTTs[@]}; then
+		remaining+=( $tt )
+	    else
+		echo "WARNING: $tt is currently not active!"
+		inactiveTT=$((inactiveTT+1))
+	    fi
+	done
+
+	echo "INFO: Successfully updated excludes file. Latest excludes file: "
+	cat $excludesFile
+
+# Run decommission by refreshing hosts
+	$hadoopHome/bin/hadoop mradmin -refreshNodes 2> $JTERRFILE
+
+	if [ -s $JTERRFILE ]; then
+	    parseJTErrFile $JTERRFILE
+            returnVal=$?
+            if [ $returnVal -ne $WARN_IGNORE ]; then
+	        exit $returnVal
+            fi
+	fi
+
+	true
+    } 200>$LOCKFILE
+
+    lockExitVal=$?
+
+    if [[ $lockExitVal -ne 0 ]]; then
+	echo "ERROR: Failed to write to lock file $LOCKFILE (permissions problem?)"
+	exit $ERROR_LOCK_FILE_WRITE
+    fi
+
+    if [[ $dupl -ge 1 ]]; then
+	decommissionStatus=$WARN_TT_EXCLUDESFILE
+    elif [[ $inactiveTT -ge 1 ]]; then
+	decommissionStatus=$WARN_TT_ACTIVE
+    else
+	decommissionStatus=0
+    fi
+    echo "DECOMMISSION_STATUS: $decommissionStatus" >&6
+
+# Follow the tasktrackers until they have all left the active list
+    endTime=$((`date +%s` + timeoutSecs))
+    while [[ ${#remaining[@]} -gt 0 ]]; do
+	listActiveTTs $hadoopHome
+
+	stillActive=()
+	for tt in ${remaining[@]}; do
+	    if contains $tt ${arrActiveTTs[@]}; then
+		stillActive+=( $tt )
+	    else
+		echo "DECOMMISSIONED: $tt" >&6
+	    fi
+	done
+	remaining=( ${stillActive[@]} )
+
+	if [[ ${#remaining[@]} -eq 0 || `date +%s` -ge $endTime ]]; then
+	    break
+	fi
+	sleep 1
+    done
+
+# Print list of ActiveTTs on stdout
+    for tt in ${arrActiveTTs[@]}; do
+	echo "TT: $tt" >&6
+    done
+
+    if [[ ${#remaining[@]} -gt 0 ]]; then
+	echo "ERROR: Timed out with ${#remaining[@]} TTs still active: ${remaining[@]}"
+	exitVal=$ERROR_EXCESS_TTS
+    else
+	echo "INFO: Successfully decommissioned all TTs"
+	exitVal=0
+    fi
+
+# Restore stdout
+    exec 1>&6 6>&-
+
+    exit $exitVal
+}
+
+main $*
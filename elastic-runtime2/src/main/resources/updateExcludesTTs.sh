@@ -0,0 +1,236 @@
+###########################################################################
+# Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+###########################################################################
+
+
+#!/bin/bash
+
+# This script applies a set of changes to the excludes file of the jobtracker and refreshes the nodes once for all of them.
+# It is used instead of decommissionTTs.sh/recommissionTTs.sh when VHM sends only the hosts which need to change.
+# Prerequisites:
+# * This script is deployed on the jobtracker VM
+# * The jobtracker is running
+# * The excludes file (e.g., excludesTT) is specified in the conf/mapred-site.xml
+#   before starting the jobtracker
+#
+# Each change is either +<TaskTracker> to add it to the excludes file, or -<TaskTracker> to remove it.
+# If ClearFirst is "true", the excludes file is cleared before the changes are applied.
+# Once the nodes have been refreshed, the contents of the excludes file are written to stdout as "EXCLUDED: <tt>" lines.
+#
+# USAGE: $ME <ExcludesFile> <HadoopHome> <ClearFirst> [+TaskTracker|-TaskTracker]...
+
+# Constants
+EXPECTED_MIN_ARGS=3
+ME=`basename $0`
+LOGFILE="$HOME/.$ME.log"
+JTERRFILE="$HOME/.$ME.jt.stderr"
+LOCKFILE="/var/lock/.derecommission.exclusiveLock" # Note: same LOCKFILE for de/recommission
+JTENV="/etc/default/hadoop-0.20-mapreduce"
+
+# Errors/Warnings
+ERROR_BAD_ARGS=100
+ERROR_EXCLUDES_FILE_NOT_FOUND=101
+ERROR_BAD_HADOOP_HOME=103
+ERROR_JT_CONNECTION=104
+ERROR_JT_UNKNOWN=105
+ERROR_EXCLUDES_FILE_UPDATE=110
+ERROR_LOCK_FILE_WRITE=111
+WARN_TT_EXCLUDESFILE=200
+WARN_IGNORE=202
+
+# Parse the error file generated for JobTracker
+# Handling known issues/non-issues in different distributions
+# TODO: A little hacky for now; needs a long term fix
+
+parseJTErrFile()
+{
+    file="$1"
+
+    firstWord=`head -1 $file | awk '{print $1}'`
+    numLines=`wc -l $file | awk '{print $1}'`
+
+# If first line says DEPRECATED use of "old" bin/hadoop and that is
+# the only warning, ignore it for now...(seen in Cloudera's distro)
+    if [[ "$firstWord" = "DEPRECATED:" && $numLines -eq 3 ]]; then
+        echo "WARNING: Using a DEPRECATED command (e.g., bin/hadoop instead of bin/mapred)"
+        return $WARN_IGNORE
+    fi
+
+    thirdWord=`head -1 $file | awk '{print $3}'`
+
+# If first line says INFO and this is the only line, its just some harmless logging
+# (seen in MapR 2.1.3)
+
+    if [[ "$thirdWord" = "INFO" && $numLines -eq 1 ]]; then
+        echo "Just some harmless logging in JTERR file"
+        return $WARN_IGNORE
+    fi
+
+# If connection error is detected report it differently from an unknown error
+
+    connLine=`sed -n '11p' < $file`
+    echo "$connLine"
+    arr=( $connLine )
+    lidx=${#arr[@]}
+    if [[ $lidx -gt 0 && "${arr[$((lidx-1))]}" = "refused" && "${arr[$((lidx-1))]}" = "Connection" ]]; then
+        echo "ERROR: Unable to connect to jobtracker"
+        return $ERROR_JT_CONNECTION
+    else
+        echo "Unknown error related to jobtracker"
+        return $ERROR_JT_UNKNOWN
+    fi
+}
+
+# Check script arguments
+
+checkArguments()
+{
+    if [ $# -lt $EXPECTED_MIN_ARGS ]; then
+	    echo "USAGE: $ME <ExcludesFile> <HadoopHome> <ClearFirst> [+TaskTracker|-TaskTracker]..."
+	    exit $ERROR_BAD_ARGS
+    fi
+
+    local loc_excludesFile=$1
+    local loc_hadoopHome=$2
+
+    if [ ! -f $loc_excludesFile ]; then
+	echo "ERROR: Excludes file \"$loc_excludesFile\" not found"
+	exit $ERROR_EXCLUDES_FILE_NOT_FOUND
+    fi
+
+    if [ ! -f $loc_hadoopHome/bin/hadoop ]; then
+	echo "ERROR: \"$loc_hadoopHome\" is not HADOOP_HOME"
+	exit $ERROR_BAD_HADOOP_HOME
+    fi
+}
+
+main()
+{
+# Remove logfile if present
+    rm -f $LOGFILE
+
+# The excludes file is sent to the remote caller on fd 6; everything else goes to the log file
+    exec 6>&1
+    exec > $LOGFILE
+
+# Arguments check/set
+    checkArguments $*
+
+    excludesFile=$1
+    hadoopHome=$2
+    clearFirst=$3
+    shift 3
+
+    echo "INFO: Arguments:: ExcludesFile: $excludesFile; hadoopHome: $hadoopHome; clear first: $clearFirst; changes: $*"
+
+    dupl=0
+    missingTT=0
+
+# Set different environment, if specified
+    if [ -f $JTENV ]; then
+        . $JTENV # source this environment
+    fi
+
+# Ensure only one VHM changes the excludes file at any given time
+    {
+# Wait for lock on $LOCKFILE (fd 200) for 10 seconds
+	flock -x -w 10 200
+
+	if [ "$clearFirst" = "true" ]; then
+	    echo "INFO: Clearing excludes file..."
+	    > $excludesFile
+	fi
+
+	for change in $*; do
+	    tt=${change:1}
+	    case "$change" in
+		+*)
+		    if grep -qxF "$tt" $excludesFile; then
+			echo "WARNING: $tt already exists!"
+			dupl=$((dupl+1))
+		    else
+			echo "INFO: Adding $tt to excludes file"
+			echo $tt >> $excludesFile
+			returnVal=$?
+			if [ $returnVal -ne 0 ]; then
+			    echo "ERROR: Error while trying to update excludes file"
+			    exit $ERROR_EXCLUDES_FILE_UPDATE
+			fi
+		    fi
+		    ;;
+		-*)
+		    if grep -qxF "$tt" $excludesFile; then
+			echo "INFO: Removing $tt from excludes file"
+# Rewrite in place so that the ownership and permissions of the excludes file are kept
+			grep -vxF "$tt" $excludesFile > $excludesFile.tmp
+			cat $excludesFile.tmp > $excludesFile
+			returnVal=$?
+			rm -f $excludesFile.tmp
+			if [ $returnVal -ne 0 ]; then
+			    echo "ERROR: Error while trying to update excludes file"
+			    exit $ERROR_EXCLUDES_FILE_UPDATE
+			fi
+		    else
+			echo "WARNING: $tt was not in the excludes file!"
+			missingTT=$((missingTT+1))
+		    fi
+		    ;;
+		*)
+		    echo "ERROR: Unknown change \"$change\""
+		    exit $ERROR_BAD_ARGS
+		    ;;
+	    esac
+	done
+
+	echo "INFO: Successfully updated excludes file. Latest excludes file: "
+	cat $excludesFile
+	excludedTTs=( `cat $excludesFile` )
+
+# Run de/recommission by refreshing hosts
+	$hadoopHome/bin/hadoop mradmin -refreshNodes 2> $JTERRFILE
+
+	if [ -s $JTERRFILE ]; then
+	    parseJTErrFile $JTERRFILE
+            returnVal=$?
+            if [ $returnVal -ne $WARN_IGNORE ]; then
+	        exit $returnVal
+            fi
+	fi
+
+	true
+    } 200>$LOCKFILE
+
+    lockExitVal=$?
+
+    if [[ $lockExitVal -ne 0 ]]; then
+	echo "ERROR: Failed to write to lock file $LOCKFILE (permissions problem?)"
+	exit $ERROR_LOCK_FILE_WRITE
+    fi
+
+# Print the excludes file on stdout
+    for tt in ${excludedTTs[@]}; do
+	echo "EXCLUDED: $tt" >&6
+    done
+
+# Restore stdout
+    exec 1>&6 6>&-
+
+    if [[ $dupl -ge 1 || $missingTT -ge 1 ]]; then
+	exit $WARN_TT_EXCLUDESFILE
+    fi
+
+    exit 0
+}
+
+main $*
@@ -0,0 +1,219 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent.Priority;
+import com.vmware.vhadoop.vhm.BoundedEventQueue.OverflowPolicy;
+import com.vmware.vhadoop.vhm.events.AbstractNotificationEvent;
+
+public class BoundedEventQueueTest {
+   private static final long STARVATION_MILLIS = 60000;
+
+   class TestEvent extends AbstractNotificationEvent {
+      final int _id;
+      final Priority _priority;
+
+      TestEvent(int id, boolean canClearQueue, boolean canBeClearedFromQueue) {
+         super(canClearQueue, canBeClearedFromQueue);
+         _id = id;
+         _priority = null;
+      }
+
+      TestEvent(int id, Priority priority) {
+         super(false, false);
+         _id = id;
+         _priority = priority;
+      }
+
+      @Override
+      public Priority getPriority() {
+         return (_priority == null) ? super.getPriority() : _priority;
+      }
+   }
+
+   private int pollId(BoundedEventQueue queue) {
+      return ((TestEvent)queue.poll())._id;
+   }
+
+   @Test
+   public void eventsArePolledInOrder() {
+      BoundedEventQueue queue = new BoundedEventQueue(4, OverflowPolicy.BLOCK, STARVATION_MILLIS);
+      assertNull(queue.poll());
+      /* Go round the ring several times */
+      for (int i=0; i<10; i++) {
+         assertTrue(queue.offer(new TestEvent(i, false, false)));
+         assertTrue(queue.offer(new TestEvent(i+100, false, false)));
+         assertEquals(2, queue.size());
+         assertEquals(i, pollId(queue));
+         assertEquals(i+100, pollId(queue));
+      }
+      assertTrue(queue.isEmpty());
+   }
+
+   @Test
+   public void clearQueueDiscardsOnlyEarlierClearableEvents() {
+      BoundedEventQueue queue = new BoundedEventQueue(16, OverflowPolicy.BLOCK, STARVATION_MILLIS);
+      queue.offer(new TestEvent(1, false, true));
+      queue.offer(new TestEvent(2, false, false));
+      queue.offer(new TestEvent(3, false, true));
+      queue.offer(new TestEvent(4, true, false));
+      queue.offer(new TestEvent(5, false, true));
+      assertEquals(1, queue.getClearRequests());
+
+      /* The event that clears the queue has a higher priority than the others */
+      assertEquals(4, pollId(queue));
+      assertEquals(2, pollId(queue));
+      assertEquals(5, pollId(queue));
+      assertNull(queue.poll());
+      assertEquals(2, queue.getCleared());
+   }
+
+   @Test
+   public void dropNewestOnlyDropsDroppableEvents() throws InterruptedException {
+      final BoundedEventQueue queue = new BoundedEventQueue(2, OverflowPolicy.DROP_NEWEST, STARVATION_MILLIS);
+      queue.offer(new TestEvent(1, false, false));
+      queue.offer(new TestEvent(2, false, false));
+      assertFalse(queue.offer(new TestEvent(3, false, true), true));
+      assertEquals(1, queue.getDropped());
+
+      /* An event that is not offered as droppable must wait for space, even if it could be cleared from the queue */
+      Thread producer = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            queue.offer(new TestEvent(4, false, true));
+         }});
+      producer.start();
+      while (queue.getProducerBlocks() == 0) {
+         Thread.sleep(1);
+      }
+      assertEquals(1, pollId(queue));
+      producer.join(5000);
+      assertFalse(producer.isAlive());
+      assertEquals(2, pollId(queue));
+      assertEquals(4, pollId(queue));
+   }
+
+   @Test
+   public void highPriorityEventsAreUrgent() {
+      BoundedEventQueue queue = new BoundedEventQueue(4, OverflowPolicy.BLOCK, STARVATION_MILLIS);
+      queue.offer(new TestEvent(1, Priority.NORMAL));
+      assertFalse(queue.hasUrgentEvent());
+      queue.offer(new TestEvent(2, Priority.HIGH));
+      assertTrue(queue.hasUrgentEvent());
+      assertEquals(2, pollId(queue));
+      assertFalse(queue.hasUrgentEvent());
+      assertEquals(1, pollId(queue));
+   }
+
+   @Test
+   public void eventsArePolledInPriorityOrder() {
+      BoundedEventQueue queue = new BoundedEventQueue(4, OverflowPolicy.BLOCK, STARVATION_MILLIS);
+      queue.offer(new TestEvent(1, Priority.LOW));
+      queue.offer(new TestEvent(2, Priority.NORMAL));
+      queue.offer(new TestEvent(3, Priority.HIGH));
+      queue.offer(new TestEvent(4, Priority.NORMAL));
+      queue.offer(new TestEvent(5, Priority.HIGH));
+      assertEquals(5, queue.size());
+      assertEquals(3, ((TestEvent)queue.peek())._id);
+      assertEquals(3, pollId(queue));
+      assertEquals(5, pollId(queue));
+      assertEquals(2, pollId(queue));
+      assertEquals(4, pollId(queue));
+      assertEquals(1, pollId(queue));
+      assertTrue(queue.isEmpty());
+   }
+
+   @Test
+   public void starvedEventsArePolledFirst() throws InterruptedException {
+      BoundedEventQueue queue = new BoundedEventQueue(4, OverflowPolicy.BLOCK, 20);
+      queue.offer(new TestEvent(1, Priority.LOW));
+      queue.offer(new TestEvent(2, Priority.NORMAL));
+      Thread.sleep(50);
+      queue.offer(new TestEvent(3, Priority.HIGH));
+      /* Both lower priority events have starved, so the one which has waited longest goes first */
+      assertEquals(1, pollId(queue));
+      assertEquals(2, pollId(queue));
+      assertEquals(3, pollId(queue));
+      assertEquals(2, queue.getStarvedPolls());
+   }
+
+   @Test
+   public void latencyIsRecordedForEachPriority() throws InterruptedException {
+      BoundedEventQueue queue = new BoundedEventQueue(4, OverflowPolicy.BLOCK, STARVATION_MILLIS);
+      queue.offer(new TestEvent(1, Priority.LOW));
+      queue.offer(new TestEvent(2, Priority.HIGH));
+      Thread.sleep(10);
+      queue.poll();
+      queue.poll();
+      assertEquals(1, queue.getLatencyStatistics(Priority.HIGH).getEvents());
+      assertEquals(0, queue.getLatencyStatistics(Priority.NORMAL).getEvents());
+      assertEquals(1, queue.getLatencyStatistics(Priority.LOW).getEvents());
+      assertTrue(queue.getLatencyStatistics(Priority.LOW).getMaxMicros() >= 10000);
+   }
+
+   @Test
+   public void multipleProducersSingleConsumer() throws InterruptedException {
+      final int numProducers = 4;
+      final int eventsPerProducer = 5000;
+      final BoundedEventQueue queue = new BoundedEventQueue(64, OverflowPolicy.BLOCK, STARVATION_MILLIS);
+      Thread[] producers = new Thread[numProducers];
+      for (int p=0; p<numProducers; p++) {
+         final int producerId = p;
+         producers[p] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               for (int i=0; i<eventsPerProducer; i++) {
+                  queue.offer(new TestEvent((producerId * eventsPerProducer) + i, false, false));
+               }
+            }}, "producer"+p);
+         producers[p].start();
+      }
+      Set<Integer> received = new HashSet<Integer>();
+      int[] lastFromProducer = new int[numProducers];
+      for (int p=0; p<numProducers; p++) {
+         lastFromProducer[p] = -1;
+      }
+      while (received.size() < (numProducers * eventsPerProducer)) {
+         queue.awaitEvent(5000);
+         NotificationEvent event;
+         while ((event = queue.poll()) != null) {
+            int id = ((TestEvent)event)._id;
+            assertTrue(received.add(id));
+            /* Events from one producer stay in order */
+            assertTrue(id > lastFromProducer[id / eventsPerProducer]);
+            lastFromProducer[id / eventsPerProducer] = id;
+         }
+      }
+      for (Thread producer : producers) {
+         producer.join();
+      }
+      Map<String, Long> enqueueCounts = queue.getEnqueueCounts();
+      for (int p=0; p<numProducers; p++) {
+         assertEquals(Long.valueOf(eventsPerProducer), enqueueCounts.get("producer"+p));
+      }
+      assertTrue(queue.getMaxDepth() <= queue.getCapacity());
+   }
+}
@@ -0,0 +1,107 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vhadoop.vhm.events.SerengetiLimitInstruction;
+
+public class ClusterFolderResolverTest {
+   StandaloneSimpleVCActions _vcActions;
+   ClusterFolderResolver _resolver;
+   final LinkedBlockingQueue<SerengetiLimitInstruction> _resolved = new LinkedBlockingQueue<SerengetiLimitInstruction>();
+   final AtomicInteger _associations = new AtomicInteger();
+   volatile CountDownLatch _associationGate = new CountDownLatch(0);
+
+   @Before
+   public void initialize() {
+      _vcActions = new StandaloneSimpleVCActions();
+      _vcActions.addVMToFolder("myFolder", "myVm1");
+      _resolver = new ClusterFolderResolver(_vcActions, new ClusterFolderResolver.ResolutionHandler() {
+         @Override
+         public String associateFolderWithClusterFromVMs(String folderName, List<String> vmsInFolder) {
+            _associations.incrementAndGet();
+            try {
+               _associationGate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {}
+            return vmsInFolder.contains("myVm1") ? "myCluster" : null;
+         }
+
+         @Override
+         public void instructionResolved(SerengetiLimitInstruction instruction) {
+            _resolved.add(instruction);
+         }
+      });
+   }
+
+   private SerengetiLimitInstruction createInstruction(String folderName) {
+      return new SerengetiLimitInstruction(folderName, SerengetiLimitInstruction.actionUnlimit, 0, null);
+   }
+
+   @Test
+   public void resolvedInstructionIsHandedBackAndCached() throws InterruptedException {
+      assertNull(_resolver.getCachedClusterId("myFolder"));
+      _resolver.resolve(createInstruction("myFolder"));
+      SerengetiLimitInstruction resolved = _resolved.poll(5, TimeUnit.SECONDS);
+      assertNotNull(resolved);
+      assertEquals("myCluster", resolved.getClusterId());
+      assertEquals("myCluster", _resolver.getCachedClusterId("myFolder"));
+      assertEquals(1, _resolver.getCacheHits());
+      assertEquals(1, _resolver.getResolutions());
+   }
+
+   @Test
+   public void instructionsForSameFolderShareResolution() throws InterruptedException {
+      _associationGate = new CountDownLatch(1);
+      _resolver.resolve(createInstruction("myFolder"));
+      _resolver.resolve(createInstruction("myFolder"));
+      _associationGate.countDown();
+      assertNotNull(_resolved.poll(5, TimeUnit.SECONDS));
+      assertNotNull(_resolved.poll(5, TimeUnit.SECONDS));
+      assertEquals(1, _associations.get());
+   }
+
+   @Test
+   public void unresolvedInstructionIsNotHandedBack() throws InterruptedException {
+      _resolver.resolve(createInstruction("unknownFolder"));
+      long deadline = System.currentTimeMillis() + 5000;
+      while ((_resolver.getFailedResolutions() == 0) && (System.currentTimeMillis() < deadline)) {
+         Thread.sleep(1);
+      }
+      assertEquals(1, _resolver.getFailedResolutions());
+      assertTrue(_resolved.isEmpty());
+      assertNull(_resolver.getCachedClusterId("unknownFolder"));
+   }
+
+   @Test
+   public void invalidationRemovesFoldersForCluster() {
+      _resolver.cacheClusterId("myFolder", "myCluster");
+      _resolver.cacheClusterId("otherFolder", "otherCluster");
+      _resolver.invalidateCluster("myCluster");
+      assertNull(_resolver.getCachedClusterId("myFolder"));
+      assertEquals("otherCluster", _resolver.getCachedClusterId("otherFolder"));
+   }
+}
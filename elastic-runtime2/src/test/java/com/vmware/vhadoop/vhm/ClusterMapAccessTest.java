@@ -32,13 +32,17 @@ import com.vmware.vhadoop.api.vhm.ClusterMapReader;
 
 public class ClusterMapAccessTest {
    StandaloneSimpleClusterMap _clusterMap;
-   MultipleReaderSingleWriterClusterMapAccess _clusterMapAccess;
+   WritableClusterMapAccess _clusterMapAccess;
    List<Thread> _liveThreads = new ArrayList<Thread>();
    
    @Before
    public void initialize() {
       _clusterMap = new StandaloneSimpleClusterMap(false);
-      _clusterMapAccess = MultipleReaderSingleWriterClusterMapAccess.getClusterMapAccess(_clusterMap);
+      _clusterMapAccess = createClusterMapAccess(_clusterMap);
+   }
+
+   WritableClusterMapAccess createClusterMapAccess(ClusterMap clusterMap) {
+      return MultipleReaderSingleWriterClusterMapAccess.getClusterMapAccess(clusterMap);
    }
    
    @After
@@ -33,6 +33,7 @@ import java.util.Set;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.vmware.vhadoop.api.vhm.ClusterMap;
 import com.vmware.vhadoop.api.vhm.ClusterMap.ExtraInfoToClusterMapper;
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
 import com.vmware.vhadoop.api.vhm.VCActions.VMEventData;
@@ -451,6 +452,88 @@ public class ClusterMapTest extends AbstractJUnitTest {
       assertNull(_clusterMap.getAllClusterIdsForScaleStrategyKey("bogus"));
    }
 
+   @Test
+   public void indexesFollowVMUpdates() {
+      String clusterName = CLUSTER_NAME_PREFIX+0;
+      String clusterId = deriveClusterIdFromClusterName(clusterName);
+      String host1 = MOREF_PREFIX+"DEFAULT_HOST1";
+      String host2 = MOREF_PREFIX+"DEFAULT_HOST2";
+      populateClusterSameHost(clusterName, "DEFAULT_HOST1", 4, true, false, 0, null);
+
+      Set<String> vms = _clusterMap.listComputeVMsForClusterHostAndPowerState(clusterId, host1, true);
+      assertEquals(3, vms.size());
+      String movedVmId = vms.iterator().next();
+      String dnsName = _clusterMap.getDnsNameForVM(movedVmId);
+      assertEquals(movedVmId, _clusterMap.getVmIdForDnsName(dnsName));
+
+      /* Move one VM to another host and power it off */
+      VMVariableData vmVariableData = new VMVariableData();
+      vmVariableData._hostMoRef = host2;
+      vmVariableData._powerState = false;
+      _clusterMap.handleClusterEvent(new VmUpdateEvent(movedVmId, vmVariableData), null);
+
+      assertEquals(2, _clusterMap.listComputeVMsForClusterHostAndPowerState(clusterId, host1, true).size());
+      assertNull(_clusterMap.listComputeVMsForClusterHostAndPowerState(clusterId, host1, false));
+      assertNull(_clusterMap.listComputeVMsForClusterHostAndPowerState(clusterId, host2, true));
+      assertEquals(movedVmId, _clusterMap.listComputeVMsForClusterHostAndPowerState(clusterId, host2, false).iterator().next());
+      assertEquals(1, _clusterMap.listComputeVMsForClusterAndPowerState(clusterId, false).size());
+      assertEquals(2, _clusterMap.listHostsWithComputeVMsForCluster(clusterId).size());
+
+      /* Powering off clears the DNS name, so it should no longer resolve */
+      assertNull(_clusterMap.getVmIdForDnsName(dnsName));
+
+      /* Removing the only VM on host2 should remove host2 from the cluster */
+      _clusterMap.handleClusterEvent(new VmRemovedFromClusterEvent(movedVmId), null);
+      Set<String> hostIds = _clusterMap.listHostsWithComputeVMsForCluster(clusterId);
+      assertEquals(1, hostIds.size());
+      assertTrue(hostIds.contains(host1));
+      assertNull(_clusterMap.listComputeVMsForClusterAndPowerState(clusterId, false));
+      assertEquals(2, _clusterMap.listComputeVMsForCluster(clusterId).size());
+
+      /* Result sets are copies and must not affect the cluster map */
+      _clusterMap.listComputeVMsForCluster(clusterId).clear();
+      assertEquals(2, _clusterMap.listComputeVMsForCluster(clusterId).size());
+   }
+
+   @Test
+   public void snapshotIsIsolatedFromUpdates() {
+      String clusterName = CLUSTER_NAME_PREFIX+0;
+      String clusterId = deriveClusterIdFromClusterName(clusterName);
+      populateClusterSameHost(clusterName, "DEFAULT_HOST1", 4, true, false, 0, null);
+
+      long version = _clusterMap.getVersion();
+      ClusterMap snapshot = _clusterMap.createSnapshot();
+      Set<String> poweredOnVMs = snapshot.listComputeVMsForClusterAndPowerState(clusterId, true);
+      assertEquals(3, poweredOnVMs.size());
+      String vmId = poweredOnVMs.iterator().next();
+      String dnsName = snapshot.getDnsNameForVM(vmId);
+      assertEquals(vmId, snapshot.getVmIdForDnsName(dnsName));
+
+      /* Power off a VM and remove another in the live cluster map */
+      VMVariableData vmVariableData = new VMVariableData();
+      vmVariableData._powerState = false;
+      _clusterMap.handleClusterEvent(new VmUpdateEvent(vmId, vmVariableData), null);
+      poweredOnVMs.remove(vmId);
+      String removedVmId = poweredOnVMs.iterator().next();
+      _clusterMap.handleClusterEvent(new VmRemovedFromClusterEvent(removedVmId), null);
+      assertTrue(_clusterMap.getVersion() > version);
+      assertEquals(1, _clusterMap.listComputeVMsForClusterAndPowerState(clusterId, true).size());
+
+      /* The snapshot must still reflect the state at the time it was taken */
+      assertEquals(3, snapshot.listComputeVMsForClusterAndPowerState(clusterId, true).size());
+      assertTrue(snapshot.checkPowerStateOfVm(vmId, true));
+      assertEquals(vmId, snapshot.getVmIdForDnsName(dnsName));
+      assertEquals(clusterId, snapshot.getClusterIdForVm(removedVmId));
+      assertEquals(_clusterMap.getScaleStrategyKey(clusterId), snapshot.getScaleStrategyKey(clusterId));
+   }
+
+   @Test(expected=UnsupportedOperationException.class)
+   public void snapshotCannotBeUpdated() {
+      populateClusterSameHost(CLUSTER_NAME_PREFIX+0, "DEFAULT_HOST1", 4, true, false, 0, null);
+      ClusterMapImpl snapshot = (ClusterMapImpl)_clusterMap.createSnapshot();
+      snapshot.handleClusterEvent(new VmRemovedFromClusterEvent(getVmIdFromVmName(_vmNames.iterator().next())), null);
+   }
+
    @Test
    public void getVCPU() {
       populateClusterSameHost(CLUSTER_NAME_PREFIX+0, "DEFAULT_HOST1", 4, false, false, 0, null);
@@ -0,0 +1,157 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.vhm.events.AbstractClusterScaleEvent;
+
+public class ClusterScaleEventShardsTest {
+   ClusterScaleEventShards _shards;
+
+   @After
+   public void destroy() {
+      if (_shards != null) {
+         _shards.stop();
+      }
+   }
+
+   /* Resolves the clusterId of an event from its VM, using a fixed mapping */
+   abstract class TestHandler implements ClusterScaleEventShards.ScaleEventHandler {
+      final Map<String, String> _clusterIdsForVMs = new ConcurrentHashMap<String, String>();
+      final Map<String, String> _handledOnThread = new ConcurrentHashMap<String, String>();
+
+      @Override
+      public void getQueuedScaleEventsForCluster(Set<NotificationEvent> events, Map<String, Set<ClusterScaleEvent>> clusterScaleEventMap) {
+         for (NotificationEvent event : events) {
+            AbstractClusterScaleEvent scaleEvent = (AbstractClusterScaleEvent)event;
+            if (scaleEvent.getClusterId() == null) {
+               scaleEvent.setClusterId(_clusterIdsForVMs.get(scaleEvent.getVmId()));
+            }
+            Set<ClusterScaleEvent> eventsForCluster = clusterScaleEventMap.get(scaleEvent.getClusterId());
+            if (eventsForCluster == null) {
+               eventsForCluster = new LinkedHashSet<ClusterScaleEvent>();
+               clusterScaleEventMap.put(scaleEvent.getClusterId(), eventsForCluster);
+            }
+            eventsForCluster.add(scaleEvent);
+         }
+      }
+
+      @Override
+      public void handleScaleEventsForCluster(String clusterId, Set<ClusterScaleEvent> unconsolidatedEvents, List<ClusterScaleEvent> toRequeue) {
+         _handledOnThread.put(clusterId, Thread.currentThread().getName());
+         handle(clusterId, unconsolidatedEvents, toRequeue);
+      }
+
+      abstract void handle(String clusterId, Set<ClusterScaleEvent> unconsolidatedEvents, List<ClusterScaleEvent> toRequeue);
+   }
+
+   /* Finds a key which is routed to a different shard from the given key */
+   private String getKeyOnOtherShard(String key) {
+      for (int i=0; ; i++) {
+         String candidate = key+i;
+         if (_shards.getShardForKey(candidate) != _shards.getShardForKey(key)) {
+            return candidate;
+         }
+      }
+   }
+
+   @Test
+   public void slowClusterDoesNotBlockOtherShards() throws InterruptedException {
+      final CountDownLatch releaseSlowCluster = new CountDownLatch(1);
+      final CountDownLatch fastClusterHandled = new CountDownLatch(1);
+      TestHandler handler = new TestHandler() {
+         @Override
+         void handle(String clusterId, Set<ClusterScaleEvent> unconsolidatedEvents, List<ClusterScaleEvent> toRequeue) {
+            try {
+               if (clusterId.equals("slowCluster")) {
+                  releaseSlowCluster.await();
+               } else {
+                  fastClusterHandled.countDown();
+               }
+            } catch (InterruptedException e) {}
+         }
+      };
+      _shards = new ClusterScaleEventShards(2, handler, 10);
+      _shards.start();
+      String fastClusterId = getKeyOnOtherShard("slowCluster");
+
+      _shards.routeEvent("slowCluster", new TrivialClusterScaleEvent("slowCluster", false));
+      _shards.routeEvent(fastClusterId, new TrivialClusterScaleEvent(fastClusterId, false));
+      assertTrue(fastClusterHandled.await(5, TimeUnit.SECONDS));
+      releaseSlowCluster.countDown();
+   }
+
+   @Test
+   public void eventIsForwardedToShardOwningCluster() throws InterruptedException {
+      final CountDownLatch handled = new CountDownLatch(1);
+      TestHandler handler = new TestHandler() {
+         @Override
+         void handle(String clusterId, Set<ClusterScaleEvent> unconsolidatedEvents, List<ClusterScaleEvent> toRequeue) {
+            handled.countDown();
+         }
+      };
+      _shards = new ClusterScaleEventShards(2, handler, 10);
+      _shards.start();
+      /* The event is routed by its VM, which is on a different shard to the cluster it turns out to belong to */
+      String vmId = getKeyOnOtherShard("myCluster");
+      handler._clusterIdsForVMs.put(vmId, "myCluster");
+
+      _shards.routeEvent(vmId, new TrivialClusterScaleEvent(vmId, null, null, null, null, false));
+      assertTrue(handled.await(5, TimeUnit.SECONDS));
+      ClusterScaleEventShards.Shard owner = _shards.getShardForKey("myCluster");
+      ClusterScaleEventShards.Shard router = _shards.getShardForKey(vmId);
+      assertEquals(1, owner.getEventsHandled());
+      assertEquals(1, router.getEventsForwarded());
+      assertEquals(0, router.getEventsHandled());
+   }
+
+   @Test
+   public void requeuedEventsAreRetriedByOwningShard() throws InterruptedException {
+      final AtomicInteger attempts = new AtomicInteger();
+      final CountDownLatch retried = new CountDownLatch(1);
+      TestHandler handler = new TestHandler() {
+         @Override
+         void handle(String clusterId, Set<ClusterScaleEvent> unconsolidatedEvents, List<ClusterScaleEvent> toRequeue) {
+            if (attempts.incrementAndGet() == 1) {
+               toRequeue.addAll(unconsolidatedEvents);
+            } else {
+               retried.countDown();
+            }
+         }
+      };
+      _shards = new ClusterScaleEventShards(2, handler, 10);
+      _shards.start();
+      _shards.routeEvent("myCluster", new TrivialClusterScaleEvent("myCluster", false));
+      assertTrue(retried.await(5, TimeUnit.SECONDS));
+      assertEquals(_shards.getShardForKey("myCluster").getThreadName(), handler._handledOnThread.get("myCluster"));
+   }
+}
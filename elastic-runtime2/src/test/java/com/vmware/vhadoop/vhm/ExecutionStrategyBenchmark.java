@@ -0,0 +1,159 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleEvent;
+import com.vmware.vhadoop.api.vhm.events.EventConsumer;
+import com.vmware.vhadoop.api.vhm.events.EventProducer;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategyContext;
+import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
+import com.vmware.vhadoop.vhm.events.ClusterScaleDecision;
+
+/* Compares the time taken by each ExecutionStrategy to scale a large number of simulated clusters at once
+ * Each simulated scale operation just blocks for a fixed time, as real ones spend nearly all of their time waiting on SSH and VC.
+ *   As in VHM, a cluster whose events could not be handled is submitted again after a short delay.
+ * This is not run as part of the unit tests. Run it with: ExecutionStrategyBenchmark [numClusters] [blockMillis] */
+public class ExecutionStrategyBenchmark {
+   private static final int DEFAULT_NUM_CLUSTERS = 2000;
+   private static final long DEFAULT_BLOCK_MILLIS = 200;
+   private static final long RESUBMIT_DELAY_MILLIS = 10;
+
+   private final int _numClusters;
+   private final long _blockMillis;
+   private final ThreadLocalCompoundStatus _threadLocalStatus = new ThreadLocalCompoundStatus();
+   private final AbstractClusterMapReader _parentReader = new AbstractClusterMapReader(null, _threadLocalStatus) {};
+
+   class BlockingScaleStrategy extends AbstractClusterMapReader implements ScaleStrategy {
+      @Override
+      public String getKey() {
+         return "blocking";
+      }
+
+      @Override
+      public Class<? extends ScaleStrategyContext> getStrategyContextType() {
+         return null;
+      }
+
+      @SuppressWarnings("unchecked")
+      @Override
+      public Class<? extends ClusterScaleEvent>[] getScaleEventTypesHandled() {
+         return new Class[]{ClusterScaleEvent.class};
+      }
+
+      @Override
+      public ClusterScaleOperation getClusterScaleOperation(final String clusterId, Set<ClusterScaleEvent> events, ScaleStrategyContext context) {
+         ClusterScaleOperation operation = new ClusterScaleOperation() {
+            @Override
+            public ClusterScaleCompletionEvent localCall() throws Exception {
+               Thread.sleep(_blockMillis);
+               return new ClusterScaleDecision(clusterId);
+            }
+         };
+         operation.initialize(_parentReader);
+         return operation;
+      }
+   }
+
+   ExecutionStrategyBenchmark(int numClusters, long blockMillis) {
+      _numClusters = numClusters;
+      _blockMillis = blockMillis;
+   }
+
+   void run(String name, ThreadPoolExecutionStrategy executionStrategy) throws InterruptedException {
+      final CountDownLatch completions = new CountDownLatch(_numClusters);
+      executionStrategy.registerEventConsumer(new EventConsumer() {
+         @Override
+         public void placeEventOnQueue(NotificationEvent event) {
+            completions.countDown();
+         }
+
+         @Override
+         public void placeEventCollectionOnQueue(List<? extends NotificationEvent> events) {
+            for (int i=0; i<events.size(); i++) {
+               completions.countDown();
+            }
+         }
+      });
+      executionStrategy.start(new EventProducer.EventProducerStartStopCallback() {
+         @Override
+         public void notifyFailed(EventProducer thisProducer) {}
+
+         @Override
+         public void notifyStopped(EventProducer thisProducer) {}
+
+         @Override
+         public void notifyStarted(EventProducer thisProducer) {}
+      });
+
+      ScaleStrategy scaleStrategy = new BlockingScaleStrategy();
+      Set<ClusterScaleEvent> events = Collections.emptySet();
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      threads.resetPeakThreadCount();
+      long startTime = System.currentTimeMillis();
+
+      List<String> toSubmit = new ArrayList<String>();
+      for (int i=0; i<_numClusters; i++) {
+         toSubmit.add("cluster"+i);
+      }
+      while (!toSubmit.isEmpty()) {
+         List<String> notHandled = new ArrayList<String>();
+         for (String clusterId : toSubmit) {
+            if (!executionStrategy.handleClusterScaleEvents(clusterId, scaleStrategy, events)) {
+               notHandled.add(clusterId);
+            }
+         }
+         toSubmit = notHandled;
+         if (!toSubmit.isEmpty()) {
+            Thread.sleep(RESUBMIT_DELAY_MILLIS);
+         }
+      }
+      if (!completions.await(10, TimeUnit.MINUTES)) {
+         System.out.println(name+": timed out with "+completions.getCount()+" cluster(s) still scaling");
+      }
+      long elapsedMillis = System.currentTimeMillis() - startTime;
+      executionStrategy.stop();
+
+      System.out.println(name+": "+_numClusters+" clusters blocking for "+_blockMillis+"ms each scaled in "+elapsedMillis+"ms"+
+            ", peak live threads="+threads.getPeakThreadCount()+", "+executionStrategy);
+   }
+
+   public static void main(String[] args) throws InterruptedException {
+      int numClusters = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUM_CLUSTERS;
+      long blockMillis = (args.length > 1) ? Long.parseLong(args[1]) : DEFAULT_BLOCK_MILLIS;
+      ExecutionStrategyBenchmark benchmark = new ExecutionStrategyBenchmark(numClusters, blockMillis);
+
+      benchmark.run("ThreadPoolExecutionStrategy", new ThreadPoolExecutionStrategy());
+      benchmark.run("ThreadPoolExecutionStrategy("+numClusters+" threads)", new ThreadPoolExecutionStrategy(numClusters, numClusters));
+      if (VirtualThreadExecutionStrategy.isSupported()) {
+         benchmark.run("VirtualThreadExecutionStrategy", new VirtualThreadExecutionStrategy());
+      } else {
+         System.out.println("VirtualThreadExecutionStrategy: not supported by this runtime");
+      }
+   }
+}
@@ -0,0 +1,262 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterScaleCompletionEvent;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy.ClusterScaleOperation;
+import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
+
+public class PowerOperationAdmissionControlTest {
+   static final long POWER_OP_MILLIS = 20;
+
+   StandaloneSimpleClusterMap _clusterMap;
+   PowerOpCountingVCActions _vcActions;
+
+   /* Each power operation takes POWER_OP_MILLIS to complete. Records the most operations in progress at once, overall and for one host,
+    * and the number of VMs in each call */
+   class PowerOpCountingVCActions extends StandaloneSimpleVCActions {
+      final List<Integer> _callSizes = Collections.synchronizedList(new ArrayList<Integer>());
+      final AtomicInteger _inProgress = new AtomicInteger();
+      final AtomicInteger _maxInProgress = new AtomicInteger();
+      final Map<String, AtomicInteger> _inProgressByHost = new HashMap<String, AtomicInteger>();
+      final AtomicInteger _maxInProgressOnHost = new AtomicInteger();
+
+      private void recordMax(AtomicInteger max, int value) {
+         int current = max.get();
+         while ((value > current) && !max.compareAndSet(current, value)) {
+            current = max.get();
+         }
+      }
+
+      private synchronized AtomicInteger getHostCounter(String hostId) {
+         AtomicInteger counter = _inProgressByHost.get(hostId);
+         if (counter == null) {
+            counter = new AtomicInteger();
+            _inProgressByHost.put(hostId, counter);
+         }
+         return counter;
+      }
+
+      @Override
+      public Map<String, Future<Boolean>> changeVMPowerState(Set<String> vmMoRefs, boolean b) {
+         _callSizes.add(vmMoRefs.size());
+         Map<String, Future<Boolean>> result = new HashMap<String, Future<Boolean>>();
+         for (final String vmMoRef : vmMoRefs) {
+            final AtomicInteger hostCounter = getHostCounter(_clusterMap.getHostIdForVm(vmMoRef));
+            recordMax(_maxInProgress, _inProgress.incrementAndGet());
+            recordMax(_maxInProgressOnHost, hostCounter.incrementAndGet());
+            result.put(vmMoRef, new Future<Boolean>() {
+               @Override
+               public boolean cancel(boolean mayInterruptIfRunning) {
+                  return false;
+               }
+
+               @Override
+               public boolean isCancelled() {
+                  return false;
+               }
+
+               @Override
+               public boolean isDone() {
+                  return false;
+               }
+
+               @Override
+               public Boolean get() throws InterruptedException {
+                  Thread.sleep(POWER_OP_MILLIS);
+                  hostCounter.decrementAndGet();
+                  _inProgress.decrementAndGet();
+                  return true;
+               }
+
+               @Override
+               public Boolean get(long timeout, TimeUnit unit) throws InterruptedException {
+                  return get();
+               }
+            });
+         }
+         return result;
+      }
+   }
+
+   @Before
+   public void initialize() {
+      _clusterMap = new StandaloneSimpleClusterMap(false);
+      for (int i=0; i<12; i++) {
+         _clusterMap.addVMToMap("vm"+i, "myCluster", "host"+(i % 3), false);
+      }
+      _vcActions = new PowerOpCountingVCActions();
+   }
+
+   private PowerOperationAdmissionControl createAdmissionControl(int maxPerHost, int maxPerVC) {
+      PowerOperationAdmissionControl result = new PowerOperationAdmissionControl(_vcActions, maxPerHost, maxPerVC);
+      result.initialize(new AbstractClusterMapReader(new ReadWriteLockClusterMapAccess(_clusterMap), null) {});
+      return result;
+   }
+
+   private void changePowerStateConcurrently(final PowerOperationAdmissionControl admissionControl, int numThreads, final int vmsPerThread)
+         throws InterruptedException {
+      Thread[] threads = new Thread[numThreads];
+      for (int t=0; t<numThreads; t++) {
+         final Set<String> vms = new HashSet<String>();
+         for (int i=0; i<vmsPerThread; i++) {
+            vms.add("vm"+((t * vmsPerThread) + i));
+         }
+         threads[t] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               Map<String, Future<Boolean>> result = admissionControl.changeVMPowerState(vms, true);
+               assertEquals(vms, result.keySet());
+            }});
+         threads[t].start();
+      }
+      for (Thread thread : threads) {
+         thread.join(10000);
+      }
+   }
+
+   @Test
+   public void vCenterLimitIsApplied() throws InterruptedException {
+      PowerOperationAdmissionControl admissionControl = createAdmissionControl(10, 2);
+      changePowerStateConcurrently(admissionControl, 3, 4);
+      assertEquals(12, admissionControl.getPowerOpsAdmitted());
+      assertEquals(2, _vcActions._maxInProgress.get());
+      assertTrue(admissionControl.getMaxInProgress() <= 2);
+      assertEquals(0, _vcActions._inProgress.get());
+   }
+
+   @Test
+   public void hostLimitIsApplied() throws InterruptedException {
+      PowerOperationAdmissionControl admissionControl = createAdmissionControl(1, 10);
+      changePowerStateConcurrently(admissionControl, 3, 4);
+      assertEquals(12, admissionControl.getPowerOpsAdmitted());
+      assertEquals(1, _vcActions._maxInProgressOnHost.get());
+      assertTrue(admissionControl.getAdmissionWaits() > 0);
+   }
+
+   @Test
+   public void vCenterFailureReturnsStartedOperations() {
+      _vcActions = new PowerOpCountingVCActions() {
+         int _calls;
+
+         @Override
+         public Map<String, Future<Boolean>> changeVMPowerState(Set<String> vmMoRefs, boolean b) {
+            return (++_calls > 1) ? null : super.changeVMPowerState(vmMoRefs, b);
+         }
+      };
+      PowerOperationAdmissionControl admissionControl = createAdmissionControl(10, 2);
+      Set<String> vms = new HashSet<String>();
+      for (int i=0; i<4; i++) {
+         vms.add("vm"+i);
+      }
+      Map<String, Future<Boolean>> result = admissionControl.changeVMPowerState(vms, true);
+      assertEquals(2, result.size());
+      assertTrue(vms.containsAll(result.keySet()));
+   }
+
+   @Test
+   public void interruptReturnsStartedOperations() {
+      PowerOperationAdmissionControl admissionControl = createAdmissionControl(10, 1);
+      Set<String> vms = new HashSet<String>();
+      for (int i=0; i<3; i++) {
+         vms.add("vm"+i);
+      }
+      Thread.currentThread().interrupt();
+      Map<String, Future<Boolean>> result = admissionControl.changeVMPowerState(vms, true);
+      /* The interrupt is restored rather than swallowed */
+      assertTrue(Thread.interrupted());
+      assertEquals(1, result.size());
+   }
+
+   @Test
+   public void freedPermitsAreAdmittedTogether() {
+      PowerOperationAdmissionControl admissionControl = createAdmissionControl(10, 2);
+      Set<String> vms = new HashSet<String>();
+      for (int i=0; i<8; i++) {
+         vms.add("vm"+i);
+      }
+      assertEquals(vms, admissionControl.changeVMPowerState(vms, true).keySet());
+      /* Each permit freed during a poll interval is not used on its own, so every call to vCenter has a full batch */
+      assertEquals(4, _vcActions._callSizes.size());
+      for (Integer callSize : _vcActions._callSizes) {
+         assertEquals(2, callSize.intValue());
+      }
+   }
+
+   @Test
+   public void noVMsAreAdmittedOnceCancelled() {
+      final ClusterScaleOperation[] operationHolder = new ClusterScaleOperation[1];
+      _vcActions = new PowerOpCountingVCActions() {
+         @Override
+         public Map<String, Future<Boolean>> changeVMPowerState(Set<String> vmMoRefs, boolean b) {
+            /* A newer request arrives while the first batch is being started */
+            operationHolder[0].requestCancellation();
+            return super.changeVMPowerState(vmMoRefs, b);
+         }
+      };
+      final PowerOperationAdmissionControl admissionControl = createAdmissionControl(10, 2);
+      final Set<String> vms = new HashSet<String>();
+      for (int i=0; i<8; i++) {
+         vms.add("vm"+i);
+      }
+      final List<Map<String, Future<Boolean>>> results = new ArrayList<Map<String, Future<Boolean>>>();
+      operationHolder[0] = new ClusterScaleOperation() {
+         @Override
+         public ClusterScaleCompletionEvent localCall() throws Exception {
+            results.add(admissionControl.changeVMPowerState(vms, true));
+            return null;
+         }
+      };
+      operationHolder[0].initialize(new AbstractClusterMapReader(new ReadWriteLockClusterMapAccess(_clusterMap), new ThreadLocalCompoundStatus()) {});
+      operationHolder[0].call();
+
+      /* The operations which were started are still waited for and returned */
+      assertEquals(1, _vcActions._callSizes.size());
+      assertEquals(2, results.get(0).size());
+      assertEquals(0, _vcActions._inProgress.get());
+   }
+
+   @Test
+   public void resultsAreCompletedFutures() throws InterruptedException, ExecutionException {
+      PowerOperationAdmissionControl admissionControl = createAdmissionControl(4, 32);
+      Set<String> vms = new HashSet<String>();
+      vms.add("vm0");
+      vms.add("vm1");
+      Map<String, Future<Boolean>> result = admissionControl.changeVMPowerState(vms, true);
+      for (Future<Boolean> task : result.values()) {
+         assertTrue(task.isDone());
+         assertTrue(task.get());
+      }
+   }
+}
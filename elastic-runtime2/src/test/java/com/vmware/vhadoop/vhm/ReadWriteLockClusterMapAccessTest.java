@@ -0,0 +1,65 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+
+/* Runs all of the ClusterMapAccessTest tests against ReadWriteLockClusterMapAccess */
+public class ReadWriteLockClusterMapAccessTest extends ClusterMapAccessTest {
+
+   @Override
+   WritableClusterMapAccess createClusterMapAccess(ClusterMap clusterMap) {
+      return new ReadWriteLockClusterMapAccess(clusterMap);
+   }
+
+   @Test
+   public void lockStatistics() {
+      ReadWriteLockClusterMapAccess access = (ReadWriteLockClusterMapAccess)_clusterMapAccess;
+      ClusterMap cm = access.lockClusterMap();
+      assertTrue(access.unlockClusterMap(cm));
+      access.runCodeInWriteLock(new Callable<Object>() {
+         @Override
+         public Object call() throws Exception {
+            Thread.sleep(50);
+            return null;
+         }
+      });
+      assertEquals(1, access.getReadLockStatistics().getAcquisitions());
+      assertEquals(1, access.getWriteLockStatistics().getAcquisitions());
+      assertTrue(access.getWriteLockStatistics().getMaxHoldTimeNanos() >= 50 * 1000000L);
+   }
+
+   @Test(expected=IllegalStateException.class)
+   public void writeWhileHoldingReadLock() {
+      ClusterMap cm = _clusterMapAccess.lockClusterMap();
+      try {
+         _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+               return null;
+            }
+         });
+      } finally {
+         _clusterMapAccess.unlockClusterMap(cm);
+      }
+   }
+}
@@ -0,0 +1,141 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.ClusterMap;
+
+public class SnapshotClusterMapAccessTest {
+   VersionedSimpleClusterMap _clusterMap;
+   SnapshotClusterMapAccess _clusterMapAccess;
+
+   class VersionedSimpleClusterMap extends StandaloneSimpleClusterMap implements VersionedClusterMap {
+      long _version;
+
+      VersionedSimpleClusterMap() {
+         super(false);
+      }
+
+      @Override
+      public void addVMToMap(String name, String cluster, String host, boolean power) {
+         super.addVMToMap(name, cluster, host, power);
+         _version++;
+      }
+
+      @Override
+      public long getVersion() {
+         return _version;
+      }
+
+      @Override
+      public ClusterMap createSnapshot() {
+         StandaloneSimpleClusterMap snapshot = new StandaloneSimpleClusterMap(false);
+         for (VM vm : getMapContents()) {
+            snapshot.addVMToMap(vm.id, vm.cluster, vm.host, vm.power);
+         }
+         return snapshot;
+      }
+   }
+
+   @Before
+   public void initialize() {
+      _clusterMap = new VersionedSimpleClusterMap();
+      _clusterMap.addVMToMap("myVm1", "myCluster", "myHost", false);
+      _clusterMapAccess = new SnapshotClusterMapAccess(_clusterMap);
+   }
+
+   private void addVMInWriteLock(final String vmName) {
+      _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+         @Override
+         public Object call() throws Exception {
+            _clusterMap.addVMToMap(vmName, "myCluster", "myHost", false);
+            return null;
+         }
+      });
+   }
+
+   private int getNumPoweredOffVMs(ClusterMap clusterMap) {
+      return clusterMap.listComputeVMsForClusterAndPowerState("myCluster", false).size();
+   }
+
+   @Test
+   public void doubleLockAndUnlock() {
+      ClusterMap cm = _clusterMapAccess.lockClusterMap();
+      assertNotNull(cm);
+      assertNull(_clusterMapAccess.lockClusterMap());
+      assertTrue(_clusterMapAccess.unlockClusterMap(cm));
+      assertFalse(_clusterMapAccess.unlockClusterMap(cm));
+   }
+
+   @Test
+   public void snapshotIsNotAffectedByWriter() {
+      ClusterMap before = _clusterMapAccess.lockClusterMap();
+      addVMInWriteLock("myVm2");
+      assertEquals(1, getNumPoweredOffVMs(before));
+      _clusterMapAccess.unlockClusterMap(before);
+
+      ClusterMap after = _clusterMapAccess.lockClusterMap();
+      assertEquals(2, getNumPoweredOffVMs(after));
+      _clusterMapAccess.unlockClusterMap(after);
+   }
+
+   @Test
+   public void snapshotOnlyPublishedOnChange() {
+      assertEquals(1, _clusterMapAccess.getSnapshotsPublished());
+      _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+         @Override
+         public Object call() throws Exception {
+            return null;
+         }
+      });
+      assertEquals(1, _clusterMapAccess.getSnapshotsPublished());
+      addVMInWriteLock("myVm2");
+      assertEquals(2, _clusterMapAccess.getSnapshotsPublished());
+   }
+
+   @Test
+   public void readerDoesNotBlockWriter() throws InterruptedException {
+      final CountDownLatch readerHasSnapshot = new CountDownLatch(1);
+      final CountDownLatch writerDone = new CountDownLatch(1);
+      Thread reader = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            ClusterMap cm = _clusterMapAccess.lockClusterMap();
+            try {
+               readerHasSnapshot.countDown();
+               /* Hold the snapshot until the writer has finished - a blocking implementation would deadlock here */
+               assertTrue(writerDone.await(5, TimeUnit.SECONDS));
+               assertEquals(1, getNumPoweredOffVMs(cm));
+            } catch (InterruptedException e) {
+            } finally {
+               _clusterMapAccess.unlockClusterMap(cm);
+            }
+         }});
+      reader.start();
+      assertTrue(readerHasSnapshot.await(5, TimeUnit.SECONDS));
+      addVMInWriteLock("myVm2");
+      writerDone.countDown();
+      reader.join();
+   }
+}
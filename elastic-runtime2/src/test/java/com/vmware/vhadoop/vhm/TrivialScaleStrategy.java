@@ -15,7 +15,9 @@
 
 package com.vmware.vhadoop.vhm;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -40,6 +42,9 @@ public class TrivialScaleStrategy extends AbstractClusterMapReader implements Sc
       ScaleStrategyContext _context;
       long _scalePauseMillis = 0;
       int _requeueEventTimes = 0;
+      int _timesCancelled = 0;
+      /* Every completion the operation has returned, since ClusterMap only keeps the last one for a cluster */
+      final List<ClusterScaleCompletionEvent> _completions = new ArrayList<ClusterScaleCompletionEvent>();
       
       public TrivialClusterScaleOperation() {
          initialize(TrivialScaleStrategy.this);
@@ -78,10 +83,36 @@ public class TrivialScaleStrategy extends AbstractClusterMapReader implements Sc
          return _context;
       }
 
+      public int getTimesCancelled() {
+         return _timesCancelled;
+      }
+
+      /* Waits until the operation has returned at least numCompletions completions and returns all of them so far */
+      public List<ClusterScaleCompletionEvent> waitForCompletions(int numCompletions, long timeoutMillis) throws InterruptedException {
+         long endTime = System.currentTimeMillis() + timeoutMillis;
+         synchronized(_completions) {
+            long timeLeft = timeoutMillis;
+            while ((_completions.size() < numCompletions) && (timeLeft > 0)) {
+               _completions.wait(timeLeft);
+               timeLeft = endTime - System.currentTimeMillis();
+            }
+            return new ArrayList<ClusterScaleCompletionEvent>(_completions);
+         }
+      }
+
       @Override
       public ClusterScaleCompletionEvent localCall() throws Exception {
          _log.info("About to scale cluster "+_clusterId);
-         Thread.sleep(_scalePauseMillis);
+         /* The pause can be cut short by cancellation, as if it were a series of safe points */
+         long endTime = System.currentTimeMillis() + _scalePauseMillis;
+         while (System.currentTimeMillis() < endTime) {
+            if (isCancellationRequested()) {
+               _log.info("Cancelled scaling cluster "+_clusterId);
+               _timesCancelled++;
+               break;
+            }
+            Thread.sleep(Math.min(10, Math.max(1, endTime - System.currentTimeMillis())));
+         }
          _log.info("Done scaling cluster "+_clusterId);
          TrivialClusterScaleEvent tcse = (TrivialClusterScaleEvent)_events.iterator().next();
          tcse.ReportBack();
@@ -91,6 +122,10 @@ public class TrivialScaleStrategy extends AbstractClusterMapReader implements Sc
                result.requeueEventForCluster(event);
             }
          }
+         synchronized(_completions) {
+            _completions.add(result);
+            _completions.notifyAll();
+         }
          return result;
       }
    }
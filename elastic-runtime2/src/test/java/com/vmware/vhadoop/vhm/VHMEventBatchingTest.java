@@ -0,0 +1,161 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.events.ClusterStateChangeEvent.VMVariableData;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
+import com.vmware.vhadoop.vhm.events.AbstractNotificationEvent;
+import com.vmware.vhadoop.vhm.events.VmRemovedFromClusterEvent;
+import com.vmware.vhadoop.vhm.events.VmUpdateEvent;
+
+public class VHMEventBatchingTest {
+   VHM _vhm;
+
+   @After
+   public void destroy() {
+      if (_vhm != null) {
+         _vhm.stop(true);
+      }
+   }
+
+   private VHM createVHM(long lingerMillis, int hotQueueSize, int maxBatchSize) {
+      Properties properties = new Properties();
+      properties.setProperty(VHM.EVENT_BATCH_LINGER_MILLIS_PROP_KEY, Long.toString(lingerMillis));
+      properties.setProperty(VHM.EVENT_BATCH_HOT_QUEUE_SIZE_PROP_KEY, Integer.toString(hotQueueSize));
+      properties.setProperty(VHM.EVENT_BATCH_MAX_SIZE_PROP_KEY, Integer.toString(maxBatchSize));
+      _vhm = new VHM(new StandaloneSimpleVCActions(), new ScaleStrategy[0], null, null, properties);
+      return _vhm;
+   }
+
+   private NotificationEvent createVmUpdateEvent(String vmId) {
+      return new VmUpdateEvent(vmId, new VMVariableData());
+   }
+
+   private NotificationEvent createVmUpdateEvent(String vmId, String dnsName, String ipAddr, Boolean powerState) {
+      VMVariableData variableData = new VMVariableData();
+      variableData._dnsName = dnsName;
+      variableData._ipAddr = ipAddr;
+      variableData._powerState = powerState;
+      return new VmUpdateEvent(vmId, variableData);
+   }
+
+   @Test
+   public void lingerCoalescesBurst() {
+      final VHM vhm = createVHM(2000, 100, 1000);
+      vhm.placeEventOnQueue(createVmUpdateEvent("vm1"));
+      new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               Thread.sleep(100);
+            } catch (InterruptedException e) {}
+            vhm.placeEventOnQueue(createVmUpdateEvent("vm2"));
+         }}).start();
+
+      Set<NotificationEvent> events = vhm.pollForEvents();
+      assertEquals(2, events.size());
+      assertEquals(1, vhm.getEventBatchStatistics().getLingers());
+      assertEquals(1, vhm.getEventBatchStatistics().getBatches());
+   }
+
+   @Test
+   public void hotQueueIsDrainedImmediately() {
+      VHM vhm = createVHM(60000, 5, 1000);
+      for (int i=0; i<5; i++) {
+         vhm.placeEventOnQueue(createVmUpdateEvent("vm"+i));
+      }
+      long startTime = System.currentTimeMillis();
+      assertEquals(5, vhm.pollForEvents().size());
+      assertTrue((System.currentTimeMillis() - startTime) < 10000);
+      assertEquals(1, vhm.getEventBatchStatistics().getHotDrains());
+      assertEquals(0, vhm.getEventBatchStatistics().getLingers());
+   }
+
+   @Test
+   public void urgentEventIsNotDelayed() {
+      VHM vhm = createVHM(60000, 100, 1000);
+      vhm.placeEventOnQueue(createVmUpdateEvent("vm1"));
+      /* An event that can clear the queue is urgent. VmUpdateEvents cannot be cleared from the queue */
+      vhm.placeEventOnQueue(new AbstractNotificationEvent(true, false) {});
+      long startTime = System.currentTimeMillis();
+      assertEquals(2, vhm.pollForEvents().size());
+      assertTrue((System.currentTimeMillis() - startTime) < 10000);
+      assertEquals(1, vhm.getEventBatchStatistics().getUrgentDrains());
+   }
+
+   @Test
+   public void batchSizeIsBounded() {
+      VHM vhm = createVHM(0, 100, 3);
+      for (int i=0; i<5; i++) {
+         vhm.placeEventOnQueue(createVmUpdateEvent("vm"+i));
+      }
+      assertEquals(3, vhm.pollForEvents().size());
+      assertEquals(2, vhm.pollForEvents().size());
+      assertEquals(3, vhm.getEventBatchStatistics().getMaxBatchSize());
+      assertEquals(5, vhm.getEventBatchStatistics().getEvents());
+   }
+
+   @Test
+   public void successiveVmUpdatesAreMerged() {
+      VHM vhm = createVHM(0, 100, 1000);
+      vhm.placeEventOnQueue(createVmUpdateEvent("vm1", "dns1", null, true));
+      vhm.placeEventOnQueue(createVmUpdateEvent("vm2", null, null, null));
+      vhm.placeEventOnQueue(createVmUpdateEvent("vm1", null, "ip1", null));
+      vhm.placeEventOnQueue(createVmUpdateEvent("vm1", "dns2", null, null));
+
+      Set<NotificationEvent> events = vhm.pollForEvents();
+      assertEquals(2, events.size());
+      assertEquals(2, vhm.getEventBatchStatistics().getMerges());
+      VmUpdateEvent merged = (VmUpdateEvent)events.iterator().next();
+      assertEquals("vm1", merged.getVmId());
+      assertEquals("dns2", merged.getVariableData()._dnsName);
+      assertEquals("ip1", merged.getVariableData()._ipAddr);
+      assertEquals(Boolean.TRUE, merged.getVariableData()._powerState);
+   }
+
+   @Test
+   public void powerStateChangesAreNotMerged() {
+      VHM vhm = createVHM(0, 100, 1000);
+      vhm.placeEventOnQueue(createVmUpdateEvent("vm1", null, null, true));
+      vhm.placeEventOnQueue(createVmUpdateEvent("vm1", null, null, false));
+      vhm.placeEventOnQueue(createVmUpdateEvent("vm1", "dns1", null, null));
+
+      Set<NotificationEvent> events = vhm.pollForEvents();
+      assertEquals(2, events.size());
+      assertEquals(1, vhm.getEventBatchStatistics().getMerges());
+   }
+
+   @Test
+   public void differentEventTypeForVmPreventsMerge() {
+      VHM vhm = createVHM(0, 100, 1000);
+      vhm.placeEventOnQueue(createVmUpdateEvent("vm1", "dns1", null, null));
+      vhm.placeEventOnQueue(new VmRemovedFromClusterEvent("vm1"));
+      vhm.placeEventOnQueue(createVmUpdateEvent("vm1", "dns2", null, null));
+
+      assertEquals(3, vhm.pollForEvents().size());
+      assertEquals(0, vhm.getEventBatchStatistics().getMerges());
+   }
+}
@@ -0,0 +1,124 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.QueueClient;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent;
+import com.vmware.vhadoop.api.vhm.events.NotificationEvent.Priority;
+import com.vmware.vhadoop.api.vhm.strategy.ScaleStrategy;
+import com.vmware.vhadoop.vhm.events.ClusterScaleDecision;
+import com.vmware.vhadoop.vhm.events.SerengetiLimitInstruction;
+
+public class VHMEventQueueOverflowTest {
+   VHM _vhm;
+   final List<String> _replies = new ArrayList<String>();
+
+   @After
+   public void destroy() {
+      if (_vhm != null) {
+         /* VHM is not started, so the queue is drained here to leave room for the stop event */
+         while (_vhm.getEventQueue().poll() != null);
+         _vhm.stop(true);
+      }
+   }
+
+   private VHM createVHM(int queueCapacity) {
+      Properties properties = new Properties();
+      properties.setProperty(VHM.EVENT_QUEUE_CAPACITY_PROP_KEY, Integer.toString(queueCapacity));
+      properties.setProperty(VHM.EVENT_QUEUE_OVERFLOW_POLICY_PROP_KEY, "dropNewest");
+      _vhm = new VHM(new StandaloneSimpleVCActions(), new ScaleStrategy[0], null, null, properties);
+      return _vhm;
+   }
+
+   private SerengetiLimitInstruction createInstruction(String folderName) {
+      return new SerengetiLimitInstruction(folderName, SerengetiLimitInstruction.actionSetTarget, 1, new QueueClient() {
+         @Override
+         public void sendMessage(byte[] data) {
+            synchronized(_replies) {
+               _replies.add(new String(data));
+            }
+         }
+      });
+   }
+
+   @Test
+   public void droppedSerengetiInstructionReportsError() {
+      VHM vhm = createVHM(2);
+      vhm.placeEventOnQueue(createInstruction("folder1"));
+      vhm.placeEventOnQueue(createInstruction("folder2"));
+      assertTrue(_replies.isEmpty());
+
+      vhm.placeEventOnQueue(createInstruction("folder3"));
+      assertEquals(1, vhm.getEventQueue().getDropped());
+      assertEquals(1, _replies.size());
+      assertTrue(_replies.get(0).contains("too busy"));
+      assertEquals(2, vhm.getEventQueue().size());
+   }
+
+   @Test
+   public void completionsAreNeverDropped() throws InterruptedException {
+      final VHM vhm = createVHM(2);
+      final List<ClusterScaleDecision> completions = new ArrayList<ClusterScaleDecision>();
+      for (int i=0; i<5; i++) {
+         completions.add(new ClusterScaleDecision("cluster"+i));
+         assertEquals(Priority.HIGH, completions.get(i).getPriority());
+      }
+
+      /* Fill the high priority ring with completions, which are handed back by the execution strategy */
+      vhm.placeEventCollectionOnQueue(completions.subList(0, 2));
+      assertEquals(2, vhm.getEventQueue().size());
+
+      /* The ring is full, so further completions must wait for space rather than being dropped */
+      Thread producer = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            vhm.placeEventCollectionOnQueue(completions.subList(2, 4));
+            vhm.placeEventOnQueue(completions.get(4));
+         }});
+      producer.start();
+      while (vhm.getEventQueue().getProducerBlocks() == 0) {
+         Thread.sleep(1);
+      }
+      assertTrue(producer.isAlive());
+
+      Set<NotificationEvent> polled = new HashSet<NotificationEvent>();
+      long timeoutTime = System.currentTimeMillis() + 5000;
+      while ((polled.size() < completions.size()) && (System.currentTimeMillis() < timeoutTime)) {
+         NotificationEvent event = vhm.getEventQueue().poll();
+         if (event != null) {
+            polled.add(event);
+         } else {
+            Thread.sleep(1);
+         }
+      }
+      producer.join(5000);
+      assertFalse(producer.isAlive());
+      assertEquals(new HashSet<NotificationEvent>(completions), polled);
+      assertEquals(0, vhm.getEventQueue().getDropped());
+   }
+}
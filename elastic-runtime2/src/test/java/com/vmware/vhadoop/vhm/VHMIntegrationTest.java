@@ -473,25 +473,63 @@ public class VHMIntegrationTest extends AbstractJUnitTest implements EventProduc
 
       final Set<ClusterScaleCompletionEvent> completionEventsFromInit = waitForClusterScaleCompletionEvents(clusterId, 1, 1000);
       assertNotNull(completionEventsFromInit);
+      long requeuesBefore = _vhm.getEventBatchStatistics().getRequeues();
 
+      long firstEventTime = System.currentTimeMillis();
       _eventConsumer.placeEventOnQueue(new TrivialClusterScaleEvent(clusterId, false));
       Thread.sleep(1000);
       _eventConsumer.placeEventOnQueue(new TrivialClusterScaleEvent(clusterId, false));
       Thread.sleep(1000);
       _eventConsumer.placeEventOnQueue(new TrivialClusterScaleEvent(clusterId, false));
 
-      /* Expectation here is that 1st event will trigger a scale. The second one arrives and third one arrives and are both queued back up */
+      /* Expectation here is that 1st event will trigger a scale. The second one arrives and third one arrives and are both held by the execution strategy */
       /* Then, the second and third ones are processed together in a single invocation */
       
-      /* This call should time out - there should only be one that's been processed so far... */
-      Set<ClusterScaleCompletionEvent> results1 = waitForClusterScaleCompletionEvents(clusterId, 2, 4000, completionEventsFromInit);
+      /* This call should time out - there should only be one that's been processed so far...
+       * The second invocation cannot start until the first has finished, so it cannot complete until two delays after the first event.
+       * The wait ends a second before that, which leaves the first invocation a second to complete */
+      int firstOnlyMillis = (int)(firstEventTime + (2 * delayMillis) - 1000 - System.currentTimeMillis());
+      Set<ClusterScaleCompletionEvent> results1 = waitForClusterScaleCompletionEvents(clusterId, 2, firstOnlyMillis, completionEventsFromInit);
       assertEquals(1, results1.size());
 
       /* The two extra events should have been picked up and should result in a second consolidated invocation. This should not time out. */
-      Set<ClusterScaleCompletionEvent> results2 = waitForClusterScaleCompletionEvents(clusterId, 2, 4000, completionEventsFromInit);
+      Set<ClusterScaleCompletionEvent> results2 = waitForClusterScaleCompletionEvents(clusterId, 2, delayMillis + 2000, completionEventsFromInit);
       assertEquals(2, results2.size());
+
+      /* The events were held until the first scale completed, rather than going around the VHM queue */
+      assertEquals(requeuesBefore, _vhm.getEventBatchStatistics().getRequeues());
    }
    
+   @Test
+   /* A newer exclusive event for a cluster should preempt the operation that is scaling it */
+   public void testPreemptionByNewerExclusiveEvent() throws InterruptedException {
+      int numClusters = 3;
+      populateSimpleClusterMap(numClusters, 4, false);    /* Blocks until CSCL has generated all events */
+      assertTrue(waitForTargetClusterCount(3, 1000));
+
+      int delayMillis = 5000;
+      String clusterId = deriveClusterIdFromClusterName(_clusterNames.iterator().next());
+      TrivialClusterScaleOperation tcso = _trivialScaleStrategy.new TrivialClusterScaleOperation(delayMillis);
+      _trivialScaleStrategy.setClusterScaleOperation(clusterId, tcso);
+
+      final Set<ClusterScaleCompletionEvent> completionEventsFromInit = waitForClusterScaleCompletionEvents(clusterId, 1, 1000);
+      assertNotNull(completionEventsFromInit);
+
+      _eventConsumer.placeEventOnQueue(new TrivialClusterScaleEvent(clusterId, true));
+      Thread.sleep(500);
+      _eventConsumer.placeEventOnQueue(new TrivialClusterScaleEvent(clusterId, true));
+
+      /* The first operation should stop well before its pause is over */
+      Set<ClusterScaleCompletionEvent> results1 = waitForClusterScaleCompletionEvents(clusterId, 1, 2000, completionEventsFromInit);
+      assertEquals(1, results1.size());
+      assertEquals(1, tcso.getTimesCancelled());
+
+      /* The newer event is then handled and runs to completion */
+      Set<ClusterScaleCompletionEvent> results2 = waitForClusterScaleCompletionEvents(clusterId, 2, delayMillis+2000, completionEventsFromInit);
+      assertEquals(2, results2.size());
+      assertEquals(1, tcso.getTimesCancelled());
+   }
+
    private class ReportResult {
       String _routeKey;
       byte[] _data;
@@ -743,7 +781,7 @@ public class VHMIntegrationTest extends AbstractJUnitTest implements EventProduc
    }
    
    @Test
-   public void testRequeueEvents() {
+   public void testRequeueEvents() throws InterruptedException {
       int numClusters = 3;
       populateSimpleClusterMap(numClusters, 4, false);    /* Blocks until CSCL has generated all events */
       assertTrue(waitForTargetClusterCount(3, 1000));
@@ -761,15 +799,54 @@ public class VHMIntegrationTest extends AbstractJUnitTest implements EventProduc
       /* Simulate a cluster scale event being triggered from an EventProducer */
       _eventConsumer.placeEventOnQueue(new TrivialClusterScaleEvent(clusterId, false));
       
-      /* VHM should invoke the scale strategy as many times as the event is queued */
-      Set<ClusterScaleCompletionEvent> foundEvents = new HashSet<ClusterScaleCompletionEvent>();
-      for (int i=0; i<(timesToRequeue+1); i++) {
-         ClusterScaleCompletionEvent event = waitForClusterScaleCompletionEvent(clusterId, 2000, foundEvents);
-         assertNotNull(event);
-         foundEvents.add(event);
-      }
+      /* VHM should invoke the scale strategy as many times as the event is queued
+       * The operation records each of its completions, as ClusterMap may only see the last of several that arrive together */
+      List<ClusterScaleCompletionEvent> completions = tcso.waitForCompletions(timesToRequeue+1, 2000*(timesToRequeue+1));
+      assertEquals(timesToRequeue+1, completions.size());
+
+      /* The last completion should reach ClusterMap */
+      Set<ClusterScaleCompletionEvent> earlierEvents = new HashSet<ClusterScaleCompletionEvent>(completions.subList(0, timesToRequeue));
+      assertSame(completions.get(timesToRequeue), waitForClusterScaleCompletionEvent(clusterId, 2000, earlierEvents));
+
       /* Check that it is not queued for more times than requested */
-      assertNull(waitForClusterScaleCompletionEvent(clusterId, 2000, foundEvents));
+      assertEquals(timesToRequeue+1, tcso.waitForCompletions(timesToRequeue+2, 2000).size());
+   }
+   
+   /* Checks that an instruction held for a cluster which never becomes complete is answered, even if no further events arrive */
+   @Test
+   public void testHeldEventsForIncompleteClusterTimeOut() throws InterruptedException {
+      String clusterName = "incompleteCluster";
+      /* Only the master VM is added, so the cluster has no compute VMs and stays incomplete */
+      populateClusterSameHost(clusterName, "DEFAULT_HOST", 1, false, false, 0, null);
+      assertTrue(waitForTargetClusterCount(1, 1000));
+
+      final ReportResult serengetiQueueResult = new ReportResult();
+      TestRabbitConnection testConnection = new TestRabbitConnection(new TestRabbitConnection.TestChannel() {
+         @Override
+         public void basicPublish(String localRouteKey, byte[] data) {
+            serengetiQueueResult._routeKey = localRouteKey;
+            serengetiQueueResult._data = data;
+         }
+      });
+      String routeKey = "routeKey1";
+      SerengetiLimitInstruction limitEvent = new SerengetiLimitInstruction(
+            getFolderNameForClusterName(clusterName), 
+            SerengetiLimitInstruction.actionUnlimit, 0, 
+            new RabbitConnectionCallback(routeKey, testConnection));
+      _eventConsumer.placeEventOnQueue(limitEvent);
+
+      /* The instruction is held while the cluster is within its grace period */
+      Thread.sleep(2000);
+      assertNull(serengetiQueueResult._data);
+
+      /* Once the grace period is over, the instruction is dropped and Serengeti gets an error */
+      long timeoutTime = System.currentTimeMillis() + 15000;
+      while ((serengetiQueueResult._data == null) && (System.currentTimeMillis() < timeoutTime)) {
+         Thread.sleep(100);
+      }
+      assertNotNull(serengetiQueueResult._data);
+      assertEquals(routeKey, serengetiQueueResult._routeKey);
+      assertTrue(new String(serengetiQueueResult._data).contains("not complete"));
    }
    
    @Override
@@ -0,0 +1,126 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+package com.vmware.vhadoop.vhm;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vhadoop.api.vhm.ClusterMapReader;
+import com.vmware.vhadoop.util.CompoundStatus;
+import com.vmware.vhadoop.util.ThreadLocalCompoundStatus;
+
+public class VMStateSubscriptionsTest {
+   StandaloneSimpleClusterMap _clusterMap;
+   ReadWriteLockClusterMapAccess _clusterMapAccess;
+   VMStateSubscriptions _subscriptions;
+   Set<String> _vmIds;
+
+   @Before
+   public void initialize() {
+      _clusterMap = new StandaloneSimpleClusterMap(false);
+      _clusterMap.addVMToMap("myVm1", "myCluster", "myHost", false);
+      _clusterMap.addVMToMap("myVm2", "myCluster", "myHost", false);
+      _clusterMapAccess = new ReadWriteLockClusterMapAccess(_clusterMap);
+      _subscriptions = new VMStateSubscriptions();
+      _vmIds = new HashSet<String>(Arrays.asList(new String[]{"myVm1", "myVm2"}));
+   }
+
+   /* Mirrors VHM, which notifies subscriptions once the write lock has been released */
+   private void powerOn(final String vmId) {
+      _clusterMapAccess.runCodeInWriteLock(new Callable<Object>() {
+         @Override
+         public Object call() throws Exception {
+            return _clusterMap.setPowerStateForVM(vmId, true);
+         }
+      });
+      _subscriptions.notifyVMsUpdated(Collections.singleton(vmId), _clusterMap);
+   }
+
+   @Test
+   public void alreadySatisfied() throws Exception {
+      Future<Boolean> subscription = _subscriptions.subscribe(_vmIds, VMStateSubscriptions.POWERED_OFF, _clusterMapAccess);
+      assertTrue(subscription.isDone());
+      assertTrue(subscription.get());
+      assertEquals(0, _subscriptions.getNumSubscribedVMs());
+   }
+
+   @Test
+   public void completedWhenAllVMsSatisfied() throws Exception {
+      Future<Boolean> subscription = _subscriptions.subscribe(_vmIds, VMStateSubscriptions.POWERED_ON, _clusterMapAccess);
+      assertFalse(subscription.isDone());
+      assertEquals(2, _subscriptions.getNumSubscribedVMs());
+
+      powerOn("myVm1");
+      assertFalse(subscription.isDone());
+
+      /* An update to an unrelated VM should not affect the subscription */
+      _subscriptions.notifyVMsUpdated(Collections.singleton("otherVm"), _clusterMap);
+      assertFalse(subscription.isDone());
+
+      powerOn("myVm2");
+      assertTrue(subscription.get(0, TimeUnit.MILLISECONDS));
+      assertEquals(0, _subscriptions.getNumSubscribedVMs());
+   }
+
+   @Test
+   public void timeoutAndCancel() throws Exception {
+      Future<Boolean> subscription = _subscriptions.subscribe(_vmIds, VMStateSubscriptions.POWERED_ON, _clusterMapAccess);
+      try {
+         subscription.get(10, TimeUnit.MILLISECONDS);
+         fail("Expected subscription to time out");
+      } catch (TimeoutException e) {}
+      assertTrue(subscription.cancel(false));
+      assertTrue(subscription.isCancelled());
+      assertEquals(0, _subscriptions.getNumSubscribedVMs());
+   }
+
+   @Test
+   public void blockOnPowerStateChange() {
+      ThreadLocalCompoundStatus tlcs = new ThreadLocalCompoundStatus();
+      CompoundStatus status = tlcs.initialize();
+      final ClusterMapReader parent = new AbstractClusterMapReader(_clusterMapAccess, tlcs, _subscriptions) {};
+      AbstractClusterMapReader reader = new AbstractClusterMapReader() {};
+      reader.initialize(parent);
+
+      Thread writer = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               Thread.sleep(100);
+            } catch (InterruptedException e) {}
+            powerOn("myVm1");
+            powerOn("myVm2");
+         }});
+      writer.start();
+
+      long startTime = System.currentTimeMillis();
+      reader.blockOnPowerStateChange(_vmIds, true, 10000);
+      assertTrue((System.currentTimeMillis() - startTime) < 5000);
+      assertEquals(0, status.getFailedTaskCount());
+      assertEquals(1, status.getTotalTaskCount());
+   }
+}
@@ -0,0 +1,94 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm.hadoop;
+
+import static com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.WARN_TT_ACTIVE;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DecommissionProgressStreamTest {
+   static final String CLUSTER_ID = "cluster";
+
+   DecommissionProgressStream _progress;
+
+   @Before
+   public void init() {
+      _progress = new DecommissionProgressStream(CLUSTER_ID, set("tt1", "tt2", "tt3"));
+   }
+
+   static Set<String> set(String... names) {
+      return new HashSet<String>(Arrays.asList(names));
+   }
+
+   /* Writes the output a few bytes at a time, as it may arrive from the exec channel */
+   void write(String output, int chunkSize) throws IOException {
+      byte[] bytes = output.getBytes();
+      for (int i = 0; i < bytes.length; i += chunkSize) {
+         _progress.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+      }
+   }
+
+   @Test
+   public void testPartialLinesAreParsedOnceComplete() throws IOException {
+      write("DECOMMISSION_STA", 5);
+      assertNull(_progress.getDecommissionStatus());
+      write("TUS: 0\r\nDECOMM", 3);
+      assertEquals(Integer.valueOf(0), _progress.getDecommissionStatus());
+      assertTrue(_progress.getDecommissionedTTs().isEmpty());
+      write("ISSIONED: tt1\nDECOMMISSIONED: tt2\n", 7);
+      assertEquals(set("tt1", "tt2"), _progress.getDecommissionedTTs());
+      assertNull(_progress.getActiveTTs());
+
+      /* The last line does not have to end with a newline */
+      write("TT: tt4\nTT: tt5", 4);
+      assertEquals(set("tt4"), _progress.getActiveTTs());
+      _progress.close();
+      assertEquals(set("tt4", "tt5"), _progress.getActiveTTs());
+   }
+
+   @Test
+   public void testUnknownTTsAreNotCountedAsDecommissioned() throws IOException {
+      write("DECOMMISSION_STATUS: 0\nDECOMMISSIONED: tt1\nDECOMMISSIONED: other\nDECOMMISSIONED: tt1\n", 64);
+      assertEquals(set("tt1"), _progress.getDecommissionedTTs());
+   }
+
+   @Test
+   public void testTimeoutLeavesTargetTTsActive() throws IOException {
+      /* The script gave up waiting for tt3, so it is reported as active along with the task trackers that were not targeted */
+      write("DECOMMISSION_STATUS: "+WARN_TT_ACTIVE+"\nDECOMMISSIONED: tt1\nDECOMMISSIONED: tt2\nTT: tt3\nTT: tt4\n", 16);
+      _progress.close();
+      assertEquals(Integer.valueOf(WARN_TT_ACTIVE), _progress.getDecommissionStatus());
+      assertEquals(set("tt1", "tt2"), _progress.getDecommissionedTTs());
+      assertEquals(set("tt3", "tt4"), _progress.getActiveTTs());
+   }
+
+   @Test
+   public void testMalformedStatusIsIgnored() throws IOException {
+      write("usage message\nDECOMMISSION_STATUS: oops\n", 64);
+      _progress.close();
+      assertNull(_progress.getDecommissionStatus());
+      assertTrue(_progress.getDecommissionedTTs().isEmpty());
+      assertNull(_progress.getActiveTTs());
+   }
+}
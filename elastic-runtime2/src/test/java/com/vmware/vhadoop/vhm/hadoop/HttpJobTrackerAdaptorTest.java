@@ -0,0 +1,206 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm.hadoop;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.vhadoop.api.vhm.HadoopActions;
+import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
+
+public class HttpJobTrackerAdaptorTest {
+   static final long NO_EXPIRY = Long.MAX_VALUE;
+
+   HttpServer _server;
+   TestJobTrackerHandler _handler;
+   SshHadoopActions _ssh;
+   HadoopClusterInfo _cluster;
+
+   /* Serves the JMX JSON servlet of a JobTracker, counting the queries */
+   class TestJobTrackerHandler implements HttpHandler {
+      Set<String> _aliveNodes = new HashSet<String>();
+      int _responseCode = 200;
+      int _queries;
+
+      @Override
+      public synchronized void handle(HttpExchange exchange) throws IOException {
+         _queries++;
+         StringBuilder nodes = new StringBuilder("[");
+         for (String node : _aliveNodes) {
+            nodes.append(nodes.length() > 1 ? "," : "").append("{\\\"hostname\\\":\\\"").append(node).append("\\\",\\\"failures\\\":0}");
+         }
+         nodes.append("]");
+         byte[] response = jmxResponse(nodes.toString()).getBytes("UTF-8");
+         exchange.sendResponseHeaders(_responseCode, response.length);
+         OutputStream out = exchange.getResponseBody();
+         out.write(response);
+         out.close();
+      }
+   }
+
+   /* Stands in for the ssh based HadoopAdaptor, recording what it was asked to do */
+   class SshHadoopActions implements HadoopActions {
+      Set<String> _activeTTs = new HashSet<String>(Arrays.asList("sshTT"));
+      int _getActiveCalls;
+      int _checkCalls;
+      int _decommissionCalls;
+
+      @Override
+      public void decommissionTTs(Set<String> ttDnsNames, HadoopClusterInfo cluster) {
+         _decommissionCalls++;
+      }
+
+      @Override
+      public void recommissionTTs(Set<String> ttDnsNames, HadoopClusterInfo cluster) {}
+
+      @Override
+      public Set<String> checkTargetTTsSuccess(String opType, Set<String> ttDnsNames, int totalTargetEnabled, HadoopClusterInfo cluster) {
+         _checkCalls++;
+         return new HashSet<String>(_activeTTs);
+      }
+
+      @Override
+      public Set<String> decommissionAndCheckTTs(Set<String> ttDnsNames, int totalTargetEnabled, HadoopClusterInfo cluster) {
+         _decommissionCalls++;
+         return new HashSet<String>(_activeTTs);
+      }
+
+      @Override
+      public Set<String> getActiveTTs(HadoopClusterInfo cluster, int totalTargetEnabled) {
+         _getActiveCalls++;
+         return new HashSet<String>(_activeTTs);
+      }
+   }
+
+   static String jmxResponse(String aliveNodesJson) {
+      return "{\"beans\":[{\"name\":\"hadoop:service=JobTracker,name=JobTrackerInfo\",\"modelerType\":\"org.apache.hadoop.mapred.JobTracker\","+
+            "\"Version\":\"1.2.1\",\"AliveNodesInfoJson\":\""+aliveNodesJson+"\"}]}";
+   }
+
+   @Before
+   public void startJobTracker() throws IOException {
+      _handler = new TestJobTrackerHandler();
+      _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      _server.createContext("/jmx", _handler);
+      _server.start();
+      _ssh = new SshHadoopActions();
+      _cluster = new HadoopClusterInfo("cluster1", "jt", "127.0.0.1", 8021);
+   }
+
+   @After
+   public void stopJobTracker() {
+      _server.stop(0);
+   }
+
+   HttpJobTrackerAdaptor createAdaptor(long cacheMillis) {
+      return new HttpJobTrackerAdaptor(_ssh, null, _server.getAddress().getPort(), cacheMillis);
+   }
+
+   @Test
+   public void parseAliveNodes() {
+      Set<String> nodes = HttpJobTrackerAdaptor.parseAliveNodes(jmxResponse("[{\\\"hostname\\\":\\\"tt1\\\"},{\\\"hostname\\\":\\\"tt2\\\"}]"));
+      assertEquals(new HashSet<String>(Arrays.asList("tt1", "tt2")), nodes);
+
+      assertTrue(HttpJobTrackerAdaptor.parseAliveNodes(jmxResponse("[]")).isEmpty());
+   }
+
+   @Test
+   public void activeTTsAreCachedUntilDecommission() {
+      _handler._aliveNodes.addAll(Arrays.asList("tt1", "tt2"));
+      HttpJobTrackerAdaptor adaptor = createAdaptor(NO_EXPIRY);
+
+      assertEquals(_handler._aliveNodes, adaptor.getActiveTTs(_cluster, 0));
+      assertEquals(_handler._aliveNodes, adaptor.getActiveTTs(_cluster, 0));
+      assertEquals(1, _handler._queries);
+      assertEquals(0, _ssh._getActiveCalls);
+
+      /* Changing the returned set must not change the cached one */
+      adaptor.getActiveTTs(_cluster, 0).clear();
+      assertEquals(2, adaptor.getActiveTTs(_cluster, 0).size());
+
+      _handler._aliveNodes.remove("tt2");
+      adaptor.decommissionTTs(new HashSet<String>(Arrays.asList("tt2")), _cluster);
+      assertEquals(1, _ssh._decommissionCalls);
+      assertEquals(new HashSet<String>(Arrays.asList("tt1")), adaptor.getActiveTTs(_cluster, 0));
+      assertEquals(2, _handler._queries);
+   }
+
+   @Test
+   public void cacheExpires() {
+      _handler._aliveNodes.add("tt1");
+      HttpJobTrackerAdaptor adaptor = createAdaptor(0);
+
+      adaptor.getActiveTTs(_cluster, 0);
+      adaptor.getActiveTTs(_cluster, 0);
+      assertEquals(2, _handler._queries);
+   }
+
+   @Test
+   public void fallsBackToSshWhenQueryFails() {
+      _handler._responseCode = 404;
+      HttpJobTrackerAdaptor adaptor = createAdaptor(NO_EXPIRY);
+
+      assertEquals(_ssh._activeTTs, adaptor.getActiveTTs(_cluster, 0));
+      assertEquals(1, _ssh._getActiveCalls);
+
+      /* The job tracker is not queried again straight away */
+      assertEquals(_ssh._activeTTs, adaptor.getActiveTTs(_cluster, 0));
+      assertEquals(2, _ssh._getActiveCalls);
+      assertEquals(1, _handler._queries);
+
+      assertEquals(_ssh._activeTTs, adaptor.checkTargetTTsSuccess("Decommission", new HashSet<String>(Arrays.asList("tt1")), 0, _cluster));
+      assertEquals(1, _ssh._checkCalls);
+   }
+
+   @Test
+   public void disabledQueryUsesSsh() {
+      HttpJobTrackerAdaptor adaptor = new HttpJobTrackerAdaptor(_ssh, null, 0, NO_EXPIRY);
+
+      assertEquals(_ssh._activeTTs, adaptor.getActiveTTs(_cluster, 0));
+      assertEquals(1, _ssh._getActiveCalls);
+      assertEquals(0, _handler._queries);
+   }
+
+   @Test
+   public void checkTargetTTsSuccess() {
+      _handler._aliveNodes.addAll(Arrays.asList("tt1", "tt2"));
+      HttpJobTrackerAdaptor adaptor = createAdaptor(NO_EXPIRY);
+
+      Set<String> affected = new HashSet<String>(Arrays.asList("tt2"));
+      assertEquals(_handler._aliveNodes, adaptor.checkTargetTTsSuccess("Recommission", affected, 2, _cluster));
+      assertEquals(1, _handler._queries);
+
+      _handler._aliveNodes.remove("tt2");
+      assertEquals(new HashSet<String>(Arrays.asList("tt1")), adaptor.checkTargetTTsSuccess("Decommission", affected, 1, _cluster));
+      /* The caller's set is left alone */
+      assertEquals(1, affected.size());
+      assertEquals(0, _ssh._checkCalls);
+   }
+}
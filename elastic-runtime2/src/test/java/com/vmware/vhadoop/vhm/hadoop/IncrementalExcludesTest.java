@@ -0,0 +1,200 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm.hadoop;
+
+import static com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.ERROR_JT_CONNECTION;
+import static com.vmware.vhadoop.vhm.hadoop.HadoopErrorCodes.SUCCESS;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IncrementalExcludesTest {
+   static final String JT = "10.0.0.1";
+
+   IncrementalExcludes _excludes;
+   TestExcludesWriter _writer;
+
+   /* Keeps an excludes file in memory, recording each update it is asked to make */
+   class TestExcludesWriter implements IncrementalExcludes.ExcludesWriter {
+      final Set<String> _file = new HashSet<String>();
+      final List<String> _updates = new ArrayList<String>();
+      CountDownLatch _block;
+      int _rc = SUCCESS;
+      boolean _failAfterWriting;         /* like a refreshNodes failure, the excludes file is changed before the update fails */
+
+      @Override
+      public int update(boolean clearFirst, Set<String> add, Set<String> remove, Set<String> excludedResult) {
+         CountDownLatch block;
+         synchronized (this) {
+            _updates.add("clear="+clearFirst+" add="+sorted(add)+" remove="+sorted(remove));
+            if ((_rc != SUCCESS) && !_failAfterWriting) {
+               return _rc;
+            }
+            if (clearFirst) {
+               _file.clear();
+            }
+            _file.addAll(add);
+            _file.removeAll(remove);
+            if (_rc != SUCCESS) {
+               return _rc;
+            }
+            excludedResult.addAll(_file);
+            block = _block;
+         }
+         /* Blocks after reading the excludes file, like the refresh at the end of the script */
+         if (block != null) {
+            try {
+               block.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {}
+         }
+         return SUCCESS;
+      }
+
+      synchronized List<String> getUpdates() {
+         return new ArrayList<String>(_updates);
+      }
+   }
+
+   static List<String> sorted(Set<String> hosts) {
+      List<String> result = new ArrayList<String>(hosts);
+      Collections.sort(result);
+      return result;
+   }
+
+   static Set<String> hosts(String... hosts) {
+      return new HashSet<String>(Arrays.asList(hosts));
+   }
+
+   @Before
+   public void setup() {
+      _excludes = new IncrementalExcludes();
+      _writer = new TestExcludesWriter();
+   }
+
+   @Test
+   public void onlyChangesAreSent() {
+      _writer._file.add("admin");
+      assertNull(_excludes.getExcluded(JT));
+
+      /* The excludes file is not known to start with, so everything is sent */
+      assertEquals(SUCCESS, _excludes.exclude(JT, hosts("tt1", "tt2"), _writer));
+      assertEquals(hosts("admin", "tt1", "tt2"), _excludes.getExcluded(JT));
+
+      assertEquals(SUCCESS, _excludes.exclude(JT, hosts("tt2", "tt3"), _writer));
+      assertEquals(SUCCESS, _excludes.exclude(JT, hosts("tt3"), _writer));
+      assertEquals(Arrays.asList("clear=false add=[tt1, tt2] remove=[]", "clear=false add=[tt3] remove=[]"), _writer.getUpdates());
+   }
+
+   @Test
+   public void recommissionRemovesExcludedHosts() {
+      /* Without knowing the excludes file, recommission clears it */
+      assertEquals(SUCCESS, _excludes.includeAll(JT, _writer));
+      assertEquals(SUCCESS, _excludes.exclude(JT, hosts("tt1", "tt2"), _writer));
+      assertEquals(SUCCESS, _excludes.includeAll(JT, _writer));
+      assertTrue(_excludes.getExcluded(JT).isEmpty());
+
+      /* Nothing is excluded, so there is nothing to send */
+      assertEquals(SUCCESS, _excludes.includeAll(JT, _writer));
+      assertEquals(Arrays.asList("clear=true add=[] remove=[]", "clear=false add=[tt1, tt2] remove=[]", "clear=false add=[] remove=[tt1, tt2]"),
+            _writer.getUpdates());
+   }
+
+   @Test
+   public void failureForgetsExcludesFile() {
+      assertEquals(SUCCESS, _excludes.exclude(JT, hosts("tt1"), _writer));
+      _writer._rc = ERROR_JT_CONNECTION;
+      assertEquals(ERROR_JT_CONNECTION, _excludes.exclude(JT, hosts("tt2"), _writer));
+      assertNull(_excludes.getExcluded(JT));
+
+      _writer._rc = SUCCESS;
+      assertEquals(SUCCESS, _excludes.exclude(JT, hosts("tt1"), _writer));
+      assertEquals(SUCCESS, _excludes.includeAll(JT, _writer));
+      assertEquals(Arrays.asList("clear=false add=[tt1] remove=[]", "clear=false add=[tt2] remove=[]", "clear=false add=[tt1] remove=[]",
+            "clear=false add=[] remove=[tt1]"), _writer.getUpdates());
+   }
+
+   @Test
+   public void failedDecommissionThenRecommissionClearsFile() {
+      assertEquals(SUCCESS, _excludes.exclude(JT, hosts("tt1"), _writer));
+      assertEquals(SUCCESS, _excludes.includeAll(JT, _writer));
+
+      /* tt2 is written to the excludes file, but the update fails, so it is not known to be there */
+      _writer._rc = ERROR_JT_CONNECTION;
+      _writer._failAfterWriting = true;
+      assertEquals(ERROR_JT_CONNECTION, _excludes.exclude(JT, hosts("tt2"), _writer));
+      assertNull(_excludes.getExcluded(JT));
+
+      _writer._rc = SUCCESS;
+      assertEquals(SUCCESS, _excludes.includeAll(JT, _writer));
+      assertTrue(_writer._file.isEmpty());
+      assertTrue(_excludes.getExcluded(JT).isEmpty());
+      assertEquals(Arrays.asList("clear=false add=[tt1] remove=[]", "clear=false add=[] remove=[tt1]", "clear=false add=[tt2] remove=[]",
+            "clear=true add=[] remove=[]"), _writer.getUpdates());
+   }
+
+   @Test
+   public void concurrentChangesShareOneUpdate() throws InterruptedException {
+      _writer._block = new CountDownLatch(1);
+      List<Thread> threads = new ArrayList<Thread>();
+      final List<Integer> results = new ArrayList<Integer>();
+      for (final String host : new String[] {"tt1", "tt2", "tt3", "tt4"}) {
+         Thread thread = new Thread() {
+            @Override
+            public void run() {
+               int rc = _excludes.exclude(JT, hosts(host), _writer);
+               synchronized (results) {
+                  results.add(rc);
+               }
+            }
+         };
+         threads.add(thread);
+         thread.start();
+         if (threads.size() == 1) {
+            /* Let the first change start its update, so that the others queue up behind it */
+            while (_writer.getUpdates().isEmpty()) {
+               Thread.sleep(1);
+            }
+         }
+      }
+
+      /* Wait for the other changes to be waiting for the update in progress */
+      for (Thread thread : threads.subList(1, threads.size())) {
+         while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+         }
+      }
+      _writer._block.countDown();
+      for (Thread thread : threads) {
+         thread.join(10000);
+      }
+
+      assertEquals(Arrays.asList(SUCCESS, SUCCESS, SUCCESS, SUCCESS), results);
+      assertEquals(2, _writer.getUpdates().size());
+      assertTrue(_writer.getUpdates().get(1).contains("add=[tt2, tt3, tt4]"));
+      assertEquals(hosts("tt1", "tt2", "tt3", "tt4"), _excludes.getExcluded(JT));
+   }
+}
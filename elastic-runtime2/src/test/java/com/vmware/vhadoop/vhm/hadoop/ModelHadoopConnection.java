@@ -29,7 +29,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import com.vmware.vhadoop.api.vhm.HadoopActions.HadoopClusterInfo;
 import com.vmware.vhadoop.vhm.model.hadoop.JobTracker;
@@ -96,6 +98,8 @@ public class ModelHadoopConnection extends HadoopConnection
             return shUpdateTTs(args, out, false);
          } else if (scriptFileName.equals("recommissionTTs.sh")) {
             return shUpdateTTs(args, out, true);
+         } else if (scriptFileName.equals("decommissionAndCheckTTs.sh")) {
+            return shDecommissionAndCheckTTs(args, out);
          }
 
          return ERROR_COMMAND_NOT_FOUND;
@@ -177,4 +181,62 @@ public class ModelHadoopConnection extends HadoopConnection
 
       return custom != null ? custom : returnVal;
    }
+
+   /**
+    * Emulates the decommission followed by the wait for the task trackers to leave the active list
+    * @param args excludesFile, hadoopHome, timeoutSeconds, hostnames...
+    * @param out
+    * @return
+    * @throws IOException
+    */
+   protected int shDecommissionAndCheckTTs(String args[], OutputStream out) throws IOException {
+      StringBuilder list = new StringBuilder();
+      for (int i = 3; i < args.length; i++) {
+         list.append(args[i]).append("\n");
+      }
+
+      String listFile = "decommissionAndCheckTTs.list";
+      files.put(listFile, list.toString());
+      int rc = shUpdateTTs(new String[] {listFile, args[0], args[1]}, out, false);
+      files.remove(listFile);
+      if (rc != SUCCESS && rc != WARN_TT_ACTIVE && rc != WARN_TT_EXCLUDESFILE) {
+         return rc;
+      }
+      out.write(("DECOMMISSION_STATUS: "+rc+"\n").getBytes());
+
+      Set<String> remaining = new HashSet<String>();
+      for (int i = 3; i < args.length; i++) {
+         remaining.add(args[i]);
+      }
+
+      Set<String> active = new HashSet<String>();
+      for (int iteration = 0; iteration < 5; iteration++) {
+         active.clear();
+         for (TaskTracker node : jobTracker.getAliveTaskTrackers()) {
+            active.add(node.getHostname());
+         }
+
+         for (String hostname : new HashSet<String>(remaining)) {
+            if (!active.contains(hostname)) {
+               remaining.remove(hostname);
+               out.write(("DECOMMISSIONED: "+hostname+"\n").getBytes());
+            }
+         }
+
+         if (remaining.isEmpty()) {
+            break;
+         }
+
+         /* delay to emulate the script polling the job tracker */
+         try {
+            Thread.sleep(10);
+         } catch (InterruptedException e) {/*squash*/}
+      }
+
+      for (String hostname : active) {
+         out.write(("TT: "+hostname+"\n").getBytes());
+      }
+
+      return remaining.isEmpty() ? SUCCESS : ERROR_EXCESS_TTS;
+   }
 }
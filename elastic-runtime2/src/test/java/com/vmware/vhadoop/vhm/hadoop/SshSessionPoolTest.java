@@ -0,0 +1,195 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm.hadoop;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.vmware.vhadoop.vhm.hadoop.HadoopConnection.HadoopCredentials;
+
+public class SshSessionPoolTest {
+   static final long NO_HEALTH_CHECK = Long.MAX_VALUE;
+   static final long NO_EVICTION = Long.MAX_VALUE;
+   static final String HOST = "host";
+   static final int PORT = 22;
+
+   private static final Logger _log = Logger.getLogger(SshSessionPoolTest.class.getName());
+
+   TestSessionPool _pool;
+   HadoopCredentials _credentials;
+
+   /* Sessions are never connected. The pool is told which ones are connected and records which ones it disconnects */
+   class TestSessionPool extends SshSessionPool {
+      final JSch _jsch = new JSch();
+      final Set<Session> _connected = Collections.newSetFromMap(new IdentityHashMap<Session, Boolean>());
+      final List<Session> _created = new ArrayList<Session>();
+      final List<Session> _disconnected = new ArrayList<Session>();
+
+      TestSessionPool() {
+         super(NO_EVICTION, NO_HEALTH_CHECK);
+      }
+
+      @Override
+      Session createSession(Logger logger, HadoopCredentials credentials, String host, int port) throws JSchException {
+         Session session = _jsch.getSession(credentials.getSshUsername(), host, port);
+         synchronized(this) {
+            _connected.add(session);
+            _created.add(session);
+         }
+         return session;
+      }
+
+      @Override
+      synchronized boolean isConnected(Session session) {
+         return _connected.contains(session);
+      }
+
+      @Override
+      synchronized boolean isHealthy(Session session) {
+         return _connected.contains(session);
+      }
+
+      @Override
+      synchronized void disconnect(Session session) {
+         _connected.remove(session);
+         _disconnected.add(session);
+      }
+
+      /* Simulates the connection dropping underneath the session */
+      synchronized void drop(Session session) {
+         _connected.remove(session);
+      }
+   }
+
+   @Before
+   public void init() {
+      _pool = new TestSessionPool();
+      _credentials = new SimpleHadoopCredentials("user", "password", null);
+   }
+
+   Session acquire() throws JSchException {
+      return acquire(HOST);
+   }
+
+   Session acquire(String host) throws JSchException {
+      return _pool.acquire(_log, _credentials, host, PORT);
+   }
+
+   @Test
+   public void testReleasedSessionIsReused() throws JSchException {
+      Session session = acquire();
+      assertEquals(1, _pool.getInFlight(session));
+      _pool.release(session, true);
+      assertEquals(0, _pool.getInFlight(session));
+      assertSame(session, acquire());
+      assertEquals(1, _pool._created.size());
+      assertTrue(_pool._disconnected.isEmpty());
+   }
+
+   @Test
+   public void testChannelsShareSessionUpToLimit() throws JSchException {
+      Session session = acquire();
+      for (int i = 1; i < SshSessionPool.MAX_CHANNELS_PER_SESSION; i++) {
+         assertSame(session, acquire());
+      }
+      assertEquals(SshSessionPool.MAX_CHANNELS_PER_SESSION, _pool.getInFlight(session));
+
+      /* The session is full, so another one is opened to the same host */
+      Session other = acquire();
+      assertNotSame(session, other);
+      assertEquals(1, _pool.getInFlight(other));
+
+      /* Once a channel has been released, the session with the fewest channels in flight is picked */
+      _pool.release(session, true);
+      _pool.release(session, true);
+      assertSame(other, acquire());
+      assertEquals(SshSessionPool.MAX_CHANNELS_PER_SESSION - 2, _pool.getInFlight(session));
+      assertEquals(2, _pool.getInFlight(other));
+   }
+
+   @Test
+   public void testUnhealthyReleaseRetiresSessionWithoutDisconnecting() throws JSchException {
+      Session session = acquire();
+      assertSame(session, acquire());
+
+      /* A channel could not be opened, but the other channel on the session is still in use */
+      _pool.release(session, false);
+      assertEquals(1, _pool.getInFlight(session));
+      assertTrue(_pool._disconnected.isEmpty());
+
+      /* The retired session is no longer handed out */
+      Session other = acquire();
+      assertNotSame(session, other);
+
+      /* It is disconnected when its last channel is released */
+      _pool.release(session, true);
+      assertEquals(Collections.singletonList(session), _pool._disconnected);
+      assertEquals(0, _pool.getInFlight(session));
+
+      _pool.release(other, true);
+      assertEquals(1, _pool._disconnected.size());
+   }
+
+   @Test
+   public void testDroppedSessionIsDisconnectedOnRelease() throws JSchException {
+      Session session = acquire();
+      assertSame(session, acquire());
+
+      /* The connection has gone, so the other channel cannot be using it either */
+      _pool.drop(session);
+      _pool.release(session, false);
+      assertEquals(Collections.singletonList(session), _pool._disconnected);
+      assertEquals(1, _pool.getInFlight(session));
+
+      assertNotSame(session, acquire());
+      _pool.release(session, true);
+      assertEquals(0, _pool.getInFlight(session));
+   }
+
+   @Test
+   public void testClearRetiresSessionsInUse() throws JSchException {
+      Session inUse = acquire();
+      assertSame(inUse, acquire());
+      Session idle = acquire("otherHost");
+      _pool.release(idle, true);
+      assertEquals(0, _pool.getInFlight(idle));
+
+      /* Only the idle session is disconnected straight away */
+      _pool.clear();
+      assertEquals(Collections.singletonList(idle), _pool._disconnected);
+
+      assertNotSame(inUse, acquire());
+      assertNotSame(idle, acquire("otherHost"));
+
+      _pool.release(inUse, true);
+      assertFalse(_pool._disconnected.contains(inUse));
+      _pool.release(inUse, true);
+      assertTrue(_pool._disconnected.contains(inUse));
+   }
+}
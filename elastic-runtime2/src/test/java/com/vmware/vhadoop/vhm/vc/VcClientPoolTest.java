@@ -0,0 +1,229 @@
+/***************************************************************************
+* Copyright (c) 2013 VMware, Inc. All Rights Reserved.
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+***************************************************************************/
+
+
+package com.vmware.vhadoop.vhm.vc;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class VcClientPoolTest {
+   static final long NO_HEALTH_CHECK = Long.MAX_VALUE;
+   static final long NO_EVICTION = Long.MAX_VALUE;
+
+   TestClientFactory _factory;
+
+   /* Clients are strings. Records which clients have been created and closed and which are currently unhealthy */
+   class TestClientFactory implements VcClientPool.ClientFactory<String> {
+      final List<String> _created = new ArrayList<String>();
+      final List<String> _closed = new ArrayList<String>();
+      final Set<String> _unhealthy = new HashSet<String>();
+      int _healthChecks;
+      boolean _failCreate;
+
+      @Override
+      public synchronized String createClient() throws Exception {
+         if (_failCreate) {
+            throw new Exception("Unable to connect");
+         }
+         String client = "client"+_created.size();
+         _created.add(client);
+         return client;
+      }
+
+      @Override
+      public synchronized boolean isHealthy(String client) {
+         _healthChecks++;
+         return !_unhealthy.contains(client);
+      }
+
+      @Override
+      public synchronized void closeClient(String client) {
+         _closed.add(client);
+      }
+   }
+
+   @Before
+   public void init() {
+      _factory = new TestClientFactory();
+   }
+
+   @Test
+   public void testIdleClientIsReused() throws InterruptedException {
+      VcClientPool<String> pool = new VcClientPool<String>(_factory, 4, 2, NO_EVICTION, NO_HEALTH_CHECK);
+      String client = pool.acquire();
+      pool.release(client);
+      assertEquals(client, pool.acquire());
+      assertEquals(1, pool.getClientsCreated());
+   }
+
+   @Test
+   public void testClientAddedWhenAllAreBusy() throws InterruptedException {
+      VcClientPool<String> pool = new VcClientPool<String>(_factory, 4, 2, NO_EVICTION, NO_HEALTH_CHECK);
+      Set<String> clients = new HashSet<String>();
+      for (int i = 0; i < 4; i++) {
+         clients.add(pool.acquire());
+      }
+      assertEquals(4, clients.size());
+      assertEquals(4, pool.getNumClients());
+
+      /* Once the pool is full, operations share the least loaded clients */
+      String shared = pool.acquire();
+      assertTrue(clients.contains(shared));
+      assertEquals(4, pool.getClientsCreated());
+   }
+
+   @Test
+   public void testWaitsWhenInFlightLimitReached() throws InterruptedException {
+      final VcClientPool<String> pool = new VcClientPool<String>(_factory, 1, 2, NO_EVICTION, NO_HEALTH_CHECK);
+      final String client = pool.acquire();
+      assertEquals(client, pool.acquire());
+
+      final CountDownLatch acquired = new CountDownLatch(1);
+      Thread waiter = new Thread() {
+         @Override
+         public void run() {
+            try {
+               if (pool.acquire() == client) {
+                  acquired.countDown();
+               }
+            } catch (InterruptedException e) {
+               /* Fails the test */
+            }
+         }
+      };
+      waiter.start();
+      assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+      pool.release(client);
+      assertTrue(acquired.await(2000, TimeUnit.MILLISECONDS));
+      assertEquals(1, pool.getWaitsForClient());
+   }
+
+   @Test
+   public void testIdleClientIsEvicted() throws InterruptedException {
+      VcClientPool<String> pool = new VcClientPool<String>(_factory, 4, 2, 50, NO_HEALTH_CHECK);
+      String client = pool.acquire();
+      pool.release(client);
+      Thread.sleep(100);
+
+      String newClient = pool.acquire();
+      assertFalse(client.equals(newClient));
+      assertTrue(_factory._closed.contains(client));
+      assertEquals(1, pool.getClientsEvicted());
+      assertEquals(1, pool.getNumClients());
+   }
+
+   @Test
+   public void testUnhealthyClientIsReplaced() throws InterruptedException {
+      VcClientPool<String> pool = new VcClientPool<String>(_factory, 4, 2, NO_EVICTION, 50);
+      String client = pool.acquire();
+      pool.release(client);
+
+      /* A client in recent use is not checked */
+      pool.release(pool.acquire());
+      assertEquals(0, _factory._healthChecks);
+
+      Thread.sleep(100);
+      _factory._unhealthy.add(client);
+      String newClient = pool.acquire();
+      assertFalse(client.equals(newClient));
+      assertEquals(1, _factory._healthChecks);
+      assertTrue(_factory._closed.contains(client));
+      assertEquals(1, pool.getUnhealthyClients());
+   }
+
+   @Test
+   public void testClientNotSharedWhileBeingChecked() throws InterruptedException {
+      final CountDownLatch checking = new CountDownLatch(1);
+      final CountDownLatch finishCheck = new CountDownLatch(1);
+      _factory = new TestClientFactory() {
+         @Override
+         public boolean isHealthy(String client) {
+            checking.countDown();
+            try {
+               finishCheck.await(2000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {}
+            return true;
+         }
+      };
+      final VcClientPool<String> pool = new VcClientPool<String>(_factory, 1, 2, NO_EVICTION, 50);
+      final String client = pool.acquire();
+      pool.release(client);
+      Thread.sleep(100);
+
+      final CountDownLatch acquired = new CountDownLatch(2);
+      for (int i=0; i<2; i++) {
+         new Thread() {
+            @Override
+            public void run() {
+               try {
+                  if (pool.acquire() == client) {
+                     acquired.countDown();
+                  }
+               } catch (InterruptedException e) {
+                  /* Fails the test */
+               }
+            }
+         }.start();
+         if (i == 0) {
+            assertTrue(checking.await(2000, TimeUnit.MILLISECONDS));
+         }
+      }
+      /* Neither thread gets the client until its health check has passed */
+      assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+      assertEquals(2, acquired.getCount());
+
+      finishCheck.countDown();
+      assertTrue(acquired.await(2000, TimeUnit.MILLISECONDS));
+      assertEquals(1, pool.getClientsCreated());
+   }
+
+   @Test
+   public void testClearClosesClientsWhenReleased() throws InterruptedException {
+      VcClientPool<String> pool = new VcClientPool<String>(_factory, 4, 1, NO_EVICTION, NO_HEALTH_CHECK);
+      String idle = pool.acquire();
+      String inUse = pool.acquire();
+      pool.release(idle);
+
+      pool.clear();
+      assertTrue(_factory._closed.contains(idle));
+      assertFalse(_factory._closed.contains(inUse));
+      assertEquals(0, pool.getNumClients());
+
+      pool.release(inUse);
+      assertTrue(_factory._closed.contains(inUse));
+   }
+
+   @Test
+   public void testNullWhenClientCannotBeCreated() throws InterruptedException {
+      VcClientPool<String> pool = new VcClientPool<String>(_factory, 4, 2, NO_EVICTION, NO_HEALTH_CHECK);
+      _factory._failCreate = true;
+      assertNull(pool.acquire());
+      assertEquals(0, pool.getNumClients());
+
+      _factory._failCreate = false;
+      assertNotNull(pool.acquire());
+   }
+}